@@ -64,13 +64,11 @@ public class AccountManager {
 	public static final String MAILSITE_VERSION = "-1";
 
 	// We keep FreemailAccount objects for all the accounts in this instance of Freemail - they need to be in memory
-	// anyway since there's SingleAccountWatcher thread running for each of them anyway - and we return the same object
+	// anyway since there's a SingleAccountWatcher polling for each of them anyway - and we return the same object
 	// each time a request is made for a given account.
 	private Map<String, FreemailAccount> accounts = new HashMap<String, FreemailAccount>();
 
-	//singleAccountWatcherList locks both these lists
 	private final ArrayList<SingleAccountWatcher> singleAccountWatcherList = new ArrayList<SingleAccountWatcher>();
-	private final ArrayList<Thread> singleAccountWatcherThreadList = new ArrayList<Thread>();
 
 	private final File datadir;
 	private final Freemail freemail;
@@ -111,14 +109,10 @@ public class AccountManager {
 
 				//Now start a SingleAccountWatcher for this account
 				SingleAccountWatcher saw = new SingleAccountWatcher(account, freemail);
-				Thread t = new Thread(saw, "Freemail Account Watcher for "+account.getIdentity());
-				t.setDaemon(true);
-				t.start();
-
 				synchronized(singleAccountWatcherList) {
 					singleAccountWatcherList.add(saw);
-					singleAccountWatcherThreadList.add(t);
 				}
+				saw.start();
 			}
 		}
 	}
@@ -335,38 +329,24 @@ public class AccountManager {
 
 		//Now start a SingleAccountWatcher for this account
 		SingleAccountWatcher saw = new SingleAccountWatcher(account, freemail);
-		Thread t = new Thread(saw, "Freemail Account Watcher for "+account.getIdentity());
-		t.setDaemon(true);
-		t.start();
-
 		synchronized(singleAccountWatcherList) {
 			singleAccountWatcherList.add(saw);
-			singleAccountWatcherThreadList.add(t);
 		}
+		saw.start();
 	}
 
 	void terminate() {
 		synchronized(singleAccountWatcherList) {
+			//Running watchers are interrupted when Freemail shuts down the executors
 			Iterator<SingleAccountWatcher> sawIt = singleAccountWatcherList.iterator();
 			while(sawIt.hasNext()) {
 				sawIt.next().kill();
 				sawIt.remove();
 			}
+		}
 
-			Iterator<Thread> threadIt = singleAccountWatcherThreadList.iterator();
-			while(threadIt.hasNext()) {
-				threadIt.next().interrupt();
-			}
-
-			threadIt = singleAccountWatcherThreadList.iterator();
-			while(threadIt.hasNext()) {
-				try {
-					threadIt.next().join();
-				} catch (InterruptedException e) {
-					Logger.error(this, "Got InterruptedException while joining SingleAccountWatcher thread");
-				}
-				threadIt.remove();
-			}
+		for(FreemailAccount account : getAllAccounts()) {
+			account.getMessageHandler().terminate();
 		}
 	}
 }
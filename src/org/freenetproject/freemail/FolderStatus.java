@@ -0,0 +1,62 @@
+/*
+ * FolderStatus.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+/**
+ * The message counts of a folder, as returned by the IMAP STATUS command.
+ * Instances are immutable and are cached by the folder's
+ * {@link MessageSummaryCache}.
+ *
+ * Use {@link MessageBank#getStatus()} to get the status of a folder.
+ */
+public class FolderStatus {
+	private final int messages;
+	private final int recent;
+	private final int unseen;
+	private final long uidNext;
+
+	FolderStatus(int messages, int recent, int unseen, long uidNext) {
+		this.messages = messages;
+		this.recent = recent;
+		this.unseen = unseen;
+		this.uidNext = uidNext;
+	}
+
+	public int getMessages() {
+		return messages;
+	}
+
+	public int getRecent() {
+		return recent;
+	}
+
+	public int getUnseen() {
+		return unseen;
+	}
+
+	/**
+	 * Returns the uid that will be assigned to the next message added to the
+	 * folder.
+	 * @return the uid of the next message
+	 */
+	public long getUidNext() {
+		return uidNext;
+	}
+}
@@ -39,6 +39,7 @@ import org.freenetproject.freemail.imap.IMAPListener;
 import org.freenetproject.freemail.smtp.SMTPListener;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.Timer;
+import org.freenetproject.freemail.wot.IdentityDirectory;
 import org.freenetproject.freemail.wot.WoTConnection;
 
 
@@ -53,8 +54,18 @@ public abstract class Freemail implements ConfigClient {
 	protected static final String DEFAULT_DATADIR = BASEDIR + "/data";
 	protected static final String CFGFILE = BASEDIR + "/globalconfig";
 	private static final long LATEST_FILE_FORMAT = 1;
+	private static final String IDENTITY_SNAPSHOT = "identities";
+
+	/**
+	 * How often persistent requests that no channel has claimed are removed from the node. The
+	 * first run is this long after startup, which gives the channels time to resubmit theirs.
+	 */
+	private static final long UNCLAIMED_REQUEST_INTERVAL = 30 * 60 * 1000;
 
 	private File datadir;
+	private long identityRefreshInterval = IdentityDirectory.DEFAULT_REFRESH_INTERVAL;
+	private IdentityDirectory identityDirectory;
+	private PollScheduler pollScheduler;
 	private static File tempdir;
 	protected static FCPConnection fcpconn = null;
 
@@ -99,17 +110,23 @@ public abstract class Freemail implements ConfigClient {
 		 * the timeout expires the executor creates a new thread. Because of
 		 * this the timeout for the sender executor should be large to avoid
 		 * creating a large amount of threads, and for the default it should be
-		 * > Channel.TASK_RETRY_DELAY (since that makes the thread that runs
-		 * the Fetcher never time out).
+		 * > the warm poll interval of PollScheduler (since that makes the
+		 * thread that runs the polling tasks never time out).
 		 */
 		defaultExecutor.setKeepAliveTime(10, TimeUnit.MINUTES);
 		defaultExecutor.allowCoreThreadTimeOut(true);
 		senderExecutor.setKeepAliveTime(1, TimeUnit.HOURS);
 		senderExecutor.allowCoreThreadTimeOut(true);
 
+		configurator.register(Configurator.WOT_REFRESH_INTERVAL, this,
+				Long.toString(IdentityDirectory.DEFAULT_REFRESH_INTERVAL / 1000));
+
 		FCPContext fcpctx = new FCPContext();
 		configurator.register(Configurator.FCP_HOST, fcpctx, "localhost");
 		configurator.register(Configurator.FCP_PORT, fcpctx, "9481");
+		configurator.register(Configurator.FCP_CONNECTIONS, fcpctx, "1");
+		configurator.register(Configurator.FCP_MEMORY_THRESHOLD, fcpctx, Integer.toString(FCPContext.DEFAULT_MEMORY_THRESHOLD));
+		configurator.register(Configurator.FCP_PERSISTENT_INSERTS, fcpctx, "false");
 
 		Freemail.fcpconn = new FCPConnection(fcpctx);
 
@@ -123,6 +140,34 @@ public abstract class Freemail implements ConfigClient {
 		return null;
 	}
 
+	/**
+	 * Returns the cached directory of WoT identities, or {@code null} if there is no connection
+	 * to WoT.
+	 */
+	public synchronized IdentityDirectory getIdentityDirectory() {
+		if(identityDirectory == null) {
+			WoTConnection wotConnection = getWotConnection();
+			if(wotConnection == null) {
+				return null;
+			}
+
+			identityDirectory = new IdentityDirectory(wotConnection, new File(datadir, IDENTITY_SNAPSHOT),
+					getExecutor(TaskType.UNSPECIFIED), identityRefreshInterval);
+			identityDirectory.start();
+		}
+		return identityDirectory;
+	}
+
+	/**
+	 * Returns the scheduler that runs the polling tasks of all the accounts and channels.
+	 */
+	public synchronized PollScheduler getPollScheduler() {
+		if(pollScheduler == null) {
+			pollScheduler = new PollScheduler(getExecutor(TaskType.UNSPECIFIED), PollScheduler.DEFAULT_FETCH_BUDGET);
+		}
+		return pollScheduler;
+	}
+
 	public static File getTempDir() {
 		return Freemail.tempdir;
 	}
@@ -141,6 +186,19 @@ public abstract class Freemail implements ConfigClient {
 			datadir = new File(val);
 		} else if(key.equalsIgnoreCase(Configurator.TEMP_DIR)) {
 			tempdir = new File(val);
+		} else if(key.equalsIgnoreCase(Configurator.WOT_REFRESH_INTERVAL)) {
+			try {
+				identityRefreshInterval = Long.parseLong(val) * 1000;
+			} catch(NumberFormatException e) {
+				Logger.error(this, "Invalid WoT refresh interval: " + val);
+				return;
+			}
+
+			synchronized(this) {
+				if(identityDirectory != null) {
+					identityDirectory.setRefreshInterval(identityRefreshInterval);
+				}
+			}
 		}
 	}
 
@@ -178,6 +236,14 @@ public abstract class Freemail implements ConfigClient {
 	protected void startWorkers() {
 		//Start account watchers, channel tasks etc.
 		accountManager.startTasks();
+
+		//Anything the channels haven't asked for by then belongs to a channel that is gone
+		defaultExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				fcpconn.removeUnclaimedRequests();
+			}
+		}, UNCLAIMED_REQUEST_INTERVAL, UNCLAIMED_REQUEST_INTERVAL, TimeUnit.MILLISECONDS);
 	}
 
 	/**
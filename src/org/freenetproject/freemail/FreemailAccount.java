@@ -31,12 +31,15 @@ import freenet.support.Base64;
 import freenet.support.IllegalBase64Exception;
 
 public class FreemailAccount {
+	private static final String MAILSITE_CACHE = "mailsites";
+
 	private final String identity;
 	private String nickname = null;
 	private final File accdir;
 	private final PropsFile accprops;
 	private final MessageBank mb;
 	private final MessageHandler messageHandler;
+	private final MailsiteCache mailsiteCache;
 
 	FreemailAccount(String identity, File _accdir, PropsFile _accprops, Freemail freemail) {
 		if(!FreenetURI.checkSSKHash(identity)) {
@@ -52,12 +55,20 @@ public class FreemailAccount {
 		accdir = _accdir;
 		accprops = _accprops;
 		mb = new MessageBank(this);
+		mailsiteCache = new MailsiteCache(new File(accdir, MAILSITE_CACHE));
 
 		File channelDir = new File(accdir, "channel");
 		messageHandler = new MessageHandler(new File(accdir, "outbox"), freemail, channelDir, this,
 		                                    new HighLevelFCPClientFactory());
 	}
 
+	/**
+	 * Returns the cache of the mailsites of the identities this account talks to.
+	 */
+	public MailsiteCache getMailsiteCache() {
+		return mailsiteCache;
+	}
+
 	public void startTasks() {
 		messageHandler.start();
 	}
@@ -286,6 +286,25 @@ public class MailMessage {
 		return msg_seqnum;
 	}
 
+	/**
+	 * Returns the time the message was stored in the folder, as returned by
+	 * {@link File#lastModified()} for the backing file.
+	 * @return the time the message was stored in the folder
+	 */
+	public long getInternalDate() {
+		return file.lastModified();
+	}
+
+	/**
+	 * Returns the length of the backing file. Unlike {@link #getSize()} this
+	 * doesn't read the message, so it is cheap but doesn't count the line
+	 * endings the same way IMAP does.
+	 * @return the length of the backing file
+	 */
+	long getFileLength() {
+		return file.length();
+	}
+
 	public long getSize() throws IOException {
 		// this is quite arduous since we have to send the message
 		// with \r\n's, and hence it may not be the size it is on disk
@@ -354,6 +373,26 @@ public class MailMessage {
 		this.file.delete();
 	}
 
+	/**
+	 * Renames the backing file of this message to the given file. The message
+	 * data is not copied, so this is only possible within the same file system.
+	 *
+	 * @param newfile the new backing file
+	 * @return {@code true} if the message was renamed
+	 */
+	boolean renameTo(File newfile) {
+		this.closeStream();
+
+		if(!this.file.renameTo(newfile)) {
+			Logger.error(this, "Rename failed (from " + file + " to " + newfile + ")");
+			return false;
+		}
+
+		Logger.debug(this, "Message moved from " + file + " to " + newfile);
+		this.file = newfile;
+		return true;
+	}
+
 	public void storeFlags() {
 		String[] parts = this.file.getName().split(",");
 
@@ -24,6 +24,8 @@ package org.freenetproject.freemail;
 import java.io.UnsupportedEncodingException;
 
 import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
+import org.freenetproject.freemail.fcp.FCPPriority;
+import org.freenetproject.freemail.fcp.FetchOptions;
 import org.freenetproject.freemail.fcp.HighLevelFCPClient;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.PropsFile;
@@ -33,6 +35,17 @@ public class MailSite {
 	private final PropsFile accprops;
 	public static final String MAILPAGE = "mailpage";
 
+	/**
+	 * The largest mailsite we fetch. A real one is a few lines of text, so anything bigger is
+	 * refused by the node before we download it.
+	 */
+	private static final long MAX_SIZE = 32 * 1024;
+
+	/** The options used when fetching another user's mailsite */
+	public static final FetchOptions FETCH_OPTIONS = new FetchOptions(FCPPriority.MEDIUM)
+			.withMaxSize(MAX_SIZE)
+			.withMaxRetries(2);
+
 	MailSite(PropsFile a) {
 		this.accprops = a;
 	}
@@ -84,7 +97,7 @@ public class MailSite {
 
 		int actualslot = -1;
 		try {
-			actualslot = cli.slotInsert(mailpage, key, minslot, "/"+MAILPAGE);
+			actualslot = cli.slotInsert(mailpage, key, minslot, "/"+MAILPAGE, FCPPriority.MEDIUM);
 		} catch (ConnectionTerminatedException cte) {
 			return -1;
 		}
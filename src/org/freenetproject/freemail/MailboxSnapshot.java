@@ -0,0 +1,170 @@
+/*
+ * MailboxSnapshot.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.freenetproject.freemail.imap.IMAPMessageFlags;
+
+/**
+ * A compact snapshot of the messages in a folder, ordered by uid. The uid and
+ * flags of each message are kept in parallel primitive arrays, while the size
+ * and internal date are read from the file system the first time they are
+ * needed. A {@link MailMessage} is only created when {@link #getMessage(int)}
+ * is called, e.g. when a command needs the headers or body of the message.
+ *
+ * Messages are addressed by index, which is the sequence number minus one.
+ * The snapshot isn't updated when the folder changes.
+ *
+ * Use {@link MessageBank#snapshot()} to get a snapshot of a folder.
+ */
+public class MailboxSnapshot {
+	private static final long UNKNOWN = -1;
+
+	private final File dir;
+	private final String[] names;
+	private final int[] uids;
+	private final int[] flags;
+	private final long[] sizes;
+	private final long[] internalDates;
+
+	MailboxSnapshot(File dir, String[] names, int[] uids) {
+		this.dir = dir;
+		this.names = names;
+		this.uids = uids;
+
+		this.flags = new int[names.length];
+		for(int i = 0; i < names.length; i++) {
+			flags[i] = parseFlags(names[i]);
+		}
+
+		this.sizes = new long[names.length];
+		Arrays.fill(sizes, UNKNOWN);
+		this.internalDates = new long[names.length];
+		Arrays.fill(internalDates, UNKNOWN);
+	}
+
+	/**
+	 * Returns the flag bitmask encoded in the given message file name, using
+	 * the same rules as {@link MailMessage#MailMessage(File, int)}.
+	 */
+	private static int parseFlags(String name) {
+		int comma = name.indexOf(',');
+		if(comma < 0) {
+			//Treat it as a new message
+			return IMAPMessageFlags.getBit(IMAPMessageFlags.FLAG_RECENT);
+		}
+		return IMAPMessageFlags.parseShortFlags(name.substring(comma + 1));
+	}
+
+	/**
+	 * Returns the number of messages in the snapshot.
+	 * @return the number of messages in the snapshot
+	 */
+	public int size() {
+		return uids.length;
+	}
+
+	public int getUid(int index) {
+		return uids[index];
+	}
+
+	public int getSeqNum(int index) {
+		return index + 1;
+	}
+
+	/**
+	 * Returns the uid of the last message, or 0 if the snapshot is empty.
+	 * @return the uid of the last message
+	 */
+	public int getLastUid() {
+		if(uids.length == 0) {
+			return 0;
+		}
+		return uids[uids.length - 1];
+	}
+
+	/**
+	 * Returns the flags of the message as a bitmask.
+	 * @param index the index of the message
+	 * @return the flags of the message
+	 * @see IMAPMessageFlags#getBits()
+	 */
+	public int getFlags(int index) {
+		return flags[index];
+	}
+
+	/**
+	 * Returns {@code true} if the given flag is set for the message.
+	 * @param index the index of the message
+	 * @param flag the name of the flag, e.g. {@link IMAPMessageFlags#FLAG_SEEN}
+	 * @return {@code true} if the given flag is set
+	 */
+	public boolean hasFlag(int index, String flag) {
+		return (flags[index] & IMAPMessageFlags.getBit(flag)) != 0;
+	}
+
+	/**
+	 * Returns the length of the message file. Unlike
+	 * {@link MailMessage#getSize()} this doesn't account for line endings.
+	 * @param index the index of the message
+	 * @return the length of the message file
+	 */
+	public synchronized long getFileLength(int index) {
+		if(sizes[index] == UNKNOWN) {
+			sizes[index] = new File(dir, names[index]).length();
+		}
+		return sizes[index];
+	}
+
+	/**
+	 * Returns the internal date of the message.
+	 * @param index the index of the message
+	 * @return the internal date of the message
+	 * @see MailMessage#getInternalDate()
+	 */
+	public synchronized long getInternalDate(int index) {
+		if(internalDates[index] == UNKNOWN) {
+			internalDates[index] = new File(dir, names[index]).lastModified();
+		}
+		return internalDates[index];
+	}
+
+	/**
+	 * Returns the index of the message with the given uid, or -1 if there is
+	 * no such message.
+	 * @param uid the uid of the message
+	 * @return the index of the message with the given uid, or -1
+	 */
+	public int indexOfUid(int uid) {
+		int index = Arrays.binarySearch(uids, uid);
+		return index < 0 ? -1 : index;
+	}
+
+	/**
+	 * Creates a {@link MailMessage} for the message at the given index.
+	 * @param index the index of the message
+	 * @return the message at the given index
+	 */
+	public MailMessage getMessage(int index) {
+		return new MailMessage(new File(dir, names[index]), index + 1);
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * MailsiteCache.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
+import org.freenetproject.freemail.fcp.FCPException;
+import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.freenetproject.freemail.utils.Logger;
+import org.freenetproject.freemail.utils.PropsFile;
+
+import freenet.support.api.Bucket;
+
+/**
+ * Remembers the parts of other users' mailsites that are needed to exchange RTS messages, so that
+ * the mailsite doesn't have to be fetched every time. The contents of a mailsite almost never
+ * change, so a cached copy is used even if a newer edition is known to exist, while the newer
+ * edition is fetched in the background.
+ */
+public class MailsiteCache {
+	/** Cached entries older than this are refreshed when they are used */
+	static final long REFRESH_AGE = 7 * 24 * 60 * 60 * 1000; //1 week
+
+	private static final Pattern EDITION_PATTERN = Pattern.compile("/" + AccountManager.MAILSITE_SUFFIX + "/(-?\\d+)/");
+
+	private static class PropsKeys {
+		private static final String RTS_KSK = ".rtsksk";
+		private static final String MODULUS = ".modulus";
+		private static final String EXPONENT = ".pubexponent";
+		private static final String EDITION = ".edition";
+		private static final String FETCHED = ".fetched";
+	}
+
+	public static class Entry {
+		private final String rtsKsk;
+		private final String modulus;
+		private final String exponent;
+		private final long edition;
+		private final long fetched;
+
+		private Entry(String rtsKsk, String modulus, String exponent, long edition, long fetched) {
+			this.rtsKsk = rtsKsk;
+			this.modulus = modulus;
+			this.exponent = exponent;
+			this.edition = edition;
+			this.fetched = fetched;
+		}
+
+		public String getRtsKsk() {
+			return rtsKsk;
+		}
+
+		/** Returns the modulus of the public key, in base 32 */
+		public String getModulus() {
+			return modulus;
+		}
+
+		/** Returns the public exponent of the public key, in base 32 */
+		public String getExponent() {
+			return exponent;
+		}
+
+		/** Returns the newest edition this entry is known to be from */
+		public long getEdition() {
+			return edition;
+		}
+
+		/** Returns when this entry was fetched */
+		public long getFetched() {
+			return fetched;
+		}
+	}
+
+	private final PropsFile cache;
+
+	public MailsiteCache(File file) {
+		cache = PropsFile.createPropsFile(file);
+	}
+
+	/**
+	 * Returns the cached mailsite of the given identity, or {@code null} if there is none.
+	 */
+	public Entry get(String identity) {
+		synchronized(cache) {
+			String rtsKsk = cache.get(identity + PropsKeys.RTS_KSK);
+			String modulus = cache.get(identity + PropsKeys.MODULUS);
+			String exponent = cache.get(identity + PropsKeys.EXPONENT);
+			if(rtsKsk == null || modulus == null || exponent == null) {
+				return null;
+			}
+
+			long edition;
+			long fetched;
+			try {
+				edition = Long.parseLong(cache.get(identity + PropsKeys.EDITION));
+				fetched = Long.parseLong(cache.get(identity + PropsKeys.FETCHED));
+			} catch(NumberFormatException e) {
+				edition = 0;
+				fetched = 0;
+			}
+
+			return new Entry(rtsKsk, modulus, exponent, edition, fetched);
+		}
+	}
+
+	/**
+	 * Caches the given mailsite, which was fetched from the given edition. If a newer edition is
+	 * already cached it is kept. A negative edition -N means the node looked for the newest
+	 * edition from N on, so we only know that it was at least N.
+	 * @return the cached entry, or {@code null} if the mailsite is missing any of the keys
+	 */
+	public Entry put(String identity, long edition, PropsFile mailsite) {
+		String rtsKsk = mailsite.get("rtsksk");
+		String modulus = mailsite.get("asymkey.modulus");
+		String exponent = mailsite.get("asymkey.pubexponent");
+		if(rtsKsk == null || modulus == null || exponent == null) {
+			return null;
+		}
+
+		synchronized(cache) {
+			Entry current = get(identity);
+			if(edition < 0) {
+				edition = Math.max(-edition, (current == null) ? 0 : current.getEdition());
+			} else if(current != null && current.getEdition() > edition) {
+				return current;
+			}
+
+			long now = System.currentTimeMillis();
+			cache.put(identity + PropsKeys.RTS_KSK, rtsKsk);
+			cache.put(identity + PropsKeys.MODULUS, modulus);
+			cache.put(identity + PropsKeys.EXPONENT, exponent);
+			cache.put(identity + PropsKeys.EDITION, edition);
+			cache.put(identity + PropsKeys.FETCHED, now);
+			return new Entry(rtsKsk, modulus, exponent, edition, now);
+		}
+	}
+
+	/**
+	 * Removes the cached mailsite of the given identity, e.g. because it turned out to be wrong.
+	 */
+	public void invalidate(String identity) {
+		synchronized(cache) {
+			cache.remove(identity + PropsKeys.RTS_KSK);
+			cache.remove(identity + PropsKeys.MODULUS);
+			cache.remove(identity + PropsKeys.EXPONENT);
+			cache.remove(identity + PropsKeys.EDITION);
+			cache.remove(identity + PropsKeys.FETCHED);
+		}
+	}
+
+	/**
+	 * Returns {@code true} if the entry should be fetched again given that the mailsite is
+	 * known to have reached {@code edition}. A negative edition is unknown, so only the age of the
+	 * entry counts then.
+	 */
+	public static boolean isStale(Entry entry, long edition) {
+		return (edition >= 0 && entry.getEdition() < edition)
+				|| entry.getFetched() < System.currentTimeMillis() - REFRESH_AGE;
+	}
+
+	/**
+	 * Fetches the mailsite at the given key and caches it for the given identity.
+	 * @return the cached entry, or {@code null} if the mailsite is missing any of the keys
+	 * @throws IOException if the fetched data couldn't be read
+	 */
+	public Entry fetch(String identity, String mailsiteKey, HighLevelFCPClient fcpClient)
+			throws ConnectionTerminatedException, FCPException, InterruptedException, IOException {
+		Logger.debug(this, "Fetching mailsite from " + mailsiteKey);
+		Bucket data = fcpClient.fetch(mailsiteKey, MailSite.FETCH_OPTIONS);
+		if(data == null) {
+			throw new IOException("Mailsite fetch returned no data");
+		}
+
+		PropsFile mailsite;
+		try {
+			mailsite = PropsFile.createPropsFile(data.getInputStream(), false);
+		} finally {
+			data.free();
+		}
+		return put(identity, getEdition(mailsiteKey), mailsite);
+	}
+
+	/**
+	 * Fetches the mailsite at the given key using the executor, leaving the current entry in
+	 * place if the fetch fails.
+	 */
+	public void refresh(final String identity, final String mailsiteKey, final HighLevelFCPClient fcpClient,
+	                    Executor executor) {
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						fetch(identity, mailsiteKey, fcpClient);
+					} catch(ConnectionTerminatedException e) {
+						Logger.debug(this, "Connection terminated while refreshing mailsite");
+					} catch(FCPException e) {
+						Logger.minor(this, "Couldn't refresh mailsite of " + identity + ": " + e.getMessage());
+					} catch(IOException e) {
+						Logger.minor(this, "Couldn't read refreshed mailsite of " + identity + ": " + e.getMessage());
+					} catch(InterruptedException e) {
+						Logger.debug(this, "Interrupted while refreshing mailsite");
+					}
+				}
+
+				@Override
+				public String toString() {
+					return "Mailsite refresh [" + identity + "]";
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			Logger.debug(this, "Caugth RejectedExecutionException while scheduling mailsite refresh");
+		}
+	}
+
+	/**
+	 * Returns the edition in the given mailsite key, or 0 if the key doesn't contain one. Keys
+	 * that ask the node to look for the newest edition have a negative edition, which is returned
+	 * as it is since the edition that will be found is unknown.
+	 */
+	public static long getEdition(String mailsiteKey) {
+		Matcher matcher = EDITION_PATTERN.matcher(mailsiteKey);
+		if(!matcher.find()) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(matcher.group(1));
+		} catch(NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns the identity that published the given mailsite key, which is the routing key of
+	 * the USK.
+	 */
+	public static String getIdentity(String mailsiteKey) {
+		int start = mailsiteKey.indexOf('@') + 1;
+		int end = mailsiteKey.indexOf(',', start);
+		if(start == 0 || end < 0) {
+			throw new IllegalArgumentException("Not a mailsite key: " + mailsiteKey);
+		}
+		return mailsiteKey.substring(start, end);
+	}
+}
@@ -30,13 +30,15 @@ import java.io.BufferedReader;
 import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.SortedMap;
 import java.util.Vector;
 import java.util.Enumeration;
-import java.util.Comparator;
 import java.util.Arrays;
 
+import org.freenetproject.freemail.imap.IMAPMessageFlags;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.PropsFile;
 
@@ -52,6 +54,13 @@ public class MessageBank {
 	private final MessageBank topLevel;
 	private final long uidValidity;
 
+	/**
+	 * The summary caches of this folder and all its subfolders, keyed on the
+	 * path of the folder. Only used in the top level message bank since
+	 * subfolder instances are short lived.
+	 */
+	private final Map<String, MessageSummaryCache> summaryCaches = new HashMap<String, MessageSummaryCache>();
+
 	public MessageBank(FreemailAccount account) {
 		this.dir = new File(account.getAccountDir(), MESSAGES_DIR);
 
@@ -98,9 +107,30 @@ public class MessageBank {
 		return this.dir.getName();
 	}
 
+	/**
+	 * Returns {@code false} if this folder can't be selected because its name,
+	 * or that of a folder above it, isn't a valid folder name, e.g. a directory
+	 * that Freemail didn't create.
+	 */
+	public boolean isSelectable() {
+		if(topLevel == null) {
+			return true;
+		}
+		for(File f = this.dir; !f.equals(topLevel.dir); f = f.getParentFile()) {
+			if(!f.getName().matches("[\\w\\s_]*")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public String getFolderFlagsString() {
 		StringBuffer retval = new StringBuffer("(");
 
+		if(!isSelectable()) {
+			retval.append("\\Noselect ");
+		}
+
 		if(this.listSubFolders().length > 0) {
 			retval.append("\\HasChildren");
 		} else {
@@ -112,6 +142,8 @@ public class MessageBank {
 	}
 
 	public synchronized boolean delete() {
+		removeSummaryCache();
+
 		File[] files = this.dir.listFiles();
 
 		for(int i = 0; i < files.length; i++) {
@@ -148,38 +180,95 @@ public class MessageBank {
 		return null;
 	}
 
-	public synchronized SortedMap<Integer, MailMessage> listMessages() {
-		File[] files = this.dir.listFiles(new MessageFileNameFilter());
+	/**
+	 * Moves the given message into this folder by renaming its backing file,
+	 * so the message data isn't rewritten. The message is assigned the next
+	 * free uid of this folder and is marked as recent.
+	 *
+	 * @param msg the message to move
+	 * @return the message in this folder, or {@code null} if the move failed
+	 */
+	public synchronized MailMessage moveMessage(MailMessage msg) {
+		long newid = this.nextId();
+		File newfile;
+		try {
+			do {
+				newfile = new File(this.dir, Long.toString(newid));
+				newid++;
+			} while(!newfile.createNewFile());
+		} catch (IOException ioe) {
+			Logger.error(this, "Couldn't allocate uid for moved message", ioe);
+			return null;
+		}
 
-		Arrays.sort(files, new UIDComparator());
+		this.writeNextId(newid);
 
-		TreeMap<Integer, MailMessage> msgs = new TreeMap<Integer, MailMessage>();
+		IMAPMessageFlags flags = new IMAPMessageFlags(msg.flags.getShortFlagString());
+		flags.setRecent();
+		File target = new File(this.dir, newfile.getName() + "," + flags.getShortFlagString());
 
-		int seq=1;
+		//Remove the placeholder, the uid is reserved by the nextid file
+		newfile.delete();
+		if(!msg.renameTo(target)) {
+			return null;
+		}
+
+		return new MailMessage(target, 0);
+	}
+
+	/**
+	 * Returns a compact snapshot of the messages in this folder. Unlike
+	 * {@link #listMessages()} no {@link MailMessage} objects are created, so
+	 * this should be preferred by code that only needs the uids or flags of
+	 * most messages.
+	 * @return a snapshot of the messages in this folder
+	 */
+	public synchronized MailboxSnapshot snapshot() {
+		String[] files = this.dir.list(new MessageFileNameFilter());
+		if(files == null) {
+			files = new String[0];
+		}
+
+		//Sort on uid using the index in the low bits, which avoids boxing
+		long[] keys = new long[files.length];
+		int count = 0;
 		for(int i = 0; i < files.length; i++) {
-			if(files[i].isDirectory()) continue;
+			//Messages that have had their flags stored always contain a ',',
+			//which folder names can't, so only the rest need to be checked
+			if(files[i].indexOf(',') < 0 && new File(this.dir, files[i]).isDirectory()) continue;
 
-			MailMessage msg = new MailMessage(files[i], seq++);
+			long uid = Long.parseLong(files[i].split(",", 2)[0]);
+			keys[count++] = (uid << 32) | i;
+		}
+		Arrays.sort(keys, 0, count);
 
-			msgs.put(new Integer(msg.getUID()), msg);
+		String[] names = new String[count];
+		int[] uids = new int[count];
+		for(int i = 0; i < count; i++) {
+			names[i] = files[(int)(keys[i] & 0xFFFFFFFFL)];
+			uids[i] = (int)(keys[i] >>> 32);
 		}
 
-		return msgs;
+		return new MailboxSnapshot(this.dir, names, uids);
 	}
 
-	public synchronized MailMessage[] listMessagesArray() {
-		File[] files = this.dir.listFiles(new MessageFileNameFilter());
-
-		Arrays.sort(files, new UIDComparator());
+	public synchronized SortedMap<Integer, MailMessage> listMessages() {
+		MailboxSnapshot snapshot = snapshot();
 
-		MailMessage[] msgs = new MailMessage[files.length];
+		TreeMap<Integer, MailMessage> msgs = new TreeMap<Integer, MailMessage>();
+		for(int i = 0; i < snapshot.size(); i++) {
+			msgs.put(Integer.valueOf(snapshot.getUid(i)), snapshot.getMessage(i));
+		}
 
-		for(int i = 0; i < files.length; i++) {
-			//if(files[i].getName().startsWith(".")) continue;
+		return msgs;
+	}
 
-			MailMessage msg = new MailMessage(files[i], i+1);
+	public synchronized MailMessage[] listMessagesArray() {
+		MailboxSnapshot snapshot = snapshot();
 
-			msgs[i] = msg;
+		MailMessage[] msgs = new MailMessage[snapshot.size()];
+		for(int i = 0; i < snapshot.size(); i++) {
+			msgs[i] = snapshot.getMessage(i);
 		}
 
 		return msgs;
@@ -261,6 +350,75 @@ public class MessageBank {
 		return retval;
 	}
 
+	/**
+	 * Returns the cache of message summaries for this folder. The same cache
+	 * is returned for all instances representing the same folder.
+	 * @return the cache of message summaries for this folder
+	 */
+	public MessageSummaryCache getSummaryCache() {
+		if(topLevel != null) {
+			return topLevel.getSummaryCache(getSummaryCacheKey());
+		}
+		return getSummaryCache(getSummaryCacheKey());
+	}
+
+	private MessageSummaryCache getSummaryCache(String key) {
+		synchronized(summaryCaches) {
+			MessageSummaryCache cache = summaryCaches.get(key);
+			if(cache == null) {
+				cache = new MessageSummaryCache();
+				summaryCaches.put(key, cache);
+			}
+			return cache;
+		}
+	}
+
+	private void removeSummaryCache() {
+		MessageBank owner = (topLevel == null) ? this : topLevel;
+		synchronized(owner.summaryCaches) {
+			owner.summaryCaches.remove(getSummaryCacheKey());
+		}
+	}
+
+	private String getSummaryCacheKey() {
+		//Include the uidvalidity so a recreated folder doesn't reuse the old cache
+		return dir.getPath() + ":" + uidValidity;
+	}
+
+	/**
+	 * Returns the message counts of this folder. Adding or removing a message
+	 * or changing its flags always creates, deletes or renames a file in the
+	 * folder, so the counts are cached until the folder directory is modified.
+	 * @return the message counts of this folder
+	 */
+	public FolderStatus getStatus() {
+		MessageSummaryCache cache = getSummaryCache();
+		long modified = dir.lastModified();
+
+		FolderStatus status = cache.getStatus(modified);
+		if(status != null) {
+			return status;
+		}
+
+		status = computeStatus();
+		cache.putStatus(status, modified, System.currentTimeMillis());
+		return status;
+	}
+
+	private synchronized FolderStatus computeStatus() {
+		MailboxSnapshot snapshot = snapshot();
+
+		int recent = 0;
+		int unseen = 0;
+		for(int i = 0; i < snapshot.size(); i++) {
+			if(snapshot.hasFlag(i, IMAPMessageFlags.FLAG_RECENT)) recent++;
+			if(!snapshot.hasFlag(i, IMAPMessageFlags.FLAG_SEEN)) unseen++;
+		}
+
+		long uidNext = Math.max(snapshot.getLastUid() + 1, nextId());
+		return new FolderStatus(snapshot.size(), recent, unseen, uidNext);
+	}
+
 	/**
 	 * Returns the 32 bit unsigned UIDVALIDITY value for this MessageBank.
 	 * @return the 32 bit unsigned UIDVALIDITY value for this MessageBank
@@ -365,16 +523,4 @@ public class MessageBank {
 		}
 	}
 
-	// compare to filenames by number leading up to ","
-	private static class UIDComparator implements Comparator<File> {
-		@Override
-		public final int compare (File a, File b) {
-			int ia=Integer.parseInt(a.getName().split(",", 2)[0]);
-			int ib=Integer.parseInt(b.getName().split(",", 2)[0]);
-
-			return(ia-ib);
-		}
-	}
-
-
 }
@@ -0,0 +1,101 @@
+/*
+ * MessageSortKey.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.util.Locale;
+
+/**
+ * The sort keys defined by RFC 5256. Both the IMAP SORT command and the web
+ * interface use these so that messages are ordered the same way everywhere.
+ */
+public enum MessageSortKey {
+	ARRIVAL {
+		@Override
+		public int compare(MessageSummary a, MessageSummary b) {
+			return compareLong(a.getInternalDate(), b.getInternalDate());
+		}
+	},
+	CC {
+		@Override
+		public int compare(MessageSummary a, MessageSummary b) {
+			return a.getCc().compareTo(b.getCc());
+		}
+	},
+	DATE {
+		@Override
+		public int compare(MessageSummary a, MessageSummary b) {
+			return compareLong(a.getSentDate(), b.getSentDate());
+		}
+	},
+	FROM {
+		@Override
+		public int compare(MessageSummary a, MessageSummary b) {
+			return a.getFrom().compareTo(b.getFrom());
+		}
+	},
+	SIZE {
+		@Override
+		public int compare(MessageSummary a, MessageSummary b) {
+			return compareLong(a.getSize(), b.getSize());
+		}
+	},
+	SUBJECT {
+		@Override
+		public int compare(MessageSummary a, MessageSummary b) {
+			return a.getBaseSubject().compareTo(b.getBaseSubject());
+		}
+	},
+	TO {
+		@Override
+		public int compare(MessageSummary a, MessageSummary b) {
+			return a.getTo().compareTo(b.getTo());
+		}
+	};
+
+	/**
+	 * Compares the two messages using this key only. Ties must be broken by
+	 * the caller, normally using the sequence number or uid.
+	 */
+	public abstract int compare(MessageSummary a, MessageSummary b);
+
+	/**
+	 * Returns the sort key with the given name (ignoring case), or {@code null}
+	 * if there is no such key.
+	 * @param name the name of the sort key
+	 * @return the sort key with the given name
+	 */
+	public static MessageSortKey fromString(String name) {
+		if(name == null) {
+			return null;
+		}
+
+		try {
+			return valueOf(name.toUpperCase(Locale.ROOT));
+		} catch(IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static int compareLong(long a, long b) {
+		if(a < b) return -1;
+		if(a > b) return 1;
+		return 0;
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * MessageSummary.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.freenetproject.freemail.utils.EmailAddress;
+
+/**
+ * Holds the header derived fields of a message that are needed to sort and
+ * thread it, so that they can be cached instead of re-reading the headers
+ * of every message for each command. Instances are created by
+ * {@link MessageSummaryCache}.
+ */
+public class MessageSummary {
+	private static final Pattern MESSAGE_ID = Pattern.compile("<([^<>]*)>");
+	private static final Pattern SUBJECT_TRAILER = Pattern.compile("(?i)(\\s|\\(fwd\\))+$");
+	private static final Pattern SUBJECT_LEADER = Pattern.compile("(?i)^(\\[[^\\[\\]]*\\]\\s*)*(re|fwd?)\\s*(\\[[^\\[\\]]*\\]\\s*)?:\\s*");
+	private static final Pattern SUBJECT_BLOB = Pattern.compile("^\\[[^\\[\\]]*\\]\\s*");
+	private static final Pattern SUBJECT_FWD = Pattern.compile("(?i)^\\[fwd:(.*)\\]$");
+
+	private final int uid;
+	private final long internalDate;
+	private final long fileLength;
+	private final long sentDate;
+	private final String from;
+	private final String to;
+	private final String cc;
+	private final String baseSubject;
+	private final boolean reply;
+	private final String messageId;
+	private final List<String> references;
+
+	/** The IMAP size of the message, or -1 if it hasn't been calculated yet */
+	private long size = -1;
+
+	MessageSummary(MailMessage msg) throws IOException {
+		msg.readHeaders();
+
+		uid = msg.getUID();
+		internalDate = msg.getInternalDate();
+		fileLength = msg.getFileLength();
+
+		Date date = msg.getDate();
+		sentDate = (date != null) ? date.getTime() : internalDate;
+
+		from = getMailbox(msg.getFirstHeader("From"));
+		to = getMailbox(msg.getFirstHeader("To"));
+		cc = getMailbox(msg.getFirstHeader("CC"));
+
+		String subject;
+		try {
+			subject = msg.getSubject();
+		} catch(UnsupportedEncodingException e) {
+			subject = msg.getFirstHeader("Subject");
+		}
+		if(subject == null) {
+			subject = "";
+		}
+		String[] result = new String[1];
+		reply = extractBaseSubject(subject, result);
+		baseSubject = result[0].toUpperCase(Locale.ROOT);
+
+		List<String> ids = getMessageIds(msg.getFirstHeader("Message-ID"));
+		messageId = ids.isEmpty() ? null : ids.get(0);
+
+		List<String> refs = getMessageIds(msg.getFirstHeader("References"));
+		if(refs.isEmpty()) {
+			List<String> inReplyTo = getMessageIds(msg.getFirstHeader("In-Reply-To"));
+			if(!inReplyTo.isEmpty()) {
+				refs = Collections.singletonList(inReplyTo.get(0));
+			}
+		}
+		references = Collections.unmodifiableList(refs);
+	}
+
+	public int getUID() {
+		return uid;
+	}
+
+	/**
+	 * Returns the time the message was stored in the folder.
+	 * @return the time the message was stored in the folder
+	 */
+	public long getInternalDate() {
+		return internalDate;
+	}
+
+	/**
+	 * Returns the date from the Date header, or the internal date if the
+	 * header is missing or couldn't be parsed.
+	 * @return the sent date of the message
+	 */
+	public long getSentDate() {
+		return sentDate;
+	}
+
+	/**
+	 * Returns the mailbox (the part before the @) of the first From address in
+	 * lower case, or the empty string if there is none. Since the mailbox is
+	 * lower cased, comparing it with {@link String#compareTo(String)} gives
+	 * the i;ascii-casemap ordering that RFC 5256 asks for.
+	 * @return the mailbox of the first From address
+	 */
+	public String getFrom() {
+		return from;
+	}
+
+	/**
+	 * Returns the mailbox of the first To address in lower case, or the empty
+	 * string if there is none.
+	 * @return the mailbox of the first To address
+	 */
+	public String getTo() {
+		return to;
+	}
+
+	/**
+	 * Returns the mailbox of the first CC address in lower case, or the empty
+	 * string if there is none.
+	 * @return the mailbox of the first CC address
+	 */
+	public String getCc() {
+		return cc;
+	}
+
+	/**
+	 * Returns the base subject, as defined by RFC 5256, in upper case.
+	 * @return the base subject in upper case
+	 */
+	public String getBaseSubject() {
+		return baseSubject;
+	}
+
+	/**
+	 * Returns {@code true} if the subject indicated that this message is a reply
+	 * or a forward, i.e. if anything other than blobs and whitespace had to be
+	 * removed to get the base subject.
+	 * @return {@code true} if the subject indicated that this message is a reply
+	 */
+	public boolean isReply() {
+		return reply;
+	}
+
+	/**
+	 * Returns the message id without the angle brackets, or {@code null} if the
+	 * message doesn't have one.
+	 * @return the message id of the message
+	 */
+	public String getMessageId() {
+		return messageId;
+	}
+
+	/**
+	 * Returns the message ids from the References header, or the first message
+	 * id from In-Reply-To if References is missing.
+	 * @return the message ids this message refers to, oldest first
+	 */
+	public List<String> getReferences() {
+		return references;
+	}
+
+	/**
+	 * Returns the IMAP size of the message, or -1 if it hasn't been loaded.
+	 * @return the IMAP size of the message
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	synchronized void loadSize(MailMessage msg) throws IOException {
+		if(size < 0) {
+			size = msg.getSize();
+		}
+	}
+
+	/**
+	 * Returns {@code true} if this summary still describes the given message,
+	 * i.e. if the backing file hasn't been written to since it was created.
+	 */
+	boolean isCurrent(MailMessage msg) {
+		return (msg.getInternalDate() == internalDate) && (msg.getFileLength() == fileLength);
+	}
+
+	/**
+	 * Extracts the base subject from subject as described in RFC 5256 section
+	 * 2.1 and stores it in result[0].
+	 * @param subject the decoded subject
+	 * @param result array where the base subject will be stored
+	 * @return {@code true} if the subject indicated a reply or forward
+	 */
+	static boolean extractBaseSubject(String subject, String[] result) {
+		boolean reply = false;
+		String s = subject.replaceAll("\\s+", " ").trim();
+
+		while(true) {
+			//Remove trailing (fwd) and whitespace
+			Matcher trailer = SUBJECT_TRAILER.matcher(s);
+			if(trailer.find()) {
+				if(trailer.group().toLowerCase(Locale.ROOT).contains("(fwd)")) {
+					reply = true;
+				}
+				s = s.substring(0, trailer.start());
+			}
+
+			//Remove leading re:, fwd: and blobs until nothing changes
+			boolean changed = true;
+			while(changed) {
+				changed = false;
+
+				Matcher leader = SUBJECT_LEADER.matcher(s);
+				if(leader.find()) {
+					s = s.substring(leader.end());
+					reply = true;
+					changed = true;
+				}
+
+				Matcher blob = SUBJECT_BLOB.matcher(s);
+				if(blob.find() && blob.end() < s.length()) {
+					s = s.substring(blob.end());
+					changed = true;
+				}
+			}
+
+			//Remove [fwd: ... ] and start over
+			Matcher fwd = SUBJECT_FWD.matcher(s);
+			if(fwd.matches()) {
+				s = fwd.group(1).trim();
+				reply = true;
+				continue;
+			}
+			break;
+		}
+
+		result[0] = s;
+		return reply;
+	}
+
+	static String getMailbox(String header) {
+		if(header == null) {
+			return "";
+		}
+
+		//Only use the first address
+		String address = header;
+		int comma = header.indexOf(',');
+		if(comma >= 0 && header.indexOf('"') < 0) {
+			address = header.substring(0, comma);
+		}
+
+		try {
+			String decoded = MailMessage.decodeHeader(address).trim();
+			String user = new EmailAddress(decoded).user;
+			if(user == null) {
+				return "";
+			}
+			return user.toLowerCase(Locale.ROOT);
+		} catch(UnsupportedEncodingException e) {
+			return "";
+		} catch(IllegalArgumentException e) {
+			return "";
+		}
+	}
+
+	private static List<String> getMessageIds(String header) {
+		List<String> ids = new ArrayList<String>();
+		if(header == null) {
+			return ids;
+		}
+
+		Matcher m = MESSAGE_ID.matcher(header);
+		while(m.find()) {
+			String id = m.group(1).trim();
+			if(id.length() > 0) {
+				ids.add(id);
+			}
+		}
+
+		//Be lenient with clients that leave out the brackets
+		if(ids.isEmpty() && header.trim().length() > 0 && header.indexOf('<') < 0) {
+			ids.add(header.trim());
+		}
+		return ids;
+	}
+}
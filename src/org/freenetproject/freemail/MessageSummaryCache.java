@@ -0,0 +1,167 @@
+/*
+ * MessageSummaryCache.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the {@link MessageSummary} of each message in a folder, and the
+ * results of commands computed from them (e.g. IMAP SORT and THREAD). The
+ * summaries are keyed on uid and are checked against the backing file before
+ * being used, while results are only returned if they were computed from the
+ * same set of messages, so changes to the folder invalidate them. The message
+ * counts of the folder are cached until the folder directory is modified.
+ *
+ * Use {@link MessageBank#getSummaryCache()} to get the cache of a folder.
+ */
+public class MessageSummaryCache {
+	/** The number of command results kept for each folder */
+	private static final int MAX_RESULTS = 16;
+
+	private final Map<Integer, MessageSummary> summaries = new HashMap<Integer, MessageSummary>();
+	private final Map<String, CachedResult> results = new LinkedHashMap<String, CachedResult>(MAX_RESULTS, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+			return size() > MAX_RESULTS;
+		}
+	};
+
+	/**
+	 * The resolution of file modification times we assume. A cached status is
+	 * only trusted if it was computed at least this long after the folder was
+	 * last modified, since later changes within the same tick wouldn't change
+	 * the modification time.
+	 */
+	private static final long MTIME_GRANULARITY = 2000;
+
+	private FolderStatus status;
+	private long statusModified;
+	private long statusComputed;
+
+	MessageSummaryCache() {
+		//Created by MessageBank
+	}
+
+	/**
+	 * Returns the summary of the given message, reading the headers if the
+	 * message isn't in the cache or has changed since it was cached.
+	 * @param msg the message to summarize
+	 * @param loadSize {@code true} if the size of the message is needed
+	 * @return the summary of the given message
+	 * @throws IOException if the message couldn't be read
+	 */
+	public synchronized MessageSummary getSummary(MailMessage msg, boolean loadSize) throws IOException {
+		Integer uid = Integer.valueOf(msg.getUID());
+		MessageSummary summary = summaries.get(uid);
+		if(summary == null || !summary.isCurrent(msg)) {
+			summary = new MessageSummary(msg);
+			summaries.put(uid, summary);
+		}
+
+		if(loadSize) {
+			summary.loadSize(msg);
+		}
+		return summary;
+	}
+
+	public MessageSummary getSummary(MailMessage msg) throws IOException {
+		return getSummary(msg, false);
+	}
+
+	/**
+	 * Returns the cached result with the given key if it was computed from the
+	 * same input, or {@code null} otherwise.
+	 * @param key identifies the command and its parameters
+	 * @param input identifies the messages the result was computed from, e.g.
+	 *              their uids
+	 * @return the cached result, or {@code null}
+	 */
+	public synchronized String getResult(String key, int[] input) {
+		CachedResult result = results.get(key);
+		if(result == null || !Arrays.equals(result.input, input)) {
+			return null;
+		}
+		return result.value;
+	}
+
+	public synchronized void putResult(String key, int[] input, String value) {
+		results.put(key, new CachedResult(input.clone(), value));
+	}
+
+	/**
+	 * Returns the cached status of the folder if the folder hasn't been
+	 * modified since it was computed, or {@code null} otherwise.
+	 * @param modified the current modification time of the folder directory
+	 * @return the cached status, or {@code null}
+	 */
+	synchronized FolderStatus getStatus(long modified) {
+		if(status == null || modified != statusModified) {
+			return null;
+		}
+		if(statusComputed - statusModified < MTIME_GRANULARITY) {
+			return null;
+		}
+		return status;
+	}
+
+	synchronized void putStatus(FolderStatus status, long modified, long computed) {
+		this.status = status;
+		this.statusModified = modified;
+		this.statusComputed = computed;
+	}
+
+	/**
+	 * Removes the summaries of all messages with a uid that isn't in the given
+	 * collection.
+	 * @param uids the uids of the messages that are still in the folder
+	 */
+	public synchronized void retainAll(Collection<Integer> uids) {
+		Iterator<Integer> it = summaries.keySet().iterator();
+		while(it.hasNext()) {
+			if(!uids.contains(it.next())) {
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		summaries.clear();
+		results.clear();
+		status = null;
+	}
+
+	private static class CachedResult {
+		private final int[] input;
+		private final String value;
+
+		private CachedResult(int[] input, String value) {
+			this.input = input;
+			this.value = value;
+		}
+	}
+}
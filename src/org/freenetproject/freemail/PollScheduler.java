@@ -0,0 +1,190 @@
+/*
+ * PollScheduler.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Runs the polling tasks of all the channels and accounts. Each poll is rescheduled at an
+ * interval that depends on how active the thing being polled is, and every delay is randomized
+ * a bit so that tasks that were started together drift apart instead of hitting the node at the
+ * same time. The scheduler also holds the budget for the number of fetches that polling tasks
+ * may have running at once.
+ */
+public class PollScheduler {
+	/** The default number of fetches polling tasks can have running at once */
+	public static final int DEFAULT_FETCH_BUDGET = 50;
+
+	/** How much each delay is randomized, as a fraction of the delay */
+	static final double JITTER = 0.25;
+
+	/** Tasks started at the same time are spread over this many milliseconds */
+	static final long STARTUP_SPREAD = 60 * 1000;
+
+	/** Traffic more recent than this makes a channel hot */
+	private static final long HOT_PERIOD = 60 * 60 * 1000; //1 hour
+
+	/** Traffic more recent than this makes a channel warm */
+	private static final long WARM_PERIOD = 24 * 60 * 60 * 1000; //1 day
+
+	public enum Activity {
+		/** Recent traffic, so more is likely to follow */
+		HOT(1, TimeUnit.MINUTES),
+
+		/** Some traffic lately, or a reply is expected */
+		WARM(5, TimeUnit.MINUTES),
+
+		/** Nothing has happened for a while */
+		COLD(30, TimeUnit.MINUTES);
+
+		private final long interval;
+
+		private Activity(long interval, TimeUnit unit) {
+			this.interval = unit.toMillis(interval);
+		}
+
+		/**
+		 * Returns the time between polls, in milliseconds.
+		 */
+		public long getInterval() {
+			return interval;
+		}
+
+		/**
+		 * Returns how active something is given the time of its last traffic and the time until
+		 * which a reply is expected, both as returned by {@link System#currentTimeMillis()}.
+		 * Either may be 0 if there hasn't been any traffic or no reply is expected.
+		 */
+		public static Activity classify(long lastTraffic, long replyDue, long now) {
+			if(now - lastTraffic < HOT_PERIOD) {
+				return HOT;
+			}
+			if(now - lastTraffic < WARM_PERIOD || now < replyDue) {
+				return WARM;
+			}
+			return COLD;
+		}
+	}
+
+	private final ScheduledExecutorService executor;
+	private final Semaphore fetchBudget;
+	private final int fetchBudgetSize;
+	private final Random random;
+
+	public PollScheduler(ScheduledExecutorService executor, int fetchBudget) {
+		this(executor, fetchBudget, new Random());
+	}
+
+	PollScheduler(ScheduledExecutorService executor, int fetchBudget, Random random) {
+		if(executor == null) throw new NullPointerException();
+		if(fetchBudget < 1) throw new IllegalArgumentException("Fetch budget must be positive");
+
+		this.executor = executor;
+		this.fetchBudget = new Semaphore(fetchBudget);
+		this.fetchBudgetSize = fetchBudget;
+		this.random = random;
+	}
+
+	/**
+	 * Runs the task as soon as possible.
+	 * @throws java.util.concurrent.RejectedExecutionException if the executor has shut down
+	 */
+	public void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * Runs a task that is being started along with many others, such as when Freemail starts.
+	 * The task runs within {@link #STARTUP_SPREAD} ms.
+	 * @throws java.util.concurrent.RejectedExecutionException if the executor has shut down
+	 */
+	public ScheduledFuture<?> start(Runnable task) {
+		long delay;
+		synchronized(random) {
+			delay = (long) (random.nextDouble() * STARTUP_SPREAD);
+		}
+		return executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs the task again after the poll interval for the given activity.
+	 * @throws java.util.concurrent.RejectedExecutionException if the executor has shut down
+	 */
+	public ScheduledFuture<?> schedule(Runnable task, Activity activity) {
+		Logger.debug(this, "Scheduling " + task + " as " + activity);
+		return schedule(task, activity.getInterval(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs the task after roughly the given delay.
+	 * @throws java.util.concurrent.RejectedExecutionException if the executor has shut down
+	 */
+	public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+		return executor.schedule(task, jitter(unit.toMillis(delay)), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns a delay that is randomly up to {@link #JITTER} shorter or longer than {@code delay}.
+	 */
+	long jitter(long delay) {
+		double factor;
+		synchronized(random) {
+			factor = 1 + JITTER * (2 * random.nextDouble() - 1);
+		}
+		return (long) (delay * factor);
+	}
+
+	/**
+	 * Takes a fetch from the budget if one is available. Fetches that aren't needed right away
+	 * should use this so that they are skipped when the node is busy.
+	 * @return {@code true} if the fetch may be started
+	 */
+	public boolean tryAcquireFetch() {
+		return fetchBudget.tryAcquire();
+	}
+
+	/**
+	 * Takes a fetch from the budget, waiting until one is available.
+	 */
+	public void acquireFetch() throws InterruptedException {
+		fetchBudget.acquire();
+	}
+
+	/**
+	 * Returns a fetch to the budget once it has finished.
+	 */
+	public void releaseFetch() {
+		fetchBudget.release();
+	}
+
+	/**
+	 * Returns the number of fetches that are running.
+	 */
+	public int getFetchesInFlight() {
+		return fetchBudgetSize - fetchBudget.availablePermits();
+	}
+}
@@ -27,10 +27,12 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.Date;
 import java.util.Calendar;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 import java.math.BigInteger;
 
 import org.bouncycastle.crypto.digests.SHA256Digest;
@@ -48,6 +50,8 @@ import org.bouncycastle.crypto.DataLengthException;
 import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
 import org.freenetproject.freemail.fcp.FCPException;
 import org.freenetproject.freemail.fcp.FCPFetchException;
+import org.freenetproject.freemail.fcp.FCPPriority;
+import org.freenetproject.freemail.fcp.FetchOptions;
 import org.freenetproject.freemail.fcp.HighLevelFCPClient;
 import org.freenetproject.freemail.support.io.LineReadingInputStream;
 import org.freenetproject.freemail.support.io.TooLongException;
@@ -55,6 +59,9 @@ import org.freenetproject.freemail.utils.DateStringFactory;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.PropsFile;
 
+import freenet.support.api.Bucket;
+import freenet.support.io.BucketTools;
+
 
 public class RTSFetcher implements SlotSaveCallback {
 	private String rtskey;
@@ -64,6 +71,9 @@ public class RTSFetcher implements SlotSaveCallback {
 	private static final int MAX_DAYS_BACK = 30;
 	public static final String LOGFILE = "rtslog";
 	private static final int RTS_MAX_SIZE = 2 * 1024 * 1024;
+	private static final FetchOptions RTS_FETCH_OPTIONS = new FetchOptions(FCPPriority.LOW)
+			.withMaxSize(RTS_MAX_SIZE)
+			.withTimeout(1, TimeUnit.HOURS);
 	private static final String RTS_UNPROC_PREFIX = "unprocessed_rts";
 	private static final int RTS_MAX_ATTEMPTS = 15;
 	private FreemailAccount account;
@@ -164,19 +174,26 @@ public class RTSFetcher implements SlotSaveCallback {
 			Logger.minor(this, "trying to fetch "+keybase+slot);
 
 			try {
-				File result = fcpcli.fetch(keybase+slot);
+				Bucket result = fcpcli.fetch(keybase+slot, RTS_FETCH_OPTIONS);
+				if(result == null) {
+					Logger.error(this, keybase+slot+": fetch returned no data");
+					continue;
+				}
 
 				Logger.normal(this, keybase+slot+": got RTS!");
 
 				File rts_dest = new File(this.contact_dir, RTS_UNPROC_PREFIX + "-" + log.getAndIncUnprocNextId()+",0");
 
 				// stick this message in the RTS 'inbox'
-				if(result.renameTo(rts_dest)) {
+				if(store(result, rts_dest)) {
 					// provided that worked, we can move on to the next RTS message
 					sm.slotUsed();
 				}
 			} catch (FCPFetchException fe) {
-				if(fe.isFatal()) {
+				if(fe.getCode() == FCPFetchException.TOO_BIG) {
+					Logger.normal(this, keybase+slot+": RTS message is too large - marking slot as used.");
+					sm.slotUsed();
+				} else if(fe.isFatal()) {
 					Logger.error(this, keybase+slot+": fatal fetch error - marking slot as used.");
 					sm.slotUsed();
 				} else if(fe.getCode() == FCPFetchException.ALL_DATA_NOT_FOUND) {
@@ -204,6 +221,27 @@ public class RTSFetcher implements SlotSaveCallback {
 		return success;
 	}
 
+	/**
+	 * Writes the fetched data to {@code dest} and frees the bucket.
+	 */
+	private boolean store(Bucket data, File dest) {
+		try {
+			OutputStream os = new FileOutputStream(dest);
+			try {
+				BucketTools.copyTo(data, os, -1);
+			} finally {
+				os.close();
+			}
+			return true;
+		} catch (IOException e) {
+			Logger.error(this, "Couldn't write RTS to " + dest + ": " + e.getMessage());
+			dest.delete();
+			return false;
+		} finally {
+			data.free();
+		}
+	}
+
 	@Override
 	public void saveSlots(String slots, Object userdata) {
 		MySlotSaveData cbdata = (MySlotSaveData) userdata;
@@ -319,72 +357,63 @@ public class RTSFetcher implements SlotSaveCallback {
 		byte[] our_hash = new byte[sha256.getDigestSize()];
 		sha256.doFinal(our_hash, 0);
 
-		HighLevelFCPClient fcpcli = new HighLevelFCPClient();
-
-		Logger.normal(this, "Trying to fetch sender's mailsite: "+their_mailsite);
-		File msfile;
-		try {
-			msfile = fcpcli.fetch(their_mailsite);
-		} catch (FCPFetchException fe) {
-			// oh well, try again in a bit
-			rtsfile.delete();
-			return false;
-		} catch (FCPException e) {
-			Logger.error(this, "Unknown error while checking sender's mailsite: " + e.getMessage());
-
-			//Try again later
-			rtsfile.delete();
-			return false;
-		}
-
-		PropsFile mailsite = PropsFile.createPropsFile(msfile);
-		String their_exponent = mailsite.get("asymkey.pubexponent");
-		String their_modulus = mailsite.get("asymkey.modulus");
+		//The sender's keys rarely change, so use the cached mailsite unless the RTS refers to a
+		//newer edition
+		MailsiteCache mailsiteCache = account.getMailsiteCache();
+		String their_identity = MailsiteCache.getIdentity(their_mailsite);
+		MailsiteCache.Entry mailsite = mailsiteCache.get(their_identity);
+		boolean cached = mailsite != null && !MailsiteCache.isStale(mailsite, MailsiteCache.getEdition(their_mailsite));
+		if(cached) {
+			Logger.normal(this, "Using cached mailsite of sender (edition " + mailsite.getEdition() + ")");
+		} else {
+			HighLevelFCPClient fcpcli = new HighLevelFCPClient();
 
-		if(their_exponent == null || their_modulus == null) {
-			Logger.normal(this, "Mailsite fetched successfully but missing vital information! Discarding this RTS.");
-			msfile.delete();
-			rtsfile.delete();
-			return true;
-		}
+			Logger.normal(this, "Trying to fetch sender's mailsite: "+their_mailsite);
+			try {
+				mailsite = mailsiteCache.fetch(their_identity, their_mailsite, fcpcli);
+			} catch (FCPFetchException fe) {
+				rtsfile.delete();
+				if(fe.getCode() == FCPFetchException.TOO_BIG) {
+					Logger.normal(this, "Sender's mailsite is too large - discarding this RTS.");
+					return true;
+				}
+				// oh well, try again in a bit
+				return false;
+			} catch (FCPException e) {
+				Logger.error(this, "Unknown error while checking sender's mailsite: " + e.getMessage());
 
-		RSAKeyParameters their_pubkey = new RSAKeyParameters(false, new BigInteger(their_modulus, 32), new BigInteger(their_exponent, 32));
-		AsymmetricBlockCipher deccipher = new RSAEngine();
-		deccipher.init(false, their_pubkey);
+				//Try again later
+				rtsfile.delete();
+				return false;
+			} catch (IOException e) {
+				Logger.error(this, "Couldn't read sender's mailsite: " + e.getMessage());
+				rtsfile.delete();
+				return false;
+			}
 
-		byte[] their_hash;
-		try {
-			their_hash = deccipher.processBlock(their_encrypted_sig, 0, deccipher.getInputBlockSize());
-		} catch (InvalidCipherTextException icte) {
-			Logger.normal(this, "It was not possible to decrypt the signature of this RTS message. Discarding the RTS message.");
-			msfile.delete();
-			rtsfile.delete();
-			return true;
+			if(mailsite == null) {
+				Logger.normal(this, "Mailsite fetched successfully but missing vital information! Discarding this RTS.");
+				rtsfile.delete();
+				return true;
+			}
 		}
 
-		// finally we can now check that our hash and their hash
-		// match!
-		if(their_hash.length < our_hash.length) {
-			Logger.normal(this, "The signature of the RTS message is not valid (our hash: "+our_hash.length+"bytes, their hash: "+their_hash.length+"bytes. Discarding the RTS message.");
-			msfile.delete();
+		if(!checkSignature(our_hash, their_encrypted_sig, mailsite)) {
 			rtsfile.delete();
-			return true;
-		}
-		int i;
-		for(i = 0; i < our_hash.length; i++) {
-			if(their_hash[i] != our_hash[i]) {
-				Logger.normal(this, "The signature of the RTS message is not valid. Discarding the RTS message.");
-				msfile.delete();
-				rtsfile.delete();
-				return true;
+			if(cached) {
+				//The sender might have changed keys since we cached the mailsite
+				Logger.normal(this, "Signature doesn't match cached mailsite, will fetch it and try again");
+				mailsiteCache.invalidate(their_identity);
+				return false;
 			}
+			Logger.normal(this, "Discarding the RTS message.");
+			return true;
 		}
 		Logger.normal(this, "Signature valid :)");
 		// the signature is valid! Hooray!
 		// Now verify the message is for us
 		if(!account.getIdentity().equals(rtsprops.get("to"))) {
 			Logger.normal(this, "Recieved an RTS message that was not intended for the recipient. Discarding.");
-			msfile.delete();
 			rtsfile.delete();
 			return true;
 		}
@@ -392,9 +421,6 @@ public class RTSFetcher implements SlotSaveCallback {
 		Logger.normal(this, "Original message intended for us :)");
 
 		//Clean up temp files
-		if(!msfile.delete()) {
-			Logger.error(this, "Couldn't delete fetched mailsite: " + msfile);
-		}
 		if(!rtsfile.delete()) {
 			Logger.error(this, "Couldn't delete rts file: " + rtsfile);
 		}
@@ -404,6 +430,38 @@ public class RTSFetcher implements SlotSaveCallback {
 		return true;
 	}
 
+	/**
+	 * Checks the signature of an RTS message against the public key from the sender's mailsite.
+	 */
+	private boolean checkSignature(byte[] our_hash, byte[] their_encrypted_sig, MailsiteCache.Entry mailsite) {
+		RSAKeyParameters their_pubkey = new RSAKeyParameters(false, new BigInteger(mailsite.getModulus(), 32), new BigInteger(mailsite.getExponent(), 32));
+		AsymmetricBlockCipher deccipher = new RSAEngine();
+		deccipher.init(false, their_pubkey);
+
+		byte[] their_hash;
+		try {
+			their_hash = deccipher.processBlock(their_encrypted_sig, 0, deccipher.getInputBlockSize());
+		} catch (InvalidCipherTextException icte) {
+			Logger.normal(this, "It was not possible to decrypt the signature of this RTS message.");
+			return false;
+		}
+
+		// finally we can now check that our hash and their hash
+		// match!
+		if(their_hash.length < our_hash.length) {
+			Logger.normal(this, "The signature of the RTS message is not valid (our hash: "+our_hash.length+"bytes, their hash: "+their_hash.length+"bytes).");
+			return false;
+		}
+		int i;
+		for(i = 0; i < our_hash.length; i++) {
+			if(their_hash[i] != our_hash[i]) {
+				Logger.normal(this, "The signature of the RTS message is not valid.");
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private byte[] decrypt_rts(File rtsmessage) throws IOException, InvalidCipherTextException {
 		// initialise our ciphers
 		RSAKeyParameters ourprivkey = AccountManager.getPrivateKey(account.getProps());
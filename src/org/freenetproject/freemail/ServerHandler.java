@@ -21,8 +21,9 @@ package org.freenetproject.freemail;
 
 import java.net.Socket;
 import java.io.IOException;
+import java.io.OutputStream;
 
-public abstract class ServerHandler {
+public abstract class ServerHandler implements Runnable {
 	protected final Socket client;
 	protected volatile boolean stopping = false;
 
@@ -42,4 +43,25 @@ public abstract class ServerHandler {
 
 		}
 	}
+
+	/**
+	 * Tells the client that the server is too busy to handle the connection, then closes it.
+	 */
+	public void reject() {
+		stopping = true;
+		try {
+			OutputStream os = client.getOutputStream();
+			os.write(getRejectMessage().getBytes("US-ASCII"));
+			os.flush();
+		} catch (IOException ioe) {
+			//We're closing the connection anyway
+		}
+		kill();
+	}
+
+	/**
+	 * Returns the response, including the line terminator, that is sent when the connection is
+	 * rejected because the server is too busy.
+	 */
+	protected abstract String getRejectMessage();
 }
@@ -22,16 +22,45 @@ package org.freenetproject.freemail;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * Base class for the servers. Each accepted connection is handled by a ServerHandler that runs on
+ * a thread pool with a limited number of threads. When all the threads are busy a limited number
+ * of connections wait for a free thread, and any connections beyond that are rejected.
+ */
 public abstract class ServerListener {
+	/** The default number of connections that are handled at the same time */
+	public static final int DEFAULT_MAX_CONNECTIONS = 16;
+
+	/** The number of connections that can wait for a free thread */
+	private static final int CONNECTION_QUEUE_SIZE = 16;
+
 	protected ServerSocket sock;
-	private final ArrayList<ServerHandler> handlers;
-	private final ArrayList<Thread> handlerThreads;
+	private final String name;
+	private final Set<ServerHandler> handlers = Collections.synchronizedSet(new HashSet<ServerHandler>());
+	private final AtomicInteger activeConnections = new AtomicInteger();
+	private final AtomicLong rejectedConnections = new AtomicLong();
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private ThreadPoolExecutor executor;
 
-	protected ServerListener() {
-		handlers = new ArrayList<ServerHandler>();
-		handlerThreads = new ArrayList<Thread>();
+	/**
+	 * @param name the name of the protocol, used for thread names and logging
+	 */
+	protected ServerListener(String name) {
+		this.name = name;
 	}
 
 	/**
@@ -43,56 +72,150 @@ public abstract class ServerListener {
 		} catch (IOException ioe) {
 
 		}
-		// kill all our handlers too
-		synchronized(handlers) {
-			for(Iterator<ServerHandler> i = handlers.iterator(); i.hasNext(); ) {
-				ServerHandler handler = i.next();
-				handler.kill();
+
+		synchronized(this) {
+			if(executor != null) {
+				executor.shutdown();
 			}
 		}
+
+		// kill all our handlers too, including the ones that are waiting for a thread
+		List<ServerHandler> toKill;
+		synchronized(handlers) {
+			toKill = new ArrayList<ServerHandler>(handlers);
+		}
+		for(ServerHandler handler : toKill) {
+			handler.kill();
+		}
 	}
 
 	/**
 	 * Wait for all our client threads to terminate
 	 */
 	public void joinClientThreads() {
-		for(Iterator<Thread> i = handlerThreads.iterator(); i.hasNext(); ) {
-			Thread t = i.next();
-			while(t != null) {
-				try {
-					t.join();
-					t = null;
-				} catch (InterruptedException ie) {
+		ThreadPoolExecutor exec;
+		synchronized(this) {
+			exec = executor;
+		}
+		if(exec == null) {
+			return;
+		}
 
+		while(true) {
+			try {
+				if(exec.awaitTermination(1, TimeUnit.MINUTES)) {
+					return;
 				}
+				Logger.normal(this, "Still waiting for " + activeConnections.get() + " " + name + " connections to close");
+			} catch (InterruptedException ie) {
+
 			}
 		}
 	}
 
-	protected void addHandler(ServerHandler hdlr, Thread thrd) {
-		synchronized(handlers) {
-			handlers.add(hdlr);
+	/**
+	 * Sets the number of connections that are handled at the same time.
+	 */
+	protected synchronized void setMaxConnections(int maxConnections) {
+		if(maxConnections < 1) {
+			throw new IllegalArgumentException("Must allow at least one connection, was " + maxConnections);
+		}
+		this.maxConnections = maxConnections;
+
+		if(executor != null) {
+			//The core size can't be larger than the maximum size
+			if(maxConnections > executor.getMaximumPoolSize()) {
+				executor.setMaximumPoolSize(maxConnections);
+				executor.setCorePoolSize(maxConnections);
+			} else {
+				executor.setCorePoolSize(maxConnections);
+				executor.setMaximumPoolSize(maxConnections);
+			}
 		}
-		handlerThreads.add(thrd);
 	}
 
-	protected void reapHandlers() {
-		// clean up dead handlers...
-		synchronized(handlers) {
-			for(Iterator<ServerHandler> i = handlers.iterator(); i.hasNext(); ) {
-				ServerHandler handler = i.next();
-				if(!handler.isAlive()) {
-					i.remove();
+	/**
+	 * Runs the handler on the thread pool, or rejects the connection if too many connections are
+	 * already open.
+	 *
+	 * @param handler the handler for the new connection
+	 * @param threadName the name of the thread while it is running the handler
+	 */
+	protected void dispatch(final ServerHandler handler, final String threadName) {
+		handlers.add(handler);
+		try {
+			getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					Thread thread = Thread.currentThread();
+					String oldName = thread.getName();
+					thread.setName(threadName);
+					activeConnections.incrementAndGet();
+					try {
+						handler.run();
+					} finally {
+						activeConnections.decrementAndGet();
+						handlers.remove(handler);
+						thread.setName(oldName);
+					}
 				}
-			}
+			});
+		} catch(RejectedExecutionException e) {
+			handlers.remove(handler);
+			long rejected = rejectedConnections.incrementAndGet();
+			Logger.normal(this, "Rejecting " + name + " connection: " + getActiveConnections() + " active, "
+					+ getQueuedConnections() + " queued, " + rejected + " rejected in total");
+			handler.reject();
 		}
+	}
 
-		// ...and threads...
-		for(Iterator<Thread> i = handlerThreads.iterator(); i.hasNext(); ) {
-			Thread t = i.next();
-			if(!t.isAlive()) {
-				i.remove();
-			}
+	/**
+	 * Returns the number of connections that are currently being handled.
+	 */
+	public int getActiveConnections() {
+		return activeConnections.get();
+	}
+
+	/**
+	 * Returns the number of connections that are waiting for a free thread.
+	 */
+	public synchronized int getQueuedConnections() {
+		if(executor == null) {
+			return 0;
+		}
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Returns the number of connections that have been rejected because too many connections
+	 * were open.
+	 */
+	public long getRejectedConnections() {
+		return rejectedConnections.get();
+	}
+
+	private synchronized ThreadPoolExecutor getExecutor() {
+		if(executor == null) {
+			executor = new ThreadPoolExecutor(maxConnections, maxConnections, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(CONNECTION_QUEUE_SIZE), new HandlerThreadFactory(name));
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	private static class HandlerThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		private HandlerThreadFactory(String name) {
+			this.prefix = "Freemail " + name + " handler thread ";
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + threadNumber.getAndIncrement());
+			t.setDaemon(true);
+			return t;
 		}
 	}
 }
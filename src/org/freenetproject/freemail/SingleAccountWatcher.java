@@ -23,8 +23,11 @@ package org.freenetproject.freemail;
 
 import java.io.File;
 import java.lang.InterruptedException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import org.freenetproject.freemail.PollScheduler.Activity;
 import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.Timer;
@@ -33,25 +36,33 @@ import org.freenetproject.freemail.wot.WoTProperties;
 
 import freenet.pluginmanager.PluginNotFoundException;
 
+/**
+ * Polls for RTS messages and keeps the mailsite of an account up to date. Each run is one poll,
+ * after which the task is rescheduled through the {@link PollScheduler}.
+ */
 public class SingleAccountWatcher implements Runnable {
 	/**
-	 * Whether the thread this service runs in should stop.
+	 * Whether this service should stop.
 	 */
 	protected volatile boolean stopping = false;
 
 	public static final String RTS_DIR = "rts";
-	private static final int MIN_POLL_DURATION = 5 * 60 * 1000; // in milliseconds
 	private static final int MAILSITE_UPLOAD_INTERVAL = 60 * 60 * 1000;
 	private final RTSFetcher rtsf;
 	private long mailsite_last_upload;
 	private final FreemailAccount account;
 	private final Freemail freemail;
+	private final PollScheduler pollScheduler;
 	private final File rtsdir;
 	private boolean hasSetWoTContext;
 
+	//The next scheduled run, guarded by this
+	private ScheduledFuture<?> nextRun;
+
 	SingleAccountWatcher(FreemailAccount acc, Freemail freemail) {
 		this.account = acc;
 		this.freemail = freemail;
+		this.pollScheduler = freemail.getPollScheduler();
 		this.mailsite_last_upload = 0;
 
 		rtsdir = new File(account.getAccountDir(), RTS_DIR);
@@ -75,36 +86,55 @@ public class SingleAccountWatcher implements Runnable {
 		}
 	}
 
+	/**
+	 * Schedules the first run of this watcher.
+	 */
+	public synchronized void start() {
+		try {
+			nextRun = pollScheduler.start(this);
+		} catch(RejectedExecutionException e) {
+			Logger.debug(this, "Caugth RejectedExecutionException while starting SingleAccountWatcher");
+		}
+	}
+
 	@Override
 	public void run() {
-		while(!stopping) {
-			try {
-				long start = System.currentTimeMillis();
-				WoTConnection wotConnection = freemail.getWotConnection();
+		if(stopping) {
+			return;
+		}
 
-				insertMailsite(wotConnection);
-				setWoTContext(wotConnection);
+		try {
+			WoTConnection wotConnection = freemail.getWotConnection();
 
-				if(stopping) {
-					break;
-				}
-				Logger.debug(this, "polling rts");
-				this.rtsf.poll();
-				if(stopping) {
-					break;
-				}
+			insertMailsite(wotConnection);
+			setWoTContext(wotConnection);
 
-				long runtime = System.currentTimeMillis() - start;
+			if(stopping) {
+				return;
+			}
+			Logger.debug(this, "polling rts");
+			pollScheduler.acquireFetch();
+			try {
+				this.rtsf.poll();
+			} finally {
+				pollScheduler.releaseFetch();
+			}
+		} catch (ConnectionTerminatedException cte) {
 
-				if(MIN_POLL_DURATION - runtime > 0) {
-					Thread.sleep(MIN_POLL_DURATION - runtime);
-				}
-			} catch (ConnectionTerminatedException cte) {
+		} catch (InterruptedException ie) {
+			Logger.debug(this, "SingleAccountWatcher interrupted, stopping");
+			kill();
+			return;
+		}
 
-			} catch (InterruptedException ie) {
-				Logger.debug(this, "SingleAccountWatcher interrupted, stopping");
-				kill();
-				break;
+		synchronized(this) {
+			if(stopping) {
+				return;
+			}
+			try {
+				nextRun = pollScheduler.schedule(this, Activity.WARM);
+			} catch(RejectedExecutionException e) {
+				Logger.debug(this, "Caugth RejectedExecutionException while scheduling SingleAccountWatcher");
 			}
 		}
 	}
@@ -182,9 +212,13 @@ public class SingleAccountWatcher implements Runnable {
 	}
 
 	/**
-	 * Terminate the run method
+	 * Stops this watcher, cancelling the next run
 	 */
-	public void kill() {
+	public synchronized void kill() {
 		stopping = true;
+		if(nextRun != null) {
+			nextRun.cancel(false);
+			nextRun = null;
+		}
 	}
 }
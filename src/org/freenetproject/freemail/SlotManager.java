@@ -21,6 +21,8 @@
 
 package org.freenetproject.freemail;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
 import java.util.Enumeration;
 
@@ -179,6 +181,42 @@ public abstract class SlotManager {
 		return retval;
 	}
 
+	/** Returns the slots that the following calls to getNextSlot() will return, without
+	 *  moving past them. Marking a slot as used doesn't change which slots come after it,
+	 *  so the result stays valid until the slots expire. Fewer than count slots are
+	 *  returned if the end is reached first.
+	 */
+	public synchronized List<String> peekSlots(int count) {
+		List<String> peeked = new ArrayList<String>();
+
+		// mirrors getNextSlot(), counting the expired slots it would remove
+		// instead of removing them
+		int pos = this.nextSlotNum;
+		int removed = 0;
+		while(peeked.size() < count) {
+			int size = this.slots.size() - removed;
+			if(pos >= size + this.pollAhead) {
+				break;
+			} else if(pos >= size) {
+				String slot = this.slots.lastElement().slot;
+				for(int i = size; i <= pos; i++) {
+					slot = this.incSlot(slot);
+				}
+				peeked.add(slot);
+			} else {
+				Slot s = this.slots.get(pos + removed);
+				if(s.time_added > 0 && s.time_added < System.currentTimeMillis() - SLOT_LIFETIME && pos != size - 1) {
+					removed++;
+					continue;
+				}
+				peeked.add(s.slot);
+			}
+			pos++;
+		}
+
+		return peeked;
+	}
+
 	private static class Slot {
 		String slot;
 		long time_added;
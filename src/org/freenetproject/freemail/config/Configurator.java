@@ -36,14 +36,20 @@ public class Configurator {
 	public static final String DATA_DIR = "datadir";
 	public static final String FCP_HOST = "fcp_host";
 	public static final String FCP_PORT = "fcp_port";
+	public static final String FCP_CONNECTIONS = "fcp_connections";
+	public static final String FCP_MEMORY_THRESHOLD = "fcp_memory_threshold";
+	public static final String FCP_PERSISTENT_INSERTS = "fcp_persistent_inserts";
 	public static final String GLOBAL_DATA_DIR = "globaldatadir";
 	public static final String IMAP_BIND_ADDRESS = "imap_bind_address";
 	public static final String IMAP_BIND_PORT = "imap_bind_port";
+	public static final String IMAP_MAX_CONNECTIONS = "imap_max_connections";
 	public static final String LOG_LEVEL = "loglevel";
 	public static final String SMTP_BIND_ADDRESS = "smtp_bind_address";
 	public static final String SMTP_BIND_PORT = "smtp_bind_port";
+	public static final String SMTP_MAX_CONNECTIONS = "smtp_max_connections";
 	public static final String TEMP_DIR = "tempdir";
 	public static final String FILE_FORMAT = "fileformat";
+	public static final String WOT_REFRESH_INTERVAL = "wot_refresh_interval";
 
 	private final PropsFile props;
 	private final HashMap<String, ConfigClient> callbacks;
@@ -0,0 +1,36 @@
+/*
+ * FCPCallback.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import java.util.concurrent.Future;
+
+/**
+ * Receives the outcome of an asynchronous {@link HighLevelFCPClient} request.
+ */
+public interface FCPCallback<T> {
+	/**
+	 * Called once when the request has succeeded, failed or been cancelled. {@code result} is
+	 * done, so {@link Future#get()} returns (or throws) without blocking. A cancelled request
+	 * that the node already had is only reported once the node has removed it, so this may be
+	 * called some time after {@link Future#cancel(boolean)} returns. This is usually called
+	 * from the FCP connection thread, so implementations must not block.
+	 */
+	public void requestCompleted(Future<T> result);
+}
@@ -21,100 +21,81 @@
 
 package org.freenetproject.freemail.fcp;
 
-import java.io.OutputStream;
-import java.io.InputStream;
-import java.net.Socket;
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
-
 import org.freenetproject.freemail.utils.Logger;
 
 
+/**
+ * Freemail's connection to the node. This is made up of one or more sockets ({@link FCPLink}s),
+ * and each request goes to the connected socket with the fewest bytes waiting to be written,
+ * so small requests aren't stuck behind large uploads. The number of sockets is set by
+ * {@link FCPContext#getConnectionCount()}.
+ */
 public class FCPConnection implements Runnable {
+	/**
+	 * Identifiers of persistent requests start with this, so that we can tell ours apart from
+	 * anything else on the global queue.
+	 */
+	static final String PERSISTENT_ID_PREFIX = "Freemail-";
+
+	/**
+	 * How long to wait for the node to list its persistent requests after connecting.
+	 */
+	private static final long LISTING_TIMEOUT = 30 * 1000;
+
 	/**
 	 * Whether the thread this service runs in should stop.
 	 */
 	protected volatile boolean stopping = false;
 
-	private final FCPContext fcpctx;
-	private OutputStream os;
-	private InputStream is;
-	private Socket conn;
-	private int nextMsgId;
-	private final HashMap<String, FCPClient> clients;
+	private final FCPLink[] links;
+	private final boolean persistenceEnabled;
 
-	public FCPConnection(FCPContext ctx) {
-		this.fcpctx = ctx;
-		this.clients = new HashMap<String, FCPClient>();
+	/**
+	 * The identifier of the next message. This is shared by all the links and isn't reset
+	 * when we reconnect so that identifiers stay unique for the lifetime of the connection.
+	 */
+	private int nextMsgId = 1;
 
-		this.tryConnect();
-	}
+	private final RequestLatency latency = new RequestLatency();
 
-	private void tryConnect() {
-		if(this.conn != null || stopping) return;
-
-		try {
-			this.nextMsgId = 1;
-			this.conn = this.fcpctx.getConn();
-			this.is = this.conn.getInputStream();
-			this.os = this.conn.getOutputStream();
-
-			FCPMessage hello = new FCPMessage(this.nextMsgId, "ClientHello");
-			this.nextMsgId++;
-			hello.writeto(this.os);
-			FCPMessage reply = this.getMessage();
-			if(reply.getType() == null) {
-				Logger.error(this, "Connection closed");
-				this.conn = null;
-				return;
-			}
-			if(!reply.getType().equals("NodeHello")) {
-				Logger.error(this, "Warning - got '"+reply.getType()+"' from node, expecting 'NodeHello'");
-			}
-		} catch (IOException ioe) {
-			this.conn = null;
-			this.is = null;
-			this.os = null;
-			return;
-		} catch (FCPBadFileException bfe) {
-			// won't be thrown from a hello, so should really
-			// never get here!
-			throw new AssertionError();
+	public FCPConnection(FCPContext ctx) {
+		this.persistenceEnabled = ctx.usePersistentRequests();
+		this.links = new FCPLink[Math.max(1, ctx.getConnectionCount())];
+		for(int i = 0; i < links.length; i++) {
+			//The node wants a unique name for each connection. Persistent requests are tied to
+			//the client name, so they all go to the first link which keeps the default name.
+			String name = (i == 0) ? null : "freemail-wot-" + (i + 1);
+			links[i] = new FCPLink(this, ctx, name, i == 0 && persistenceEnabled);
+			links[i].tryConnect();
 		}
 	}
 
+	/**
+	 * Runs the reader of the first link in this thread and the others in threads of their own,
+	 * returning once they have all stopped.
+	 */
 	@Override
 	public void run() {
-		while(!stopping) {
+		String name = Thread.currentThread().getName();
+		Thread[] readers = new Thread[links.length];
+		for(int i = 0; i < links.length; i++) {
+			links[i].startWriter(name + " writer " + (i + 1));
+			if(i > 0) {
+				readers[i] = new Thread(links[i], name + " " + (i + 1));
+				readers[i].setDaemon(true);
+				readers[i].start();
+			}
+		}
+
+		links[0].run();
+
+		for(int i = 1; i < readers.length; i++) {
 			try {
-				this.tryConnect();
-				if(this.conn == null || stopping) throw new IOException();
-
-				FCPMessage msg = this.getMessage();
-				if(msg.getType() == null) throw new IOException("Connection closed");
-				this.dispatch(msg);
-			} catch (IOException ioe) {
-				this.conn = null;
-				this.os = null;
-				this.is = null;
-				// tell all our clients it's all over
-				Iterator<FCPClient> i = this.clients.values().iterator();
-				while(i.hasNext()) {
-					FCPClient cli = i.next();
-					cli.requestFinished(new FCPMessage(1, "ConnectionClosed"));
-				}
-				this.clients.clear();
-				// wait a bit
-				if(!stopping) {
-					try {
-						Thread.sleep(10000);
-					} catch (InterruptedException ie) {
-						Logger.debug(this, "FCPConnection interrupted, stopping");
-						kill();
-						break;
-					}
-				}
+				readers[i].join();
+			} catch (InterruptedException e) {
+				Logger.debug(this, "FCPConnection interrupted, stopping");
+				kill();
+				break;
 			}
 		}
 	}
@@ -124,67 +105,105 @@ public class FCPConnection implements Runnable {
 	 */
 	public void kill() {
 		stopping = true;
-		try {
-			// we can safely close the socket from this thread: any read operations other threads are in will throw a SocketException
-			if(conn != null) {
-				conn.close();
-				conn = null;
-			}
-		} catch (IOException ioe) {
-			// ignore
+		for(FCPLink link : links) {
+			link.kill();
 		}
 	}
 
-	@Override
-	protected void finalize() throws Throwable {
-		try {
-			if(conn != null) {
-				this.conn.close();
-				Logger.error(FCPConnection.class, "Connection not closed in finalizer");
-			}
-		} finally {
-			super.finalize();
-		}
+	public void doRequest(FCPClient cli, FCPMessage msg) throws NoNodeConnectionException,
+	                                                            ConnectionTerminatedException, FCPBadFileException {
+		if(stopping) throw new ConnectionTerminatedException("This FCP Connection has been terminated");
+
+		FCPLink link = selectLink();
+		if(link == null) throw new NoNodeConnectionException("No Connection");
+		link.enqueue(cli, msg);
 	}
 
-	public synchronized void doRequest(FCPClient cli, FCPMessage msg) throws NoNodeConnectionException,
-	                                                                         ConnectionTerminatedException, FCPBadFileException {
+	/**
+	 * Returns {@code true} if requests may be submitted using
+	 * {@link #doPersistentRequest(FCPClient, FCPMessage)}.
+	 */
+	public boolean isPersistenceEnabled() {
+		return persistenceEnabled;
+	}
+
+	/**
+	 * Submits a request to the node's global queue, where it carries on if we are disconnected
+	 * or restart. If the node already has a request with the identifier of {@code msg} we wait
+	 * for that one instead of sending it again. The identifier must start with
+	 * {@link #PERSISTENT_ID_PREFIX}.
+	 */
+	public void doPersistentRequest(FCPClient cli, FCPMessage msg) throws NoNodeConnectionException,
+	                                                                      ConnectionTerminatedException, FCPBadFileException,
+	                                                                      InterruptedException {
 		if(stopping) throw new ConnectionTerminatedException("This FCP Connection has been terminated");
-		if(this.os == null) throw new NoNodeConnectionException("No Connection");
-		this.clients.put(msg.getId(), cli);
-		try {
-			msg.writeto(this.os);
-		} catch (IOException ioe) {
-			throw new NoNodeConnectionException(ioe.getMessage());
+		if(!persistenceEnabled) throw new IllegalStateException("Persistent requests are disabled");
+		if(!msg.getId().startsWith(PERSISTENT_ID_PREFIX)) {
+			throw new IllegalArgumentException("Bad persistent request identifier " + msg.getId());
 		}
+
+		links[0].enqueuePersistent(cli, msg, LISTING_TIMEOUT);
 	}
 
 	/**
-	 * Give up on a request.
-	 * This doesn't actually send a cancel command to the node
-	 * (I don't think such a thing exists) but it does remove our
-	 * request/client map entry. We need this for requests that never
-	 * complete, so we don't leak memory.
+	 * Removes the persistent requests that finished while we weren't waiting for them and that
+	 * nobody has asked for since, e.g. inserts of channels that have been deleted. This should
+	 * only be called once everything that might resubmit a request has had the chance to do so.
+	 */
+	public void removeUnclaimedRequests() {
+		links[0].removeUnclaimedRequests();
+	}
+
+	/**
+	 * Returns how long the requests made through this connection have taken, by priority.
 	 */
-	public synchronized void cancelRequest(FCPMessage msg) {
-		this.clients.remove(msg.getId());
+	public RequestLatency getLatency() {
+		return latency;
 	}
 
-	private void dispatch(FCPMessage msg) {
-		FCPClient cli = this.clients.get(msg.getId());
-		if(cli == null) {
-			// normally we'd leave it up to the client
-			// to delete any data, but it looks like
-			// we'll have to do it
-			msg.release();
-			return;
+	void setReconnectDelay(long delay) {
+		for(FCPLink link : links) {
+			link.setReconnectDelay(delay);
 		}
-		if(msg.isCompletionMessage()) {
-			this.clients.remove(msg.getId());
-			cli.requestFinished(msg);
-		} else {
-			cli.requestStatus(msg);
+	}
+
+	/**
+	 * Returns the connected link with the fewest bytes waiting to be written, using the number of
+	 * outstanding requests to break ties, or {@code null} if none are connected.
+	 */
+	private FCPLink selectLink() {
+		FCPLink best = null;
+		long bestBytes = 0;
+		int bestPending = 0;
+		for(FCPLink link : links) {
+			if(!link.isConnected()) continue;
+
+			long bytes = link.getQueuedBytes();
+			int pending = link.getPendingRequests();
+			if(best == null || bytes < bestBytes || (bytes == bestBytes && pending < bestPending)) {
+				best = link;
+				bestBytes = bytes;
+				bestPending = pending;
+			}
 		}
+		return best;
+	}
+
+	/**
+	 * Give up on a request.
+	 * If the request hasn't been written yet it is dropped, otherwise
+	 * the node is sent a RemoveRequest so that it stops working on it.
+	 * In that case the client is still sent a completion message once
+	 * the node has removed the request (or it finished anyway), so it
+	 * can tell when the node is done with it.
+	 * @return true if the node has been asked to remove the request
+	 */
+	public boolean cancelRequest(FCPMessage msg) {
+		boolean removing = false;
+		for(FCPLink link : links) {
+			removing |= link.cancelRequest(msg.getId());
+		}
+		return removing;
 	}
 
 	public synchronized FCPMessage getMessage(String type) {
@@ -192,8 +211,4 @@ public class FCPConnection implements Runnable {
 		this.nextMsgId++;
 		return m;
 	}
-
-	private FCPMessage getMessage() throws IOException {
-		return new FCPMessage(this.is);
-	}
 }
@@ -27,13 +27,43 @@ import org.freenetproject.freemail.config.Configurator;
 
 
 public class FCPContext implements ConfigClient {
+	/**
+	 * Fetched data up to this size is kept in memory rather than written to a temporary file.
+	 */
+	public static final int DEFAULT_MEMORY_THRESHOLD = 64 * 1024;
+
 	private String hostname;
 	private int port;
+	private int connectionCount = 1;
+	private int memoryThreshold = DEFAULT_MEMORY_THRESHOLD;
+	private boolean persistentRequests = false;
 
 	public Socket getConn() throws IOException {
 		return new Socket(this.hostname, this.port);
 	}
 
+	/**
+	 * Returns the number of sockets to open to the node.
+	 */
+	public int getConnectionCount() {
+		return connectionCount;
+	}
+
+	/**
+	 * Returns the size in bytes up to which fetched data is kept in memory.
+	 */
+	public int getMemoryThreshold() {
+		return memoryThreshold;
+	}
+
+	/**
+	 * Returns {@code true} if inserts should be submitted as persistent requests on the
+	 * node's global queue so that they survive reconnects and restarts.
+	 */
+	public boolean usePersistentRequests() {
+		return persistentRequests;
+	}
+
 	@Override
 	public void setConfigProp(String key, String val) {
 		if(key.equalsIgnoreCase(Configurator.FCP_HOST)) {
@@ -44,6 +74,20 @@ public class FCPContext implements ConfigClient {
 			} catch (NumberFormatException nfe) {
 				// just leave it as it was
 			}
+		} else if(key.equalsIgnoreCase(Configurator.FCP_CONNECTIONS)) {
+			try {
+				connectionCount = Math.max(1, Integer.parseInt(val));
+			} catch (NumberFormatException nfe) {
+				// just leave it as it was
+			}
+		} else if(key.equalsIgnoreCase(Configurator.FCP_MEMORY_THRESHOLD)) {
+			try {
+				memoryThreshold = Math.max(0, Integer.parseInt(val));
+			} catch (NumberFormatException nfe) {
+				// just leave it as it was
+			}
+		} else if(key.equalsIgnoreCase(Configurator.FCP_PERSISTENT_INSERTS)) {
+			persistentRequests = Boolean.parseBoolean(val);
 		}
 	}
 }
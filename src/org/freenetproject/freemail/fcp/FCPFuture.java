@@ -0,0 +1,202 @@
+/*
+ * FCPFuture.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * The pending result of a single request made by {@link HighLevelFCPClient}. Subclasses turn
+ * the completion message from the node into a result by calling {@link #complete(Object)} or
+ * {@link #fail(Exception)}.
+ */
+abstract class FCPFuture<T> implements Future<T> {
+	private final HighLevelFCPClient client;
+	private final FCPMessage request;
+	private final FCPCallback<T> callback;
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final long startTime = System.nanoTime();
+
+	//All guarded by this
+	private boolean finished = false;
+	private boolean cancelled = false;
+	private T result = null;
+	private Exception failure = null;
+	private Future<?> continuation = null;
+	private boolean notified = false;
+
+	FCPFuture(HighLevelFCPClient client, FCPMessage request, FCPCallback<T> callback) {
+		this.client = client;
+		this.request = request;
+		this.callback = callback;
+	}
+
+	FCPMessage getRequest() {
+		return request;
+	}
+
+	/**
+	 * Called with the completion message for this request.
+	 */
+	abstract void replyReceived(FCPMessage reply);
+
+	/**
+	 * Sets the result of the request.
+	 * @return {@code false} if the request had already finished or been cancelled
+	 */
+	boolean complete(T value) {
+		synchronized(this) {
+			if(finished) {
+				return false;
+			}
+			finished = true;
+			result = value;
+		}
+		client.requestDone(request, System.nanoTime() - startTime);
+		finish();
+		return true;
+	}
+
+	/**
+	 * Fails the request with the given exception, which {@link #get()} throws wrapped in an
+	 * {@link ExecutionException}.
+	 * @return {@code false} if the request had already finished or been cancelled
+	 */
+	boolean fail(Exception e) {
+		synchronized(this) {
+			if(finished) {
+				return false;
+			}
+			finished = true;
+			failure = e;
+		}
+		client.requestDone(request, System.nanoTime() - startTime);
+		finish();
+		return true;
+	}
+
+	/**
+	 * Sets the request that carries on from this one, e.g. the fetch of a redirect target, so
+	 * that cancelling this request cancels that one too. If this request has already been
+	 * cancelled {@code next} is cancelled immediately.
+	 */
+	void continueWith(Future<?> next) {
+		synchronized(this) {
+			if(!cancelled) {
+				continuation = next;
+				return;
+			}
+		}
+		next.cancel(false);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		Future<?> next;
+		synchronized(this) {
+			if(finished) {
+				return false;
+			}
+			finished = true;
+			cancelled = true;
+			next = continuation;
+		}
+		done.countDown();
+
+		//If the node has the request the callback waits until it has removed it
+		boolean removing = client.cancelRequest(request);
+		if(next != null) {
+			next.cancel(mayInterruptIfRunning);
+		}
+		if(!removing) {
+			notifyCallback();
+		}
+		return true;
+	}
+
+	/**
+	 * Called when the node has let go of the request after it was cancelled.
+	 */
+	void requestRemoved() {
+		notifyCallback();
+	}
+
+	private void finish() {
+		done.countDown();
+		notifyCallback();
+	}
+
+	private void notifyCallback() {
+		synchronized(this) {
+			if(notified) {
+				return;
+			}
+			notified = true;
+		}
+		if(callback == null) {
+			return;
+		}
+		try {
+			callback.requestCompleted(this);
+		} catch(RuntimeException e) {
+			Logger.error(this, "Callback for request " + request.getId() + " threw exception", e);
+		}
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return finished;
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		done.await();
+		return getResult();
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if(!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return getResult();
+	}
+
+	private synchronized T getResult() throws ExecutionException {
+		if(cancelled) {
+			throw new CancellationException();
+		}
+		if(failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return result;
+	}
+}
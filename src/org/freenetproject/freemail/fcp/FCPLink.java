@@ -0,0 +1,625 @@
+/*
+ * FCPLink.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.freenetproject.freemail.utils.Logger;
+
+/**
+ * A single socket to the node, belonging to an {@link FCPConnection}. Messages from the node
+ * are read and dispatched by {@link #run()}, and outgoing messages are queued and written by a
+ * separate writer thread so that nobody waits for the socket while a large upload is written.
+ * Messages without data are always written before queued messages with data. A message that
+ * has started being written can't be interrupted though, so control messages still wait for
+ * the upload in progress.
+ */
+class FCPLink implements Runnable {
+	static final long DEFAULT_RECONNECT_DELAY = 10000;
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+	private final FCPConnection owner;
+	private final FCPContext fcpctx;
+	private final String clientName;
+	private final boolean watchGlobal;
+	private volatile boolean stopping = false;
+	private volatile long reconnectDelay = DEFAULT_RECONNECT_DELAY;
+
+	//Connection state, guarded by this. The generation changes every time the connection is
+	//lost so the writer can tell whether a queued message was meant for the current socket.
+	private Socket conn;
+	private OutputStream os;
+	private long generation = 0;
+	private long nextSeq = 0;
+
+	//Only used by the thread in run()
+	private FCPMessageReader reader;
+
+	private final Map<String, FCPClient> clients = new ConcurrentHashMap<String, FCPClient>();
+	private final PriorityBlockingQueue<QueuedMessage> writeQueue = new PriorityBlockingQueue<QueuedMessage>();
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private Thread writerThread;
+
+	//Persistent requests, guarded by this. Unlike the other requests these outlive the socket:
+	//after reconnecting we ask the node which ones it still has and pick those up again.
+	private final Map<String, PersistentClient> persistentClients = new HashMap<String, PersistentClient>();
+	private final Set<String> listedIdentifiers = new HashSet<String>();
+	private final Map<String, FCPMessage> unclaimedResults = new HashMap<String, FCPMessage>();
+	private boolean listingComplete = false;
+
+	/**
+	 * @param watchGlobal if {@code true} this link watches the global queue and supports
+	 *            persistent requests
+	 */
+	FCPLink(FCPConnection owner, FCPContext ctx, String clientName, boolean watchGlobal) {
+		this.owner = owner;
+		this.fcpctx = ctx;
+		this.clientName = clientName;
+		this.watchGlobal = watchGlobal;
+	}
+
+	void setReconnectDelay(long delay) {
+		this.reconnectDelay = delay;
+	}
+
+	void tryConnect() {
+		synchronized(this) {
+			if(this.conn != null || stopping) return;
+		}
+
+		Socket sock = null;
+		try {
+			sock = this.fcpctx.getConn();
+			this.reader = new FCPMessageReader(sock.getInputStream());
+			OutputStream out = new BufferedOutputStream(sock.getOutputStream(), OUTPUT_BUFFER_SIZE);
+
+			FCPMessage hello = owner.getMessage("ClientHello");
+			if(clientName != null) {
+				hello.headers.put("Name", clientName);
+			}
+			hello.writeto(out);
+			out.flush();
+			FCPMessage reply = new FCPMessage(this.reader);
+			if(reply.getType() == null) {
+				Logger.error(this, "Connection closed");
+				sock.close();
+				return;
+			}
+			if(!reply.getType().equals("NodeHello")) {
+				Logger.error(this, "Warning - got '"+reply.getType()+"' from node, expecting 'NodeHello'");
+			}
+
+			if(watchGlobal) {
+				//Find out which of our persistent requests the node has
+				FCPMessage watch = owner.getMessage("WatchGlobal");
+				watch.headers.put("Enabled", "true");
+				watch.headers.put("VerbosityMask", "0");
+				watch.writeto(out);
+				owner.getMessage("ListPersistentRequests").writeto(out);
+				out.flush();
+			}
+
+			synchronized(this) {
+				if(stopping) {
+					sock.close();
+					return;
+				}
+				this.conn = sock;
+				this.os = out;
+				this.listedIdentifiers.clear();
+				this.listingComplete = !watchGlobal;
+			}
+		} catch (IOException ioe) {
+			this.reader = null;
+			if(sock != null) {
+				try {
+					sock.close();
+				} catch (IOException e) {
+					//Ignore
+				}
+			}
+		} catch (FCPBadFileException bfe) {
+			// won't be thrown from a hello, so should really
+			// never get here!
+			throw new AssertionError();
+		}
+	}
+
+	synchronized boolean isConnected() {
+		return this.os != null;
+	}
+
+	/**
+	 * Starts the thread that writes queued messages.
+	 */
+	synchronized void startWriter(String name) {
+		if(writerThread != null) return;
+
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, name);
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	@Override
+	public void run() {
+		while(!stopping) {
+			try {
+				this.tryConnect();
+				if(!isConnected() || stopping) throw new IOException();
+
+				FCPMessage msg = new FCPMessage(this.reader, fcpctx.getMemoryThreshold());
+				if(msg.getType() == null) throw new IOException("Connection closed");
+				this.dispatch(msg);
+			} catch (IOException ioe) {
+				this.disconnected();
+				// wait a bit
+				if(!stopping) {
+					try {
+						Thread.sleep(reconnectDelay);
+					} catch (InterruptedException ie) {
+						Logger.debug(this, "FCPLink interrupted, stopping");
+						kill();
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Cleans up after the connection was lost: drops the queued messages and tells all the
+	 * clients with outstanding requests that it's all over.
+	 */
+	private void disconnected() {
+		Socket sock;
+		synchronized(this) {
+			sock = this.conn;
+			this.conn = null;
+			this.os = null;
+			this.generation++;
+			this.listingComplete = false;
+			notifyAll();
+		}
+		this.reader = null;
+		closeQuietly(sock);
+
+		QueuedMessage queued;
+		while((queued = writeQueue.poll()) != null) {
+			queuedBytes.addAndGet(-queued.size);
+			queued.msg.closeData();
+		}
+
+		Iterator<Map.Entry<String, FCPClient>> i = this.clients.entrySet().iterator();
+		while(i.hasNext()) {
+			Map.Entry<String, FCPClient> entry = i.next();
+			i.remove();
+			entry.getValue().requestFinished(new FCPMessage(entry.getKey(), "ConnectionClosed"));
+		}
+	}
+
+	void kill() {
+		Socket sock;
+		Thread writer;
+		Map<String, PersistentClient> persistent;
+		synchronized(this) {
+			stopping = true;
+			sock = this.conn;
+			writer = this.writerThread;
+			persistent = new HashMap<String, PersistentClient>(persistentClients);
+			persistentClients.clear();
+			notifyAll();
+		}
+		// we can safely close the socket from this thread: any read operations other threads are in will throw a SocketException
+		closeQuietly(sock);
+		if(writer != null) {
+			writer.interrupt();
+		}
+
+		//The node carries on with these, so they can be picked up again next time
+		for(Map.Entry<String, PersistentClient> entry : persistent.entrySet()) {
+			entry.getValue().client.requestFinished(new FCPMessage(entry.getKey(), "ConnectionClosed"));
+		}
+	}
+
+	/**
+	 * Queues {@code msg} to be written to the node, and sends its replies to {@code cli}.
+	 */
+	synchronized void enqueue(FCPClient cli, FCPMessage msg) throws NoNodeConnectionException, FCPBadFileException {
+		if(this.os == null) throw new NoNodeConnectionException("No Connection");
+
+		//Register first so a fast reply can't arrive before we're listening
+		this.clients.put(msg.getId(), cli);
+		try {
+			queue(msg);
+		} catch (FCPBadFileException e) {
+			this.clients.remove(msg.getId());
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends the persistent request {@code msg} to the node unless the node already has a
+	 * request with the same identifier, in which case we just wait for that to finish. Replies
+	 * are sent to {@code cli}, and unlike normal requests the request isn't failed when the
+	 * connection is lost unless the node turns out not to have it after reconnecting. Right
+	 * after connecting this waits up to {@code listingTimeout} ms for the node to list its
+	 * persistent requests.
+	 */
+	void enqueuePersistent(FCPClient cli, FCPMessage msg, long listingTimeout) throws NoNodeConnectionException,
+	                                                                                  FCPBadFileException, InterruptedException {
+		String id = msg.getId();
+		FCPMessage result;
+		synchronized(this) {
+			long deadline = System.currentTimeMillis() + listingTimeout;
+			while(this.os != null && !listingComplete) {
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0) break;
+				wait(remaining);
+			}
+			if(this.os == null) throw new NoNodeConnectionException("No Connection");
+
+			result = unclaimedResults.remove(id);
+			if(result == null) {
+				if(listedIdentifiers.contains(id)) {
+					Logger.debug(this, "Attaching to persistent request " + id);
+					msg.closeData();
+				} else {
+					queue(msg);
+				}
+				persistentClients.put(id, new PersistentClient(cli, generation));
+				return;
+			}
+		}
+
+		//It finished while nobody was waiting for it
+		msg.closeData();
+		removeFromNode(id);
+		cli.requestFinished(result);
+	}
+
+	/**
+	 * Removes the persistent requests that finished while nobody was waiting for them and
+	 * haven't been asked for since, both from the node's global queue and from the results we
+	 * keep. Nothing is removed until the node has listed its persistent requests.
+	 */
+	void removeUnclaimedRequests() {
+		List<String> unclaimed;
+		synchronized(this) {
+			if(!listingComplete) return;
+
+			unclaimed = new ArrayList<String>(unclaimedResults.keySet());
+			for(String id : unclaimed) {
+				unclaimedResults.remove(id).release();
+				listedIdentifiers.remove(id);
+			}
+		}
+
+		for(String id : unclaimed) {
+			Logger.normal(this, "Removing unclaimed persistent request " + id);
+			removeFromNode(id);
+		}
+	}
+
+	private synchronized void queue(FCPMessage msg) throws FCPBadFileException {
+		QueuedMessage queued = new QueuedMessage(msg, generation, nextSeq++);
+		queuedBytes.addAndGet(queued.size);
+		writeQueue.add(queued);
+	}
+
+	/**
+	 * Gives up on the request {@code identifier}. A request that hasn't been written yet is
+	 * simply dropped, and one the node already has is removed with a RemoveRequest. In that case
+	 * the client still gets a completion message, either when the node has removed the request
+	 * or when it finishes anyway.
+	 * @return {@code true} if the node has been asked to remove the request
+	 */
+	synchronized boolean cancelRequest(String identifier) {
+		persistentClients.remove(identifier);
+		if(!this.clients.containsKey(identifier)) return false;
+
+		for(QueuedMessage queued : writeQueue) {
+			if(identifier.equals(queued.msg.getId()) && writeQueue.remove(queued)) {
+				queuedBytes.addAndGet(-queued.size);
+				queued.msg.closeData();
+				this.clients.remove(identifier);
+				return false;
+			}
+		}
+
+		if(this.os == null) {
+			//The connection it was sent on is gone, so the node doesn't have it any more
+			this.clients.remove(identifier);
+			return false;
+		}
+
+		try {
+			queue(new FCPMessage(identifier, "RemoveRequest"));
+		} catch (FCPBadFileException e) {
+			//No data, so can't happen
+			throw new AssertionError();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of bytes that are queued but not yet written.
+	 */
+	long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	/**
+	 * Returns the number of requests waiting for a reply.
+	 */
+	int getPendingRequests() {
+		return clients.size();
+	}
+
+	private void writeLoop() {
+		while(!stopping) {
+			QueuedMessage queued;
+			try {
+				queued = writeQueue.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			try {
+				OutputStream out;
+				synchronized(this) {
+					out = (queued.generation == this.generation) ? this.os : null;
+				}
+				if(out == null) {
+					//The connection it was meant for is gone, and the client has been told
+					queued.msg.closeData();
+					continue;
+				}
+
+				out.write(queued.header);
+				queued.msg.writeData(out);
+				if(writeQueue.isEmpty()) {
+					out.flush();
+				}
+			} catch (IOException e) {
+				//Whatever went wrong the node is now out of step with us, so drop the connection
+				//and let the reader thread clean up
+				Logger.error(this, "Error writing to node: " + e.getMessage());
+				closeIfCurrent(queued.generation);
+			} finally {
+				queuedBytes.addAndGet(-queued.size);
+			}
+		}
+	}
+
+	private void closeIfCurrent(long gen) {
+		Socket sock;
+		synchronized(this) {
+			if(gen != this.generation) return;
+			sock = this.conn;
+		}
+		closeQuietly(sock);
+	}
+
+	private void dispatch(FCPMessage msg) {
+		if(msg.getType().equals("EndListPersistentRequests")) {
+			listingFinished();
+			return;
+		}
+		if(msg.getId() == null) {
+			msg.release();
+			return;
+		}
+
+		boolean completion = msg.isCompletionMessage();
+		FCPClient cli;
+		if(completion) {
+			cli = this.clients.remove(msg.getId());
+		} else if(msg.getType().equals("PersistentRequestRemoved")) {
+			//A request we cancelled has gone, so that's the last we'll hear of it
+			cli = this.clients.remove(msg.getId());
+			completion = (cli != null);
+		} else {
+			cli = this.clients.get(msg.getId());
+		}
+		if(cli == null && watchGlobal && msg.getId().startsWith(FCPConnection.PERSISTENT_ID_PREFIX)) {
+			dispatchPersistent(msg, msg.isCompletionMessage());
+			return;
+		}
+		if(cli == null) {
+			// normally we'd leave it up to the client
+			// to delete any data, but it looks like
+			// we'll have to do it
+			msg.release();
+			return;
+		}
+		if(completion) {
+			cli.requestFinished(msg);
+		} else {
+			cli.requestStatus(msg);
+		}
+	}
+
+	private void dispatchPersistent(FCPMessage msg, boolean completion) {
+		String id = msg.getId();
+		String type = msg.getType();
+		PersistentClient pc;
+		synchronized(this) {
+			if(type.equals("PersistentPut") || type.equals("PersistentGet")) {
+				listedIdentifiers.add(id);
+			}
+			if(type.equals("IdentifierCollision")) {
+				//The node already had it, so we are now waiting for that request instead
+				Logger.debug(this, "Node already has persistent request " + id);
+				return;
+			}
+
+			if(!completion) {
+				pc = persistentClients.get(id);
+			} else {
+				pc = persistentClients.remove(id);
+				if(pc == null) {
+					//Keep it for whoever asks for this request again
+					FCPMessage old = unclaimedResults.put(id, msg);
+					if(old != null) old.release();
+					return;
+				}
+			}
+		}
+
+		if(pc == null) {
+			msg.release();
+		} else if(completion) {
+			removeFromNode(id);
+			pc.client.requestFinished(msg);
+		} else {
+			pc.client.requestStatus(msg);
+		}
+	}
+
+	/**
+	 * Called when the node has listed all the persistent requests it has. Any request we sent
+	 * on an earlier connection that isn't in the list never reached the node, so it has failed.
+	 */
+	private void listingFinished() {
+		Map<String, PersistentClient> lost = new HashMap<String, PersistentClient>();
+		synchronized(this) {
+			listingComplete = true;
+			Iterator<Map.Entry<String, PersistentClient>> i = persistentClients.entrySet().iterator();
+			while(i.hasNext()) {
+				Map.Entry<String, PersistentClient> entry = i.next();
+				if(entry.getValue().generation < generation && !listedIdentifiers.contains(entry.getKey())) {
+					lost.put(entry.getKey(), entry.getValue());
+					i.remove();
+				}
+			}
+			notifyAll();
+		}
+
+		for(Map.Entry<String, PersistentClient> entry : lost.entrySet()) {
+			Logger.normal(this, "Persistent request " + entry.getKey() + " was lost with the connection");
+			entry.getValue().client.requestFinished(new FCPMessage(entry.getKey(), "ConnectionClosed"));
+		}
+	}
+
+	/**
+	 * Removes a finished persistent request from the global queue.
+	 */
+	private void removeFromNode(String id) {
+		FCPMessage remove = new FCPMessage(id, "RemoveRequest");
+		remove.headers.put("Global", "true");
+		synchronized(this) {
+			//If we aren't connected it'll be listed again and removed then
+			if(this.os == null) return;
+			try {
+				queue(remove);
+			} catch (FCPBadFileException e) {
+				//No data, so can't happen
+				throw new AssertionError();
+			}
+		}
+	}
+
+	private static void closeQuietly(Socket sock) {
+		if(sock == null) return;
+		try {
+			sock.close();
+		} catch (IOException ioe) {
+			// ignore
+		}
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			if(conn != null) {
+				this.conn.close();
+				Logger.error(FCPLink.class, "Connection not closed in finalizer");
+			}
+		} finally {
+			super.finalize();
+		}
+	}
+
+	private static class PersistentClient {
+		private final FCPClient client;
+
+		/** The connection generation the request was registered on */
+		private final long generation;
+
+		private PersistentClient(FCPClient client, long generation) {
+			this.client = client;
+			this.generation = generation;
+		}
+	}
+
+	/**
+	 * A message waiting to be written. Messages without data sort before messages with data,
+	 * then by priority, and otherwise in the order they were queued.
+	 */
+	private static class QueuedMessage implements Comparable<QueuedMessage> {
+		private final FCPMessage msg;
+		private final byte[] header;
+		private final long size;
+		private final boolean bulk;
+		private final int rank;
+		private final long generation;
+		private final long seq;
+
+		private QueuedMessage(FCPMessage msg, long generation, long seq) throws FCPBadFileException {
+			this.msg = msg;
+			this.header = msg.encodeHeader();
+			this.size = header.length + msg.getDataLength();
+			this.bulk = msg.getDataLength() > 0;
+			//Messages without a priority are control messages, so they go first
+			this.rank = (msg.getPriority() == null) ? -1 : msg.getPriority().ordinal();
+			this.generation = generation;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(QueuedMessage o) {
+			if(bulk != o.bulk) {
+				return bulk ? 1 : -1;
+			}
+			if(rank != o.rank) {
+				return (rank < o.rank) ? -1 : 1;
+			}
+			return (seq < o.seq) ? -1 : ((seq == o.seq) ? 0 : 1);
+		}
+	}
+}
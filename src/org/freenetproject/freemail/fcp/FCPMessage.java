@@ -21,18 +21,23 @@
 
 package org.freenetproject.freemail.fcp;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.OutputStream;
 import java.io.InputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.Enumeration;
 import java.util.Collections;
 
 import org.freenetproject.freemail.Freemail;
-import org.freenetproject.freemail.support.io.LineReader;
-import org.freenetproject.freemail.support.io.LineReadingInputStream;
+
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.FileBucket;
 
 
 
@@ -40,49 +45,62 @@ public class FCPMessage {
 	private String messagetype;
 	private String identifier;
 	public final HashMap<String, String> headers;
-	private File data;
+	private Bucket data;
 	private InputStream outData;
+	private long outDataLength = 0;
+	private FCPPriority priority;
 
 
 	public FCPMessage(int id, String type) {
-		this.identifier = Integer.toString(id);
+		this(Integer.toString(id), type);
+	}
+
+	FCPMessage(String id, String type) {
+		this.identifier = id;
 		this.headers = new HashMap<String, String>();
 		this.messagetype = type;
 		this.data = null;
 		this.outData = null;
 	}
 
-	public FCPMessage(InputStream is) throws IOException {
+	FCPMessage(FCPMessageReader r) throws IOException {
+		this(r, FCPContext.DEFAULT_MEMORY_THRESHOLD);
+	}
+
+	/**
+	 * Reads the next message from the node. If the stream ends before the message starts the
+	 * type of the returned message is {@code null}. Data payloads of up to
+	 * {@code memoryThreshold} bytes are kept in memory, and larger ones in a temporary file.
+	 */
+	FCPMessage(FCPMessageReader r, long memoryThreshold) throws IOException {
 		this.headers = new HashMap<String, String>();
 		this.outData = null;
 
-		this.messagetype = null;
-
-		//r isn't closed since LineReadingInputStream would close is
-		@SuppressWarnings("resource")
-		LineReader r = new LineReadingInputStream(is);
+		this.messagetype = r.readLine();
+		if(this.messagetype == null) return;
 
 		String line;
-		while((line = r.readLine(200, 200, false)) != null) {
+		while((line = r.readLine()) != null) {
 			/***************************************/
 			//Logger.normal(this,line);
-			if(this.messagetype == null) {
-				this.messagetype = line;
-			} else if(line.startsWith("End")) {
+			if(line.startsWith("End")) {
 				return;
 			} else if(line.equals("Data")) {
+				long len;
 				try {
-					int len = Integer.decode(this.headers.get("DataLength")).intValue();
-					this.readData(is, len);
+					len = Long.parseLong(this.headers.get("DataLength"));
 				} catch (NumberFormatException nfe) {
+					throw new IOException("Bad DataLength in " + this.messagetype + ": " + this.headers.get("DataLength"));
 				}
+				this.readData(r, len, memoryThreshold);
 				return;
 			} else {
-				String[] parts = line.split("=");
-				if(parts.length == 2)
-					this.addHeader(parts[0], parts[1]);
+				int eq = line.indexOf('=');
+				if(eq > 0)
+					this.addHeader(line.substring(0, eq), line.substring(eq + 1));
 			}
 		}
+		throw new EOFException("Stream ended part way through " + this.messagetype);
 	}
 
 	private void addHeader(String name, String val) {
@@ -101,7 +119,11 @@ public class FCPMessage {
 		return this.identifier;
 	}
 
-	public File getData() {
+	/**
+	 * Returns the data payload of the message, or {@code null} if there is none. It's up to
+	 * whoever ends up with the bucket to free it.
+	 */
+	public Bucket getData() {
 		return this.data;
 	}
 
@@ -109,30 +131,50 @@ public class FCPMessage {
 		this.outData = d;
 	}
 
-	private void readData(InputStream is, int len) {
+	/**
+	 * Returns the priority of the request, or {@code null} if it hasn't got one.
+	 */
+	public FCPPriority getPriority() {
+		return this.priority;
+	}
+
+	/**
+	 * Sets the priority of the request, both for the node and for the order in which queued
+	 * requests are sent.
+	 */
+	public void setPriority(FCPPriority priority) {
+		this.priority = priority;
+		this.headers.put("PriorityClass", Integer.toString(priority.getPriorityClass()));
+	}
+
+	private void readData(FCPMessageReader r, long len, long memoryThreshold) throws IOException {
+		if(len <= memoryThreshold) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream((int)len);
+			r.readData(bos, len);
+			this.data = new ArrayBucket(bos.toByteArray());
+			return;
+		}
+
+		File file;
 		try {
-			this.data = File.createTempFile("freemail-fcp", null, Freemail.getTempDir());
-		} catch (Exception e) {
+			file = File.createTempFile("freemail-fcp", null, Freemail.getTempDir());
+		} catch (IOException e) {
+			//Skip the payload so we stay in step with the node
 			this.data = null;
+			r.readData(null, len);
 			return;
 		}
+
+		OutputStream fos = new FileOutputStream(file);
 		try {
-			FileOutputStream fos = new FileOutputStream(this.data);
-
-			byte[] buf = new byte[1024];
-			while(len > 0) {
-				int toRead = len;
-				if(toRead > buf.length)
-					toRead = buf.length;
-				int read = is.read(buf, 0, toRead);
-				fos.write(buf, 0, read);
-				len -= read;
-			}
-			fos.close();
+			r.readData(fos, len);
 		} catch (IOException ioe) {
-			this.data = null;
-			return;
+			fos.close();
+			file.delete();
+			throw ioe;
 		}
+		fos.close();
+		this.data = new FileBucket(file, false, false, false, true);
 	}
 
 	public boolean isCompletionMessage() {
@@ -155,18 +197,29 @@ public class FCPMessage {
 
 	public void release() {
 		if(this.data != null) {
-			this.data.delete();
+			this.data.free();
 		}
 	}
 
 	public void writeto(OutputStream os) throws IOException, FCPBadFileException {
+		os.write(encodeHeader());
+		writeData(os);
+	}
+
+	/**
+	 * Returns everything up to and including the EndMessage or Data line. For messages with
+	 * data this also fixes the length given by {@link #getDataLength()}.
+	 */
+	byte[] encodeHeader() throws FCPBadFileException {
 		StringBuffer buf = new StringBuffer();
 
 		buf.append(this.messagetype);
 		buf.append("\r\n");
 
 		if(this.messagetype.equalsIgnoreCase("ClientHello")) {
-			buf.append("Name=freemail-wot\r\n");
+			if(!this.headers.containsKey("Name")) {
+				buf.append("Name=freemail-wot\r\n");
+			}
 			buf.append("ExpectedVersion=2.0\r\n");
 		}
 
@@ -182,26 +235,68 @@ public class FCPMessage {
 		if(this.outData != null) {
 			buf.append("UploadFrom=direct\r\n");
 			try {
-				buf.append("DataLength="+this.outData.available()+"\r\n");
+				this.outDataLength = this.outData.available();
 			} catch (IOException ioe) {
 				throw new FCPBadFileException();
 			}
+			buf.append("DataLength="+this.outDataLength+"\r\n");
 			buf.append("Data\r\n");
 		} else {
 			buf.append("EndMessage\r\n");
 		}
-		if(buf.length() > 0) {
-			//Logger.normal(this,buf.toString());
-			os.write(buf.toString().getBytes("UTF-8"));
+		//Logger.normal(this,buf.toString());
+		try {
+			return buf.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError("JVM doesn't support UTF-8");
+		}
+	}
+
+	/**
+	 * Returns the number of data bytes that follow the header, as fixed by
+	 * {@link #encodeHeader()}.
+	 */
+	long getDataLength() {
+		return this.outDataLength;
+	}
+
+	/**
+	 * Writes the data announced by {@link #encodeHeader()}, if any, and closes the data stream.
+	 */
+	void writeData(OutputStream os) throws IOException {
+		if(this.outData == null) {
+			return;
 		}
-		if(this.outData != null) {
-			byte[] bytebuf = new byte[1024];
 
-			int read;
-			while((read = this.outData.read(bytebuf)) > 0) {
+		try {
+			byte[] bytebuf = new byte[FCPMessageReader.BUFFER_SIZE];
+
+			long remaining = this.outDataLength;
+			while(remaining > 0) {
+				int read = this.outData.read(bytebuf, 0, (int)Math.min(bytebuf.length, remaining));
+				if(read < 0) {
+					throw new EOFException("Data ended " + remaining + " bytes short of DataLength");
+				}
 				os.write(bytebuf, 0, read);
+				remaining -= read;
 			}
+		} finally {
+			closeData();
+		}
+	}
+
+	/**
+	 * Closes the data stream of a message that won't be sent.
+	 */
+	void closeData() {
+		if(this.outData == null) {
+			return;
+		}
+
+		try {
 			this.outData.close();
+		} catch (IOException e) {
+			//Nothing useful we can do
 		}
 	}
 }
@@ -0,0 +1,143 @@
+/*
+ * FCPMessageReader.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import org.freenetproject.freemail.support.io.TooLongException;
+
+/**
+ * Splits the stream of messages from the node into header lines and data payloads. The socket
+ * is read in large blocks into a single reusable buffer, header lines are decoded straight out
+ * of that buffer, and payloads are copied to their destination a buffer at a time.
+ */
+class FCPMessageReader {
+	static final int BUFFER_SIZE = 32 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final InputStream is;
+	private final byte[] buf;
+
+	/** The index of the first unread byte in {@code buf} */
+	private int pos = 0;
+
+	/** The index after the last valid byte in {@code buf} */
+	private int limit = 0;
+
+	FCPMessageReader(InputStream is) {
+		this(is, BUFFER_SIZE);
+	}
+
+	FCPMessageReader(InputStream is, int bufferSize) {
+		this.is = is;
+		this.buf = new byte[bufferSize];
+	}
+
+	/**
+	 * Reads the next line, without the line terminator. Lines may end with either LF or CRLF.
+	 * @return the line, or {@code null} if the stream ended before any more data was read
+	 * @throws EOFException if the stream ended part way through a line
+	 * @throws TooLongException if the line doesn't fit in the buffer
+	 */
+	String readLine() throws IOException {
+		int scanned = 0;
+		while(true) {
+			for(int i = pos + scanned; i < limit; i++) {
+				if(buf[i] != '\n') {
+					continue;
+				}
+
+				int end = i;
+				if(end > pos && buf[end - 1] == '\r') {
+					end--;
+				}
+				String line = new String(buf, pos, end - pos, UTF8);
+				pos = i + 1;
+				return line;
+			}
+
+			scanned = limit - pos;
+			if(!fill()) {
+				if(pos == limit) {
+					return null;
+				}
+				throw new EOFException("Stream ended part way through a line");
+			}
+		}
+	}
+
+	/**
+	 * Copies the next {@code len} bytes of the stream to {@code out}, or discards them if
+	 * {@code out} is {@code null}.
+	 * @throws EOFException if the stream ends before {@code len} bytes have been read
+	 */
+	void readData(OutputStream out, long len) throws IOException {
+		//First whatever is left in the buffer
+		int buffered = (int)Math.min(limit - pos, len);
+		if(out != null) {
+			out.write(buf, pos, buffered);
+		}
+		pos += buffered;
+		len -= buffered;
+
+		//Then the rest straight from the stream, a buffer at a time
+		if(len > 0) {
+			pos = 0;
+			limit = 0;
+		}
+		while(len > 0) {
+			int read = is.read(buf, 0, (int)Math.min(buf.length, len));
+			if(read < 0) {
+				throw new EOFException("Stream ended with " + len + " bytes of data left");
+			}
+			if(out != null) {
+				out.write(buf, 0, read);
+			}
+			len -= read;
+		}
+	}
+
+	/**
+	 * Reads more data into the buffer, first moving any unread data to the start.
+	 * @return {@code false} if the stream has ended
+	 */
+	private boolean fill() throws IOException {
+		if(pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		if(limit == buf.length) {
+			throw new TooLongException();
+		}
+
+		int read = is.read(buf, limit, buf.length - limit);
+		if(read < 0) {
+			return false;
+		}
+		limit += read;
+		return true;
+	}
+}
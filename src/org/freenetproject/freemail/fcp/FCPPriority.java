@@ -0,0 +1,49 @@
+/*
+ * FCPPriority.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail.fcp;
+
+/**
+ * How urgent a request is. This sets the PriorityClass the node uses for the request, and the
+ * order in which Freemail sends queued requests to the node.
+ */
+public enum FCPPriority {
+	/** Something the user is waiting for, e.g. sending a message, or a CTS or ack */
+	HIGH(1),
+
+	/** First contact with another Freemail user, i.e. the RTS and the mailsites */
+	MEDIUM(2),
+
+	/** Background work such as polling slots for new messages */
+	LOW(4);
+
+	private final int priorityClass;
+
+	private FCPPriority(int priorityClass) {
+		this.priorityClass = priorityClass;
+	}
+
+	/**
+	 * Returns the value of the PriorityClass field for requests with this priority.
+	 */
+	public int getPriorityClass() {
+		return priorityClass;
+	}
+}
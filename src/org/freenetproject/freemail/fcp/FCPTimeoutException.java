@@ -0,0 +1,36 @@
+/*
+ * FCPTimeoutException.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+/**
+ * Thrown when the node doesn't reply to a request within the time limit set on the
+ * {@link HighLevelFCPClient}. The request has been cancelled when this is thrown.
+ */
+@SuppressWarnings("serial")
+public class FCPTimeoutException extends FCPException {
+	FCPTimeoutException() {
+		super(0, false);
+	}
+
+	@Override
+	public String toString() {
+		return "Timed out waiting for a reply from the node";
+	}
+}
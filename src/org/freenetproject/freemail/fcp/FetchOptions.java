@@ -0,0 +1,133 @@
+/*
+ * FetchOptions.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail.fcp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The settings for a fetch made using {@link HighLevelFCPClient}. Instances are immutable, so
+ * defaults can be kept in constants and adjusted using the {@code with} methods.
+ */
+public final class FetchOptions {
+	/** Value of {@link #getMaxSize()} when there is no limit */
+	public static final long NO_SIZE_LIMIT = -1;
+
+	private final FCPPriority priority;
+	private final long maxSize;
+	private final int maxRetries;
+	private final boolean ignoreDS;
+	private final long timeout;
+
+	/**
+	 * Creates options for a fetch with the given priority, no size limit, no retries and the
+	 * client's default timeout.
+	 */
+	public FetchOptions(FCPPriority priority) {
+		this(priority, NO_SIZE_LIMIT, 0, false, 0);
+	}
+
+	private FetchOptions(FCPPriority priority, long maxSize, int maxRetries, boolean ignoreDS, long timeout) {
+		if(priority == null) throw new NullPointerException();
+
+		this.priority = priority;
+		this.maxSize = maxSize;
+		this.maxRetries = maxRetries;
+		this.ignoreDS = ignoreDS;
+		this.timeout = timeout;
+	}
+
+	public FCPPriority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Returns the largest amount of data the node will fetch, in bytes. Larger data fails with
+	 * {@link FCPFetchException#TOO_BIG} without being downloaded.
+	 */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Returns the number of times the node retries the fetch before failing, where -1 means
+	 * forever.
+	 */
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * Returns {@code true} if the node shouldn't look for the data in its own datastore.
+	 */
+	public boolean getIgnoreDS() {
+		return ignoreDS;
+	}
+
+	/**
+	 * Returns how long the blocking fetch methods wait for the result, in milliseconds, where
+	 * 0 means the client's default.
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	public FetchOptions withPriority(FCPPriority newPriority) {
+		return new FetchOptions(newPriority, maxSize, maxRetries, ignoreDS, timeout);
+	}
+
+	public FetchOptions withMaxSize(long newMaxSize) {
+		return new FetchOptions(priority, newMaxSize, maxRetries, ignoreDS, timeout);
+	}
+
+	public FetchOptions withMaxRetries(int newMaxRetries) {
+		return new FetchOptions(priority, maxSize, newMaxRetries, ignoreDS, timeout);
+	}
+
+	public FetchOptions withIgnoreDS(boolean newIgnoreDS) {
+		return new FetchOptions(priority, maxSize, maxRetries, newIgnoreDS, timeout);
+	}
+
+	public FetchOptions withTimeout(long newTimeout, TimeUnit unit) {
+		return new FetchOptions(priority, maxSize, maxRetries, ignoreDS, unit.toMillis(newTimeout));
+	}
+
+	/**
+	 * Sets the fields of the ClientGet message {@code msg} to match these options.
+	 */
+	void apply(FCPMessage msg) {
+		msg.setPriority(priority);
+		if(maxSize != NO_SIZE_LIMIT) {
+			msg.headers.put("MaxSize", Long.toString(maxSize));
+		}
+		if(maxRetries != 0) {
+			msg.headers.put("MaxRetries", Integer.toString(maxRetries));
+		}
+		if(ignoreDS) {
+			msg.headers.put("IgnoreDS", "true");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "FetchOptions [priority=" + priority + ", maxSize=" + maxSize + ", maxRetries=" + maxRetries
+				+ ", ignoreDS=" + ignoreDS + ", timeout=" + timeout + "]";
+	}
+}
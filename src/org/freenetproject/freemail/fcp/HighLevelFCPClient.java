@@ -26,164 +26,365 @@ import java.io.InputStream;
 import java.io.FileInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.freenetproject.freemail.Freemail;
 import org.freenetproject.freemail.utils.Logger;
 
+import freenet.support.api.Bucket;
+
 
 public class HighLevelFCPClient implements FCPClient {
 	private static final int FCP_TOO_MANY_PATH_COMPONENTS = 11;
 	private static final int FCP_PERMANANT_REDIRECT = 27;
 
-	private FCPConnection conn;
+	/**
+	 * How long to wait for the node to reply to a request before giving up on it. This is only
+	 * a safety net for replies that never arrive, so it is much longer than any normal request.
+	 */
+	static final long DEFAULT_REPLY_TIMEOUT = TimeUnit.MILLISECONDS.convert(6, TimeUnit.HOURS);
+
+	private final FCPConnection conn;
+
+	/**
+	 * The requests that are waiting for a reply, keyed by identifier. Each completion message
+	 * is handed straight to the request it belongs to.
+	 */
+	private final ConcurrentMap<String, FCPFuture<?>> pendingReplies = new ConcurrentHashMap<String, FCPFuture<?>>();
 
-	private final List<FCPMessage> doneMsgs = new LinkedList<FCPMessage>();
+	private volatile long replyTimeout = DEFAULT_REPLY_TIMEOUT;
 
 	public HighLevelFCPClient() {
-		this.conn = Freemail.getFCPConnection();
+		this(Freemail.getFCPConnection());
 	}
 
-	// It's up to the client to delete this File once they're
-	// done with it
-	public File fetch(String key) throws ConnectionTerminatedException, FCPFetchException, FCPException,
-	                                     InterruptedException {
+	HighLevelFCPClient(FCPConnection conn) {
+		this.conn = conn;
+	}
+
+	/**
+	 * Sets how long the blocking methods wait for a reply to each request, in milliseconds. A
+	 * value of 0 or less means wait forever.
+	 */
+	public void setReplyTimeout(long timeout) {
+		this.replyTimeout = timeout;
+	}
+
+	/**
+	 * Starts fetching {@code key} without waiting for the result. Redirects are followed. The
+	 * result is a bucket holding the data, which the caller must free when done with it, and
+	 * the future fails with a {@link FCPFetchException} if the fetch fails, or with a
+	 * {@link NoNodeConnectionException} if there is currently no connection to the node. The
+	 * timeout in {@code options} is only used by the blocking {@link #fetch(String, FetchOptions)}.
+	 * @param callback called when the fetch completes, or {@code null}
+	 */
+	public Future<Bucket> fetchAsync(String key, final FetchOptions options, FCPCallback<Bucket> callback) {
 		FCPMessage msg = this.conn.getMessage("ClientGet");
 		msg.headers.put("URI", key);
 		msg.headers.put("ReturnType", "direct");
 		msg.headers.put("Persistence", "connection");
+		options.apply(msg);
+
+		return send(new FCPFuture<Bucket>(this, msg, callback) {
+			@Override
+			void replyReceived(FCPMessage reply) {
+				if(reply.getType().equalsIgnoreCase("AllData")) {
+					Bucket data = reply.getData();
+					if(!complete(data)) {
+						reply.release();
+					}
+				} else if(reply.getType().equalsIgnoreCase("GetFailed")) {
+					String s_code = reply.headers.get("Code");
+					if(s_code == null) {
+						complete(null);
+						return;
+					}
+					int code = Integer.parseInt(s_code);
+					if(code == FCP_PERMANANT_REDIRECT || code == FCP_TOO_MANY_PATH_COMPONENTS) {
+						String newuri = reply.headers.get("RedirectURI");
+						if(newuri == null) {
+							complete(null);
+						} else {
+							followRedirect(newuri);
+						}
+						return;
+					}
+					fail(new FCPFetchException(reply));
+				} else {
+					fail(FCPException.create(reply));
+				}
+			}
 
-		while(true) {
-			try {
-				this.conn.doRequest(this, msg);
-				break;
-			} catch (NoNodeConnectionException nnce) {
-				Logger.error(this, "Warning - no connection to node. Waiting...");
-				Thread.sleep(10000);
-			} catch (FCPBadFileException bfe) {
-				// won't be thrown since this is a get,
-				// but keep the compiler happy
+			private void followRedirect(String newuri) {
+				continueWith(fetchAsync(newuri, options, new FCPCallback<Bucket>() {
+					@Override
+					public void requestCompleted(Future<Bucket> result) {
+						if(result.isCancelled()) {
+							//Cancelled along with this fetch
+							return;
+						}
+						try {
+							Bucket data = result.get();
+							if(!complete(data) && data != null) {
+								data.free();
+							}
+						} catch(ExecutionException e) {
+							fail((Exception) e.getCause());
+						} catch(InterruptedException e) {
+							//Can't happen since the result is done
+							throw new AssertionError();
+						}
+					}
+				}));
+			}
+		});
+	}
+
+	/**
+	 * Starts generating a new SSK key pair without waiting for the result.
+	 * @param callback called when the key pair is ready, or {@code null}
+	 */
+	public Future<SSKKeyPair> makeSSKAsync(FCPCallback<SSKKeyPair> callback) {
+		FCPMessage msg = this.conn.getMessage("GenerateSSK");
+
+		return send(new FCPFuture<SSKKeyPair>(this, msg, callback) {
+			@Override
+			void replyReceived(FCPMessage reply) {
+				if(reply.getType().equalsIgnoreCase("SSKKeypair")) {
+					SSKKeyPair retval = new SSKKeyPair();
+
+					retval.privkey = reply.headers.get("InsertURI");
+					retval.pubkey = reply.headers.get("RequestURI");
+					complete(retval);
+				} else {
+					fail(FCPException.create(reply));
+				}
 			}
+		});
+	}
+
+	/**
+	 * Starts inserting {@code data} under {@code key} without waiting for the result. The result
+	 * is the URI the data was inserted at, and the future fails with a
+	 * {@link FCPPutFailedException} if the insert fails.
+	 * @param callback called when the insert completes, or {@code null}
+	 */
+	public Future<String> putAsync(InputStream data, String key, FCPPriority priority,
+	                               FCPCallback<String> callback) {
+		FCPMessage msg = this.conn.getMessage("ClientPut");
+		msg.headers.put("URI", key);
+		msg.headers.put("Persistence", "connection");
+		msg.setPriority(priority);
+		msg.setData(data);
+
+		return send(new PutFuture(this, msg, callback));
+	}
+
+	/**
+	 * Like {@link #putAsync(InputStream, String, FCPPriority, FCPCallback)}, but the insert is put on the
+	 * node's global queue so that it carries on if we lose the connection or are restarted.
+	 * Calling this again with the same {@code identifier} waits for the existing insert instead
+	 * of starting a new one, so {@code identifier} must be unique to this piece of data. If
+	 * persistent requests are disabled this is the same as a normal put.
+	 */
+	public Future<String> putPersistentAsync(InputStream data, String key, String identifier,
+	                                         FCPPriority priority, FCPCallback<String> callback) {
+		if(!conn.isPersistenceEnabled()) {
+			return putAsync(data, key, priority, callback);
 		}
 
-		FCPMessage reply;
+		FCPMessage msg = new FCPMessage(FCPConnection.PERSISTENT_ID_PREFIX + identifier, "ClientPut");
+		msg.headers.put("URI", key);
+		msg.headers.put("Persistence", "forever");
+		msg.headers.put("Global", "true");
+		msg.setPriority(priority);
+		msg.setData(data);
+
+		PutFuture future = new PutFuture(this, msg, callback);
+		pendingReplies.put(msg.getId(), future);
 		try {
-			reply = getReply(msg.getId());
-		} catch(InterruptedException e) {
-			Logger.debug(this, "HighLevelFCPClient interrupted in fetch, stopping");
-			conn.cancelRequest(msg);
-			throw e;
+			this.conn.doPersistentRequest(this, msg);
+		} catch (NoNodeConnectionException e) {
+			sendFailed(future, e);
+		} catch (ConnectionTerminatedException e) {
+			sendFailed(future, e);
+		} catch (FCPBadFileException e) {
+			sendFailed(future, e);
+		} catch (InterruptedException e) {
+			sendFailed(future, e);
+			Thread.currentThread().interrupt();
 		}
+		return future;
+	}
 
-		if(reply.getType().equalsIgnoreCase("AllData")) {
-			return reply.getData();
-		} else if(reply.getType().equalsIgnoreCase("GetFailed")) {
-			String s_code = reply.headers.get("Code");
-			if(s_code == null) return null;
-			int code = Integer.parseInt(s_code);
-			if(code == FCP_PERMANANT_REDIRECT || code == FCP_TOO_MANY_PATH_COMPONENTS) {
-				String newuri = reply.headers.get("RedirectURI");
-				if(newuri == null) return null;
-				return this.fetch(newuri);
-			}
-			throw new FCPFetchException(reply);
-		} else {
-			throw FCPException.create(reply);
+	private <T> Future<T> send(FCPFuture<T> future) {
+		FCPMessage msg = future.getRequest();
+
+		//Register before sending so a fast reply can't arrive before we're listening
+		pendingReplies.put(msg.getId(), future);
+		try {
+			this.conn.doRequest(this, msg);
+		} catch (NoNodeConnectionException e) {
+			sendFailed(future, e);
+		} catch (ConnectionTerminatedException e) {
+			sendFailed(future, e);
+		} catch (FCPBadFileException e) {
+			sendFailed(future, e);
 		}
+		return future;
 	}
 
-	private FCPMessage getReply(String identifier) throws InterruptedException {
-		synchronized (doneMsgs) {
-			while(true) {
-				Iterator<FCPMessage> it = doneMsgs.iterator();
-				while(it.hasNext()) {
-					FCPMessage msg = it.next();
-					if(identifier.equals(msg.getId())) {
-						it.remove();
-						return msg;
-					}
-				}
+	private void sendFailed(FCPFuture<?> future, Exception e) {
+		cancelRequest(future.getRequest());
+		future.fail(e);
+	}
 
-				doneMsgs.wait();
-			}
+	/**
+	 * Gives up on {@code msg}, asking the node to remove it if it already has it.
+	 * @return {@code true} if the node has been asked to remove the request, in which case the
+	 *         future is told when it has
+	 */
+	boolean cancelRequest(FCPMessage msg) {
+		if(conn.cancelRequest(msg)) {
+			return true;
 		}
+		pendingReplies.remove(msg.getId());
+		return false;
 	}
 
-	public SSKKeyPair makeSSK() throws ConnectionTerminatedException, InterruptedException {
-		FCPMessage msg = this.conn.getMessage("GenerateSSK");
+	/**
+	 * Called when {@code request} succeeds or fails, {@code nanos} after it was submitted.
+	 */
+	void requestDone(FCPMessage request, long nanos) {
+		if(request.getPriority() != null) {
+			conn.getLatency().record(request.getPriority(), nanos);
+		}
+	}
 
+	// It's up to the client to free this Bucket once they're
+	// done with it
+	public Bucket fetch(String key, FetchOptions options) throws ConnectionTerminatedException, FCPFetchException,
+	                                                           FCPException, InterruptedException {
+		long timeout = (options.getTimeout() > 0) ? options.getTimeout() : replyTimeout;
 		while(true) {
 			try {
-				this.conn.doRequest(this, msg);
-				break;
-			} catch (NoNodeConnectionException nnce) {
-				Logger.error(this, "Warning - no connection to node. Waiting...");
-				Thread.sleep(5000);
-			} catch (FCPBadFileException bfe) {
-				// won't be thrown since no data
+				return await(fetchAsync(key, options, null), "fetch", timeout);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof NoNodeConnectionException) {
+					Logger.error(this, "Warning - no connection to node. Waiting...");
+					Thread.sleep(10000);
+				} else if(cause instanceof ConnectionTerminatedException) {
+					throw (ConnectionTerminatedException) cause;
+				} else if(cause instanceof FCPException) {
+					throw (FCPException) cause;
+				} else {
+					throw new AssertionError(cause);
+				}
 			}
 		}
+	}
+
+	/**
+	 * Waits for the result of a request, cancelling it if the wait is interrupted or times out.
+	 */
+	private <T> T await(Future<T> future, String operation) throws ExecutionException, FCPTimeoutException,
+	                                                                InterruptedException {
+		return await(future, operation, replyTimeout);
+	}
 
-		FCPMessage reply;
+	private <T> T await(Future<T> future, String operation, long timeout) throws ExecutionException,
+	                                                                              FCPTimeoutException,
+	                                                                              InterruptedException {
 		try {
-			reply = getReply(msg.getId());
+			if(timeout <= 0) {
+				return future.get();
+			}
+			return future.get(timeout, TimeUnit.MILLISECONDS);
 		} catch(InterruptedException e) {
-			Logger.debug(this, "HighLevelFCPClient interrupted in makeSSK, stopping");
-			conn.cancelRequest(msg);
+			Logger.debug(this, "HighLevelFCPClient interrupted in " + operation + ", stopping");
+			future.cancel(true);
 			throw e;
-		}
-
-		if(reply.getType().equalsIgnoreCase("SSKKeypair")) {
-			SSKKeyPair retval = new SSKKeyPair();
-
-			retval.privkey = reply.headers.get("InsertURI");
-			retval.pubkey = reply.headers.get("RequestURI");
-			return retval;
-		} else {
-			return null;
+		} catch(TimeoutException e) {
+			Logger.error(this, "Timed out waiting for reply to " + operation);
+			future.cancel(true);
+			throw new FCPTimeoutException();
 		}
 	}
 
-	public FCPPutFailedException put(InputStream data, String key) throws FCPBadFileException,
-	                                                                      ConnectionTerminatedException,
-	                                                                      FCPException, InterruptedException {
-		FCPMessage msg = this.conn.getMessage("ClientPut");
-		msg.headers.put("URI", key);
-		msg.headers.put("Persistence", "connection");
-		msg.setData(data);
-
+	public SSKKeyPair makeSSK() throws ConnectionTerminatedException, InterruptedException {
 		while(true) {
 			try {
-				this.conn.doRequest(this, msg);
-				break;
-			} catch (NoNodeConnectionException nnce) {
-				Logger.error(this, "Warning - no connection to node. Waiting...");
-				Thread.sleep(5000);
+				return await(makeSSKAsync(null), "makeSSK");
+			} catch (FCPTimeoutException e) {
+				return null;
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof NoNodeConnectionException) {
+					Logger.error(this, "Warning - no connection to node. Waiting...");
+					Thread.sleep(5000);
+				} else if(cause instanceof ConnectionTerminatedException) {
+					throw (ConnectionTerminatedException) cause;
+				} else {
+					return null;
+				}
 			}
 		}
+	}
 
-		FCPMessage reply;
-		try {
-			reply = getReply(msg.getId());
-		} catch(InterruptedException e) {
-			Logger.debug(this, "HighLevelFCPClient interrupted in put, stopping");
-			conn.cancelRequest(msg);
-			throw e;
-		}
+	public FCPPutFailedException put(InputStream data, String key, FCPPriority priority)
+			throws FCPBadFileException, ConnectionTerminatedException, FCPException, InterruptedException {
+		return doPut(data, key, null, priority);
+	}
 
-		if(reply.getType().equalsIgnoreCase("PutSuccessful")) {
-			return null;
-		} else if(reply.getType().equalsIgnoreCase("PutFailed")) {
-			return new FCPPutFailedException(reply);
-		} else {
-			throw FCPException.create(reply);
+	/**
+	 * Blocking version of
+	 * {@link #putPersistentAsync(InputStream, String, String, FCPPriority, FCPCallback)}.
+	 */
+	public FCPPutFailedException putPersistent(InputStream data, String key, String identifier, FCPPriority priority)
+			throws FCPBadFileException, ConnectionTerminatedException, FCPException, InterruptedException {
+		return doPut(data, key, identifier, priority);
+	}
+
+	private FCPPutFailedException doPut(InputStream data, String key, String identifier, FCPPriority priority)
+			throws FCPBadFileException, ConnectionTerminatedException, FCPException, InterruptedException {
+		while(true) {
+			try {
+				Future<String> future;
+				if(identifier == null) {
+					future = putAsync(data, key, priority, null);
+				} else {
+					future = putPersistentAsync(data, key, identifier, priority, null);
+				}
+				await(future, "put");
+				return null;
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof NoNodeConnectionException) {
+					Logger.error(this, "Warning - no connection to node. Waiting...");
+					Thread.sleep(5000);
+				} else if(cause instanceof FCPPutFailedException) {
+					return (FCPPutFailedException) cause;
+				} else if(cause instanceof FCPBadFileException) {
+					throw (FCPBadFileException) cause;
+				} else if(cause instanceof ConnectionTerminatedException) {
+					throw (ConnectionTerminatedException) cause;
+				} else if(cause instanceof FCPException) {
+					throw (FCPException) cause;
+				} else {
+					throw new AssertionError(cause);
+				}
+			}
 		}
 	}
 
-	public int SlotInsert(File data, String basekey, int minslot, String suffix) throws ConnectionTerminatedException,
-	                                                                                    InterruptedException {
+	public int SlotInsert(File data, String basekey, int minslot, String suffix, FCPPriority priority)
+			throws ConnectionTerminatedException, InterruptedException {
 		int slot = minslot;
 		boolean carryon = true;
 		FileInputStream fis;
@@ -205,7 +406,7 @@ public class HighLevelFCPClient implements FCPClient {
 
 			FCPPutFailedException emsg;
 			try {
-				emsg = this.put(fis, basekey+"-"+slot+suffix);
+				emsg = this.put(fis, basekey+"-"+slot+suffix, priority);
 			} catch (FCPBadFileException bfe) {
 				return -1;
 			} catch (FCPException e) {
@@ -227,8 +428,8 @@ public class HighLevelFCPClient implements FCPClient {
 		return -1;
 	}
 
-	public int slotInsert(byte[] data, String basekey, int minslot, String suffix) throws ConnectionTerminatedException,
-	                                                                                      InterruptedException {
+	public int slotInsert(byte[] data, String basekey, int minslot, String suffix, FCPPriority priority)
+			throws ConnectionTerminatedException, InterruptedException {
 		int slot = minslot;
 		boolean carryon = true;
 		ByteArrayInputStream bis;
@@ -246,7 +447,7 @@ public class HighLevelFCPClient implements FCPClient {
 
 			FCPPutFailedException emsg;
 			try {
-				emsg = this.put(bis, basekey+"-"+slot+suffix);
+				emsg = this.put(bis, basekey+"-"+slot+suffix, priority);
 			} catch (FCPBadFileException bfe) {
 				return -1;
 			} catch (FCPException e) {
@@ -275,9 +476,34 @@ public class HighLevelFCPClient implements FCPClient {
 
 	@Override
 	public void requestFinished(FCPMessage msg) {
-		synchronized(doneMsgs) {
-			doneMsgs.add(msg);
-			doneMsgs.notifyAll();
+		FCPFuture<?> pending = pendingReplies.remove(msg.getId());
+		if(pending == null) {
+			//Nobody is waiting for this any more (e.g. it timed out)
+			Logger.debug(this, "Dropping reply to unknown request " + msg.getId());
+			msg.release();
+			return;
+		}
+		if(pending.isCancelled()) {
+			//This is the node letting go of a request we cancelled
+			msg.release();
+			pending.requestRemoved();
+			return;
+		}
+		pending.replyReceived(msg);
+	}
+
+	private static class PutFuture extends FCPFuture<String> {
+		private PutFuture(HighLevelFCPClient client, FCPMessage request, FCPCallback<String> callback) {
+			super(client, request, callback);
+		}
+
+		@Override
+		void replyReceived(FCPMessage reply) {
+			if(reply.getType().equalsIgnoreCase("PutSuccessful")) {
+				complete(reply.headers.get("URI"));
+			} else {
+				fail(FCPException.create(reply));
+			}
 		}
 	}
 }
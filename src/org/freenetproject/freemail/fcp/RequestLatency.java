@@ -0,0 +1,83 @@
+/*
+ * RequestLatency.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail.fcp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps track of how long requests of each {@link FCPPriority} take, from being submitted
+ * until the result (or failure) arrives.
+ */
+public class RequestLatency {
+	private final AtomicLongArray count = new AtomicLongArray(FCPPriority.values().length);
+	private final AtomicLongArray total = new AtomicLongArray(FCPPriority.values().length);
+	private final AtomicLongArray max = new AtomicLongArray(FCPPriority.values().length);
+
+	void record(FCPPriority priority, long nanos) {
+		int i = priority.ordinal();
+		count.incrementAndGet(i);
+		total.addAndGet(i, nanos);
+
+		long old;
+		do {
+			old = max.get(i);
+		} while(nanos > old && !max.compareAndSet(i, old, nanos));
+	}
+
+	/**
+	 * Returns the number of requests with the given priority that have finished.
+	 */
+	public long getCount(FCPPriority priority) {
+		return count.get(priority.ordinal());
+	}
+
+	/**
+	 * Returns the average time taken by requests with the given priority, or 0 if there
+	 * haven't been any.
+	 */
+	public long getAverage(FCPPriority priority, TimeUnit unit) {
+		long n = count.get(priority.ordinal());
+		if(n == 0) {
+			return 0;
+		}
+		return unit.convert(total.get(priority.ordinal()) / n, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns the longest time taken by a request with the given priority.
+	 */
+	public long getMax(FCPPriority priority, TimeUnit unit) {
+		return unit.convert(max.get(priority.ordinal()), TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(FCPPriority priority : FCPPriority.values()) {
+			if(sb.length() > 0) sb.append(", ");
+			sb.append(priority).append(": ").append(getCount(priority)).append(" requests, ")
+			  .append(getAverage(priority, TimeUnit.MILLISECONDS)).append("ms average, ")
+			  .append(getMax(priority, TimeUnit.MILLISECONDS)).append("ms max");
+		}
+		return sb.toString();
+	}
+}
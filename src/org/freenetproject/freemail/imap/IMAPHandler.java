@@ -30,8 +30,11 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -40,17 +43,25 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.lang.NumberFormatException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.archive.util.Base32;
 import org.freenetproject.freemail.AccountManager;
+import org.freenetproject.freemail.FolderStatus;
 import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.MailMessage;
+import org.freenetproject.freemail.MailboxSnapshot;
 import org.freenetproject.freemail.MessageBank;
+import org.freenetproject.freemail.MessageSortKey;
+import org.freenetproject.freemail.MessageSummary;
+import org.freenetproject.freemail.MessageSummaryCache;
 import org.freenetproject.freemail.ServerHandler;
 import org.freenetproject.freemail.utils.EmailAddress;
 import org.freenetproject.freemail.utils.Logger;
@@ -58,8 +69,10 @@ import org.freenetproject.freemail.utils.Logger;
 import freenet.support.Base64;
 
 public class IMAPHandler extends ServerHandler implements Runnable {
-	private static final String CAPABILITY = "IMAP4rev1 CHILDREN NAMESPACE";
+	private static final String CAPABILITY = "IMAP4rev1 CHILDREN NAMESPACE SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES MOVE UIDPLUS LIST-STATUS";
+	private static final Pattern LIST_RETURN_STATUS = Pattern.compile("STATUS\\s*\\(([^)]*)\\)", Pattern.CASE_INSENSITIVE);
 
+	private final IMAPResponseWriter writer;
 	private final PrintStream ps;
 	private final BufferedReader bufrdr;
 	private MessageBank mb;
@@ -69,7 +82,8 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 	IMAPHandler(AccountManager accMgr, Socket client) throws IOException {
 		super(client);
 		accountManager = accMgr;
-		this.ps = new PrintStream(client.getOutputStream());
+		this.writer = new IMAPResponseWriter(client.getOutputStream());
+		this.ps = new PrintStream(writer);
 		this.bufrdr = new BufferedReader(new InputStreamReader(client.getInputStream()));
 		this.mb = null;
 	}
@@ -93,7 +107,13 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 						break;
 					}
 					IMAPMessage msg = new IMAPMessage(line);
+					writer.resetMetrics();
 					dispatch(msg);
+
+					//Make sure everything is sent before waiting for the next command
+					ps.flush();
+					Logger.debug(this, "Sent " + writer.getBytes() + " bytes in " + writer.getWrites()
+							+ " writes in response to " + msg.type);
 				} catch (IMAPBadMessageException bme) {
 					continue;
 				} catch (SocketTimeoutException ste1) {
@@ -110,11 +130,23 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			if(!(stopping && ioe instanceof SocketException)) {
 				Logger.error(this, "Caught IOException while reading imap data: " + ioe.getMessage(), ioe);
 			}
+		} finally {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				//The connection is going away anyway
+			}
 		}
 	}
 
 	private void sendWelcome() {
 		this.ps.print("* OK [CAPABILITY "+CAPABILITY+"] Freemail ready - hit me with your rhythm stick.\r\n");
+		this.ps.flush();
+	}
+
+	@Override
+	protected String getRejectMessage() {
+		return "* BYE Too many connections, try again later\r\n";
 	}
 
 	private void dispatch(IMAPMessage msg) {
@@ -155,10 +187,16 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			this.handleDelete(msg);
 		} else if(msg.type.equals("copy")) {
 			this.handleCopy(msg);
+		} else if(msg.type.equals("move")) {
+			this.handleMove(msg);
 		} else if(msg.type.equals("append")) {
 			this.handleAppend(msg);
 		} else if(msg.type.equals("search")) {
 			handleSearch(msg);
+		} else if(msg.type.equals("sort")) {
+			handleSort(msg);
+		} else if(msg.type.equals("thread")) {
+			handleThread(msg);
 		} else {
 			Logger.error(this, "Unknown IMAP command: " + msg.type);
 			this.reply(msg, "NO Sorry - not implemented");
@@ -240,6 +278,15 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			replyprefix = "LSUB";
 		}
 
+		//LIST-STATUS (RFC 5819) requests the status of each listed folder
+		List<String> statusItems = Collections.emptyList();
+		if(replyprefix.equals("LIST") && msg.args != null && msg.args.length > 2) {
+			statusItems = parseListReturnOptions(msg, 2);
+			if(statusItems == null) {
+				return;
+			}
+		}
+
 		if(refname != null) refname = trimQuotes(refname);
 		if(refname!= null && refname.length() == 0) refname = null;
 
@@ -259,28 +306,86 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			mbname = mbname.replaceAll("%", "[^\\.]*");
 
 
-			this.listMatchingFolders(this.inbox, mbname, replyprefix, "INBOX.");
+			this.listMatchingFolders(this.inbox, mbname, replyprefix, "INBOX.", statusItems);
 
 			/// and send the inbox too, if it matches
 			if("INBOX".matches(mbname)) {
-				this.sendState(replyprefix+" "+this.inbox.getFolderFlagsString()+" \".\" \"INBOX\"");
+				String flags = this.inbox.getFolderFlagsString();
+				this.sendState(replyprefix+" "+flags+" \".\" \"INBOX\"");
+				if(!statusItems.isEmpty() && canSendStatus(flags)) {
+					this.sendState(formatStatus("\"INBOX\"", this.inbox, statusItems));
+				}
 			}
 		}
 
 		this.reply(msg, "OK "+replyprefix+" completed");
 	}
 
-	private void listMatchingFolders(MessageBank folder, String pattern, String replyprefix, String folderpath) {
+	private void listMatchingFolders(MessageBank folder, String pattern, String replyprefix, String folderpath,
+	                                 List<String> statusItems) {
 		MessageBank[] folders = folder.listSubFolders();
 
 		for(int i = 0; i < folders.length; i++) {
 			String fullpath = folderpath+folders[i].getName();
 
-			this.listMatchingFolders(folders[i], pattern, replyprefix, fullpath+".");
+			this.listMatchingFolders(folders[i], pattern, replyprefix, fullpath+".", statusItems);
 			if(fullpath.matches(pattern)) {
-				this.sendState(replyprefix+" "+folders[i].getFolderFlagsString()+" \".\" \""+fullpath+"\"");
+				String flags = folders[i].getFolderFlagsString();
+				this.sendState(replyprefix+" "+flags+" \".\" \""+fullpath+"\"");
+				if(!statusItems.isEmpty() && canSendStatus(flags)) {
+					this.sendState(formatStatus("\""+fullpath+"\"", folders[i], statusItems));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns {@code true} if a STATUS response may be sent for a folder with
+	 * the given flags. RFC 5819 forbids it for folders that can't be selected.
+	 */
+	private static boolean canSendStatus(String flags) {
+		return !flags.contains("\\Noselect") && !flags.contains("\\NonExistent");
+	}
+
+	/**
+	 * Parses the return options of a LIST command starting at
+	 * {@code msg.args[offset]} and returns the requested status items, which
+	 * is empty if STATUS wasn't requested. If the options are invalid an error
+	 * is sent and {@code null} is returned.
+	 */
+	private List<String> parseListReturnOptions(IMAPMessage msg, int offset) {
+		if(!msg.args[offset].equalsIgnoreCase("RETURN")) {
+			this.reply(msg, "BAD Unknown argument " + msg.args[offset]);
+			return null;
+		}
+
+		StringBuffer buf = new StringBuffer();
+		for(int i = offset + 1; i < msg.args.length; i++) {
+			if(buf.length() > 0) buf.append(" ");
+			buf.append(msg.args[i]);
+		}
+
+		String options = buf.toString();
+		if(!options.startsWith("(") || !options.endsWith(")")) {
+			this.reply(msg, "BAD Return options must be a parenthesized list");
+			return null;
+		}
+
+		Matcher m = LIST_RETURN_STATUS.matcher(options);
+		if(!m.find()) {
+			//No other return options are supported, but they can safely be ignored
+			return Collections.emptyList();
+		}
+
+		List<String> items = new LinkedList<String>();
+		for(String item : m.group(1).trim().split("\\s+")) {
+			if(!isStatusItem(item)) {
+				this.reply(msg, "BAD Unknown status item " + item);
+				return null;
 			}
+			items.add(item);
 		}
+		return items;
 	}
 
 	private MessageBank getMailboxFromPath(String path) {
@@ -329,24 +434,20 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		this.sendState("FLAGS ("+IMAPMessageFlags.getAllFlagsAsString()+")");
 		this.sendState("OK [PERMANENTFLAGS ("+IMAPMessageFlags.getPermanentFlagsAsString()+")] Limited");
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
+		MailboxSnapshot snapshot = this.mb.snapshot();
 
 		int numrecent = 0;
-		int numexists = msgs.size();
-		while(msgs.size() > 0) {
-			Integer current = msgs.firstKey();
-			MailMessage m =msgs.get(msgs.firstKey());
-
+		int numexists = snapshot.size();
+		for(int i = 0; i < snapshot.size(); i++) {
 			// if it's recent, add to the tally
-			if(m.flags.isRecent()) {
+			if(snapshot.hasFlag(i, IMAPMessageFlags.FLAG_RECENT)) {
 				numrecent++;
 
 				// remove the recent flag
+				MailMessage m = snapshot.getMessage(i);
 				m.flags.clearRecent();
 				m.storeFlags();
 			}
-
-			msgs = msgs.tailMap(new Integer(current.intValue()+1));
 		}
 
 		this.sendState(numexists+" EXISTS");
@@ -388,9 +489,9 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
+		MailboxSnapshot snapshot = this.mb.snapshot();
 
-		if(msgs.size() == 0) {
+		if(snapshot.size() == 0) {
 			this.reply(msg, "OK Fetch completed");
 			return;
 		}
@@ -400,11 +501,10 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		MailMessage lastMessage = msgs.get(msgs.lastKey());
 		SortedSet<Integer> sequenceNumbers;
 		try {
 			sequenceNumbers = parseSequenceSet(msg.args[0],
-					uid ? lastMessage.getUID() : lastMessage.getSeqNum());
+					uid ? snapshot.getLastUid() : snapshot.size());
 		} catch(NumberFormatException e) {
 			this.reply(msg, "BAD Illegal sequence number set");
 			return;
@@ -414,25 +514,20 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		}
 
 		if(!uid) {
-			if(sequenceNumbers.first() < 1 || sequenceNumbers.last() > lastMessage.getSeqNum()) {
+			if(sequenceNumbers.first() < 1 || sequenceNumbers.last() > snapshot.size()) {
 				reply(msg, "NO Invalid message ID");
 				return;
 			}
 		}
 
-		//Return the messages in the range
-		for(MailMessage message : msgs.values()) {
-			if(uid) {
-				if(!sequenceNumbers.contains(message.getUID())) {
-					continue;
-				}
-			} else {
-				if(!sequenceNumbers.contains(message.getSeqNum())) {
-					continue;
-				}
+		//Return the messages in the range, only reading the ones that are needed
+		for(int id : sequenceNumbers) {
+			int index = uid ? snapshot.indexOfUid(id) : id - 1;
+			if(index < 0) {
+				continue;
 			}
 
-			if(!this.fetchSingle(message, msg.args, 1, uid)) {
+			if(!this.fetchSingle(snapshot.getMessage(index), msg.args, 1, uid)) {
 				this.reply(msg, "BAD Unknown attribute in list or unterminated list");
 				return;
 			}
@@ -472,6 +567,38 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			handleCopy(command, true);
 			return;
 		}
+		if(msg.args[0].equalsIgnoreCase("move")) {
+			String[] commandArgs = new String[msg.args.length - 1];
+			System.arraycopy(msg.args, 1, commandArgs, 0, commandArgs.length);
+			IMAPMessage command = new IMAPMessage(msg.tag, msg.args[0], commandArgs);
+
+			handleMove(command, true);
+			return;
+		}
+		if(msg.args[0].equalsIgnoreCase("expunge")) {
+			String[] commandArgs = new String[msg.args.length - 1];
+			System.arraycopy(msg.args, 1, commandArgs, 0, commandArgs.length);
+			IMAPMessage command = new IMAPMessage(msg.tag, msg.args[0], commandArgs);
+
+			handleExpunge(command, true);
+			return;
+		}
+		if(msg.args[0].equalsIgnoreCase("sort")) {
+			String[] commandArgs = new String[msg.args.length - 1];
+			System.arraycopy(msg.args, 1, commandArgs, 0, commandArgs.length);
+			IMAPMessage command = new IMAPMessage(msg.tag, msg.args[0], commandArgs);
+
+			handleSort(command, true);
+			return;
+		}
+		if(msg.args[0].equalsIgnoreCase("thread")) {
+			String[] commandArgs = new String[msg.args.length - 1];
+			System.arraycopy(msg.args, 1, commandArgs, 0, commandArgs.length);
+			IMAPMessage command = new IMAPMessage(msg.tag, msg.args[0], commandArgs);
+
+			handleThread(command, true);
+			return;
+		}
 
 		if(!msg.args[0].equalsIgnoreCase("store")) {
 			this.reply(msg, "BAD Unknown command");
@@ -493,16 +620,15 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
-		if(msgs.size() == 0) {
+		MailboxSnapshot snapshot = this.mb.snapshot();
+		if(snapshot.size() == 0) {
 			this.reply(msg, "NO No such message");
 			return;
 		}
 
 		Set<Integer> ts;
 		try {
-			MailMessage lastMessage = msgs.get(msgs.lastKey());
-			ts = parseSequenceSet(msg.args[1], lastMessage.getUID());
+			ts = parseSequenceSet(msg.args[1], snapshot.getLastUid());
 		} catch(NumberFormatException e) {
 			this.reply(msg, "BAD Illegal sequence number set");
 			return;
@@ -511,12 +637,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		Iterator<MailMessage> msgIt = msgs.values().iterator();
-		while(msgIt.hasNext()) {
-			if(!ts.contains(msgIt.next().getUID())) {
-				msgIt.remove();
-			}
-		}
+		SortedMap<Integer, MailMessage> msgs = selectMessages(snapshot, ts, true);
 
 		if(!this.doStore(msg.args, 2, msgs.values(), msg, true)) {
 			return;
@@ -532,11 +653,9 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		// do the first attribute, if it's a loner.
 		if(!imap_args[firstarg].startsWith("(")) {
 			// It's a loner
-			this.ps.flush();
 			if(!this.sendAttr(msg, imap_args[firstarg])){
 				// send fake end delimiter, so we do not break the protocol
 				this.ps.print(")\r\n");
-				this.ps.flush();
 				return false;
 			}
 			if(send_uid_too && !imap_args[firstarg].equalsIgnoreCase("uid")) {
@@ -544,7 +663,6 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			}
 
 			this.ps.print(")\r\n");
-			this.ps.flush();
 
 			return true;
 		} else {
@@ -564,11 +682,9 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			}
 
 			//this.ps.print(attr+" ");
-			this.ps.flush();
 			if(!this.sendAttr(msg, attr)) {
 				// send fake end delimiter, so we do not break the protocol
 				this.ps.print(")\r\n");
-				this.ps.flush();
 				return false;
 			}
 
@@ -582,7 +698,6 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 				}
 
 				this.ps.print(")\r\n");
-				this.ps.flush();
 				return true;
 			} else if((i + 1) < imap_args.length) {
 				//Only print a space if there are more arguments to deal with
@@ -595,7 +710,6 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			this.ps.print(" UID "+msg.getUID());
 		}
 		this.ps.print(")\r\n");
-		this.ps.flush();
 
 		return false;
 	}
@@ -618,7 +732,6 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			val = this.getEnvelope(mmsg);
 		} else if(attr.startsWith("body.peek")) {
 			this.ps.print(a.substring(0, "body".length()));
-			this.ps.flush();
 			a = a.substring("body.peek".length());
 			return this.sendBody(mmsg, a, false);
 		} else if(attr.startsWith("bodystructure")) {
@@ -631,7 +744,6 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			mmsg.flags.setSeen();
 
 			this.ps.print(a.substring(0, "body".length()));
-			this.ps.flush();
 			a = a.substring("body".length());
 			if(this.sendBody(mmsg, a, false)) {
 				mmsg.flags.setSeen();
@@ -641,7 +753,6 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return false;
 		} else if(attr.startsWith("rfc822.header")) {
 			this.ps.print(a.substring(0, "rfc822.header".length()));
-			this.ps.flush();
 			return this.sendBody(mmsg, "header", true);
 		} else if(attr.startsWith("internaldate")) {
 			/*
@@ -839,12 +950,11 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
+		MailboxSnapshot snapshot = this.mb.snapshot();
 
 		Set<Integer> ts;
 		try {
-			MailMessage lastMessage = msgs.get(msgs.lastKey());
-			ts = parseSequenceSet(msg.args[0], lastMessage.getUID());
+			ts = parseSequenceSet(msg.args[0], snapshot.getLastUid());
 		} catch(NumberFormatException e) {
 			this.reply(msg, "BAD Illegal sequence number set");
 			return;
@@ -853,12 +963,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		Iterator<MailMessage> msgIt = msgs.values().iterator();
-		while(msgIt.hasNext()) {
-			if(!ts.contains(msgIt.next().getSeqNum())) {
-				msgIt.remove();
-			}
-		}
+		SortedMap<Integer, MailMessage> msgs = selectMessages(snapshot, ts, false);
 
 		if(!doStore(msg.args, 1, msgs.values(), msg, false)) {
 			return;
@@ -934,6 +1039,10 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 	}
 
 	private void handleExpunge(IMAPMessage msg) {
+		handleExpunge(msg, false);
+	}
+
+	private void handleExpunge(IMAPMessage msg, boolean uid) {
 		if(!this.verifyAuth(msg)) {
 			return;
 		}
@@ -943,7 +1052,32 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		this.expunge(true);
+		MailboxSnapshot snapshot = this.mb.snapshot();
+
+		//UID EXPUNGE only removes the deleted messages in the given set
+		Set<Integer> uids = null;
+		if(uid) {
+			if(msg.args == null || msg.args.length < 1) {
+				this.reply(msg, "BAD Not enough arguments");
+				return;
+			}
+
+			if(snapshot.size() == 0) {
+				uids = Collections.emptySet();
+			} else {
+				try {
+					uids = parseSequenceSet(msg.args[0], snapshot.getLastUid());
+				} catch(NumberFormatException e) {
+					this.reply(msg, "BAD Illegal sequence number set");
+					return;
+				} catch (IllegalSequenceNumberException e) {
+					this.reply(msg, "NO Invalid message ID");
+					return;
+				}
+			}
+		}
+
+		this.expunge(snapshot, uids, true);
 		this.reply(msg, "OK Expunge complete");
 	}
 
@@ -964,12 +1098,23 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 	}
 
 	private void expunge(boolean verbose) {
-		MailMessage[] mmsgs = this.mb.listMessagesArray();
+		this.expunge(this.mb.snapshot(), null, verbose);
+	}
 
+	/**
+	 * Deletes the messages in the snapshot that have the \Deleted flag set.
+	 * If {@code uids} isn't {@code null} only messages with a uid in the set
+	 * are deleted.
+	 */
+	private void expunge(MailboxSnapshot snapshot, Set<Integer> uids, boolean verbose) {
 		int count_correction=0;
-		for(int i = 0; i < mmsgs.length; i++) {
-			if(mmsgs[i].flags.isDeleted()) {
-				mmsgs[i].delete();
+		for(int i = 0; i < snapshot.size(); i++) {
+			if(uids != null && !uids.contains(snapshot.getUid(i))) {
+				continue;
+			}
+
+			if(snapshot.hasFlag(i, IMAPMessageFlags.FLAG_DELETED)) {
+				snapshot.getMessage(i).delete();
 				if(verbose) this.sendState((i+1-count_correction)+" EXPUNGE");
 				count_correction++;
 			}
@@ -1004,63 +1149,66 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = statmb.listMessages();
+		List<String> items = new LinkedList<String>();
+		for(int i = 1; i < msg.args.length; i++) {
+			String arg = msg.args[i];
 
-		// gather statistics
-		int numrecent = 0;
-		int numunseen = 0;
-		int nummessages = msgs.size();
-		int lastuid = 0;
-		while(msgs.size() > 0) {
-			Integer current = msgs.firstKey();
-			MailMessage m =msgs.get(msgs.firstKey());
+			if(arg.startsWith("(")) arg = arg.substring(1);
+			if(arg.endsWith(")")) arg = arg.substring(0, arg.length() - 1);
 
-			// if it's recent, add to the tally
-			if(m.flags.isRecent()) numrecent++;
+			if(!isStatusItem(arg)) {
+				this.reply(msg, "BAD Unknown status item " + arg);
+				return;
+			}
+			items.add(arg);
+		}
 
-			// is it unseen?
-			if(!m.flags.isSeen()) numunseen++;
+		this.sendState(formatStatus(msg.args[0], statmb, items));
+		this.reply(msg, "OK STATUS completed");
+	}
 
-			if(m.getUID() > lastuid) lastuid = m.getUID();
+	private static boolean isStatusItem(String item) {
+		return item.equalsIgnoreCase("messages")
+				|| item.equalsIgnoreCase("recent")
+				|| item.equalsIgnoreCase("unseen")
+				|| item.equalsIgnoreCase("uidnext")
+				|| item.equalsIgnoreCase("uidvalidity");
+	}
 
-			msgs = msgs.tailMap(new Integer(current.intValue()+1));
-		}
+	/**
+	 * Returns the STATUS response for the given folder. The counts come from
+	 * {@link MessageBank#getStatus()}, so repeated requests for an unchanged
+	 * folder don't list its messages again.
+	 */
+	private String formatStatus(String mailboxName, MessageBank folder, List<String> items) {
+		FolderStatus status = folder.getStatus();
 
 		StringBuffer buf = new StringBuffer();
 		buf.append("STATUS ");
-		buf.append(msg.args[0]);
+		buf.append(mailboxName);
 		buf.append(" (");
 
-
-		// output the required information
-		int i;
 		boolean first = true;
-		for(i = 1; i < msg.args.length; i++) {
-			String arg = msg.args[i];
-
-			if(arg.startsWith("(")) arg = arg.substring(1);
-			if(arg.endsWith(")")) arg = arg.substring(0, arg.length() - 1);
-
+		for(String item : items) {
 			if(!first) buf.append(" ");
 			first = false;
-			buf.append(arg);
+			buf.append(item);
 			buf.append(" ");
-			if(arg.equalsIgnoreCase("messages")) {
-				buf.append(Integer.toString(nummessages));
-			} else if(arg.equalsIgnoreCase("recent")) {
-				buf.append(Integer.toString(numrecent));
-			} else if(arg.equalsIgnoreCase("unseen")) {
-				buf.append(Integer.toString(numunseen));
-			} else if(arg.equalsIgnoreCase("uidnext")) {
-				buf.append(Integer.toString(lastuid + 1));
-			} else if(arg.equalsIgnoreCase("uidvalidity")) {
-				buf.append("1");
+			if(item.equalsIgnoreCase("messages")) {
+				buf.append(status.getMessages());
+			} else if(item.equalsIgnoreCase("recent")) {
+				buf.append(status.getRecent());
+			} else if(item.equalsIgnoreCase("unseen")) {
+				buf.append(status.getUnseen());
+			} else if(item.equalsIgnoreCase("uidnext")) {
+				buf.append(status.getUidNext());
+			} else if(item.equalsIgnoreCase("uidvalidity")) {
+				buf.append(folder.getUidValidity());
 			}
 		}
 
 		buf.append(")");
-		this.sendState(buf.toString());
-		this.reply(msg, "OK STATUS completed");
+		return buf.toString();
 	}
 
 	private void handleCreate(IMAPMessage msg) {
@@ -1157,12 +1305,11 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		SortedMap<Integer, MailMessage> msgs = this.mb.listMessages();
-		MailMessage lastMessage = msgs.get(msgs.lastKey());
+		MailboxSnapshot snapshot = this.mb.snapshot();
 
 		SortedSet<Integer> ts;
 		try {
-			ts = parseSequenceSet(msg.args[0], uid ? lastMessage.getUID() : lastMessage.getSeqNum());
+			ts = parseSequenceSet(msg.args[0], uid ? snapshot.getLastUid() : snapshot.size());
 		} catch(NumberFormatException e) {
 			this.reply(msg, "BAD Illegal sequence number set");
 			return;
@@ -1172,25 +1319,13 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		}
 
 		if(!uid) {
-			if(ts.first() < 1 || ts.last() > lastMessage.getSeqNum()) {
+			if(ts.first() < 1 || ts.last() > snapshot.size()) {
 				reply(msg, "NO Invalid message ID");
 				return;
 			}
 		}
 
-		Iterator<MailMessage> msgIt = msgs.values().iterator();
-		while(msgIt.hasNext()) {
-			MailMessage message = msgIt.next();
-			if(uid) {
-				if(!ts.contains(message.getUID())) {
-					msgIt.remove();
-				}
-			} else {
-				if(!ts.contains(message.getSeqNum())) {
-					msgIt.remove();
-				}
-			}
-		}
+		SortedMap<Integer, MailMessage> msgs = selectMessages(snapshot, ts, uid);
 
 		MessageBank target = getMailboxFromPath(trimQuotes(msg.args[1]));
 		if(target == null) {
@@ -1198,14 +1333,128 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
+		List<Integer> sourceUids = new ArrayList<Integer>();
+		List<Integer> targetUids = new ArrayList<Integer>();
+		boolean failed = false;
 		for(MailMessage src : msgs.values()) {
 			MailMessage copy = target.createMessage();
+			if(copy == null || !src.copyTo(copy)) {
+				failed = true;
+				continue;
+			}
 
-			src.copyTo(copy);
 			copy.flags.setRecent();
 			copy.storeFlags();
+
+			sourceUids.add(src.getUID());
+			targetUids.add(copy.getUID());
+		}
+
+		if(failed) {
+			this.reply(msg, "NO Failed to copy some messages");
+			return;
+		}
+		if(sourceUids.isEmpty()) {
+			this.reply(msg, "OK COPY completed");
+			return;
 		}
-		this.reply(msg, "OK COPY completed");
+		this.reply(msg, "OK [COPYUID " + target.getUidValidity() + " " + formatUidSet(sourceUids) + " "
+				+ formatUidSet(targetUids) + "] COPY completed");
+	}
+
+	private void handleMove(IMAPMessage msg) {
+		handleMove(msg, false);
+	}
+
+	private void handleMove(IMAPMessage msg, boolean uid) {
+		if(!this.verifyAuth(msg)) {
+			return;
+		}
+
+		if(this.mb == null) {
+			this.reply(msg, "NO No mailbox selected");
+			return;
+		}
+
+		if(msg.args == null || msg.args.length < 2) {
+			this.reply(msg, "BAD Not enough arguments");
+			return;
+		}
+
+		MailboxSnapshot snapshot = this.mb.snapshot();
+		if(snapshot.size() == 0) {
+			this.reply(msg, "NO No such message");
+			return;
+		}
+
+		SortedSet<Integer> ts;
+		try {
+			ts = parseSequenceSet(msg.args[0], uid ? snapshot.getLastUid() : snapshot.size());
+		} catch(NumberFormatException e) {
+			this.reply(msg, "BAD Illegal sequence number set");
+			return;
+		} catch (IllegalSequenceNumberException e) {
+			this.reply(msg, "NO Invalid message ID");
+			return;
+		}
+
+		if(!uid) {
+			if(ts.first() < 1 || ts.last() > snapshot.size()) {
+				reply(msg, "NO Invalid message ID");
+				return;
+			}
+		}
+
+		SortedMap<Integer, MailMessage> msgs = selectMessages(snapshot, ts, uid);
+
+		MessageBank target = getMailboxFromPath(trimQuotes(msg.args[1]));
+		if(target == null) {
+			this.reply(msg, "NO [TRYCREATE] No such mailbox.");
+			return;
+		}
+
+		//Move each message with a rename, remembering where it ended up
+		List<Integer> sourceUids = new ArrayList<Integer>();
+		List<Integer> targetUids = new ArrayList<Integer>();
+		List<Integer> movedSeqNums = new ArrayList<Integer>();
+		boolean failed = false;
+		for(MailMessage src : msgs.values()) {
+			int srcUid = src.getUID();
+			MailMessage moved = target.moveMessage(src);
+			if(moved == null) {
+				failed = true;
+				continue;
+			}
+
+			sourceUids.add(srcUid);
+			targetUids.add(moved.getUID());
+			movedSeqNums.add(src.getSeqNum());
+		}
+
+		if(sourceUids.isEmpty()) {
+			//A set that matches no messages isn't an error (RFC 6851)
+			if(failed) {
+				this.reply(msg, "NO Move failed");
+			} else {
+				this.reply(msg, "OK Move completed");
+			}
+			return;
+		}
+
+		this.sendState("OK [COPYUID " + target.getUidValidity() + " " + formatUidSet(sourceUids) + " "
+				+ formatUidSet(targetUids) + "] Moved");
+
+		int countCorrection = 0;
+		for(int seqNum : movedSeqNums) {
+			this.sendState((seqNum - countCorrection) + " EXPUNGE");
+			countCorrection++;
+		}
+
+		if(failed) {
+			this.reply(msg, "NO Some messages could not be moved");
+			return;
+		}
+		this.reply(msg, "OK Move completed");
 	}
 
 	private void handleAppend(IMAPMessage msg) {
@@ -1261,6 +1510,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 
 		MailMessage newmsg = destmb.createMessage();
 		this.ps.print("+ OK\r\n");
+		this.ps.flush();
 		try {
 			PrintStream msgps = newmsg.getRawStream();
 
@@ -1294,7 +1544,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			newmsg.flags.set(flag, true);
 		}
 		newmsg.storeFlags();
-		this.reply(msg, "OK APPEND completed");
+		this.reply(msg, "OK [APPENDUID " + destmb.getUidValidity() + " " + newmsg.getUID() + "] APPEND completed");
 	}
 
 	private void handleSearch(IMAPMessage msg) {
@@ -1321,16 +1571,272 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
-		Map<Integer, MailMessage> messages = mb.listMessages();
+		SortedMap<Integer, MailMessage> messages = mb.listMessages();
 		try {
-			for(MailMessage message : messages.values()) {
-				message.readHeaders();
+			if(!searchMessages(msg, msg.args, messages)) {
+				return;
 			}
 		} catch(IOException e) {
 			sendState("BAD Internal server error while searching messages");
 			reply(msg, "NO Internal server error while searching messages");
+			return;
+		}
+
+		//Handled all the criteria, so lets send the results back
+		StringBuilder reply = new StringBuilder("SEARCH");
+		for(MailMessage message : messages.values()) {
+			if(uid) {
+				reply.append(" " + message.getUID());
+			} else {
+				reply.append(" " + message.getSeqNum());
+			}
+		}
+		sendState(reply.toString());
+		reply(msg, "OK Search completed");
+	}
+
+	private void handleSort(IMAPMessage msg) {
+		handleSort(msg, false);
+	}
+
+	private void handleSort(IMAPMessage msg, boolean uid) {
+		if(!this.verifyAuth(msg)) {
+			return;
+		}
+
+		if(this.mb == null) {
+			this.reply(msg, "NO No mailbox selected");
+			return;
+		}
+
+		if(msg.args == null || msg.args.length < 3) {
+			this.reply(msg, "BAD Not enough arguments");
+			return;
+		}
+
+		//Parse the list of sort criteria, e.g. (REVERSE DATE SUBJECT)
+		if(!msg.args[0].startsWith("(")) {
+			this.reply(msg, "BAD Sort criteria must be a parenthesized list");
+			return;
+		}
+
+		List<SortCriterion> criteria = new LinkedList<SortCriterion>();
+		boolean reverse = false;
+		int offset = 0;
+		boolean finished = false;
+		while(!finished && offset < msg.args.length) {
+			String arg = msg.args[offset++];
+			if(arg.startsWith("(")) arg = arg.substring(1);
+			if(arg.endsWith(")")) {
+				arg = arg.substring(0, arg.length() - 1);
+				finished = true;
+			}
+
+			if(arg.equalsIgnoreCase("REVERSE")) {
+				reverse = true;
+				continue;
+			}
+
+			MessageSortKey key = MessageSortKey.fromString(arg);
+			if(key == null) {
+				this.reply(msg, "BAD Unknown sort criterion " + arg);
+				return;
+			}
+			criteria.add(new SortCriterion(key, reverse));
+			reverse = false;
+		}
+
+		if(!finished || reverse || criteria.isEmpty()) {
+			this.reply(msg, "BAD Illegal sort criteria");
+			return;
+		}
+
+		if(msg.args.length - offset < 2) {
+			this.reply(msg, "BAD Not enough arguments");
+			return;
+		}
+
+		if(!isSupportedCharset(msg.args[offset])) {
+			this.reply(msg, "NO [BADCHARSET] Unsupported charset");
+			return;
+		}
+		offset++;
+
+		SortedMap<Integer, MailMessage> messages = mb.listMessages();
+		MessageSummaryCache cache = mb.getSummaryCache();
+		cache.retainAll(messages.keySet());
+
+		try {
+			if(!searchMessages(msg, Arrays.copyOfRange(msg.args, offset, msg.args.length), messages)) {
+				return;
+			}
+		} catch(IOException e) {
+			reply(msg, "NO Internal server error while searching messages");
+			return;
+		}
+
+		StringBuilder cacheKey = new StringBuilder(uid ? "UID SORT" : "SORT");
+		for(SortCriterion criterion : criteria) {
+			cacheKey.append(criterion.reverse ? " REVERSE " : " ");
+			cacheKey.append(criterion.key);
+		}
+
+		int[] input = getResultInput(messages.values());
+		String result = cache.getResult(cacheKey.toString(), input);
+		if(result == null) {
+			try {
+				result = sortMessages(criteria, messages.values(), uid, cache);
+			} catch(IOException e) {
+				Logger.error(this, "Caught IOException while sorting messages: " + e.getMessage(), e);
+				reply(msg, "NO Internal server error while sorting messages");
+				return;
+			}
+			cache.putResult(cacheKey.toString(), input, result);
+		}
+
+		sendState(result);
+		reply(msg, "OK Sort completed");
+	}
+
+	private String sortMessages(final List<SortCriterion> criteria, Collection<MailMessage> messages, boolean uid,
+	                            MessageSummaryCache cache) throws IOException {
+		boolean needSize = false;
+		for(SortCriterion criterion : criteria) {
+			if(criterion.key == MessageSortKey.SIZE) {
+				needSize = true;
+			}
+		}
+
+		final List<MessageSummary> summaries = new ArrayList<MessageSummary>(messages.size());
+		List<Integer> ids = new ArrayList<Integer>(messages.size());
+		List<Integer> order = new ArrayList<Integer>(messages.size());
+		for(MailMessage message : messages) {
+			order.add(Integer.valueOf(summaries.size()));
+			summaries.add(cache.getSummary(message, needSize));
+			ids.add(Integer.valueOf(uid ? message.getUID() : message.getSeqNum()));
+		}
+
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				MessageSummary first = summaries.get(a.intValue());
+				MessageSummary second = summaries.get(b.intValue());
+				for(SortCriterion criterion : criteria) {
+					int result = criterion.key.compare(first, second);
+					if(result != 0) {
+						return criterion.reverse ? -result : result;
+					}
+				}
+
+				//Fall back to mailbox order
+				return a.intValue() - b.intValue();
+			}
+		});
+
+		StringBuilder result = new StringBuilder("SORT");
+		for(Integer index : order) {
+			result.append(" ");
+			result.append(ids.get(index.intValue()));
+		}
+		return result.toString();
+	}
+
+	private void handleThread(IMAPMessage msg) {
+		handleThread(msg, false);
+	}
+
+	private void handleThread(IMAPMessage msg, boolean uid) {
+		if(!this.verifyAuth(msg)) {
+			return;
+		}
+
+		if(this.mb == null) {
+			this.reply(msg, "NO No mailbox selected");
+			return;
+		}
+
+		if(msg.args == null || msg.args.length < 3) {
+			this.reply(msg, "BAD Not enough arguments");
+			return;
+		}
+
+		MessageThreader.Algorithm algorithm;
+		try {
+			algorithm = MessageThreader.Algorithm.valueOf(msg.args[0].toUpperCase(Locale.ROOT));
+		} catch(IllegalArgumentException e) {
+			this.reply(msg, "BAD Unknown threading algorithm");
+			return;
+		}
+
+		if(!isSupportedCharset(msg.args[1])) {
+			this.reply(msg, "NO [BADCHARSET] Unsupported charset");
+			return;
+		}
+
+		SortedMap<Integer, MailMessage> messages = mb.listMessages();
+		MessageSummaryCache cache = mb.getSummaryCache();
+		cache.retainAll(messages.keySet());
+
+		try {
+			if(!searchMessages(msg, Arrays.copyOfRange(msg.args, 2, msg.args.length), messages)) {
+				return;
+			}
+		} catch(IOException e) {
+			reply(msg, "NO Internal server error while searching messages");
+			return;
 		}
 
+		String cacheKey = (uid ? "UID THREAD " : "THREAD ") + algorithm;
+		int[] input = getResultInput(messages.values());
+		String result = cache.getResult(cacheKey, input);
+		if(result == null) {
+			List<MessageSummary> summaries = new ArrayList<MessageSummary>(messages.size());
+			List<Integer> ids = new ArrayList<Integer>(messages.size());
+			try {
+				for(MailMessage message : messages.values()) {
+					summaries.add(cache.getSummary(message));
+					ids.add(Integer.valueOf(uid ? message.getUID() : message.getSeqNum()));
+				}
+			} catch(IOException e) {
+				Logger.error(this, "Caught IOException while threading messages: " + e.getMessage(), e);
+				reply(msg, "NO Internal server error while threading messages");
+				return;
+			}
+
+			String threads = MessageThreader.thread(algorithm, summaries, ids);
+			result = (threads.length() == 0) ? "THREAD" : "THREAD " + threads;
+			cache.putResult(cacheKey, input, result);
+		}
+
+		sendState(result);
+		reply(msg, "OK Thread completed");
+	}
+
+	/**
+	 * Returns the values that identify the given messages for the purpose of
+	 * caching results, i.e. the uid and sequence number of each message.
+	 */
+	private static int[] getResultInput(Collection<MailMessage> messages) {
+		int[] input = new int[messages.size() * 2];
+		int i = 0;
+		for(MailMessage message : messages) {
+			input[i++] = message.getUID();
+			input[i++] = message.getSeqNum();
+		}
+		return input;
+	}
+
+	private static boolean isSupportedCharset(String charset) {
+		charset = trimQuotes(charset);
+		return charset.equalsIgnoreCase("UTF-8") || charset.equalsIgnoreCase("US-ASCII");
+	}
+
+	/**
+	 * Removes the messages that don't match the search criteria in args from
+	 * messages. If the criteria can't be handled a reply is sent to the client
+	 * and {@code false} is returned.
+	 */
+	private boolean searchMessages(IMAPMessage msg, String[] args, Map<Integer, MailMessage> messages) throws IOException {
 		{
 			/*
 			 * If there is only a single parenthetical expression which encloses the entire search,
@@ -1339,7 +1845,7 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 			 * Commons Lang StringUtils.countMatches() would make this nicer.
 			 */
 			int parenthesisCount = 0;
-			for(final String arg : msg.args) {
+			for(final String arg : args) {
 				for(final char character : arg.toCharArray()) {
 					if(character == '(' || character == ')') {
 						parenthesisCount++;
@@ -1347,179 +1853,169 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 				}
 			}
 
-			final String firstArg = msg.args[0];
-			final int lastArgIndex = msg.args.length - 1;
-			String lastArg = msg.args[lastArgIndex];
+			final String firstArg = args[0];
+			final int lastArgIndex = args.length - 1;
+			String lastArg = args[lastArgIndex];
 			if(parenthesisCount == 2 && firstArg.startsWith("(") && lastArg.endsWith(")")) {
 				// Remove parenthesis: first character from first arg, last from last.
-				msg.args[0] = firstArg.substring(1);
+				args[0] = firstArg.substring(1);
 
-				lastArg = msg.args[lastArgIndex];
-				msg.args[lastArgIndex] = lastArg.substring(0, lastArg.length() - 1);
+				lastArg = args[lastArgIndex];
+				args[lastArgIndex] = lastArg.substring(0, lastArg.length() - 1);
 
-				final boolean firstEmpty = msg.args[0].isEmpty();
-				final boolean lastEmpty = msg.args[lastArgIndex].isEmpty();
+				final boolean firstEmpty = args[0].isEmpty();
+				final boolean lastEmpty = args[lastArgIndex].isEmpty();
 				if(firstEmpty || lastEmpty) {
 					reply(msg, "BAD Extra space between paranthesis and search-key");
-					return;
+					return false;
 				}
 			}
 		}
 
 		//Index of the next search key
 		int offset = 0;
-		while(offset < msg.args.length) {
+		while(offset < args.length) {
 			//If it starts or ends with a paran, fail
-			if(msg.args[offset].startsWith("(") || msg.args[offset].endsWith(")")) {
+			if(args[offset].startsWith("(") || args[offset].endsWith(")")) {
 				reply(msg, "NO Freemail doesn't support parentheses in search yet");
-				return;
+				return false;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("ALL")) {
+			if(args[offset].equalsIgnoreCase("ALL")) {
 				//Matches all messages, so do nothing
 				offset++;
 				continue;
 			}
 
 			//Check the various flag state filters
-			if(msg.args[offset].equalsIgnoreCase("ANSWERED")) {
+			if(args[offset].equalsIgnoreCase("ANSWERED")) {
 				filterMessagesOnFlag(messages.values(), IMAPMessageFlags.FLAG_ANSWERED, true);
 				offset++;
 				continue;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("DELETED")) {
+			if(args[offset].equalsIgnoreCase("DELETED")) {
 				filterMessagesOnFlag(messages.values(), IMAPMessageFlags.FLAG_DELETED, true);
 				offset++;
 				continue;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("FLAGGED")) {
+			if(args[offset].equalsIgnoreCase("FLAGGED")) {
 				filterMessagesOnFlag(messages.values(), IMAPMessageFlags.FLAG_FLAGGED, true);
 				offset++;
 				continue;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("RECENT")) {
+			if(args[offset].equalsIgnoreCase("RECENT")) {
 				filterMessagesOnFlag(messages.values(), IMAPMessageFlags.FLAG_RECENT, true);
 				offset++;
 				continue;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("SEEN")) {
+			if(args[offset].equalsIgnoreCase("SEEN")) {
 				filterMessagesOnFlag(messages.values(), IMAPMessageFlags.FLAG_SEEN, true);
 				offset++;
 				continue;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("UNANSWERED")) {
+			if(args[offset].equalsIgnoreCase("UNANSWERED")) {
 				filterMessagesOnFlag(messages.values(), IMAPMessageFlags.FLAG_ANSWERED, false);
 				offset++;
 				continue;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("UNDELETED")) {
+			if(args[offset].equalsIgnoreCase("UNDELETED")) {
 				filterMessagesOnFlag(messages.values(), IMAPMessageFlags.FLAG_DELETED, false);
 				offset++;
 				continue;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("UNFLAGGED")) {
+			if(args[offset].equalsIgnoreCase("UNFLAGGED")) {
 				filterMessagesOnFlag(messages.values(), IMAPMessageFlags.FLAG_FLAGGED, false);
 				offset++;
 				continue;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("UNSEEN")) {
+			if(args[offset].equalsIgnoreCase("UNSEEN")) {
 				filterMessagesOnFlag(messages.values(), IMAPMessageFlags.FLAG_SEEN, false);
 				offset++;
 				continue;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("DRAFT")) {
+			if(args[offset].equalsIgnoreCase("DRAFT")) {
 				filterMessagesOnFlag(messages.values(), IMAPMessageFlags.FLAG_DRAFT, true);
 				offset++;
 				continue;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("UNDRAFT")) {
+			if(args[offset].equalsIgnoreCase("UNDRAFT")) {
 				filterMessagesOnFlag(messages.values(), IMAPMessageFlags.FLAG_DRAFT, false);
 				offset++;
 				continue;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("KEYWORD")) {
-				filterMessagesOnFlag(messages.values(), msg.args[offset + 1], true);
+			if(args[offset].equalsIgnoreCase("KEYWORD")) {
+				filterMessagesOnFlag(messages.values(), args[offset + 1], true);
 				offset += 2;
 				continue;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("UNKEYWORD")) {
-				filterMessagesOnFlag(messages.values(), msg.args[offset + 1], false);
+			if(args[offset].equalsIgnoreCase("UNKEYWORD")) {
+				filterMessagesOnFlag(messages.values(), args[offset + 1], false);
 				offset += 2;
 				continue;
 			}
 
 			//Header searches
-			if(msg.args[offset].equalsIgnoreCase("BCC")) {
-				String searchString = msg.args[offset + 2];
+			if(args[offset].equalsIgnoreCase("BCC")) {
+				String searchString = args[offset + 2];
 				filterMessagesOnHeader(messages.values(), "BCC", searchString);
 				offset += 2;
 				continue;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("CC")) {
-				String searchString = msg.args[offset + 1];
+			if(args[offset].equalsIgnoreCase("CC")) {
+				String searchString = args[offset + 1];
 				filterMessagesOnHeader(messages.values(), "CC", searchString);
 				offset += 2;
 				continue;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("FROM")) {
-				String searchString = msg.args[offset + 1];
+			if(args[offset].equalsIgnoreCase("FROM")) {
+				String searchString = args[offset + 1];
 				filterMessagesOnHeader(messages.values(), "FROM", searchString);
 				offset += 2;
 				continue;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("SUBJECT")) {
-				String searchString = msg.args[offset + 1];
+			if(args[offset].equalsIgnoreCase("SUBJECT")) {
+				String searchString = args[offset + 1];
 				filterMessagesOnHeader(messages.values(), "SUBJECT", searchString);
 				offset += 2;
 				continue;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("TO")) {
-				String searchString = msg.args[offset + 1];
+			if(args[offset].equalsIgnoreCase("TO")) {
+				String searchString = args[offset + 1];
 				filterMessagesOnHeader(messages.values(), "TO", searchString);
 				offset += 2;
 				continue;
 			}
 
-			if(msg.args[offset].equalsIgnoreCase("HEADER")) {
-				String headerName = msg.args[offset + 1];
-				String searchString = msg.args[offset + 2];
+			if(args[offset].equalsIgnoreCase("HEADER")) {
+				String headerName = args[offset + 1];
+				String searchString = args[offset + 2];
 				filterMessagesOnHeader(messages.values(), headerName, searchString);
 				offset += 3;
 				continue;
 			}
 
 			//For now we don't support any of the rest
-			reply(msg, "NO Criteria " + msg.args[offset] + " hasn't been implemented");
-			return;
+			reply(msg, "NO Criteria " + args[offset] + " hasn't been implemented");
+			return false;
 		}
 
-		//Handled all the criteria, so lets send the results back
-		StringBuilder reply = new StringBuilder("SEARCH");
-		for(MailMessage message : messages.values()) {
-			if(uid) {
-				reply.append(" " + message.getUID());
-			} else {
-				reply.append(" " + message.getSeqNum());
-			}
-		}
-		sendState(reply.toString());
-		reply(msg, "OK Search completed");
+		return true;
 	}
 
 	private void filterMessagesOnFlag(Collection<MailMessage> messages, String flag, boolean state) {
@@ -1531,11 +2027,14 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		}
 	}
 
-	private void filterMessagesOnHeader(Collection<MailMessage> messages, String headerName, String searchString) {
+	private void filterMessagesOnHeader(Collection<MailMessage> messages, String headerName, String searchString) throws IOException {
 		Iterator<MailMessage> it = messages.iterator();
 		while(it.hasNext()) {
+			MailMessage message = it.next();
+			message.readHeaders();
+
 			boolean found = false;
-			for(String headerValue : it.next().getHeadersByName(headerName)) {
+			for(String headerValue : message.getHeadersByName(headerName)) {
 				if(headerValue.toLowerCase(Locale.ROOT).contains(searchString.toLowerCase(Locale.ROOT))) {
 					found = true;
 					break;
@@ -1601,6 +2100,9 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 	private void reply(IMAPMessage msg, String reply) {
 		Logger.debug(this, "Reply: " + msg.tag + " " + reply);
 		this.ps.print(msg.tag + " " + reply + "\r\n");
+
+		//Tagged responses complete a command, so send the buffered data
+		this.ps.flush();
 	}
 
 	private void sendState(String txt) {
@@ -1676,6 +2178,65 @@ public class IMAPHandler extends ServerHandler implements Runnable {
 		return Integer.parseInt(seqNum);
 	}
 
+	/**
+	 * Returns the messages in the snapshot with a uid (or sequence number if
+	 * {@code uid} is {@code false}) in the given set, keyed on uid. Only the
+	 * selected messages are materialized, and numbers that don't match a
+	 * message are ignored.
+	 */
+	private static SortedMap<Integer, MailMessage> selectMessages(MailboxSnapshot snapshot, Set<Integer> ids, boolean uid) {
+		SortedMap<Integer, MailMessage> msgs = new TreeMap<Integer, MailMessage>();
+		for(int id : ids) {
+			int index = uid ? snapshot.indexOfUid(id) : id - 1;
+			if(index < 0 || index >= snapshot.size()) {
+				continue;
+			}
+			msgs.put(Integer.valueOf(snapshot.getUid(index)), snapshot.getMessage(index));
+		}
+		return msgs;
+	}
+
+	/**
+	 * Formats the given uids as a sequence set, collapsing runs of consecutive
+	 * uids into ranges. The order of the uids is kept since COPYUID pairs the
+	 * source and destination sets by position.
+	 */
+	private static String formatUidSet(List<Integer> uids) {
+		StringBuilder buf = new StringBuilder();
+
+		int i = 0;
+		while(i < uids.size()) {
+			int start = uids.get(i);
+			int end = start;
+			while(i + 1 < uids.size() && uids.get(i + 1) == end + 1) {
+				end++;
+				i++;
+			}
+			i++;
+
+			if(buf.length() > 0) {
+				buf.append(",");
+			}
+			buf.append(start);
+			if(end != start) {
+				buf.append(":");
+				buf.append(end);
+			}
+		}
+
+		return buf.toString();
+	}
+
+	private static class SortCriterion {
+		private final MessageSortKey key;
+		private final boolean reverse;
+
+		private SortCriterion(MessageSortKey key, boolean reverse) {
+			this.key = key;
+			this.reverse = reverse;
+		}
+	}
+
 	private class IllegalSequenceNumberException extends Exception {
 		public IllegalSequenceNumberException(String msg) {
 			super(msg);
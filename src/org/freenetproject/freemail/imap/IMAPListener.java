@@ -41,9 +41,11 @@ public class IMAPListener extends ServerListener implements Runnable, ConfigClie
 	private final AccountManager accountManager;
 
 	public IMAPListener(AccountManager accMgr, Configurator cfg) {
+		super("IMAP");
 		accountManager = accMgr;
 		cfg.register(Configurator.IMAP_BIND_ADDRESS, this, "127.0.0.1");
 		cfg.register(Configurator.IMAP_BIND_PORT, this, Integer.toString(LISTENPORT));
+		cfg.register(Configurator.IMAP_MAX_CONNECTIONS, this, Integer.toString(DEFAULT_MAX_CONNECTIONS));
 	}
 
 	@Override
@@ -52,6 +54,12 @@ public class IMAPListener extends ServerListener implements Runnable, ConfigClie
 			this.bindaddress = val;
 		} else if(key.equalsIgnoreCase(Configurator.IMAP_BIND_PORT)) {
 			this.bindport = Integer.parseInt(val);
+		} else if(key.equalsIgnoreCase(Configurator.IMAP_MAX_CONNECTIONS)) {
+			try {
+				setMaxConnections(Integer.parseInt(val));
+			} catch(IllegalArgumentException e) {
+				Logger.error(this, "Invalid IMAP connection limit: " + val);
+			}
 		}
 	}
 
@@ -71,17 +79,12 @@ public class IMAPListener extends ServerListener implements Runnable, ConfigClie
 			try {
 				Socket clientSocket = sock.accept();
 				IMAPHandler newcli = new IMAPHandler(accountManager, clientSocket);
-				Thread newthread = new Thread(newcli, "Freemail IMAP Handler for " + clientSocket.getInetAddress());
-				newthread.setDaemon(true);
-				newthread.start();
-				addHandler(newcli, newthread);
+				dispatch(newcli, "Freemail IMAP Handler for " + clientSocket.getInetAddress());
 			} catch (SocketTimeoutException ste) {
 
 			} catch (IOException ioe) {
 
 			}
-
-			reapHandlers();
 		}
 	}
 }
@@ -21,9 +21,6 @@
 
 package org.freenetproject.freemail.imap;
 
-import java.util.Locale;
-import java.util.Vector;
-
 public class IMAPMessageFlags {
 	public static final char[] allShortFlags = {
 		'S',
@@ -91,82 +88,113 @@ public class IMAPMessageFlags {
 		return buf.toString();
 	}
 
-	private Vector<String> flags;
+	/**
+	 * The flags that are set, as a bitmask where bit {@code i} corresponds to
+	 * {@code allFlags[i]}. This keeps the per message overhead down to a single
+	 * int, so the flags of a whole folder can be kept in an {@code int[]}.
+	 */
+	private int flags;
 
 	public IMAPMessageFlags() {
-		this.flags = new Vector<String>();
+		this.flags = 0;
 	}
 
 	public IMAPMessageFlags(String shortflags) {
-		this.flags = new Vector<String>();
+		this.flags = parseShortFlags(shortflags);
+	}
+
+	/**
+	 * Creates a new set of flags from a bitmask as returned by
+	 * {@link #getBits()}.
+	 * @param bits the bitmask of flags that are set
+	 */
+	public IMAPMessageFlags(int bits) {
+		this.flags = bits;
+	}
+
+	/**
+	 * Returns the bitmask of the flags that are set, where bit {@code i}
+	 * corresponds to {@code allFlags[i]}.
+	 * @return the bitmask of the flags that are set
+	 */
+	public int getBits() {
+		return this.flags;
+	}
+
+	/**
+	 * Returns the bitmask corresponding to the given short flag string, as
+	 * stored in message file names.
+	 * @param shortflags the short flag string
+	 * @return the bitmask of the flags in {@code shortflags}
+	 */
+	public static int parseShortFlags(String shortflags) {
+		int bits = 0;
 		for(int i = 0; i < allShortFlags.length; i++) {
 			if(shortflags.indexOf(allShortFlags[i]) >= 0) {
-				this.flags.add(allFlags[i]);
+				bits |= 1 << i;
 			}
 		}
+		return bits;
 	}
 
-	public void set(String flag, boolean value) {
-		flag = sanitize_flag(flag);
+	/**
+	 * Returns the bit used for the given flag, or 0 if the flag isn't
+	 * supported. The flag name is case insensitive.
+	 * @param flag the name of the flag, e.g. {@code \Seen}
+	 * @return the bit used for the given flag
+	 */
+	public static int getBit(String flag) {
+		for(int i = 0; i < allFlags.length; i++) {
+			if(allFlags[i].equalsIgnoreCase(flag)) {
+				return 1 << i;
+			}
+		}
+		return 0;
+	}
 
-		if(flag == null) return;
+	public void set(String flag, boolean value) {
+		int bit = getBit(flag);
 
 		if(value) {
-			this.flags.add(flag);
+			this.flags |= bit;
 		} else {
-			this.flags.remove(flag);
+			this.flags &= ~bit;
 		}
 	}
 
 	public String getShortFlagString() {
-		String retval = new String("");
+		StringBuffer retval = new StringBuffer();
 
-		for(int i = 0; i < allFlags.length; i++) {
-			if(this.flags.contains(allFlags[i])) {
-				retval += allShortFlags[i];
+		for(int i = 0; i < allShortFlags.length; i++) {
+			if((this.flags & (1 << i)) != 0) {
+				retval.append(allShortFlags[i]);
 			}
 		}
 
-		return retval;
+		return retval.toString();
 	}
 
 	public String getFlags() {
-		String retval = "";
+		StringBuffer retval = new StringBuffer();
 
 		for(int i = 0; i < allFlags.length; i++) {
-			if(this.flags.contains(allFlags[i])) {
-				if(retval.length() > 0) retval += " ";
-				retval += allFlags[i];
+			if((this.flags & (1 << i)) != 0) {
+				if(retval.length() > 0) retval.append(" ");
+				retval.append(allFlags[i]);
 			}
 		}
 
-		return retval;
+		return retval.toString();
 	}
 
 	public void clear() {
-		this.flags.clear();
+		this.flags = 0;
 	}
 
 	public boolean get(String flag) {
-		flag = sanitize_flag(flag);
-
-		if(flag == null) return false;
-
-		if(this.flags.contains(flag)) return true;
-		return false;
-	}
+		int bit = getBit(flag);
 
-	// take a flag, check it's real flag, and if so,
-	// return it in the proper capitalisation
-	private static String sanitize_flag(String flag) {
-		String realFlag = null;
-
-		for(int i = 0; i < allFlags.length; i++) {
-			if(allFlags[i].toLowerCase(Locale.ROOT).equals(flag.toLowerCase(Locale.ROOT))) {
-				realFlag = allFlags[i];
-			}
-		}
-		return realFlag;
+		return (this.flags & bit) != 0;
 	}
 
 	public boolean isSeen() {
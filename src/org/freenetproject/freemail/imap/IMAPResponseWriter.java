@@ -0,0 +1,169 @@
+/*
+ * IMAPResponseWriter.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffers the responses sent to an IMAP client so that the many small writes
+ * made while building a response are sent to the socket together. The buffer
+ * is only written to the socket when it is full or when {@link #flush()} is
+ * called, which {@link IMAPHandler} does after each tagged response and before
+ * waiting for the client. Writes that are larger than the buffer, e.g. big
+ * literals, are passed directly to the socket.
+ *
+ * The buffers are taken from a pool shared by all connections and are
+ * returned by {@link #close()}. The number of bytes and socket writes since
+ * the last call to {@link #resetMetrics()} are tracked so they can be logged
+ * per command.
+ */
+class IMAPResponseWriter extends OutputStream {
+	static final int BUFFER_SIZE = 8192;
+	private static final int MAX_POOLED_BUFFERS = 16;
+
+	private static final ConcurrentLinkedQueue<byte[]> bufferPool = new ConcurrentLinkedQueue<byte[]>();
+	private static final AtomicInteger pooledBuffers = new AtomicInteger();
+
+	private final OutputStream out;
+	private byte[] buf;
+	private int count = 0;
+
+	private long bytes = 0;
+	private int writes = 0;
+
+	IMAPResponseWriter(OutputStream out) {
+		this.out = out;
+		this.buf = takeBuffer();
+	}
+
+	private static byte[] takeBuffer() {
+		byte[] buffer = bufferPool.poll();
+		if(buffer == null) {
+			return new byte[BUFFER_SIZE];
+		}
+		pooledBuffers.decrementAndGet();
+		return buffer;
+	}
+
+	private static void returnBuffer(byte[] buffer) {
+		if(pooledBuffers.incrementAndGet() > MAX_POOLED_BUFFERS) {
+			pooledBuffers.decrementAndGet();
+			return;
+		}
+		bufferPool.offer(buffer);
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		ensureOpen();
+		if(count == buf.length) {
+			writeBuffer();
+		}
+		buf[count++] = (byte)b;
+		bytes++;
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if(len >= buf.length) {
+			//Too big to be worth copying, so send it directly after what we have
+			writeBuffer();
+			out.write(b, off, len);
+			writes++;
+			bytes += len;
+			return;
+		}
+
+		if(len > buf.length - count) {
+			writeBuffer();
+		}
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+		bytes += len;
+	}
+
+	/**
+	 * Sends the buffered data to the client.
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		ensureOpen();
+		writeBuffer();
+		out.flush();
+	}
+
+	/**
+	 * Sends the buffered data and returns the buffer to the pool. The
+	 * underlying stream is not closed since it belongs to the socket.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(buf == null) {
+			return;
+		}
+
+		try {
+			flush();
+		} finally {
+			returnBuffer(buf);
+			buf = null;
+		}
+	}
+
+	private void writeBuffer() throws IOException {
+		if(count > 0) {
+			out.write(buf, 0, count);
+			writes++;
+			count = 0;
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if(buf == null) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	/**
+	 * Returns the number of bytes written since the metrics were last reset.
+	 * @return the number of bytes written
+	 */
+	synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of writes made to the underlying stream since the
+	 * metrics were last reset.
+	 * @return the number of writes to the underlying stream
+	 */
+	synchronized int getWrites() {
+		return writes;
+	}
+
+	synchronized void resetMetrics() {
+		bytes = 0;
+		writes = 0;
+	}
+}
@@ -0,0 +1,375 @@
+/*
+ * MessageThreader.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.freenetproject.freemail.MessageSortKey;
+import org.freenetproject.freemail.MessageSummary;
+
+/**
+ * Implements the ORDEREDSUBJECT and REFERENCES threading algorithms from
+ * RFC 5256 and formats the result as the data of an IMAP THREAD response.
+ */
+class MessageThreader {
+	enum Algorithm {
+		ORDEREDSUBJECT,
+		REFERENCES;
+	}
+
+	/**
+	 * Threads the messages and returns the thread list, e.g.
+	 * {@code (2)(3 6 (4 23)(44 7 96))}.
+	 * @param algorithm the threading algorithm to use
+	 * @param messages the messages to thread, in mailbox order
+	 * @param ids the number that should be used for each message in the
+	 *            output (uid or sequence number), in the same order
+	 * @return the formatted thread list
+	 */
+	static String thread(Algorithm algorithm, List<MessageSummary> messages, List<Integer> ids) {
+		Map<MessageSummary, Container> containers = new HashMap<MessageSummary, Container>();
+		for(int i = 0; i < messages.size(); i++) {
+			Container c = new Container();
+			c.message = messages.get(i);
+			c.id = ids.get(i).intValue();
+			c.order = i;
+			containers.put(c.message, c);
+		}
+
+		List<Container> roots;
+		if(algorithm == Algorithm.ORDEREDSUBJECT) {
+			roots = orderedSubject(messages, containers);
+		} else {
+			roots = references(messages, containers);
+		}
+
+		StringBuilder buf = new StringBuilder();
+		for(Container root : roots) {
+			appendThread(buf, root);
+		}
+		return buf.toString();
+	}
+
+	private static List<Container> orderedSubject(List<MessageSummary> messages, Map<MessageSummary, Container> containers) {
+		List<Container> sorted = new ArrayList<Container>(containers.values());
+		Collections.sort(sorted, new Comparator<Container>() {
+			@Override
+			public int compare(Container a, Container b) {
+				int result = MessageSortKey.SUBJECT.compare(a.message, b.message);
+				if(result != 0) {
+					return result;
+				}
+				return DATE_ORDER.compare(a, b);
+			}
+		});
+
+		List<Container> roots = new ArrayList<Container>();
+		Container root = null;
+		for(Container c : sorted) {
+			if(root != null && root.message.getBaseSubject().equals(c.message.getBaseSubject())) {
+				root.addChild(c);
+			} else {
+				root = c;
+				roots.add(c);
+			}
+		}
+
+		Collections.sort(roots, DATE_ORDER);
+		return roots;
+	}
+
+	private static List<Container> references(List<MessageSummary> messages, Map<MessageSummary, Container> containers) {
+		//Step 1: Link the messages using Message-ID, References and In-Reply-To
+		Map<String, Container> idTable = new HashMap<String, Container>();
+		for(MessageSummary message : messages) {
+			Container container = containers.get(message);
+
+			String messageId = message.getMessageId();
+			Container existing = (messageId == null) ? null : idTable.get(messageId);
+			if(existing != null && existing.message == null) {
+				//Replace the placeholder created by an earlier reference
+				existing.message = message;
+				existing.id = container.id;
+				existing.order = container.order;
+				containers.put(message, existing);
+				container = existing;
+			} else if(messageId != null && existing == null) {
+				idTable.put(messageId, container);
+			}
+			//Messages without an id, or with a duplicate id, keep their own container
+
+			Container parent = null;
+			for(String ref : message.getReferences()) {
+				Container refContainer = idTable.get(ref);
+				if(refContainer == null) {
+					refContainer = new Container();
+					idTable.put(ref, refContainer);
+				}
+
+				if(parent != null && refContainer.parent == null && !refContainer.isAncestorOf(parent)) {
+					parent.addChild(refContainer);
+				}
+				parent = refContainer;
+			}
+
+			if(container.parent != null) {
+				container.parent.removeChild(container);
+			}
+			if(parent != null && parent != container && !container.isAncestorOf(parent)) {
+				parent.addChild(container);
+			}
+		}
+
+		//Step 2: Gather the root set
+		Set<Container> rootSet = new LinkedHashSet<Container>();
+		for(Container c : idTable.values()) {
+			if(c.parent == null) {
+				rootSet.add(c);
+			}
+		}
+		for(Container c : containers.values()) {
+			if(c.parent == null) {
+				rootSet.add(c);
+			}
+		}
+		List<Container> roots = new ArrayList<Container>(rootSet);
+
+		//Step 3 and 4: Discard the id table and prune the dummy containers
+		roots = prune(roots, true);
+
+		//Sort the root set so the oldest message of each subject is used below
+		for(Container root : roots) {
+			sortChildren(root, false);
+		}
+		Collections.sort(roots, DATE_ORDER);
+
+		//Step 5: Group the root set by base subject
+		roots = groupBySubject(roots);
+
+		//Step 6: Sort all the siblings by sent date
+		for(Container root : roots) {
+			sortChildren(root, true);
+		}
+		Collections.sort(roots, DATE_ORDER);
+		return roots;
+	}
+
+	private static List<Container> prune(List<Container> siblings, boolean isRoot) {
+		List<Container> result = new ArrayList<Container>();
+		for(Container c : siblings) {
+			c.children = prune(c.children, false);
+			for(Container child : c.children) {
+				child.parent = c;
+			}
+
+			if(c.message != null) {
+				result.add(c);
+			} else if(c.children.isEmpty()) {
+				//Empty dummy, drop it
+				continue;
+			} else if(isRoot && c.children.size() > 1) {
+				//Keep dummies in the root set that have several children
+				result.add(c);
+			} else {
+				//Promote the children
+				for(Container child : c.children) {
+					child.parent = c.parent;
+					result.add(child);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static List<Container> groupBySubject(List<Container> roots) {
+		Map<String, Container> subjectTable = new HashMap<String, Container>();
+		for(Container c : roots) {
+			MessageSummary message = c.getFirstMessage();
+			String subject = message.getBaseSubject();
+			if(subject.length() == 0) {
+				continue;
+			}
+
+			Container old = subjectTable.get(subject);
+			if(old == null
+					|| (c.message == null && old.message != null)
+					|| (old.message != null && old.message.isReply() && c.message != null && !c.message.isReply())) {
+				subjectTable.put(subject, c);
+			}
+		}
+
+		List<Container> result = new ArrayList<Container>();
+		for(Container c : roots) {
+			if(c.parent != null) {
+				//Already moved below another container
+				continue;
+			}
+
+			String subject = c.getFirstMessage().getBaseSubject();
+			Container table = subjectTable.get(subject);
+			if(subject.length() == 0 || table == null || table == c) {
+				result.add(c);
+				continue;
+			}
+
+			if(table.message == null && c.message == null) {
+				//Both are dummies, merge the children into the table container
+				for(Container child : new ArrayList<Container>(c.children)) {
+					c.removeChild(child);
+					table.addChild(child);
+				}
+			} else if(table.message == null) {
+				table.addChild(c);
+			} else if(c.message != null && !table.message.isReply() && c.message.isReply()) {
+				table.addChild(c);
+			} else {
+				//Make both children of a new dummy which replaces the table container
+				Container dummy = new Container();
+				int index = result.indexOf(table);
+				if(index >= 0) {
+					result.set(index, dummy);
+				} else {
+					//The table container comes later in the root set, so it will be
+					//added when we get there
+					result.add(dummy);
+				}
+				dummy.addChild(table);
+				dummy.addChild(c);
+				subjectTable.put(subject, dummy);
+			}
+		}
+
+		//Containers that were moved below others must not be listed as roots
+		Set<Container> pruned = new LinkedHashSet<Container>();
+		for(Container c : result) {
+			if(c.parent == null) {
+				pruned.add(c);
+			}
+		}
+		return new ArrayList<Container>(pruned);
+	}
+
+	private static void sortChildren(Container c, boolean recursive) {
+		for(Container child : c.children) {
+			if(recursive || child.message == null) {
+				sortChildren(child, recursive);
+			}
+		}
+		Collections.sort(c.children, DATE_ORDER);
+	}
+
+	private static void appendThread(StringBuilder buf, Container c) {
+		buf.append('(');
+		boolean first = true;
+		while(true) {
+			if(c.message != null) {
+				if(!first) {
+					buf.append(' ');
+				}
+				buf.append(c.id);
+				first = false;
+			}
+
+			if(c.children.size() == 1) {
+				c = c.children.get(0);
+				continue;
+			}
+
+			if(c.children.size() > 1) {
+				if(!first) {
+					buf.append(' ');
+				}
+				for(Container child : c.children) {
+					appendThread(buf, child);
+				}
+			}
+			break;
+		}
+		buf.append(')');
+	}
+
+	/**
+	 * Orders containers by sent date, then mailbox order. Dummies use their
+	 * first child, so the children must be sorted first.
+	 */
+	private static final Comparator<Container> DATE_ORDER = new Comparator<Container>() {
+		@Override
+		public int compare(Container a, Container b) {
+			Container first = a.getFirstContainer();
+			Container second = b.getFirstContainer();
+
+			int result = MessageSortKey.DATE.compare(first.message, second.message);
+			if(result != 0) {
+				return result;
+			}
+			return first.order - second.order;
+		}
+	};
+
+	private static class Container {
+		private MessageSummary message;
+		private int id;
+		private int order;
+		private Container parent;
+		private List<Container> children = new LinkedList<Container>();
+
+		private void addChild(Container child) {
+			if(child.parent != null) {
+				child.parent.removeChild(child);
+			}
+			child.parent = this;
+			children.add(child);
+		}
+
+		private void removeChild(Container child) {
+			children.remove(child);
+			child.parent = null;
+		}
+
+		private boolean isAncestorOf(Container c) {
+			for(Container p = c; p != null; p = p.parent) {
+				if(p == this) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private Container getFirstContainer() {
+			Container c = this;
+			while(c.message == null && !c.children.isEmpty()) {
+				c = c.children.get(0);
+			}
+			return c;
+		}
+
+		private MessageSummary getFirstMessage() {
+			return getFirstContainer().message;
+		}
+	}
+}
@@ -22,18 +22,21 @@
 package org.freenetproject.freemail.smtp;
 
 import java.net.Socket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.io.File;
-import java.io.PrintWriter;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
@@ -54,9 +57,14 @@ import org.freenetproject.freemail.wot.Identity;
 import org.freenetproject.freemail.wot.IdentityMatcher;
 
 public class SMTPHandler extends ServerHandler implements Runnable {
+	/** The size of the largest message we accept, advertised using SIZE */
+	static final long MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+	private static final byte[] CRLF = {'\r', '\n'};
+
 	private final OutputStream os;
 	private final PrintStream ps;
-	private final BufferedReader bufrdr;
+	private final InputStream is;
 	private FreemailAccount account;
 	public static final String MY_HOSTNAME = "localhost";
 
@@ -65,13 +73,23 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 
 	private Vector<Identity> to;
 
+	/** The spool file of the message being received using BDAT, if any */
+	private File chunkFile;
+	private OutputStream chunkStream;
+	private long chunkedSize;
+
+	/** Set if a BDAT chunk of the current transaction has been rejected */
+	private boolean chunkingFailed;
+
 	public SMTPHandler(AccountManager accMgr, Socket client, IdentityMatcher identityMatcher) throws IOException {
 		super(client);
 		accountmanager = accMgr;
 		this.account = null;
-		this.os = client.getOutputStream();
+		//Responses are buffered and sent when the client has no more commands
+		//waiting, which gives batched responses to pipelined commands
+		this.os = new BufferedOutputStream(client.getOutputStream());
 		this.ps = new PrintStream(this.os);
-		this.bufrdr = new BufferedReader(new InputStreamReader(client.getInputStream()));
+		this.is = new BufferedInputStream(client.getInputStream());
 		this.identityMatcher = identityMatcher;
 
 		this.to = new Vector<Identity>();
@@ -83,7 +101,7 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 
 		String line;
 		try {
-			while(!stopping && !this.client.isClosed() && (line = this.bufrdr.readLine()) != null) {
+			while(!stopping && !this.client.isClosed() && (line = this.readLine()) != null) {
 				SMTPCommand msg = null;
 				try {
 					//Logger.normal(this,line);
@@ -97,10 +115,62 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 				this.dispatch(msg);
 			}
 
+			this.ps.flush();
 			this.client.close();
 		} catch (IOException ioe) {
 
+		} finally {
+			this.abortChunkedMessage();
+		}
+	}
+
+	/**
+	 * Reads a line sent by the client and returns it without the line
+	 * terminator, or returns {@code null} at the end of the stream.
+	 */
+	private String readLine() throws IOException {
+		LineBuffer line = new LineBuffer();
+		if(!readLine(line)) {
+			return null;
+		}
+		return line.toString("UTF-8");
+	}
+
+	/**
+	 * Reads the bytes of a line sent by the client into {@code line}, without
+	 * the line terminator. Any buffered responses are sent first unless the
+	 * client has already sent more data, since the client might be waiting
+	 * for them (see RFC 2920 section 3.2).
+	 *
+	 * @return {@code false} if the end of the stream was reached before any data was read
+	 */
+	private boolean readLine(LineBuffer line) throws IOException {
+		if(this.is.available() == 0) {
+			this.ps.flush();
+		}
+
+		boolean read = false;
+		boolean cr = false;
+		int b;
+		while((b = this.is.read()) != -1) {
+			read = true;
+			if(b == '\n') {
+				return true;
+			}
+
+			if(cr) {
+				line.write('\r');
+			}
+			cr = (b == '\r');
+			if(!cr) {
+				line.write(b);
+			}
 		}
+
+		if(cr) {
+			line.write('\r');
+		}
+		return read;
 	}
 
 	private void dispatch(SMTPCommand cmd) {
@@ -115,11 +185,13 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 		} else if(cmd.command.equals("auth")) {
 			this.handle_auth(cmd);
 		} else if(cmd.command.equals("mail")) {
-			this.handle_mail();
+			this.handle_mail(cmd);
 		} else if(cmd.command.equals("rcpt")) {
 			this.handle_rcpt(cmd);
 		} else if(cmd.command.equals("data")) {
 			this.handle_data();
+		} else if(cmd.command.equals("bdat")) {
+			this.handle_bdat(cmd);
 		} else if(cmd.command.equals("rset")) {
 			this.handle_rset();
 		} else {
@@ -134,11 +206,16 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 
 	private void handle_ehlo() {
 		this.ps.print("250-"+MY_HOSTNAME+"\r\n");
-		this.ps.print("250 AUTH LOGIN PLAIN\r\n");
+		this.ps.print("250-AUTH LOGIN PLAIN\r\n");
+		this.ps.print("250-PIPELINING\r\n");
+		this.ps.print("250-8BITMIME\r\n");
+		this.ps.print("250-CHUNKING\r\n");
+		this.ps.print("250 SIZE "+MAX_MESSAGE_SIZE+"\r\n");
 	}
 
 	private void handle_quit() {
 		this.ps.print("221 "+MY_HOSTNAME+"\r\n");
+		this.ps.flush();
 		try {
 			this.client.close();
 		} catch (IOException ioe) {
@@ -175,7 +252,7 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 			String b64username;
 			String b64password;
 			try {
-				b64username = this.bufrdr.readLine();
+				b64username = this.readLine();
 			} catch (IOException ioe) {
 				return;
 			}
@@ -188,7 +265,7 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 				throw new AssertionError("JVM doesn't support UTF-8 charset");
 			}
 			try {
-				b64password = this.bufrdr.readLine();
+				b64password = this.readLine();
 			} catch (IOException ioe) {
 				return;
 			}
@@ -209,7 +286,7 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 			} else {
 				this.ps.print("334 \r\n");
 				try {
-					b64creds = this.bufrdr.readLine();
+					b64creds = this.readLine();
 					if(b64creds == null) return;
 				} catch (IOException ioe) {
 					return;
@@ -269,13 +346,53 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 		}
 	}
 
-	private void handle_mail() {
+	private void handle_mail(SMTPCommand cmd) {
 		if(this.account == null) {
 			this.ps.print("530 Authentication required\r\n");
 			return;
 		}
 
+		//The parameters follow the reverse path, which is either FROM:<path>
+		//or FROM: <path>
+		int first = 1;
+		if(cmd.args.length > 0 && cmd.args[0].endsWith(":")) {
+			first = 2;
+		}
+		for(int i = first; i < cmd.args.length; i++) {
+			String[] param = cmd.args[i].split("=", 2);
+			String keyword = param[0].toUpperCase(Locale.ROOT);
+			String value = param.length > 1 ? param[1] : "";
+
+			if(keyword.equals("SIZE")) {
+				//Reject messages that are too big before the client sends them
+				long size;
+				try {
+					size = Long.parseLong(value);
+				} catch(NumberFormatException e) {
+					this.ps.print("501 Syntax error in SIZE parameter\r\n");
+					return;
+				}
+				if(size > MAX_MESSAGE_SIZE) {
+					this.ps.print("552 Message size exceeds fixed maximum message size\r\n");
+					return;
+				}
+			} else if(keyword.equals("BODY")) {
+				//The message is stored as is, so 8 bit data is fine
+				if(!value.equalsIgnoreCase("7BIT") && !value.equalsIgnoreCase("8BITMIME")) {
+					this.ps.print("555 Unsupported body type\r\n");
+					return;
+				}
+			} else if(keyword.equals("AUTH")) {
+				//RFC 4954 requires servers that offer AUTH to accept this, but
+				//there is no trusted submitter to pass it on to, so ignore it
+			} else {
+				this.ps.print("555 Unsupported parameter " + param[0] + "\r\n");
+				return;
+			}
+		}
+
 		this.to.clear();
+		this.abortChunkedMessage();
 
 		// we don't really care.
 		this.ps.print("250 OK\r\n");
@@ -340,45 +457,57 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 			return;
 		}
 
+		if(this.chunkFile != null || this.chunkingFailed) {
+			this.ps.print("503 DATA can't be used together with BDAT\r\n");
+			return;
+		}
+
 		File tempfile = null;
 		try {
 			tempfile = File.createTempFile("freemail-", ".message", Freemail.getTempDir());
-			PrintWriter pw = new PrintWriter(new FileOutputStream(tempfile));
-
-			this.ps.print("354 Go crazy\r\n");
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(tempfile));
 
-			String line;
 			boolean done = false;
-			while((line = this.bufrdr.readLine()) != null) {
-				if(line.equals(".")) {
-					done = true;
-					break;
-				}
-				if(line.startsWith(".")) {
-					line = line.substring(1);
+			long size = 0;
+			try {
+				this.ps.print("354 Go crazy\r\n");
+
+				LineBuffer line = new LineBuffer();
+				while(readLine(line)) {
+					if(line.size() == 1 && line.byteAt(0) == '.') {
+						done = true;
+						break;
+					}
+
+					int offset = 0;
+					if(line.size() > 0 && line.byteAt(0) == '.') {
+						offset = 1;
+					}
+
+					//Keep reading a message that is too big so it isn't taken for commands
+					size += line.size() - offset + CRLF.length;
+					if(size <= MAX_MESSAGE_SIZE) {
+						line.writeTo(out, offset);
+						out.write(CRLF);
+					}
+					line.reset();
 				}
-				pw.print(line+"\r\n");
+			} finally {
+				out.close();
 			}
 
-			pw.close();
 			if(!done) {
 				// connection closed before the message was
 				// finished. bail out.
-				tempfile.delete();
 				return;
 			}
 
-			MessageHandler messageSender = account.getMessageHandler();
-			Bucket data = new FileBucket(tempfile, false, false, false, true);
-			try {
-				if(messageSender.sendMessage(to, data)) {
-					this.ps.print("250 So be it\r\n");
-				} else {
-					this.ps.print("452 Message sending failed\r\n");
-				}
-			} finally {
-				data.free();
+			if(size > MAX_MESSAGE_SIZE) {
+				this.ps.print("552 Message size exceeds fixed maximum message size\r\n");
+				return;
 			}
+
+			sendMessage(tempfile);
 		} catch (IOException ioe) {
 			this.ps.print("452 Can't store message\r\n");
 		} finally {
@@ -388,12 +517,178 @@ public class SMTPHandler extends ServerHandler implements Runnable {
 		}
 	}
 
+	/**
+	 * Handles BDAT (RFC 3030), which sends the message in chunks of a given
+	 * size. The chunks are written directly to a spool file and are not
+	 * modified, so no dot stuffing or line ending conversion is done.
+	 */
+	private void handle_bdat(SMTPCommand cmd) {
+		if(cmd.args.length < 1 || cmd.args.length > 2
+				|| (cmd.args.length == 2 && !cmd.args[1].equalsIgnoreCase("LAST"))) {
+			this.ps.print("501 Syntax: BDAT <size> [LAST]\r\n");
+			return;
+		}
+
+		long length;
+		try {
+			length = Long.parseLong(cmd.args[0]);
+		} catch(NumberFormatException e) {
+			length = -1;
+		}
+		if(length < 0) {
+			this.ps.print("501 Syntax: BDAT <size> [LAST]\r\n");
+			return;
+		}
+		boolean last = cmd.args.length == 2;
+
+		//The chunk has to be read even if it is rejected, so figure out where it should go first
+		String error = null;
+		if(this.account == null) {
+			error = "530 Authentication required";
+		} else if(this.to.size() == 0) {
+			error = "503 RCPT first";
+		} else if(this.chunkingFailed) {
+			error = "554 Transaction has failed";
+		} else if(this.chunkedSize + length > MAX_MESSAGE_SIZE) {
+			error = "552 Message size exceeds fixed maximum message size";
+		} else if(this.chunkFile == null) {
+			try {
+				this.chunkFile = File.createTempFile("freemail-", ".message", Freemail.getTempDir());
+				this.chunkStream = new BufferedOutputStream(new FileOutputStream(this.chunkFile));
+				this.chunkedSize = 0;
+			} catch(IOException e) {
+				Logger.error(this, "Couldn't create spool file", e);
+				error = "452 Can't store message";
+			}
+		}
+
+		try {
+			if(!readChunk(length, error == null ? this.chunkStream : null)) {
+				error = "452 Can't store message";
+			}
+		} catch(IOException e) {
+			//The connection was closed before the whole chunk was sent
+			Logger.debug(this, "Caught IOException while reading BDAT chunk: " + e.getMessage());
+			this.abortChunkedMessage();
+			return;
+		}
+
+		if(error != null) {
+			//A failed chunk fails the rest of the transaction (RFC 3030 section 4.2)
+			this.abortChunkedMessage();
+			this.chunkingFailed = !last && this.account != null && this.to.size() > 0;
+			this.ps.print(error + "\r\n");
+			return;
+		}
+
+		this.chunkedSize += length;
+		if(!last) {
+			this.ps.print("250 " + length + " octets received\r\n");
+			return;
+		}
+
+		File message = this.chunkFile;
+		try {
+			this.chunkStream.close();
+			this.chunkStream = null;
+			sendMessage(message);
+		} catch(IOException e) {
+			this.ps.print("452 Can't store message\r\n");
+		} finally {
+			this.abortChunkedMessage();
+		}
+	}
+
+	/**
+	 * Copies {@code length} bytes from the client to {@code out}, or discards
+	 * them if {@code out} is {@code null}. The data is always read so the
+	 * connection stays in sync even if {@code out} can't be written to.
+	 *
+	 * @return {@code false} if writing to {@code out} failed
+	 * @throws IOException if the data couldn't be read from the client
+	 */
+	private boolean readChunk(long length, OutputStream out) throws IOException {
+		byte[] buf = new byte[8192];
+		boolean written = true;
+		while(length > 0) {
+			int read = this.is.read(buf, 0, (int)Math.min(buf.length, length));
+			if(read == -1) {
+				throw new EOFException("Connection closed during BDAT chunk");
+			}
+			length -= read;
+
+			if(out != null && written) {
+				try {
+					out.write(buf, 0, read);
+				} catch(IOException e) {
+					Logger.error(this, "Couldn't write to spool file", e);
+					written = false;
+				}
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Deletes the spool file of the message being received using BDAT, if any.
+	 */
+	private void abortChunkedMessage() {
+		if(this.chunkStream != null) {
+			try {
+				this.chunkStream.close();
+			} catch(IOException e) {
+				//We are deleting it anyway
+			}
+			this.chunkStream = null;
+		}
+		if(this.chunkFile != null) {
+			this.chunkFile.delete();
+			this.chunkFile = null;
+		}
+		this.chunkedSize = 0;
+		this.chunkingFailed = false;
+	}
+
+	private void sendMessage(File spoolFile) throws IOException {
+		MessageHandler messageSender = account.getMessageHandler();
+		Bucket data = new FileBucket(spoolFile, false, false, false, true);
+		try {
+			if(messageSender.sendMessage(to, data)) {
+				this.ps.print("250 So be it\r\n");
+			} else {
+				this.ps.print("452 Message sending failed\r\n");
+			}
+		} finally {
+			data.free();
+		}
+	}
+
 	private void handle_rset() {
 		this.to.clear();
+		this.abortChunkedMessage();
 		this.ps.print("250 Reset\r\n");
 	}
 
 	private void sendWelcome() {
 		this.ps.print("220 "+MY_HOSTNAME+" ready\r\n");
 	}
+
+	@Override
+	protected String getRejectMessage() {
+		return "421 " + MY_HOSTNAME + " Too many connections, try again later\r\n";
+	}
+
+	/**
+	 * A {@code ByteArrayOutputStream} that gives access to the bytes without
+	 * copying them, used to handle message lines as bytes.
+	 */
+	private static class LineBuffer extends ByteArrayOutputStream {
+		private byte byteAt(int index) {
+			return buf[index];
+		}
+
+		private void writeTo(OutputStream out, int offset) throws IOException {
+			out.write(buf, offset, count - offset);
+		}
+	}
 }
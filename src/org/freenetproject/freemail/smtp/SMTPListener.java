@@ -43,10 +43,12 @@ public class SMTPListener extends ServerListener implements Runnable, ConfigClie
 	private final Freemail freemail;
 
 	public SMTPListener(AccountManager accMgr, Configurator cfg, Freemail freemail) {
+		super("SMTP");
 		this.accountManager = accMgr;
 		this.freemail = freemail;
 		cfg.register(Configurator.SMTP_BIND_ADDRESS, this, "127.0.0.1");
 		cfg.register(Configurator.SMTP_BIND_PORT, this, Integer.toString(LISTENPORT));
+		cfg.register(Configurator.SMTP_MAX_CONNECTIONS, this, Integer.toString(DEFAULT_MAX_CONNECTIONS));
 	}
 
 	@Override
@@ -64,6 +66,12 @@ public class SMTPListener extends ServerListener implements Runnable, ConfigClie
 			this.bindaddress = val;
 		} else if(key.equalsIgnoreCase(Configurator.SMTP_BIND_PORT)) {
 			this.bindport = Integer.parseInt(val);
+		} else if(key.equalsIgnoreCase(Configurator.SMTP_MAX_CONNECTIONS)) {
+			try {
+				setMaxConnections(Integer.parseInt(val));
+			} catch(IllegalArgumentException e) {
+				Logger.error(this, "Invalid SMTP connection limit: " + val);
+			}
 		}
 	}
 
@@ -71,18 +79,13 @@ public class SMTPListener extends ServerListener implements Runnable, ConfigClie
 		sock = new ServerSocket(this.bindport, 10, InetAddress.getByName(this.bindaddress));
 		while(!sock.isClosed()) {
 			try {
-				IdentityMatcher matcher = new IdentityMatcher(freemail.getWotConnection());
+				IdentityMatcher matcher = new IdentityMatcher(freemail.getIdentityDirectory());
 				Socket clientSocket = sock.accept();
 				SMTPHandler newcli = new SMTPHandler(accountManager, clientSocket, matcher);
-				Thread newthread = new Thread(newcli, "Freemail SMTP Handler for " + clientSocket.getInetAddress());
-				newthread.setDaemon(true);
-				newthread.start();
-				addHandler(newcli, newthread);
+				dispatch(newcli, "Freemail SMTP Handler for " + clientSocket.getInetAddress());
 			} catch (IOException ioe) {
 
 			}
-
-			reapHandlers();
 		}
 	}
 }
@@ -22,6 +22,7 @@ package org.freenetproject.freemail.support;
 
 import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.MailMessage;
+import org.freenetproject.freemail.MailboxSnapshot;
 import org.freenetproject.freemail.MessageBank;
 import org.freenetproject.freemail.utils.Logger;
 
@@ -84,6 +85,11 @@ public class MessageBankTools {
 		if(messageBank == null) throw new NullPointerException("Parameter messageBank was null");
 		if(messageUid < 0) throw new IllegalArgumentException("Parameter messageUid was < 0: " + messageUid);
 
-		return messageBank.listMessages().get(Integer.valueOf(messageUid));
+		MailboxSnapshot snapshot = messageBank.snapshot();
+		int index = snapshot.indexOfUid(messageUid);
+		if(index < 0) {
+			return null;
+		}
+		return snapshot.getMessage(index);
 	}
 }
@@ -30,12 +30,20 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -56,14 +64,21 @@ import org.freenetproject.freemail.Freemail;
 import org.freenetproject.freemail.Freemail.TaskType;
 import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.FreenetURI;
+import org.freenetproject.freemail.MailsiteCache;
+import org.freenetproject.freemail.PollScheduler;
+import org.freenetproject.freemail.PollScheduler.Activity;
 import org.freenetproject.freemail.SlotManager;
 import org.freenetproject.freemail.SlotSaveCallback;
 import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
 import org.freenetproject.freemail.fcp.FCPBadFileException;
+import org.freenetproject.freemail.fcp.FCPCallback;
 import org.freenetproject.freemail.fcp.FCPException;
 import org.freenetproject.freemail.fcp.FCPFetchException;
+import org.freenetproject.freemail.fcp.FCPPriority;
+import org.freenetproject.freemail.fcp.FetchOptions;
 import org.freenetproject.freemail.fcp.FCPPutFailedException;
 import org.freenetproject.freemail.fcp.HighLevelFCPClient;
+import org.freenetproject.freemail.fcp.NoNodeConnectionException;
 import org.freenetproject.freemail.fcp.SSKKeyPair;
 import org.freenetproject.freemail.utils.DateStringFactory;
 import org.freenetproject.freemail.utils.Logger;
@@ -85,6 +100,9 @@ import freenet.support.io.Closer;
 class Channel {
 	private static final String CHANNEL_PROPS_NAME = "props";
 	private static final int POLL_AHEAD = 6;
+	/** The range of the number of slots the fetcher checks at the same time */
+	private static final int MIN_POLL_WINDOW = POLL_AHEAD;
+	private static final int MAX_POLL_WINDOW = 4 * POLL_AHEAD;
 	private static final String ACK_LOG = "acklog";
 	private static final long MAX_ACK_DELAY = 12 * 60 * 60 * 1000; //12 hours
 
@@ -94,7 +112,17 @@ class Channel {
 	 * when t=2*CHANNEL_TIMEOUT. This should provide enough delay for the recipient to fetch all
 	 * the messages.
 	 */
-	private static final long CHANNEL_TIMEOUT = 7 * 24 * 60 * 60 * 1000; //1 week
+	static final long CHANNEL_TIMEOUT = 7 * 24 * 60 * 60 * 1000; //1 week
+
+	/**
+	 * The largest slot we fetch. This leaves room for the headers added to the largest message
+	 * the SMTP server accepts (16MiB).
+	 */
+	private static final long MAX_SLOT_SIZE = 20 * 1024 * 1024;
+
+	private static final FetchOptions SLOT_FETCH_OPTIONS = new FetchOptions(FCPPriority.LOW)
+			.withMaxSize(MAX_SLOT_SIZE)
+			.withTimeout(1, TimeUnit.HOURS);
 
 	/** The amount of time to wait before retrying after a transient failure. */
 	private static final long TASK_RETRY_DELAY = 5 * 60 * 1000; //5 minutes
@@ -112,7 +140,9 @@ class Channel {
 		private static final String FETCH_CODE = "fetchCode";
 		private static final String REMOTE_ID = "remoteID";
 		private static final String TIMEOUT = "timeout";
+		private static final String LAST_TRAFFIC = "last-traffic";
 		private static final String MSG_SLOT = ".slot";
+		private static final String MSG_INSERT_ID = ".insertId";
 	}
 
 	private static class RTSKeys {
@@ -127,6 +157,7 @@ class Channel {
 	private final File channelDir;
 	private final PropsFile channelProps;
 	private final ScheduledExecutorService executor;
+	private final PollScheduler pollScheduler;
 	private final HighLevelFCPClient fcpClient;
 	private final Freemail freemail;
 	private final FreemailAccount account;
@@ -135,6 +166,9 @@ class Channel {
 	private final AtomicReference<ChannelEventCallback> channelEventCallback = new AtomicReference<ChannelEventCallback>();
 	private final MessageLog ackLog;
 
+	/** When a message was last sent or received on this channel, also kept in the props file */
+	private final AtomicLong lastTraffic = new AtomicLong();
+
 	Channel(File channelDir, ScheduledExecutorService executor, HighLevelFCPClient fcpClient, Freemail freemail, FreemailAccount account, String remoteId) throws ChannelTimedOutException {
 		if(executor == null) throw new NullPointerException();
 		this.executor = executor;
@@ -144,6 +178,7 @@ class Channel {
 
 		if(freemail == null) throw new NullPointerException();
 		this.freemail = freemail;
+		this.pollScheduler = freemail.getPollScheduler();
 
 		assert channelDir.isDirectory();
 		this.channelDir = channelDir;
@@ -184,6 +219,18 @@ class Channel {
 			}
 		}
 
+		//Restore the activity so the channel isn't polled as a cold one after a restart
+		synchronized(channelProps) {
+			String rawLastTraffic = channelProps.get(PropsKeys.LAST_TRAFFIC);
+			if(rawLastTraffic != null) {
+				try {
+					lastTraffic.set(Long.parseLong(rawLastTraffic));
+				} catch(NumberFormatException e) {
+					Logger.error(this, "Illegal value in " + PropsKeys.LAST_TRAFFIC + " field: " + rawLastTraffic);
+				}
+			}
+		}
+
 		//Set remote id if given
 		if(remoteId != null) {
 			synchronized(channelProps) {
@@ -260,6 +307,7 @@ class Channel {
 			channelProps.put(PropsKeys.TIMEOUT, rtsProps.get(RTSKeys.TIMEOUT));
 			channelProps.put(PropsKeys.RECIPIENT_STATE, "rts-received");
 		}
+		notifyTimeout();
 
 		//Queue the CTS insert
 		try {
@@ -270,6 +318,35 @@ class Channel {
 		startFetcher();
 	}
 
+	private void recordTraffic() {
+		long now = System.currentTimeMillis();
+		lastTraffic.set(now);
+		synchronized(channelProps) {
+			channelProps.put(PropsKeys.LAST_TRAFFIC, now);
+		}
+
+		ChannelEventCallback callback = channelEventCallback.get();
+		if(callback != null) {
+			callback.onTraffic(now);
+		}
+	}
+
+	private void notifyTimeout() {
+		ChannelEventCallback callback = channelEventCallback.get();
+		long timeout = getTimeout();
+		if(callback != null && timeout != 0) {
+			callback.onTimeoutChanged(timeout);
+		}
+		notifyReplyDue();
+	}
+
+	private void notifyReplyDue() {
+		ChannelEventCallback callback = channelEventCallback.get();
+		if(callback != null) {
+			callback.onReplyDueChanged(getReplyDue());
+		}
+	}
+
 	void setCallback(ChannelEventCallback callback) {
 		//At the moment we only need to set the callback after creating the
 		//channel, and the rest of the code hasn't been checked to make sure
@@ -385,7 +462,7 @@ class Channel {
 		}
 
 		if((fetchSlot != null) && (fetchCode != null) && (publicKey != null)) {
-			fetcher.execute();
+			fetcher.start();
 		}
 	}
 
@@ -451,7 +528,12 @@ class Channel {
 			Closer.close(messageOutputStream);
 		}
 
-		return insertMessage(fullMessage, "msg" + messageId);
+		boolean inserted = insertMessage(fullMessage, "msg" + messageId);
+		if(inserted) {
+			//An ack should follow, so poll more often for a while
+			recordTraffic();
+		}
+		return inserted;
 	}
 
 	/**
@@ -486,6 +568,7 @@ class Channel {
 		while(true) {
 			/* First we get the slot for this message if one has been assigned */
 			String sendSlot;
+			String insertId;
 			synchronized(channelProps) {
 				/* If a slot has been assigned, use it */
 				sendSlot = channelProps.get(prefix + PropsKeys.MSG_SLOT);
@@ -498,6 +581,16 @@ class Channel {
 
 					Logger.debug(this, "Assigned slot " + sendSlot + " to message " + prefix);
 				}
+
+				/*
+				 * The insert id names the node's request for this slot, so if we are restarted
+				 * while the insert is running we pick it up again instead of starting over
+				 */
+				insertId = channelProps.get(prefix + PropsKeys.MSG_INSERT_ID);
+				if(insertId == null) {
+					insertId = generateRandomSlot();
+					channelProps.put(prefix + PropsKeys.MSG_INSERT_ID, insertId);
+				}
 			}
 
 			String insertKey = privateKey + sendCode + "-" + sendSlot;
@@ -510,7 +603,7 @@ class Channel {
 				FCPPutFailedException fcpMessage;
 				try {
 					Timer messageInsert = Timer.start();
-					fcpMessage = fcpClient.put(messageStream, insertKey);
+					fcpMessage = fcpClient.putPersistent(messageStream, insertKey, insertId, FCPPriority.HIGH);
 					messageInsert.log(this, 1, TimeUnit.HOURS, "Time spent inserting message");
 				} catch(FCPBadFileException e) {
 					Logger.error(this, "Caugth FCPBadFileException while inserting message", e);
@@ -528,6 +621,7 @@ class Channel {
 					Logger.minor(this, "Insert successful");
 
 					synchronized (channelProps) {
+						channelProps.remove(prefix + PropsKeys.MSG_INSERT_ID);
 						if(!channelProps.remove(prefix + PropsKeys.MSG_SLOT)) {
 							Logger.error(this, "Couldn't remove slot, will try again later");
 
@@ -550,6 +644,7 @@ class Channel {
 						String nextSlot = calculateNextSlot(sendSlot);
 						channelProps.put(PropsKeys.SEND_SLOT, nextSlot);
 						channelProps.put(prefix + PropsKeys.MSG_SLOT, sendSlot);
+						channelProps.remove(prefix + PropsKeys.MSG_INSERT_ID);
 					}
 
 					Logger.debug(this, "Insert collided, assigned new slot " + sendSlot + " to message " + prefix);
@@ -581,6 +676,83 @@ class Channel {
 		}
 	}
 
+	/**
+	 * Returns the time when the channel stops accepting new messages, or 0 if the timeout hasn't
+	 * been set yet.
+	 */
+	long getTimeout() {
+		String rawTimeout;
+		synchronized(channelProps) {
+			rawTimeout = channelProps.get(PropsKeys.TIMEOUT);
+		}
+		if(rawTimeout == null) {
+			return 0;
+		}
+
+		try {
+			return Long.parseLong(rawTimeout);
+		} catch(NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns the time until which we expect a reply to our RTS, which is the timeout of the
+	 * channel while the RTS hasn't been answered, or 0 if we aren't waiting for one.
+	 */
+	long getReplyDue() {
+		String senderState;
+		String rawTimeout;
+		synchronized(channelProps) {
+			senderState = channelProps.get(PropsKeys.SENDER_STATE);
+			rawTimeout = channelProps.get(PropsKeys.TIMEOUT);
+		}
+
+		if(!"rts-sent".equals(senderState) || rawTimeout == null) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(rawTimeout);
+		} catch(NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns when a message was last sent or received on this channel, or 0 if never.
+	 */
+	long getLastTraffic() {
+		return lastTraffic.get();
+	}
+
+	/**
+	 * Returns {@code true} if the channel has nothing to do except polling for new messages, so
+	 * that it can be unloaded between polls. This is the case once the RTS and CTS have been
+	 * handled and there are no acks waiting to be inserted.
+	 */
+	boolean isIdle() {
+		synchronized(channelProps) {
+			String senderState = channelProps.get(PropsKeys.SENDER_STATE);
+			String recipientState = channelProps.get(PropsKeys.RECIPIENT_STATE);
+			if(!"cts-received".equals(senderState) && !"cts-sent".equals(recipientState)) {
+				//The RTSSender might still need to run
+				return false;
+			}
+			if("rts-received".equals(recipientState)) {
+				return false;
+			}
+		}
+
+		try {
+			synchronized(ackLog) {
+				return !ackLog.iterator().hasNext();
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Caugth IOException while checking acklog: " + e.getMessage(), e);
+			return false;
+		}
+	}
+
 	boolean canSendMessages() {
 		synchronized(channelProps) {
 			String rawTimeout = channelProps.get(PropsKeys.TIMEOUT);
@@ -620,6 +792,18 @@ class Channel {
 	private class Fetcher implements Runnable {
 		private final AtomicLong lastRun = new AtomicLong();
 
+		//Guarded by this
+		private int pollWindow = MIN_POLL_WINDOW;
+		private double hitRate = 0;
+
+		/** Returns the fetches to the poll budget as they finish */
+		private final FCPCallback<Bucket> budgetRelease = new FCPCallback<Bucket>() {
+			@Override
+			public void requestCompleted(Future<Bucket> result) {
+				pollScheduler.releaseFetch();
+			}
+		};
+
 		@Override
 		public synchronized void run() {
 			long curTime = System.currentTimeMillis();
@@ -698,85 +882,218 @@ class Channel {
 			}
 			basekey += fetchCode + "-";
 
-			String slot;
-			while((slot = slotManager.getNextSlot()) != null) {
-				String key = basekey + slot;
+			//Several slots are fetched at once, but the results are handled in slot order so that
+			//slotUsed() always refers to the slot we are looking at
+			slotManager.setPollAhead(Math.max(POLL_AHEAD, pollWindow));
+			Map<String, Future<Bucket>> probes = new HashMap<String, Future<Bucket>>();
+			int probed = 0;
+			int hits = 0;
+			try {
+				String slot;
+				while((slot = slotManager.getNextSlot()) != null) {
+					//The slot we need now waits for the fetch budget, while the ones after it
+					//are only fetched ahead of time if the budget allows it
+					if(!probes.containsKey(slot)) {
+						pollScheduler.acquireFetch();
+						probes.put(slot, fcpClient.fetchAsync(basekey + slot, SLOT_FETCH_OPTIONS, budgetRelease));
+						probed++;
+					}
+					for(String s : slotManager.peekSlots(pollWindow - 1)) {
+						if(probes.containsKey(s)) {
+							continue;
+						}
+						if(!pollScheduler.tryAcquireFetch()) {
+							break;
+						}
+						probes.put(s, fcpClient.fetchAsync(basekey + s, SLOT_FETCH_OPTIONS, budgetRelease));
+						probed++;
+					}
 
-				Logger.debug(this, "Attempting to fetch mail on key " + key);
-				File result;
-				try {
-					result = fcpClient.fetch(key);
-				} catch(ConnectionTerminatedException e) {
-					Logger.debug(this, "Connection terminated");
-					return;
-				} catch(FCPFetchException e) {
-					if(e.getCode() == FCPFetchException.INVALID_URI) {
-						//Could be a local bug or we could have gotten a bad key in the RTS
-						//TODO: This won't fix itself, so make sure the user notices
-						Logger.error(this, "Fetch failed because the URI was invalid");
+					Logger.debug(this, "Waiting for mail on key " + basekey + slot);
+					Future<Bucket> probe = probes.remove(slot);
+					Bucket result;
+					try {
+						result = probe.get(SLOT_FETCH_OPTIONS.getTimeout(), TimeUnit.MILLISECONDS);
+					} catch(TimeoutException e) {
+						probe.cancel(false);
+						Logger.error(this, "Timed out while trying to fetch message");
 						return;
-					}
+					} catch(ExecutionException e) {
+						Throwable cause = e.getCause();
+						if(cause instanceof ConnectionTerminatedException) {
+							Logger.debug(this, "Connection terminated");
+							return;
+						}
+						if(cause instanceof NoNodeConnectionException) {
+							Logger.normal(this, "No connection to node, will try again later");
+							schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
+							return;
+						}
+						if(!(cause instanceof FCPFetchException)) {
+							Logger.error(this, "Unexpected error while trying to fetch message: " + cause);
+							return;
+						}
 
-					if(e.isFatal()) {
-						Logger.normal(this, "Fatal fetch failure, marking slot as used");
-						slotManager.slotUsed();
-					}
+						FCPFetchException fe = (FCPFetchException) cause;
+						if(fe.getCode() == FCPFetchException.INVALID_URI) {
+							//Could be a local bug or we could have gotten a bad key in the RTS
+							//TODO: This won't fix itself, so make sure the user notices
+							Logger.error(this, "Fetch failed because the URI was invalid");
+							return;
+						}
 
-					Logger.minor(this, "No mail in slot (fetch returned " + e.getMessage() + ")");
-					continue;
-				} catch (FCPException e) {
-					Logger.error(this, "Unexpected error while trying to fetch message: " + e.getMessage());
-					return;
-				}
-				Logger.debug(this, "Fetch successful");
+						if(fe.getCode() == FCPFetchException.TOO_BIG) {
+							Logger.normal(this, "Slot contents are too large, marking slot as used");
+							slotManager.slotUsed();
+							continue;
+						}
 
-				PropsFile messageProps = PropsFile.createPropsFile(result, true);
-				String messageType = messageProps.get("messagetype");
+						if(fe.isFatal()) {
+							Logger.normal(this, "Fatal fetch failure, marking slot as used");
+							slotManager.slotUsed();
+						}
 
-				if(messageType == null) {
-					Logger.error(this, "Got message without messagetype, discarding");
-					slotManager.slotUsed();
-					result.delete();
-					continue;
-				}
+						Logger.minor(this, "No mail in slot (fetch returned " + fe.getMessage() + ")");
+						continue;
+					}
+					hits++;
+					recordTraffic();
 
-				if(messageType.equals("message")) {
-					if(handleMessage(result)) {
-						slotManager.slotUsed();
+					Logger.debug(this, "Fetch successful");
+					if(result == null) {
+						Logger.error(this, "Fetch returned no data");
+						continue;
 					}
-				} else if(messageType.equals("cts")) {
-					Logger.minor(this, "Successfully received CTS");
 
-					boolean success;
-					synchronized(channelProps) {
-						success = channelProps.put(PropsKeys.SENDER_STATE, "cts-received");
+					PropsFile messageProps;
+					try {
+						messageProps = PropsFile.createPropsFile(result.getInputStream(), true);
+					} catch(IOException e) {
+						Logger.error(this, "Couldn't read fetched data: " + e.getMessage());
+						result.free();
+						continue;
 					}
+					String messageType = messageProps.get("messagetype");
 
-					if(success) {
+					if(messageType == null) {
+						Logger.error(this, "Got message without messagetype, discarding");
 						slotManager.slotUsed();
+						messageProps.closeReader();
+						result.free();
+						continue;
 					}
-				} else if(messageType.equals("ack")) {
-					if(handleAck(result)) {
+
+					if(messageType.equals("message")) {
+						if(handleMessage(messageProps)) {
+							slotManager.slotUsed();
+						}
+					} else if(messageType.equals("cts")) {
+						Logger.minor(this, "Successfully received CTS");
+
+						boolean success;
+						synchronized(channelProps) {
+							success = channelProps.put(PropsKeys.SENDER_STATE, "cts-received");
+						}
+						notifyReplyDue();
+
+						if(success) {
+							slotManager.slotUsed();
+						}
+					} else if(messageType.equals("ack")) {
+						if(handleAck(messageProps)) {
+							slotManager.slotUsed();
+						}
+					} else {
+						Logger.error(this, "Got message of unknown type: " + messageType);
 						slotManager.slotUsed();
 					}
-				} else {
-					Logger.error(this, "Got message of unknown type: " + messageType);
-					slotManager.slotUsed();
+
+					messageProps.closeReader();
+					result.free();
+				}
+			} finally {
+				cancelProbes(probes);
+				adjustPollWindow(probed, hits);
+			}
+
+			//Reschedule, unless the channel is unloaded until the next poll
+			Activity activity = getActivity();
+			if(activity == Activity.COLD && isIdle()) {
+				ChannelEventCallback callback = channelEventCallback.get();
+				if(callback != null && callback.onIdle(Channel.this)) {
+					Logger.debug(this, "Channel is idle, leaving the next poll to the callback");
+					return;
+				}
+			}
+			schedule(activity);
+		}
+
+		/**
+		 * Returns how often this channel should be polled. Channels with recent traffic are
+		 * polled often, and so are channels where we have sent an RTS that hasn't been answered
+		 * yet, until the channel times out.
+		 */
+		private Activity getActivity() {
+			return Activity.classify(lastTraffic.get(), getReplyDue(), System.currentTimeMillis());
+		}
+
+		/**
+		 * Cancels the fetches that weren't needed, freeing the data of those that finished. The
+		 * look-ahead never goes past the end of the pass, so this only leaves anything when the
+		 * pass stops early. Cancelling removes those from the node too, and each keeps its share
+		 * of the fetch budget until the node has let go of it, so they can't pile up there.
+		 */
+		private void cancelProbes(Map<String, Future<Bucket>> probes) {
+			for(Future<Bucket> probe : probes.values()) {
+				if(probe.cancel(false)) {
+					continue;
 				}
 
-				if(!result.delete()) {
-					Logger.error(this, "Deletion of " + result + " failed");
+				try {
+					Bucket data = probe.get();
+					if(data != null) {
+						data.free();
+					}
+				} catch(ExecutionException e) {
+					//Nothing to free
+				} catch(CancellationException e) {
+					//Nothing to free
+				} catch(InterruptedException e) {
+					//Can't happen since the fetch is done
+					Thread.currentThread().interrupt();
 				}
 			}
+			probes.clear();
+		}
+
+		/**
+		 * Updates the recent hit rate with the result of a pass, and sizes the window for the
+		 * next pass to match. A burst of messages widens the window so that more of it is
+		 * fetched at once, and the window narrows again once the slots are empty.
+		 */
+		private void adjustPollWindow(int probed, int hits) {
+			if(probed == 0) {
+				return;
+			}
 
-			//Reschedule
-			schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
+			hitRate = (hitRate + (double) hits / probed) / 2;
+			pollWindow = MIN_POLL_WINDOW + (int) Math.round(hitRate * (MAX_POLL_WINDOW - MIN_POLL_WINDOW));
+			Logger.debug(this, "Found " + hits + " messages in " + probed + " slots, polling " + pollWindow + " slots at once");
 		}
 
 		public void execute() {
 			Logger.debug(this, "Scheduling Fetcher for execution");
 			try {
-				executor.execute(fetcher);
+				pollScheduler.execute(fetcher);
+			} catch(RejectedExecutionException e) {
+				Logger.debug(this, "Caugth RejectedExecutionException while scheduling Fetcher");
+			}
+		}
+
+		public void start() {
+			Logger.debug(this, "Scheduling Fetcher for first execution");
+			try {
+				pollScheduler.start(fetcher);
 			} catch(RejectedExecutionException e) {
 				Logger.debug(this, "Caugth RejectedExecutionException while scheduling Fetcher");
 			}
@@ -785,7 +1102,15 @@ class Channel {
 		public void schedule(long delay, TimeUnit unit) {
 			Logger.debug(this, "Scheduling Fetcher for execution in " + delay + " " + unit.toString().toLowerCase(Locale.ROOT));
 			try {
-				executor.schedule(fetcher, delay, unit);
+				pollScheduler.schedule(fetcher, delay, unit);
+			} catch(RejectedExecutionException e) {
+				Logger.debug(this, "Caugth RejectedExecutionException while scheduling Fetcher");
+			}
+		}
+
+		public void schedule(Activity activity) {
+			try {
+				pollScheduler.schedule(fetcher, activity);
 			} catch(RejectedExecutionException e) {
 				Logger.debug(this, "Caugth RejectedExecutionException while scheduling Fetcher");
 			}
@@ -876,6 +1201,7 @@ class Channel {
 				channelProps.put(PropsKeys.FETCH_CODE, "r");
 				channelProps.put(PropsKeys.TIMEOUT, "" + timeout);
 			}
+			notifyTimeout();
 
 			//Check the timeout. If the channel is already in
 			//read-only mode there is no need to resend the RTS
@@ -941,31 +1267,46 @@ class Channel {
 			mailsiteKey = mailsiteKey.substring(0, mailsiteKey.indexOf("/"));
 			mailsiteKey = mailsiteKey + "/mailsite/-" + mailisteEdition + "/mailpage";
 
-			//Fetch the mailsite
-			File mailsite;
-			try {
-				Logger.debug(this, "Fetching mailsite from " + mailsiteKey);
-				mailsite = fcpClient.fetch(mailsiteKey);
-			} catch(ConnectionTerminatedException e) {
-				Logger.debug(this, "FCP connection has been terminated");
-				return;
-			} catch(FCPFetchException e) {
-				Logger.debug(this, "Mailsite fetch failed (" + e + "), trying again in 5 minutes");
-				schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
-				return;
-			} catch (FCPException e) {
-				Logger.error(this, "Unexpected error while fetching mailsite: " + e.getMessage());
-				return;
-			}
+			//Use the cached mailsite if there is one, refreshing it in the background if it is old
+			MailsiteCache mailsiteCache = account.getMailsiteCache();
+			MailsiteCache.Entry mailsite = mailsiteCache.get(remoteId);
+			if(mailsite != null) {
+				Logger.debug(this, "Using cached mailsite (edition " + mailsite.getEdition() + ")");
+				if(MailsiteCache.isStale(mailsite, mailisteEdition)) {
+					mailsiteCache.refresh(remoteId, mailsiteKey, fcpClient, executor);
+				}
+			} else {
+				try {
+					mailsite = mailsiteCache.fetch(remoteId, mailsiteKey, fcpClient);
+				} catch(ConnectionTerminatedException e) {
+					Logger.debug(this, "FCP connection has been terminated");
+					return;
+				} catch(FCPFetchException e) {
+					if(e.getCode() == FCPFetchException.TOO_BIG) {
+						Logger.error(this, "Mailsite is too large, trying again in 1 hour");
+						schedule(1, TimeUnit.HOURS);
+						return;
+					}
 
-			//Get RTS KSK
-			PropsFile mailsiteProps = PropsFile.createPropsFile(mailsite, false);
-			String rtsKey = mailsiteProps.get("rtsksk");
-			if(rtsKey == null) {
-				Logger.error(this, "Mailsite is missing RTS KSK");
-				schedule(1, TimeUnit.HOURS);
-				return;
+					Logger.debug(this, "Mailsite fetch failed (" + e + "), trying again in 5 minutes");
+					schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
+					return;
+				} catch (FCPException e) {
+					Logger.error(this, "Unexpected error while fetching mailsite: " + e.getMessage());
+					return;
+				} catch(IOException e) {
+					Logger.error(this, "Couldn't read fetched mailsite: " + e.getMessage());
+					schedule(TASK_RETRY_DELAY, TimeUnit.MILLISECONDS);
+					return;
+				}
+
+				if(mailsite == null) {
+					Logger.error(this, "Mailsite is missing RTS KSK or public key");
+					schedule(1, TimeUnit.HOURS);
+					return;
+				}
 			}
+			String rtsKey = mailsite.getRtsKsk();
 
 			//Get the senders mailsite key
 			Logger.debug(this, "Getting sender identity from WoT");
@@ -1016,34 +1357,14 @@ class Channel {
 			}
 
 			//Encrypt the message using the recipients public key
-			String keyModulus = mailsiteProps.get("asymkey.modulus");
-			if(keyModulus == null) {
-				Logger.error(this, "Mailsite is missing public key modulus");
-				schedule(1, TimeUnit.HOURS);
-				return;
-			}
-
-			String keyExponent = mailsiteProps.get("asymkey.pubexponent");
-			if(keyExponent == null) {
-				Logger.error(this, "Mailsite is missing public key exponent");
-				schedule(1, TimeUnit.HOURS);
-				return;
-			}
-
-			byte[] rtsMessage = encryptMessage(signedMessage, keyModulus, keyExponent);
-
-			//Clean up the fetched mailsite
-			mailsiteProps = null;
-			if(!mailsite.delete()) {
-				Logger.error(this, "Couldn't delete " + mailsite);
-			}
+			byte[] rtsMessage = encryptMessage(signedMessage, mailsite.getModulus(), mailsite.getExponent());
 
 			//Insert
 			int slot;
 			try {
 				String key = "KSK@" + rtsKey + "-" + DateStringFactory.getKeyString();
 				Logger.debug(this, "Inserting RTS to " + key);
-				slot = fcpClient.slotInsert(rtsMessage, key, 1, "");
+				slot = fcpClient.slotInsert(rtsMessage, key, 1, "", FCPPriority.MEDIUM);
 			} catch(ConnectionTerminatedException e) {
 				return;
 			}
@@ -1061,6 +1382,7 @@ class Channel {
 				}
 				channelProps.put(PropsKeys.RTS_SENT_AT, Long.toString(System.currentTimeMillis()));
 			}
+			notifyReplyDue();
 
 			long delay = sendRTSIn();
 			if(delay < 0) {
@@ -1250,9 +1572,7 @@ class Channel {
 		}
 	}
 
-	private boolean handleMessage(File msg) {
-		// parse the Freemail header(s) out.
-		PropsFile msgprops = PropsFile.createPropsFile(msg, true);
+	private boolean handleMessage(PropsFile msgprops) {
 		String s_id = msgprops.get("id");
 		if(s_id == null) {
 			Logger.error(this, "Message is missing id. Discarding.");
@@ -1365,8 +1685,7 @@ class Channel {
 		}
 	}
 
-	private boolean handleAck(File result) {
-		PropsFile ackProps = PropsFile.createPropsFile(result);
+	private boolean handleAck(PropsFile ackProps) {
 		String ackString = ackProps.get("id");
 		if(ackString == null) {
 			Logger.error(this, "Received ack without id, discarding");
@@ -1415,5 +1734,24 @@ class Channel {
 	public interface ChannelEventCallback {
 		public void onAckReceived(long id);
 		public boolean handleMessage(Channel channel, BufferedReader message, long id);
+
+		/** Called when a message has been sent or received on the channel */
+		public void onTraffic(long time);
+
+		/** Called when the time when the channel stops accepting messages has been set */
+		public void onTimeoutChanged(long timeout);
+
+		/**
+		 * Called when the time until which a reply to our RTS is expected might have changed.
+		 * This is 0 once the RTS has been answered.
+		 */
+		public void onReplyDueChanged(long replyDue);
+
+		/**
+		 * Called when the channel is cold and has nothing to do until its next poll. If this
+		 * returns {@code true} the channel won't schedule the poll, and the callback is
+		 * responsible for polling again later, normally by loading the channel again.
+		 */
+		public boolean onIdle(Channel channel);
 	}
 }
@@ -29,14 +29,23 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.TimeUnit;
 
 import org.archive.util.Base32;
@@ -45,6 +54,7 @@ import org.freenetproject.freemail.Freemail.TaskType;
 import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.MailHeaderFilter;
 import org.freenetproject.freemail.MailMessage;
+import org.freenetproject.freemail.PollScheduler.Activity;
 import org.freenetproject.freemail.Postman;
 import org.freenetproject.freemail.fcp.HighLevelFCPClientFactory;
 import org.freenetproject.freemail.transport.Channel.ChannelEventCallback;
@@ -71,6 +81,8 @@ public class MessageHandler {
 	private static final String INDEX_NAME = "index";
 	private static final long RESEND_TIME = 24 * 60 * 60 * 1000;
 	private static final String MSG_LOG_NAME = "log";
+	private static final String SPOOL_NAME = "spool";
+	private static final String CHANNEL_INDEX_NAME = "index";
 
 	/**
 	 * Holds the static portions of the keys used in the index file. The values that are stored per
@@ -87,10 +99,43 @@ public class MessageHandler {
 		private static final String LAST_SEND_TIME = ".lastSendTime";
 		/** The message number used by the Channel for this message */
 		private static final String MSG_NUM = ".msgNum";
+		/**
+		 * The name of the spool file holding the message. Messages queued by older versions
+		 * don't have this, and are stored in the recipient outbox instead
+		 */
+		private static final String SPOOL_FILE = ".spoolFile";
+	}
+
+	/**
+	 * The keys used in the channel index, which is kept so that the channels don't have to be
+	 * loaded to find the right one. The values are stored per channel and must be appended to
+	 * the name of the channel directory.
+	 */
+	private static class ChannelIndexKeys {
+		/** The identity at the other end of the channel */
+		private static final String REMOTE_ID = ".remoteId";
+		/** The private key of the channel, if the channel was created from an RTS */
+		private static final String PRIVATE_KEY = ".privateKey";
+		/** The time when the channel stops accepting messages, once the RTS has been sent */
+		private static final String TIMEOUT = ".timeout";
+		/** The time when a message was last sent or received on the channel */
+		private static final String LAST_TRAFFIC = ".lastTraffic";
+		/**
+		 * The time until which a reply to our RTS is expected, which is only set while the
+		 * channel is waiting for one
+		 */
+		private static final String REPLY_DUE = ".replyDue";
 	}
 
 	private final File outbox;
-	private final List<Channel> channels = new LinkedList<Channel>();
+	private final MessageSpool spool;
+	private final PropsFile channelIndex;
+	/** All the channels, by the name of their directory */
+	private final ConcurrentHashMap<String, ChannelHandle> channels = new ConcurrentHashMap<String, ChannelHandle>();
+	/** The channels to each remote identity. Each list also locks the creation of new channels */
+	private final ConcurrentHashMap<String, List<ChannelHandle>> channelsByRemoteId = new ConcurrentHashMap<String, List<ChannelHandle>>();
+	/** The channels whose private key is known from the index, by private key */
+	private final ConcurrentHashMap<String, ChannelHandle> channelsByKey = new ConcurrentHashMap<String, ChannelHandle>();
 	private final Freemail freemail;
 	private final File channelDir;
 	private final FreemailAccount freemailAccount;
@@ -101,19 +146,26 @@ public class MessageHandler {
 	public MessageHandler(File outbox, Freemail freemail, File channelDir,
 	                      FreemailAccount freemailAccount, HighLevelFCPClientFactory hlFcpClientFactory) {
 		this.outbox = outbox;
+		this.spool = new MessageSpool(new File(outbox, SPOOL_NAME));
 		this.freemail = freemail;
 		this.channelDir = channelDir;
 		this.freemailAccount = freemailAccount;
 		this.hlFcpClientFactory = hlFcpClientFactory;
 
-		//Create and start all the channels
+		//Find all the channels. Only the index is read here, the channels themselves are loaded
+		//when they are first used or when they are due to be polled
 		if(!channelDir.exists()) {
 			if(!channelDir.mkdir()) {
 				Logger.error(this, "Couldn't create channel directory: " + channelDir);
 			}
 		}
+		channelIndex = PropsFile.createPropsFile(new File(channelDir, CHANNEL_INDEX_NAME));
 
 		for(File f : channelDir.listFiles()) {
+			if(f.getName().equals(CHANNEL_INDEX_NAME)) {
+				continue;
+			}
+
 			if(!f.isDirectory()) {
 				Logger.error(this, "Spurious file in channel directory: " + f);
 				continue;
@@ -129,11 +181,33 @@ public class MessageHandler {
 				continue;
 			}
 
+			String remoteId;
+			String privateKey;
+			synchronized(channelIndex) {
+				remoteId = channelIndex.get(f.getName() + ChannelIndexKeys.REMOTE_ID);
+				privateKey = channelIndex.get(f.getName() + ChannelIndexKeys.PRIVATE_KEY);
+			}
+			if(remoteId != null) {
+				if(isExpired(f.getName())) {
+					Logger.debug(this, "Deleting timed out channel " + f);
+					if(!Channel.deleteChannel(f)) {
+						Logger.error(this, "Failed to delete channel because there are files left in " + f);
+					}
+					continue;
+				}
+				addChannel(new ChannelHandle(f, remoteId, null), privateKey);
+				continue;
+			}
+
+			//Channel from before the index was kept, so load it now to add it
 			Logger.debug(this, "Initializing channel from directory " + f);
 			try {
 				Channel channel = new Channel(f, freemail.getExecutor(TaskType.UNSPECIFIED), hlFcpClientFactory.newInstance(), freemail, freemailAccount, null);
-				channel.setCallback(new AckCallback(channel.getRemoteIdentity()));
-				channels.add(channel);
+				remoteId = channel.getRemoteIdentity();
+				if(remoteId == null) {
+					throw new IllegalStateException("Channel has no remote identity");
+				}
+				addChannel(new ChannelHandle(f, remoteId, channel), channel.getPrivateKey());
 			} catch(ChannelTimedOutException e) {
 				Logger.debug(this, "Deleting timed out channel");
 				if(!Channel.deleteChannel(f)) {
@@ -148,29 +222,68 @@ public class MessageHandler {
 				}
 			}
 		}
+
+		//Drop index entries of channels that have been deleted
+		synchronized(channelIndex) {
+			if(channelIndex.exists()) {
+				for(String key : new ArrayList<String>(channelIndex.listProps())) {
+					int end = key.indexOf('.');
+					if(end < 0 || !channels.containsKey(key.substring(0, end))) {
+						channelIndex.remove(key);
+					}
+				}
+			}
+		}
+
+		//Get rid of anything left over from a send that was interrupted. This must be done
+		//before sendMessage() can be called since it would delete messages that are being spooled
+		reconcileSpool();
+	}
+
+	private void reconcileSpool() {
+		Map<String, Integer> references = new HashMap<String, Integer>();
+
+		File[] outboxFiles = outbox.listFiles();
+		if(outboxFiles == null) {
+			return;
+		}
+
+		for(File rcptOutbox : outboxFiles) {
+			if(!rcptOutbox.isDirectory() || rcptOutbox.getName().equals(SPOOL_NAME)) {
+				continue;
+			}
+
+			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+			for(String identifier : listIdentifiers(rcptOutbox)) {
+				String spoolFile;
+				synchronized(props) {
+					spoolFile = props.get(identifier + IndexKeys.SPOOL_FILE);
+				}
+				if(spoolFile == null) {
+					continue;
+				}
+
+				Integer count = references.get(spoolFile);
+				references.put(spoolFile, (count == null) ? 1 : count.intValue() + 1);
+			}
+		}
+
+		spool.reconcile(references);
 	}
 
 	public void start() {
 		if(outbox.isDirectory()) {
 			for(File rcptOutbox : outbox.listFiles()) {
+				if(rcptOutbox.getName().equals(SPOOL_NAME)) {
+					continue;
+				}
+
 				if(!rcptOutbox.isDirectory()) {
 					Logger.error(this, "Spurious file in outbox: " + rcptOutbox);
 					continue;
 				}
 
-				for(File f : rcptOutbox.listFiles()) {
-					if(!f.isFile()) {
-						Logger.error(this, "Spurious file in contact outbox: " + f);
-						continue;
-					}
-
-					String identifier = f.getName();
-
-					//Skip log and index
-					if(identifier.equals(INDEX_NAME) || identifier.equals(MSG_LOG_NAME)) {
-						continue;
-					}
-
+				for(String identifier : listIdentifiers(rcptOutbox)) {
 					String rawMsgNum;
 					PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
 					synchronized (props) {
@@ -183,18 +296,27 @@ public class MessageHandler {
 						ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
 						tasks.put(Long.toString(num), senderExecutor.schedule(new SenderTask(rcptOutbox, num), 0, TimeUnit.NANOSECONDS));
 					} catch(NumberFormatException e) {
-						Logger.error(this, "Found file without valid message number: " + f);
+						Logger.error(this, "Found index entry without valid message number: " + identifier);
 						continue;
 					}
 				}
 			}
 		}
 
-		//Start the channel tasks
-		synchronized(channels) {
-			for(Channel channel : channels) {
-				channel.startTasks();
-			}
+		//Start the channels that are already loaded, and schedule the first poll of the others
+		//based on the activity recorded in the index. Those are loaded when the poll is due
+		for(ChannelHandle handle : channels.values()) {
+			handle.start();
+		}
+	}
+
+	/**
+	 * Writes the channel state that is only kept in memory to the index. Called when Freemail
+	 * shuts down.
+	 */
+	public void terminate() {
+		for(ChannelHandle handle : channels.values()) {
+			handle.saveTraffic();
 		}
 	}
 
@@ -206,6 +328,11 @@ public class MessageHandler {
 			}
 		}
 
+		if(recipients.isEmpty()) {
+			return true;
+		}
+
+		List<File> rcptOutboxes = new ArrayList<File>(recipients.size());
 		for(Identity recipient : recipients) {
 			File rcptOutbox = new File(outbox, recipient.getBase32IdentityID());
 			if(!rcptOutbox.exists()) {
@@ -214,17 +341,52 @@ public class MessageHandler {
 					return false;
 				}
 			}
+			rcptOutboxes.add(rcptOutbox);
+		}
+
+		//The filtered message is the same for all the recipients, so it is only stored once
+		String spoolFile = spoolMessage(message, recipients.size());
+
+		for(int i = 0; i < recipients.size(); i++) {
+			Identity recipient = recipients.get(i);
+			File rcptOutbox = rcptOutboxes.get(i);
 
 			long msgNum = getMessageNumber(rcptOutbox);
 			String identifier = Long.toString(msgNum);
-			File messageFile = new File(rcptOutbox, "" + identifier);
 
-			if(!messageFile.createNewFile()) {
-				Logger.error(this, "Message file " + messageFile + " already exists");
-				return false;
+			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+			synchronized(props) {
+				props.put(identifier + IndexKeys.SPOOL_FILE, spoolFile);
+				props.put(identifier + IndexKeys.RECIPIENT, recipient.getIdentityID());
+				props.put(identifier + IndexKeys.MSG_NUM, Long.toString(msgNum));
 			}
 
-			OutputStream os = new FileOutputStream(messageFile);
+			ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
+			tasks.put(identifier, senderExecutor.submit(new SenderTask(rcptOutbox, msgNum)));
+		}
+
+		return true;
+	}
+
+	/**
+	 * Filters the headers of the message and writes the result to the spool.
+	 *
+	 * @param message the message as received from the client
+	 * @param references the number of recipients that will refer to the spooled message
+	 * @return the name of the spool file
+	 */
+	private String spoolMessage(Bucket message, int references) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			throw new AssertionError("JVM doesn't support SHA-256");
+		}
+
+		File tempFile = spool.createTempFile();
+		boolean done = false;
+		try {
+			OutputStream os = new DigestOutputStream(new FileOutputStream(tempFile), digest);
 			PrintWriter pw = new PrintWriter(os);
 			InputStream messageStream = message.getInputStream();
 			BufferedReader reader = new BufferedReader(new InputStreamReader(messageStream));
@@ -250,23 +412,61 @@ public class MessageHandler {
 				Closer.close(reader);
 			}
 
-			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
-			synchronized(props) {
-				props.put(identifier + IndexKeys.RECIPIENT, recipient.getIdentityID());
-				props.put(identifier + IndexKeys.MSG_NUM, Long.toString(msgNum));
+			String name = spool.add(tempFile, digest.digest(), references);
+			done = true;
+			return name;
+		} finally {
+			if(!done && !tempFile.delete()) {
+				Logger.error(this, "Couldn't delete " + tempFile);
 			}
+		}
+	}
 
-			ScheduledExecutorService senderExecutor = freemail.getExecutor(TaskType.SENDER);
-			tasks.put(identifier, senderExecutor.submit(new SenderTask(rcptOutbox, msgNum)));
+	/**
+	 * Returns the file holding the message with the given identifier, which is either in the
+	 * spool or, for messages queued by older versions, in the recipient outbox.
+	 */
+	private File getMessageFile(File rcptOutbox, String identifier) {
+		String spoolFile;
+		PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+		synchronized(props) {
+			spoolFile = props.get(identifier + IndexKeys.SPOOL_FILE);
 		}
 
-		return true;
+		if(spoolFile != null) {
+			return spool.getFile(spoolFile);
+		}
+		return new File(rcptOutbox, identifier);
+	}
+
+	/**
+	 * Returns the identifiers of the messages in the index of the recipient outbox.
+	 */
+	private List<String> listIdentifiers(File rcptOutbox) {
+		List<String> identifiers = new LinkedList<String>();
+
+		PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
+		synchronized(props) {
+			if(!props.exists()) {
+				return identifiers;
+			}
+
+			for(String key : props.listProps()) {
+				if(key.endsWith(IndexKeys.MSG_NUM)) {
+					identifiers.add(key.substring(0, key.length() - IndexKeys.MSG_NUM.length()));
+				}
+			}
+		}
+
+		return identifiers;
 	}
 
 	private Channel getChannel(String remoteIdentity) {
-		synchronized(channels) {
-			for(Channel c : channels) {
-				if(remoteIdentity.equals(c.getRemoteIdentity()) && c.canSendMessages()) {
+		List<ChannelHandle> remoteChannels = getChannels(remoteIdentity);
+		synchronized(remoteChannels) {
+			for(ChannelHandle handle : remoteChannels) {
+				Channel c = handle.get();
+				if(c != null && c.canSendMessages()) {
 					return c;
 				}
 			}
@@ -281,28 +481,43 @@ public class MessageHandler {
 			Channel channel;
 			try {
 				channel = new Channel(newChannelDir, freemail.getExecutor(TaskType.UNSPECIFIED), hlFcpClientFactory.newInstance(), freemail, freemailAccount, remoteIdentity);
-				channel.setCallback(new AckCallback(remoteIdentity));
 			} catch(ChannelTimedOutException e) {
 				//Can't happen since we're creating a new channel
 				throw new AssertionError("Caugth ChannelTimedOutException when creating a new channel");
 			}
-			channel.startTasks();
-			channels.add(channel);
+			ChannelHandle handle = new ChannelHandle(newChannelDir, remoteIdentity, channel);
+			addChannel(handle, null);
 
-			return channel;
+			return handle.get();
 		}
 	}
 
 	public void createChannelFromRTS(PropsFile rtsProps) {
-		//First try to find a channel with the same key
 		String rtsPrivateKey = rtsProps.get("channel");
-		synchronized(channels) {
-			for(Channel c : channels) {
-				if(rtsPrivateKey.equals(c.getPrivateKey())) {
-					c.processRTS(rtsProps);
-					return;
+
+		String remoteIdentity = rtsProps.get("mailsite");
+		remoteIdentity = remoteIdentity.substring(remoteIdentity.indexOf("@") + 1); //Strip USK@
+		remoteIdentity = remoteIdentity.substring(0, remoteIdentity.indexOf(","));
+
+		List<ChannelHandle> remoteChannels = getChannels(remoteIdentity);
+		synchronized(remoteChannels) {
+			//First try to find a channel with the same key. Only channels created from an RTS
+			//are in the index, so check the other channels to the same identity as well
+			ChannelHandle indexed = channelsByKey.get(rtsPrivateKey);
+			Channel existing = (indexed != null) ? indexed.get() : null;
+			for(ChannelHandle handle : remoteChannels) {
+				if(existing != null) {
+					break;
+				}
+				Channel c = handle.get();
+				if(c != null && rtsPrivateKey.equals(c.getPrivateKey())) {
+					existing = c;
 				}
 			}
+			if(existing != null) {
+				existing.processRTS(rtsProps);
+				return;
+			}
 
 			//Create a new channel from the RTS values
 			Logger.debug(this, "Creating new channel from RTS");
@@ -312,24 +527,128 @@ public class MessageHandler {
 				return;
 			}
 
-			String remoteIdentity = rtsProps.get("mailsite");
-			remoteIdentity = remoteIdentity.substring(remoteIdentity.indexOf("@") + 1); //Strip USK@
-			remoteIdentity = remoteIdentity.substring(0, remoteIdentity.indexOf(","));
-
 			Channel channel;
 			try {
 				channel = new Channel(newChannelDir, freemail.getExecutor(TaskType.UNSPECIFIED), hlFcpClientFactory.newInstance(), freemail, freemailAccount, remoteIdentity);
-				channel.setCallback(new AckCallback(remoteIdentity));
 			} catch(ChannelTimedOutException e) {
 				//Can't happen since we're creating a new channel
 				throw new AssertionError("Caugth ChannelTimedOutException when creating a new channel");
 			}
+			ChannelHandle handle = new ChannelHandle(newChannelDir, remoteIdentity, channel);
 			channel.processRTS(rtsProps);
-			channel.startTasks();
-			channels.add(channel);
+			addChannel(handle, rtsPrivateKey);
+			handle.get();
 		}
 	}
 
+	/**
+	 * Returns the list of channels to the given identity, creating it if needed.
+	 */
+	private List<ChannelHandle> getChannels(String remoteIdentity) {
+		List<ChannelHandle> remoteChannels = channelsByRemoteId.get(remoteIdentity);
+		if(remoteChannels == null) {
+			List<ChannelHandle> created = new CopyOnWriteArrayList<ChannelHandle>();
+			remoteChannels = channelsByRemoteId.putIfAbsent(remoteIdentity, created);
+			if(remoteChannels == null) {
+				remoteChannels = created;
+			}
+		}
+		return remoteChannels;
+	}
+
+	/**
+	 * Adds the channel to the lookup maps and the index.
+	 * @param privateKey the private key of the channel if it should be found by key, or
+	 *            {@code null}
+	 */
+	private void addChannel(ChannelHandle handle, String privateKey) {
+		String name = handle.dir.getName();
+		channels.put(name, handle);
+		getChannels(handle.remoteId).add(handle);
+		if(privateKey != null) {
+			channelsByKey.put(privateKey, handle);
+		}
+
+		synchronized(channelIndex) {
+			channelIndex.put(name + ChannelIndexKeys.REMOTE_ID, handle.remoteId);
+			if(privateKey != null) {
+				channelIndex.put(name + ChannelIndexKeys.PRIVATE_KEY, privateKey);
+			}
+		}
+	}
+
+	/**
+	 * Removes the channel from the lookup maps and the index, and deletes it.
+	 */
+	private void deleteChannel(ChannelHandle handle) {
+		String name = handle.dir.getName();
+		channels.remove(name);
+		getChannels(handle.remoteId).remove(handle);
+
+		String privateKey;
+		synchronized(channelIndex) {
+			privateKey = channelIndex.get(name + ChannelIndexKeys.PRIVATE_KEY);
+			channelIndex.remove(name + ChannelIndexKeys.REMOTE_ID);
+			channelIndex.remove(name + ChannelIndexKeys.PRIVATE_KEY);
+			channelIndex.remove(name + ChannelIndexKeys.TIMEOUT);
+			channelIndex.remove(name + ChannelIndexKeys.LAST_TRAFFIC);
+			channelIndex.remove(name + ChannelIndexKeys.REPLY_DUE);
+		}
+		if(privateKey != null) {
+			channelsByKey.remove(privateKey, handle);
+		}
+
+		if(!Channel.deleteChannel(handle.dir)) {
+			Logger.error(this, "Failed to delete channel because there are files left in " + handle.dir);
+		}
+	}
+
+	/**
+	 * Returns the value of a time stored in the channel index, or 0 if there is none.
+	 */
+	private long getIndexedTime(String name, String key) {
+		String raw;
+		synchronized(channelIndex) {
+			raw = channelIndex.get(name + key);
+		}
+		if(raw == null) {
+			return 0;
+		}
+
+		try {
+			return Long.parseLong(raw);
+		} catch(NumberFormatException e) {
+			Logger.error(this, "Illegal value in channel index for " + name + key + ": " + raw);
+			return 0;
+		}
+	}
+
+	/**
+	 * Stores a time in the channel index. A time of 0 removes it.
+	 */
+	private void setIndexedTime(String name, String key, long time) {
+		synchronized(channelIndex) {
+			//Every put rewrites the index, so skip it if nothing changed
+			if(getIndexedTime(name, key) == time) {
+				return;
+			}
+			if(time == 0) {
+				channelIndex.remove(name + key);
+			} else {
+				channelIndex.put(name + key, time);
+			}
+		}
+	}
+
+	/**
+	 * Returns {@code true} if the index shows that the channel has timed out completely, so it
+	 * can be deleted without being loaded.
+	 */
+	private boolean isExpired(String name) {
+		long timeout = getIndexedTime(name, ChannelIndexKeys.TIMEOUT);
+		return (timeout != 0) && (timeout + Channel.CHANNEL_TIMEOUT < System.currentTimeMillis());
+	}
+
 	public List<OutboxMessage> listOutboxMessages() throws IOException {
 		List<OutboxMessage> messages = new LinkedList<OutboxMessage>();
 
@@ -339,13 +658,13 @@ public class MessageHandler {
 		}
 
 		for(File rcptOutbox : outboxFiles) {
-			if(!rcptOutbox.isDirectory()) {
+			if(!rcptOutbox.isDirectory() || rcptOutbox.getName().equals(SPOOL_NAME)) {
 				continue;
 			}
 
 			PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
-			for(File message : rcptOutbox.listFiles()) {
-				String identifier = message.getName();
+			for(String identifier : listIdentifiers(rcptOutbox)) {
+				File message = getMessageFile(rcptOutbox, identifier);
 
 				String recipient;
 				String firstSendTime;
@@ -512,7 +831,7 @@ public class MessageHandler {
 			boolean inserted;
 			while(true) {
 				c = getChannel(recipient);
-				Bucket message = new FileBucket(new File(rcptOutbox, identifier), false, false, false, false);
+				Bucket message = new FileBucket(getMessageFile(rcptOutbox, identifier), true, false, false, false);
 				try {
 					inserted = c.sendMessage(message, msgNum);
 				} catch(ChannelTimedOutException e) {
@@ -530,21 +849,224 @@ public class MessageHandler {
 		}
 	}
 
-	private void deleteIndexEntries(File rcptOutbox, String identifier) {
+	/**
+	 * Removes the index entries of the message.
+	 *
+	 * @return the name of the spool file that the message referred to, or {@code null} if it
+	 *         didn't refer to one
+	 */
+	private String deleteIndexEntries(File rcptOutbox, String identifier) {
 		PropsFile props = PropsFile.createPropsFile(new File(rcptOutbox, INDEX_NAME));
 		synchronized(props) {
+			String spoolFile = props.get(identifier + IndexKeys.SPOOL_FILE);
+			if(spoolFile != null) {
+				props.remove(identifier + IndexKeys.SPOOL_FILE);
+			}
 			props.remove(identifier + IndexKeys.FIRST_SEND_TIME);
 			props.remove(identifier + IndexKeys.LAST_SEND_TIME);
 			props.remove(identifier + IndexKeys.RECIPIENT);
 			props.remove(identifier + IndexKeys.MSG_NUM);
+			return spoolFile;
+		}
+	}
+
+	/**
+	 * A channel that is loaded from disk the first time it is needed, either because it is looked
+	 * up or because it is due to be polled. Loading a channel starts its tasks. Cold channels with
+	 * nothing left to do are unloaded again between polls. Channels that turn out to have timed
+	 * out or to be broken when they are loaded are deleted.
+	 */
+	private class ChannelHandle {
+		private final File dir;
+		private final String remoteId;
+
+		//All guarded by this
+		private Channel channel;
+		private boolean deleted = false;
+		private boolean started = false;
+		/** The poll that will load the channel, stale polls do nothing */
+		private Runnable pendingPoll;
+
+		/** The last traffic on the channel if the index hasn't been updated yet, otherwise 0 */
+		private final AtomicLong unsavedTraffic = new AtomicLong();
+
+		private ChannelHandle(File dir, String remoteId, Channel channel) {
+			this.dir = dir;
+			this.remoteId = remoteId;
+			this.channel = channel;
+			if(channel != null) {
+				channel.setCallback(new AckCallback(this));
+				indexActivity(channel);
+			}
+		}
+
+		/**
+		 * Returns the channel, loading it and starting its tasks if needed.
+		 * @return the channel, or {@code null} if it has been deleted
+		 */
+		private synchronized Channel get() {
+			if(deleted) {
+				return null;
+			}
+
+			if(channel == null) {
+				Logger.debug(this, "Loading channel from directory " + dir);
+				try {
+					channel = new Channel(dir, freemail.getExecutor(TaskType.UNSPECIFIED), hlFcpClientFactory.newInstance(), freemail, freemailAccount, null);
+					channel.setCallback(new AckCallback(this));
+				} catch(ChannelTimedOutException e) {
+					Logger.debug(this, "Deleting timed out channel");
+					delete();
+					return null;
+				} catch(IllegalStateException e) {
+					//Channel is broken for some reason so get rid of it
+					Logger.error(this, "Deleting broken channel");
+					delete();
+					return null;
+				}
+				indexActivity(channel);
+			}
+
+			//Any poll that is still scheduled is no longer needed
+			pendingPoll = null;
+			if(!started) {
+				started = true;
+				channel.startTasks();
+			}
+			return channel;
+		}
+
+		/**
+		 * Starts the tasks of the channel if it is loaded, otherwise schedules the first poll
+		 * using the activity stored in the index.
+		 */
+		private synchronized void start() {
+			if(channel != null) {
+				get();
+				return;
+			}
+
+			String name = dir.getName();
+			Activity activity = Activity.classify(getIndexedTime(name, ChannelIndexKeys.LAST_TRAFFIC),
+					getIndexedTime(name, ChannelIndexKeys.REPLY_DUE), System.currentTimeMillis());
+			schedulePoll(activity);
+		}
+
+		/**
+		 * Unloads the channel if it is still the current one. The channel is loaded again when
+		 * the next poll is due, or earlier if it is looked up.
+		 */
+		private synchronized boolean unload(Channel c) {
+			if(c != channel) {
+				return false;
+			}
+
+			Logger.debug(this, "Unloading idle channel " + dir);
+			saveTraffic();
+			channel = null;
+			started = false;
+			return schedulePoll(Activity.COLD);
+		}
+
+		private synchronized boolean schedulePoll(Activity activity) {
+			Runnable poll = new Runnable() {
+				@Override
+				public void run() {
+					poll(this);
+				}
+
+				@Override
+				public String toString() {
+					return "Channel loader [" + dir + "]";
+				}
+			};
+
+			try {
+				freemail.getPollScheduler().schedule(poll, activity);
+			} catch(RejectedExecutionException e) {
+				Logger.debug(this, "Caugth RejectedExecutionException while scheduling channel poll");
+				return false;
+			}
+			pendingPoll = poll;
+			return true;
+		}
+
+		private synchronized void poll(Runnable poll) {
+			if(poll != pendingPoll) {
+				return;
+			}
+			pendingPoll = null;
+
+			if(isExpired(dir.getName())) {
+				Logger.debug(this, "Deleting timed out channel");
+				delete();
+				return;
+			}
+			get();
+		}
+
+		/**
+		 * Copies the timeout, traffic time and reply deadline of the channel to the index.
+		 * Channels that were indexed by older versions don't have these yet.
+		 */
+		private void indexActivity(Channel c) {
+			String name = dir.getName();
+			if(c.getTimeout() != 0) {
+				setIndexedTime(name, ChannelIndexKeys.TIMEOUT, c.getTimeout());
+			}
+			if(c.getLastTraffic() != 0) {
+				setIndexedTime(name, ChannelIndexKeys.LAST_TRAFFIC, c.getLastTraffic());
+			}
+			setIndexedTime(name, ChannelIndexKeys.REPLY_DUE, c.getReplyDue());
+		}
+
+		/**
+		 * Records traffic on the channel. The traffic time in the index is only used to
+		 * schedule the first poll of an unloaded channel, so the index is only rewritten now if
+		 * that poll would be scheduled differently. Otherwise it is written when the channel is
+		 * unloaded or Freemail shuts down.
+		 */
+		private void trafficSeen(long time) {
+			String name = dir.getName();
+			long now = System.currentTimeMillis();
+			long replyDue = getIndexedTime(name, ChannelIndexKeys.REPLY_DUE);
+			Activity indexed = Activity.classify(getIndexedTime(name, ChannelIndexKeys.LAST_TRAFFIC), replyDue, now);
+			if(indexed == Activity.classify(time, replyDue, now)) {
+				unsavedTraffic.set(time);
+				return;
+			}
+
+			unsavedTraffic.set(0);
+			setIndexedTime(name, ChannelIndexKeys.LAST_TRAFFIC, time);
+		}
+
+		private synchronized void saveTraffic() {
+			long time = unsavedTraffic.getAndSet(0);
+			if(time != 0 && !deleted) {
+				setIndexedTime(dir.getName(), ChannelIndexKeys.LAST_TRAFFIC, time);
+			}
+		}
+
+		private void delete() {
+			deleted = true;
+			channel = null;
+			deleteChannel(this);
+		}
+
+		@Override
+		public String toString() {
+			return "ChannelHandle [" + dir + "]";
 		}
 	}
 
 	private class AckCallback extends Postman implements ChannelEventCallback {
+		private final ChannelHandle handle;
 		private final String remoteId;
 		private final MessageLog msgLog;
 
-		private AckCallback(String remoteId) {
+		private AckCallback(ChannelHandle handle) {
+			this.handle = handle;
+			String remoteId = handle.remoteId;
 			assert (remoteId != null);
 			try {
 				this.remoteId = Base32.encode(Base64.decode(remoteId)).toLowerCase(Locale.ROOT);
@@ -568,18 +1090,22 @@ public class MessageHandler {
 		public void onAckReceived(long id) {
 			File rcptOutbox = new File(outbox, remoteId);
 
-			File message = new File(rcptOutbox, "" + id);
-			if(message.exists()) {
-				Logger.minor(this, "Received ack, deleting message file: " + message);
-				if(!message.delete()) {
-					Logger.error(this, "Couldn't delete " + message);
-				}
+			String spoolFile = deleteIndexEntries(rcptOutbox, Long.toString(id));
+			if(spoolFile != null) {
+				Logger.minor(this, "Received ack, releasing spool file " + spoolFile);
+				spool.release(spoolFile);
 			} else {
-				Logger.minor(this, "Received ack but message file doesn't exits: " + message);
+				File message = new File(rcptOutbox, "" + id);
+				if(message.exists()) {
+					Logger.minor(this, "Received ack, deleting message file: " + message);
+					if(!message.delete()) {
+						Logger.error(this, "Couldn't delete " + message);
+					}
+				} else {
+					Logger.minor(this, "Received ack but message file doesn't exits: " + message);
+				}
 			}
 
-			deleteIndexEntries(rcptOutbox, Long.toString(id));
-
 			Future<?> task = tasks.remove(Long.toString(id));
 			if(task != null) {
 				//Stop the insert if possible, but don't interrupt since the FCP code ignores it
@@ -619,6 +1145,26 @@ public class MessageHandler {
 			return true;
 		}
 
+		@Override
+		public void onTraffic(long time) {
+			handle.trafficSeen(time);
+		}
+
+		@Override
+		public void onTimeoutChanged(long timeout) {
+			setIndexedTime(handle.dir.getName(), ChannelIndexKeys.TIMEOUT, timeout);
+		}
+
+		@Override
+		public void onReplyDueChanged(long replyDue) {
+			setIndexedTime(handle.dir.getName(), ChannelIndexKeys.REPLY_DUE, replyDue);
+		}
+
+		@Override
+		public boolean onIdle(Channel channel) {
+			return handle.unload(channel);
+		}
+
 		@Override
 		public boolean validateFrom(EmailAddress address) {
 			if(remoteId.equalsIgnoreCase(address.getSubDomain())) {
@@ -0,0 +1,176 @@
+/*
+ * MessageSpool.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+
+import org.archive.util.Base32;
+import org.freenetproject.freemail.utils.Logger;
+import org.freenetproject.freemail.utils.PropsFile;
+
+/**
+ * Holds a single copy of each outgoing message, shared by all the recipients of the message. The
+ * files are named after the hash of their content, and the index keeps track of how many
+ * recipient outboxes refer to each file so it can be deleted when the last recipient has acked
+ * the message.
+ */
+class MessageSpool {
+	private static final String INDEX_NAME = "index";
+	private static final String TEMP_PREFIX = "tmp-";
+
+	/** The number of recipient outbox entries that refer to the file */
+	private static final String REFERENCES = ".references";
+
+	private final File dir;
+	private final PropsFile index;
+
+	MessageSpool(File dir) {
+		this.dir = dir;
+		this.index = PropsFile.createPropsFile(new File(dir, INDEX_NAME));
+	}
+
+	/**
+	 * Creates a new temporary file in the spool. The message should be written to the file and
+	 * then added using {@link #add(File, byte[], int)}.
+	 */
+	File createTempFile() throws IOException {
+		if(!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Couldn't create spool directory " + dir);
+		}
+		return File.createTempFile(TEMP_PREFIX, null, dir);
+	}
+
+	/**
+	 * Moves {@code temp} into the spool under a name derived from {@code digest}, which must be
+	 * the hash of its content. If the spool already contains a file with the same content the
+	 * temporary file is deleted and the existing file is used instead.
+	 *
+	 * @param temp a file returned by {@link #createTempFile()}
+	 * @param digest the hash of the content of {@code temp}
+	 * @param references the number of references to add to the file
+	 * @return the name of the file, used to refer to it later
+	 * @throws IOException if the file couldn't be moved into the spool
+	 */
+	String add(File temp, byte[] digest, int references) throws IOException {
+		String name = Base32.encode(digest).toLowerCase(Locale.ROOT);
+		File file = new File(dir, name);
+
+		synchronized(index) {
+			if(file.exists()) {
+				Logger.debug(this, "Message already spooled as " + name);
+				if(!temp.delete()) {
+					Logger.error(this, "Couldn't delete " + temp);
+				}
+			} else if(!temp.renameTo(file)) {
+				throw new IOException("Couldn't move " + temp + " to " + file);
+			}
+
+			index.put(name + REFERENCES, getReferences(name) + references);
+		}
+
+		return name;
+	}
+
+	File getFile(String name) {
+		return new File(dir, name);
+	}
+
+	/**
+	 * Removes one reference to the file, deleting it if it was the last one.
+	 */
+	void release(String name) {
+		synchronized(index) {
+			int references = getReferences(name) - 1;
+			if(references > 0) {
+				index.put(name + REFERENCES, references);
+				return;
+			}
+
+			Logger.minor(this, "Last reference released, deleting " + name);
+			File file = new File(dir, name);
+			if(file.exists() && !file.delete()) {
+				Logger.error(this, "Couldn't delete " + file);
+			}
+			removeReferences(name);
+		}
+	}
+
+	/**
+	 * Sets the reference counts to the values in {@code references} and deletes any file that
+	 * isn't referenced, along with left over temporary files. This fixes the counts if Freemail
+	 * was stopped before the recipient outboxes were updated.
+	 *
+	 * @param references the number of references to each file, keyed by file name
+	 */
+	void reconcile(Map<String, Integer> references) {
+		File[] files = dir.listFiles();
+		if(files == null) {
+			return;
+		}
+
+		synchronized(index) {
+			for(File file : files) {
+				String name = file.getName();
+				if(name.equals(INDEX_NAME)) {
+					continue;
+				}
+
+				Integer count = references.get(name);
+				if(count == null) {
+					Logger.normal(this, "Deleting unreferenced spool file " + file);
+					if(!file.delete()) {
+						Logger.error(this, "Couldn't delete " + file);
+					}
+					removeReferences(name);
+				} else if(count.intValue() != getReferences(name)) {
+					Logger.normal(this, "Correcting reference count of " + name + " to " + count);
+					index.put(name + REFERENCES, count.intValue());
+				}
+			}
+		}
+	}
+
+	private void removeReferences(String name) {
+		//PropsFile can't remove keys from a file that doesn't exist yet
+		if(index.get(name + REFERENCES) != null) {
+			index.remove(name + REFERENCES);
+		}
+	}
+
+	int getReferences(String name) {
+		synchronized(index) {
+			String raw = index.get(name + REFERENCES);
+			if(raw == null) {
+				return 0;
+			}
+
+			try {
+				return Integer.parseInt(raw);
+			} catch(NumberFormatException e) {
+				Logger.error(this, "Invalid reference count for " + name + ": " + raw);
+				return 0;
+			}
+		}
+	}
+}
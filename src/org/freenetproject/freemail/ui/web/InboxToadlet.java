@@ -24,10 +24,11 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.util.Comparator;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -40,6 +41,9 @@ import org.freenetproject.freemail.AccountManager;
 import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.MailMessage;
 import org.freenetproject.freemail.MessageBank;
+import org.freenetproject.freemail.MessageSortKey;
+import org.freenetproject.freemail.MessageSummary;
+import org.freenetproject.freemail.MessageSummaryCache;
 import org.freenetproject.freemail.l10n.FreemailL10n;
 import org.freenetproject.freemail.utils.EmailAddress;
 import org.freenetproject.freemail.utils.Logger;
@@ -103,7 +107,10 @@ public class InboxToadlet extends WebPage {
 		header.addChild("th").addChild("a", "href", getSortLink(SortField.DATE, !getSortDirection(req)), FreemailL10n.getString("Freemail.InboxToadlet.date"));
 
 		//Sort the messages correctly
-		SortedMap<MailMessage, Integer> messages = new TreeMap<MailMessage, Integer>(new MailMessageComparator(getSortField(req), getSortDirection(req)));
+		MessageSummaryCache summaryCache = messageBank.getSummaryCache();
+		Map<MailMessage, MessageSummary> summaries = new HashMap<MailMessage, MessageSummary>();
+		SortedMap<MailMessage, Integer> messages = new TreeMap<MailMessage, Integer>(
+				new MailMessageComparator(getSortField(req), getSortDirection(req), summaries));
 		for(Entry<Integer, MailMessage> messageEntry : messageBank.listMessages().entrySet()) {
 			Integer messageNum = messageEntry.getKey();
 			MailMessage message = messageEntry.getValue();
@@ -115,6 +122,7 @@ public class InboxToadlet extends WebPage {
 				continue;
 			}
 
+			summaries.put(message, summaryCache.getSummary(message));
 			messages.put(message, messageNum);
 		}
 
@@ -370,13 +378,15 @@ public class InboxToadlet extends WebPage {
 	}
 
 	private enum SortField {
-		SUBJECT("subject"),
-		FROM("from"),
-		DATE("date");
+		SUBJECT("subject", MessageSortKey.SUBJECT),
+		FROM("from", MessageSortKey.FROM),
+		DATE("date", MessageSortKey.DATE);
 
 		private final String name;
-		private SortField(String name) {
+		private final MessageSortKey key;
+		private SortField(String name, MessageSortKey key) {
 			this.name = name;
+			this.key = key;
 		}
 
 		public static SortField fromString(String field) {
@@ -393,17 +403,23 @@ public class InboxToadlet extends WebPage {
 		}
 	}
 
+	/**
+	 * Sorts messages using the same sort keys as the IMAP SORT command. The
+	 * summaries of all the messages must be in the map before they are compared.
+	 */
 	private static class MailMessageComparator implements Comparator<MailMessage> {
 		private final SortField field;
 		private final boolean ascending;
+		private final Map<MailMessage, MessageSummary> summaries;
 
-		private MailMessageComparator(SortField field, boolean ascending) {
+		private MailMessageComparator(SortField field, boolean ascending, Map<MailMessage, MessageSummary> summaries) {
 			if(field == null) {
 				this.field = SortField.DATE;
 			} else {
 				this.field = field;
 			}
 			this.ascending = ascending;
+			this.summaries = summaries;
 		}
 
 		@Override
@@ -415,19 +431,7 @@ public class InboxToadlet extends WebPage {
 				msg1 = temp;
 			}
 
-			int result;
-			if(field == SortField.DATE) {
-				Date msg1Date = msg0.getDate();
-				Date msg2Date = msg1.getDate();
-
-				result = compare(msg1Date, msg2Date);
-			} else {
-				String msg0Header = msg0.getFirstHeader(field.name);
-				String msg1Header = msg1.getFirstHeader(field.name);
-
-				result = compare(msg0Header, msg1Header);
-			}
-
+			int result = field.key.compare(summaries.get(msg0), summaries.get(msg1));
 			if(result == 0) {
 				//If the sort key is equal, use the id to compare since we can't return 0 for messages
 				//that aren't really the same. This is because e.g. TreeSet (which is used above)
@@ -437,18 +441,5 @@ public class InboxToadlet extends WebPage {
 
 			return result;
 		}
-
-		private <T extends Comparable<T>> int compare(T o1, T o2) {
-			if(o1 == null && o2 == null) {
-				return 0;
-			}
-
-			//Sort non-null before null
-			if(o1 == null || o2 == null) {
-				return (o1 == null) ? -1 : 1;
-			}
-
-			return o1.compareTo(o2);
-		}
 	}
 }
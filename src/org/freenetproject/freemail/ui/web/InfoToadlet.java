@@ -20,10 +20,16 @@
 package org.freenetproject.freemail.ui.web;
 
 import java.net.URI;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 import org.freenetproject.freemail.AccountManager;
+import org.freenetproject.freemail.Freemail;
 import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.config.Configurator;
+import org.freenetproject.freemail.fcp.FCPConnection;
+import org.freenetproject.freemail.fcp.FCPPriority;
+import org.freenetproject.freemail.fcp.RequestLatency;
 import org.freenetproject.freemail.l10n.FreemailL10n;
 import org.freenetproject.freemail.utils.EmailAddress;
 
@@ -79,6 +85,25 @@ class InfoToadlet extends WebPage {
 				config.get(Configurator.SMTP_BIND_PORT), "smtpPort");
 	}
 
+	private void addRequestInfo(HTMLNode parent) {
+		FCPConnection fcpConnection = Freemail.getFCPConnection();
+		if(fcpConnection == null) {
+			return;
+		}
+
+		RequestLatency latency = fcpConnection.getLatency();
+		HTMLNode requestBox = addInfobox(parent, FreemailL10n.getString("Freemail.InfoToadlet.requests.title"));
+		for(FCPPriority priority : FCPPriority.values()) {
+			String title = FreemailL10n.getString("Freemail.InfoToadlet.requests." + priority.name().toLowerCase(Locale.ROOT));
+			String content = FreemailL10n.getString("Freemail.InfoToadlet.requests.latency",
+					new String[] {"count", "average", "max"},
+					new String[] {Long.toString(latency.getCount(priority)),
+					              Long.toString(latency.getAverage(priority, TimeUnit.SECONDS)),
+					              Long.toString(latency.getMax(priority, TimeUnit.SECONDS))});
+			addInfoLine(requestBox, title, content, "requests");
+		}
+	}
+
 	@Override
 	HTTPResponse makeWebPageGet(URI uri, HTTPRequest req, ToadletContext ctx, PageNode page) {
 		//Add account info if one is logged in
@@ -91,6 +116,7 @@ class InfoToadlet extends WebPage {
 
 		//Add general Freemail server info
 		addServerInfo(page.content);
+		addRequestInfo(page.content);
 
 		return new GenericHTMLResponse(ctx, 200, "OK", page.outer.generate());
 	}
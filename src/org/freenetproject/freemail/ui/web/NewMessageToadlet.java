@@ -253,7 +253,7 @@ public class NewMessageToadlet extends WebPage {
 		recipientHandling.log(this, "Time spent handling " + recipients.size() + " recipients");
 
 		Timer identityMatching = sendMessageTimer.startSubTimer();
-		IdentityMatcher messageSender = new IdentityMatcher(wotConnection);
+		IdentityMatcher messageSender = new IdentityMatcher(freemail.getIdentityDirectory());
 		Map<String, List<Identity>> matches;
 		try {
 			EnumSet<IdentityMatcher.MatchMethod> methods = EnumSet.allOf(IdentityMatcher.MatchMethod.class);
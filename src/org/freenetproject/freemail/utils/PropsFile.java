@@ -28,6 +28,7 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -68,6 +69,17 @@ public class PropsFile {
 		return createPropsFile(f, false);
 	}
 
+	/**
+	 * Reads props from a stream rather than a file, e.g. data fetched from Freenet. The result
+	 * isn't cached and can't be written to. If stopAtBlank is true the rest of the stream is
+	 * left for the caller to read from getReader(), otherwise the stream is closed.
+	 */
+	public static PropsFile createPropsFile(InputStream is, boolean stopAtBlank) throws IOException {
+		PropsFile pf = new PropsFile(null, stopAtBlank);
+		pf.bufrdr = pf.read(new BufferedReader(new InputStreamReader(is, "UTF-8")), stopAtBlank);
+		return pf;
+	}
+
 	public static void reapOld() {
 		Logger.debug(PropsFile.class, "Cleaning up stale PropsFiles");
 
@@ -97,7 +109,7 @@ public class PropsFile {
 		this.file = f;
 		this.data = null;
 
-		if(f.exists()) {
+		if(f != null && f.exists()) {
 			try {
 				this.bufrdr = this.read(stopAtBlank);
 			} catch (IOException ioe) {
@@ -116,9 +128,11 @@ public class PropsFile {
 	}
 
 	private synchronized BufferedReader read(boolean stopAtBlank) throws IOException {
-		this.data = new HashMap<String, String>();
+		return read(new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8")), stopAtBlank);
+	}
 
-		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8"));
+	private synchronized BufferedReader read(BufferedReader br, boolean stopAtBlank) throws IOException {
+		this.data = new HashMap<String, String>();
 
 		String line = null;
 		while((line = br.readLine()) != null) {
@@ -150,6 +164,10 @@ public class PropsFile {
 	}
 
 	private synchronized void write() throws IOException {
+		if(file == null) {
+			throw new IOException("Props that weren't read from a file can't be written");
+		}
+
 		File parentDir = file.getParentFile();
 		if(parentDir != null && !parentDir.exists()) {
 			if(!parentDir.mkdirs()) {
@@ -202,6 +220,7 @@ public class PropsFile {
 	}
 
 	public boolean exists() {
+		if(this.file == null) return this.data != null;
 		return this.file.exists();
 	}
 
@@ -224,6 +243,7 @@ public class PropsFile {
 
 	@Override
 	public String toString() {
+		if(file == null) return "PropsFile[stream]";
 		return file.getPath();
 	}
 }
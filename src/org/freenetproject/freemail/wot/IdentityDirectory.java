@@ -0,0 +1,423 @@
+/*
+ * IdentityDirectory.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail.wot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.freenetproject.freemail.utils.Logger;
+import org.freenetproject.freemail.utils.Timer;
+
+import freenet.pluginmanager.PluginNotFoundException;
+
+/**
+ * Caches the identities known to WoT so that looking up recipients doesn't require fetching every
+ * identity from WoT. The cached identities are refreshed in the background when they are older
+ * than the refresh interval, and are saved to disk so they are available immediately after a
+ * restart. The snapshot only holds public data, so the OwnIdentities (which include the insert
+ * URIs) are always fetched from WoT after a restart.
+ */
+public class IdentityDirectory {
+	/** The default time between refreshes */
+	public static final long DEFAULT_REFRESH_INTERVAL = 10 * 60 * 1000;
+
+	/** The shortest time between two refreshes caused by {@link #invalidate()} */
+	private static final long MIN_REFRESH_INTERVAL = 60 * 1000;
+
+	private static final String SNAPSHOT_VERSION = "2";
+	private static final String TYPE_IDENTITY = "identity";
+
+	private final WoTConnection wotConnection;
+	private final File snapshotFile;
+	private final ScheduledExecutorService executor;
+	private final AtomicBoolean refreshing = new AtomicBoolean(false);
+	private final Object refreshLock = new Object();
+
+	private volatile long refreshInterval;
+	private volatile Contents contents;
+
+	/**
+	 * Creates a directory that fetches the identities from WoT every time they are requested,
+	 * which gives the same behaviour as using the WoTConnection directly.
+	 */
+	public IdentityDirectory(WoTConnection wotConnection) {
+		this(wotConnection, null, null, 0);
+	}
+
+	/**
+	 * @param wotConnection the connection used to fetch the identities
+	 * @param snapshotFile the file the identities are saved to, or {@code null}
+	 * @param executor the executor used for background refreshes, or {@code null} to refresh
+	 *          in the calling thread when the identities are too old
+	 * @param refreshInterval the maximum age of the identities in milliseconds
+	 */
+	public IdentityDirectory(WoTConnection wotConnection, File snapshotFile,
+	                         ScheduledExecutorService executor, long refreshInterval) {
+		this.wotConnection = wotConnection;
+		this.snapshotFile = snapshotFile;
+		this.executor = executor;
+		this.refreshInterval = refreshInterval;
+
+		if(snapshotFile != null && snapshotFile.exists()) {
+			contents = readSnapshot(snapshotFile);
+		}
+	}
+
+	/**
+	 * Starts refreshing the identities in the background. Does nothing if the directory wasn't
+	 * created with an executor.
+	 */
+	public void start() {
+		if(executor == null) {
+			return;
+		}
+
+		executor.execute(new RefreshTask());
+	}
+
+	/**
+	 * Returns all the identities known to WoT, including the OwnIdentities, or {@code null} if
+	 * they couldn't be fetched. This only blocks if no identities have been fetched yet.
+	 *
+	 * @return all the identities known to WoT
+	 * @throws PluginNotFoundException If the WoT plugin isn't loaded and the identities had to be
+	 *          fetched
+	 */
+	public Set<Identity> getAllIdentities() throws PluginNotFoundException {
+		Contents c = getContents();
+		return (c == null) ? null : c.allIdentities;
+	}
+
+	/**
+	 * Returns all the OwnIdentities, or {@code null} if they couldn't be fetched. This only
+	 * blocks if no identities have been fetched yet.
+	 *
+	 * @return all the OwnIdentities
+	 * @throws PluginNotFoundException If the WoT plugin isn't loaded and the identities had to be
+	 *          fetched
+	 */
+	public List<OwnIdentity> getAllOwnIdentities() throws PluginNotFoundException {
+		Contents c = getContents();
+		if(c != null && c.ownIdentities == null) {
+			//Read from the snapshot, which doesn't include the OwnIdentities
+			refresh();
+			c = contents;
+		}
+		return (c == null) ? null : c.ownIdentities;
+	}
+
+	/**
+	 * Returns the index of all the identities, or {@code null} if they couldn't be fetched. The
+	 * index is built once for each refresh.
+	 */
+	IdentityIndex getIndex() throws PluginNotFoundException {
+		Contents c = getContents();
+		return (c == null) ? null : c.getIndex();
+	}
+
+	/**
+	 * Marks the cached identities as out of date, for example because a recipient wasn't found.
+	 * The identities are refreshed in the background unless that was done very recently.
+	 */
+	public void invalidate() {
+		Contents c = contents;
+		if(c == null || System.currentTimeMillis() - c.time < MIN_REFRESH_INTERVAL) {
+			return;
+		}
+
+		if(executor != null) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					refreshInBackground();
+				}
+			});
+		} else {
+			//The next lookup will refresh
+			contents = new Contents(c.identities, c.ownIdentities, 0);
+		}
+	}
+
+	public void setRefreshInterval(long refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+
+	/**
+	 * Fetches all the identities from WoT, replacing the cached ones.
+	 *
+	 * @return {@code true} if the identities were fetched
+	 * @throws PluginNotFoundException If the WoT plugin isn't loaded
+	 */
+	public boolean refresh() throws PluginNotFoundException {
+		synchronized(refreshLock) {
+			Timer refreshTimer = Timer.start();
+			Set<Identity> identities = wotConnection.getAllIdentities();
+			List<OwnIdentity> ownIdentities = wotConnection.getAllOwnIdentities();
+			if(identities == null || ownIdentities == null) {
+				Logger.error(this, "Couldn't fetch identities from WoT");
+				return false;
+			}
+
+			Contents c = new Contents(identities, ownIdentities, System.currentTimeMillis());
+			contents = c;
+			refreshTimer.log(this, 1, TimeUnit.SECONDS, "Time spent fetching " + c.allIdentities.size() + " identities");
+
+			if(snapshotFile != null) {
+				writeSnapshot(c);
+			}
+			return true;
+		}
+	}
+
+	private Contents getContents() throws PluginNotFoundException {
+		Contents c = contents;
+		if(c == null) {
+			//Nothing to return yet, so we have to wait for WoT
+			refresh();
+			return contents;
+		}
+
+		if(System.currentTimeMillis() - c.time >= refreshInterval) {
+			if(executor == null) {
+				refresh();
+				return contents;
+			}
+
+			//The periodic refresh is late, most likely because WoT isn't loaded
+			Logger.debug(this, "Identities are " + (System.currentTimeMillis() - c.time) + "ms old");
+		}
+
+		return c;
+	}
+
+	private void refreshInBackground() {
+		if(!refreshing.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			refresh();
+		} catch(PluginNotFoundException e) {
+			Logger.debug(this, "WoT plugin not loaded, can't refresh identities");
+		} finally {
+			refreshing.set(false);
+		}
+	}
+
+	private class RefreshTask implements Runnable {
+		@Override
+		public void run() {
+			Contents c = contents;
+			long age = (c == null) ? Long.MAX_VALUE : System.currentTimeMillis() - c.time;
+			if(age >= refreshInterval) {
+				refreshInBackground();
+				c = contents;
+				age = (c == null) ? Long.MAX_VALUE : System.currentTimeMillis() - c.time;
+			}
+
+			//Retry soon if the refresh failed, otherwise wait until the identities are too old
+			long delay = Math.max(refreshInterval - age, MIN_REFRESH_INTERVAL);
+			try {
+				executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+			} catch(RejectedExecutionException e) {
+				//Shutting down
+			}
+		}
+	}
+
+	private void writeSnapshot(Contents c) {
+		File tempFile = new File(snapshotFile.getPath() + ".tmp");
+		try {
+			PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+			try {
+				pw.print(SNAPSHOT_VERSION + "\n");
+				pw.print(c.time + "\n");
+				//The OwnIdentities are written as plain identities so the insert URIs stay in WoT
+				for(Identity identity : c.allIdentities) {
+					pw.print(TYPE_IDENTITY + "\t" + identity.getIdentityID() + "\t" + identity.getRequestURI()
+							+ "\t" + escape(identity.getNickname()) + "\n");
+				}
+			} finally {
+				pw.close();
+			}
+			if(pw.checkError()) {
+				throw new IOException("Error writing to " + tempFile);
+			}
+
+			//Rename can't overwrite the old file on all platforms
+			snapshotFile.delete();
+			if(!tempFile.renameTo(snapshotFile)) {
+				throw new IOException("Couldn't rename " + tempFile + " to " + snapshotFile);
+			}
+		} catch(IOException e) {
+			Logger.error(this, "Couldn't save identity snapshot", e);
+			tempFile.delete();
+		}
+	}
+
+	private static Contents readSnapshot(File snapshotFile) {
+		Set<Identity> identities = new HashSet<Identity>();
+		long time;
+
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(snapshotFile), "UTF-8"));
+			try {
+				String version = reader.readLine();
+				if("1".equals(version)) {
+					//Version 1 included the insert URIs of the OwnIdentities, so don't keep it around
+					Logger.normal(IdentityDirectory.class, "Deleting old identity snapshot");
+					reader.close();
+					snapshotFile.delete();
+					return null;
+				}
+				if(!SNAPSHOT_VERSION.equals(version)) {
+					Logger.error(IdentityDirectory.class, "Unknown identity snapshot version, ignoring snapshot");
+					return null;
+				}
+				time = Long.parseLong(reader.readLine());
+
+				String line;
+				while((line = reader.readLine()) != null) {
+					String[] parts = line.split("\t", -1);
+					if(parts[0].equals(TYPE_IDENTITY) && parts.length == 4) {
+						identities.add(new Identity(parts[1], parts[2], unescape(parts[3])));
+					} else {
+						Logger.error(IdentityDirectory.class, "Malformed line in identity snapshot: " + line);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch(IOException e) {
+			Logger.error(IdentityDirectory.class, "Couldn't read identity snapshot", e);
+			return null;
+		} catch(NumberFormatException e) {
+			Logger.error(IdentityDirectory.class, "Malformed identity snapshot", e);
+			return null;
+		}
+
+		Logger.debug(IdentityDirectory.class, "Read " + identities.size() + " identities from snapshot");
+		return new Contents(identities, null, time);
+	}
+
+	/**
+	 * Escapes the characters that would break the tab separated snapshot format.
+	 */
+	static String escape(String value) {
+		StringBuilder result = new StringBuilder(value.length());
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch(c) {
+			case '\\':
+				result.append("\\\\");
+				break;
+			case '\t':
+				result.append("\\t");
+				break;
+			case '\n':
+				result.append("\\n");
+				break;
+			case '\r':
+				result.append("\\r");
+				break;
+			default:
+				result.append(c);
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Reverses {@link #escape(String)}.
+	 */
+	static String unescape(String value) {
+		StringBuilder result = new StringBuilder(value.length());
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c != '\\' || i + 1 == value.length()) {
+				result.append(c);
+				continue;
+			}
+
+			char next = value.charAt(++i);
+			switch(next) {
+			case 't':
+				result.append('\t');
+				break;
+			case 'n':
+				result.append('\n');
+				break;
+			case 'r':
+				result.append('\r');
+				break;
+			default:
+				result.append(next);
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * The identities fetched by one refresh. This is never modified after it is created. The
+	 * OwnIdentities are {@code null} if the contents were read from the snapshot, in which case
+	 * they are already included in the identities.
+	 */
+	private static class Contents {
+		private final Set<Identity> identities;
+		private final List<OwnIdentity> ownIdentities;
+		private final Set<Identity> allIdentities;
+		private final long time;
+		private IdentityIndex index;
+
+		private Contents(Set<Identity> identities, List<OwnIdentity> ownIdentities, long time) {
+			this.identities = Collections.unmodifiableSet(identities);
+			this.ownIdentities = (ownIdentities == null) ? null : Collections.unmodifiableList(ownIdentities);
+			this.time = time;
+
+			Set<Identity> all = new HashSet<Identity>(identities);
+			if(ownIdentities != null) {
+				all.addAll(ownIdentities);
+			}
+			this.allIdentities = Collections.unmodifiableSet(all);
+		}
+
+		private synchronized IdentityIndex getIndex() {
+			if(index == null) {
+				index = new IdentityIndex(allIdentities);
+			}
+			return index;
+		}
+	}
+}
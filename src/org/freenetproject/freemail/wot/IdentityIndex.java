@@ -0,0 +1,190 @@
+/*
+ * IdentityIndex.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail.wot;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.freenetproject.freemail.wot.IdentityMatcher.MatchMethod;
+
+/**
+ * Index of a set of identities that is used to find the identities matching a recipient address
+ * without comparing the address to every identity. The partial matches use arrays of the full
+ * addresses sorted so that all the addresses starting with a given prefix are next to each other,
+ * and the full matches use maps keyed on the identity ids.
+ */
+class IdentityIndex {
+	private final String[] base32Addresses;
+	private final Identity[] base32Identities;
+	private final String[] base64Addresses;
+	private final Identity[] base64Identities;
+	private final Map<String, Identity> base32Ids;
+	private final Map<String, Identity> base64Ids;
+
+	IdentityIndex(Collection<Identity> identities) {
+		int size = identities.size();
+		Entry[] base32Entries = new Entry[size];
+		Entry[] base64Entries = new Entry[size];
+		base32Ids = new HashMap<String, Identity>(size * 2);
+		base64Ids = new HashMap<String, Identity>(size * 2);
+
+		int i = 0;
+		for(Identity identity : identities) {
+			String base32Id = identity.getBase32IdentityID();
+			base32Entries[i] = new Entry(identity.getNickname() + "@" + base32Id + ".freemail", identity);
+			base64Entries[i] = new Entry(identity.getNickname() + "@" + identity.getIdentityID() + ".freemail", identity);
+			base32Ids.put(base32Id, identity);
+			base64Ids.put(identity.getIdentityID(), identity);
+			i++;
+		}
+
+		Arrays.sort(base32Entries);
+		Arrays.sort(base64Entries);
+
+		base32Addresses = new String[size];
+		base32Identities = new Identity[size];
+		base64Addresses = new String[size];
+		base64Identities = new Identity[size];
+		for(i = 0; i < size; i++) {
+			base32Addresses[i] = base32Entries[i].address;
+			base32Identities[i] = base32Entries[i].identity;
+			base64Addresses[i] = base64Entries[i].address;
+			base64Identities[i] = base64Entries[i].identity;
+		}
+	}
+
+	/**
+	 * Adds the identities that match {@code recipient} using any of the given methods to
+	 * {@code matches}. Identities that are already in {@code matches} are not added again.
+	 */
+	void match(String recipient, EnumSet<MatchMethod> methods, Collection<Identity> matches) {
+		//Collect into a set so that short prefixes matching many identities stay linear
+		Set<Identity> found = new LinkedHashSet<Identity>();
+		for(MatchMethod method : methods) {
+			switch(method) {
+			case PARTIAL_BASE32:
+				addPrefixMatches(normalizeBase32Address(recipient), base32Addresses, base32Identities, found);
+				break;
+			case PARTIAL_BASE64:
+				addPrefixMatches(recipient, base64Addresses, base64Identities, found);
+				break;
+			case FULL_BASE32:
+				addMatch(base32Ids.get(stripAddress(recipient)), found);
+				break;
+			case FULL_BASE64:
+				addMatch(base64Ids.get(stripAddress(recipient)), found);
+				break;
+			default:
+				throw new AssertionError();
+			}
+		}
+
+		if(!matches.isEmpty()) {
+			found.removeAll(new HashSet<Identity>(matches));
+		}
+		matches.addAll(found);
+	}
+
+	private static void addMatch(Identity identity, Set<Identity> matches) {
+		if(identity != null) {
+			matches.add(identity);
+		}
+	}
+
+	private static void addPrefixMatches(String prefix, String[] addresses, Identity[] identities,
+	                                     Set<Identity> matches) {
+		//Everything that starts with the prefix sorts after the prefix itself and before the
+		//addresses that are larger than the prefix but don't start with it
+		int first = firstIndex(addresses, prefix, false);
+		int end = firstIndex(addresses, prefix, true);
+		for(int i = first; i < end; i++) {
+			addMatch(identities[i], matches);
+		}
+	}
+
+	/**
+	 * Returns the index of the first address that is {@code >= prefix}, or if {@code afterPrefix}
+	 * is set, the first address that is {@code >= prefix} and doesn't start with it.
+	 */
+	private static int firstIndex(String[] addresses, String prefix, boolean afterPrefix) {
+		int low = 0;
+		int high = addresses.length;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			String address = addresses[mid];
+			boolean before = address.compareTo(prefix) < 0 || (afterPrefix && address.startsWith(prefix));
+			if(before) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Changes the domain of the address to lower case, leaving the nickname in the original case.
+	 */
+	private static String normalizeBase32Address(String recipient) {
+		int at = recipient.indexOf('@');
+		if(at == -1) {
+			return recipient;
+		}
+
+		return recipient.substring(0, at + 1) + recipient.substring(at + 1).toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Removes the optional local part and ".freemail" from addresses of the format
+	 * [local part@]&lt;identityId&gt;[.freemail]
+	 */
+	private static String stripAddress(String recipient) {
+		int start = recipient.indexOf('@') + 1;
+		int end = recipient.length();
+		if(recipient.endsWith(".freemail")) {
+			end -= ".freemail".length();
+		}
+
+		return recipient.substring(start, end);
+	}
+
+	private static class Entry implements Comparable<Entry> {
+		private final String address;
+		private final Identity identity;
+
+		private Entry(String address, Identity identity) {
+			this.address = address;
+			this.identity = identity;
+		}
+
+		@Override
+		public int compareTo(Entry o) {
+			return address.compareTo(o.address);
+		}
+	}
+}
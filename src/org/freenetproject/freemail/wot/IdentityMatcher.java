@@ -22,120 +22,54 @@ package org.freenetproject.freemail.wot;
 
 import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
 import freenet.pluginmanager.PluginNotFoundException;
 
 public class IdentityMatcher {
-	private final WoTConnection wotConnection;
+	private final IdentityDirectory identityDirectory;
 
 	public IdentityMatcher(WoTConnection wotConnection) {
-		this.wotConnection = wotConnection;
+		this(new IdentityDirectory(wotConnection));
+	}
+
+	public IdentityMatcher(IdentityDirectory identityDirectory) {
+		this.identityDirectory = identityDirectory;
 	}
 
 	public Map<String, List<Identity>> matchIdentities(
 			Set<String> recipients, String wotOwnIdentity, EnumSet<MatchMethod> methods)
 			throws PluginNotFoundException {
-		Set<Identity> ids = wotConnection.getAllIdentities();
-		List<OwnIdentity> ownIds = wotConnection.getAllOwnIdentities();
+		if(identityDirectory == null) {
+			throw new PluginNotFoundException("WoT connection not available");
+		}
+		IdentityIndex index = identityDirectory.getIndex();
 
 		Map<String, List<Identity>> allMatches = new HashMap<String, List<Identity>>(recipients.size());
 		for(String recipient : recipients) {
-			allMatches.put(recipient, new LinkedList<Identity>());
+			List<Identity> matches = new LinkedList<Identity>();
+			if(index != null) {
+				index.match(recipient, methods, matches);
+			}
+			allMatches.put(recipient, matches);
 		}
 
-		if(ids == null || ownIds == null) {
+		if(index == null) {
 			return allMatches;
 		}
 
-		Set<Identity> wotIdentities = new HashSet<Identity>();
-		wotIdentities.addAll(ids);
-		wotIdentities.addAll(ownIds);
-
-		for(Identity wotIdentity : wotIdentities) {
-			for(String recipient : recipients) {
-				if(matchIdentity(recipient, wotIdentity, methods)) {
-					allMatches.get(recipient).add(wotIdentity);
-				}
-			}
-		}
-
-		return allMatches;
-	}
-
-	private boolean matchIdentity(String recipient, Identity wotIdentity, EnumSet<MatchMethod> methods) {
-		for(MatchMethod method : methods) {
-			switch(method) {
-			case PARTIAL_BASE32:
-				if(matchBase32Address(recipient, wotIdentity)) {
-					return true;
-				}
-				break;
-			case PARTIAL_BASE64:
-				if(matchBase64Address(recipient, wotIdentity)) {
-					return true;
-				}
-				break;
-			case FULL_BASE32:
-				if(matchFullAddress(recipient, wotIdentity.getBase32IdentityID())) {
-					return true;
-				}
-				break;
-			case FULL_BASE64:
-				if(matchFullAddress(recipient, wotIdentity.getIdentityID())) {
-					return true;
-				}
+		//The recipient might be an identity that was discovered after the last refresh
+		for(List<Identity> matches : allMatches.values()) {
+			if(matches.isEmpty()) {
+				identityDirectory.invalidate();
 				break;
-			default:
-				throw new AssertionError();
 			}
 		}
 
-		return false;
-	}
-
-	private boolean matchBase64Address(String recipient, Identity identity) {
-		String identityAddress = identity.getNickname() + "@" + identity.getIdentityID() + ".freemail";
-		return identityAddress.startsWith(recipient);
-	}
-
-	private boolean matchBase32Address(String recipient, Identity identity) {
-		String base32Id = identity.getBase32IdentityID();
-		String identityAddress = identity.getNickname() + "@" + base32Id + ".freemail";
-
-		//Change the recipient address to lower case, but leave the nickname in the original case
-		if(recipient.contains("@")) {
-			String recipientNickname = recipient.substring(0, recipient.indexOf("@"));
-			String recipientDomain = recipient.substring(recipient.indexOf("@") + 1);
-			recipient = recipientNickname + "@" + recipientDomain.toLowerCase(Locale.ROOT);
-		}
-
-		return identityAddress.startsWith(recipient);
-	}
-
-	/**
-	 * Matches addresses of the format [local part@]&lt;identityId&gt;[.freemail]
-	 * @param recipient the address to check
-	 * @param identityId the identity to check against
-	 * @return {@code true} if recipient matches identity
-	 */
-	private boolean matchFullAddress(String recipient, String identityId) {
-		//Remove the optional local part
-		if(recipient.contains("@")) {
-			recipient = recipient.substring(recipient.indexOf("@") + 1);
-		}
-
-		//Remove the optional ".freemail"
-		if(recipient.endsWith(".freemail")) {
-			recipient = recipient.substring(0, recipient.length() - ".freemail".length());
-		}
-
-		return recipient.equals(identityId);
+		return allMatches;
 	}
 
 	public enum MatchMethod {
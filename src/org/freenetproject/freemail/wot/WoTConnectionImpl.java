@@ -21,11 +21,17 @@
 package org.freenetproject.freemail.wot;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.utils.SimpleFieldSetFactory;
@@ -38,21 +44,41 @@ import freenet.pluginmanager.PluginTalker;
 import freenet.support.SimpleFieldSet;
 import freenet.support.api.Bucket;
 
+/**
+ * Connection to the WoT plugin that allows several requests to be outstanding at the same time.
+ * The node routes replies using the identifier of the connection the request was sent on, so each
+ * outstanding request uses a separate identifier. The identifiers are reused once the reply has
+ * arrived, so normally only a few are ever created.
+ */
 class WoTConnectionImpl implements WoTConnection {
 	private static final String WOT_PLUGIN_NAME = "plugins.WebOfTrust.WebOfTrust";
 	private static final String CONNECTION_IDENTIFIER = "Freemail";
 
-	private final PluginTalker pluginTalker;
+	/** How long to wait for a reply from WoT before giving up */
+	static final long DEFAULT_TIMEOUT = 5 * 60 * 1000;
+
+	private final MessageSender sender;
+	private final long timeout;
+	private final AtomicInteger nextIdentifier = new AtomicInteger();
+
+	/** Identifiers that have no outstanding request */
+	private final LinkedList<String> idleIdentifiers = new LinkedList<String>();
+
+	/** Outstanding requests, keyed by the identifier they were sent on */
+	private final Map<String, PendingRequest> pendingRequests = new ConcurrentHashMap<String, PendingRequest>();
 
-	private Message reply = null;
-	private final Object replyLock = new Object();
+	WoTConnectionImpl(PluginRespirator pr) {
+		this.sender = new PluginTalkerSender(pr, new WoTConnectionTalker());
+		this.timeout = DEFAULT_TIMEOUT;
+	}
 
-	WoTConnectionImpl(PluginRespirator pr) throws PluginNotFoundException {
-		pluginTalker = pr.getPluginTalker(new WoTConnectionTalker(), WOT_PLUGIN_NAME, CONNECTION_IDENTIFIER);
+	WoTConnectionImpl(MessageSender sender, long timeout) {
+		this.sender = sender;
+		this.timeout = timeout;
 	}
 
 	@Override
-	public List<OwnIdentity> getAllOwnIdentities() {
+	public List<OwnIdentity> getAllOwnIdentities() throws PluginNotFoundException {
 		Message response = sendBlocking(
 				new Message(
 						new SimpleFieldSetFactory().put("Message", "GetOwnIdentities").create(),
@@ -88,7 +114,7 @@ class WoTConnectionImpl implements WoTConnection {
 	}
 
 	@Override
-	public Set<Identity> getAllIdentities() {
+	public Set<Identity> getAllIdentities() throws PluginNotFoundException {
 		SimpleFieldSet sfs = new SimpleFieldSetFactory().create();
 
 		sfs.putOverwrite("Context", "Freemail");
@@ -118,7 +144,7 @@ class WoTConnectionImpl implements WoTConnection {
 	}
 
 	@Override
-	public Identity getIdentity(String identity, String trusterId) {
+	public Identity getIdentity(String identity, String trusterId) throws PluginNotFoundException {
 		if(identity == null) {
 			throw new NullPointerException("Parameter identity must not be null");
 		}
@@ -148,7 +174,7 @@ class WoTConnectionImpl implements WoTConnection {
 	}
 
 	@Override
-	public boolean setProperty(String identity, String key, String value) {
+	public boolean setProperty(String identity, String key, String value) throws PluginNotFoundException {
 		if(identity == null) {
 			throw new NullPointerException("Parameter identity must not be null");
 		}
@@ -173,7 +199,7 @@ class WoTConnectionImpl implements WoTConnection {
 	}
 
 	@Override
-	public String getProperty(String identity, String key) {
+	public String getProperty(String identity, String key) throws PluginNotFoundException {
 		if(identity == null) {
 			throw new NullPointerException("Parameter identity must not be null");
 		}
@@ -206,7 +232,7 @@ class WoTConnectionImpl implements WoTConnection {
 	}
 
 	@Override
-	public boolean setContext(String identity, String context) {
+	public boolean setContext(String identity, String context) throws PluginNotFoundException {
 		if(identity == null) {
 			throw new NullPointerException("Parameter identity must not be null");
 		}
@@ -226,41 +252,41 @@ class WoTConnectionImpl implements WoTConnection {
 		return "ContextAdded".equals(response.sfs.get("Message"));
 	}
 
-	private Message sendBlocking(final Message msg, String expectedMessageType) {
+	private Message sendBlocking(final Message msg, String expectedMessageType) throws PluginNotFoundException {
 		return sendBlocking(msg, Collections.singleton(expectedMessageType));
 	}
 
-	private Message sendBlocking(final Message msg, Set<String> expectedMessageTypes) {
+	private Message sendBlocking(final Message msg, Set<String> expectedMessageTypes) throws PluginNotFoundException {
 		assert (msg != null);
 
 		logMessageContents(msg.sfs);
 
-		//Synchronize on this so only one message can be sent at a time
-		//Synchronize on pluginTalker so only one message can be sent at a time
-		final Message retValue;
-		Timer requestTimer;
-		synchronized(this) {
-			synchronized(replyLock) {
-				requestTimer = Timer.start();
-
-				assert (reply == null) : "Reply was " + reply;
-				reply = null;
-
-				pluginTalker.send(msg.sfs, msg.data);
-
-				while(reply == null) {
-					try {
-						replyLock.wait();
-					} catch (InterruptedException e) {
-						//Just check again
-					}
-				}
-
-				retValue = reply;
-				reply = null;
-
+		String identifier = acquireIdentifier();
+		PendingRequest request = new PendingRequest();
+		pendingRequests.put(identifier, request);
+
+		Message retValue = null;
+		boolean sent = false;
+		Timer requestTimer = Timer.start();
+		try {
+			sender.send(identifier, msg.sfs, msg.data);
+			sent = true;
+			retValue = request.await(timeout);
+		} finally {
+			pendingRequests.remove(identifier);
+			if(sent && retValue == null) {
+				//A late reply would be taken as the reply to the next request on this identifier
+				sender.retire(identifier);
+			} else {
+				releaseIdentifier(identifier);
 			}
 		}
+
+		if(retValue == null) {
+			Logger.error(this, "Timed out waiting for WoT reply to " + msg.sfs.get("Message"));
+			return null;
+		}
+
 		requestTimer.log(this, "Time spent waiting for WoT request " + msg.sfs.get("Message") + " (reply was "
 				+ retValue.sfs.get("Message") + ")");
 
@@ -304,15 +330,128 @@ class WoTConnectionImpl implements WoTConnection {
 		}
 	}
 
-	private class WoTConnectionTalker implements FredPluginTalker {
+	private String acquireIdentifier() {
+		synchronized(idleIdentifiers) {
+			if(!idleIdentifiers.isEmpty()) {
+				return idleIdentifiers.removeFirst();
+			}
+		}
+		return CONNECTION_IDENTIFIER + "-" + nextIdentifier.getAndIncrement();
+	}
+
+	private void releaseIdentifier(String identifier) {
+		synchronized(idleIdentifiers) {
+			idleIdentifiers.addFirst(identifier);
+		}
+	}
+
+	/**
+	 * Hands a reply from WoT to the request that is waiting for it.
+	 */
+	void handleReply(String identifier, SimpleFieldSet params, Bucket data) {
+		PendingRequest request = pendingRequests.get(identifier);
+		if(request == null) {
+			Logger.error(this, "Got reply from WoT on " + identifier + " without an outstanding request: "
+					+ params.get("Message"));
+			return;
+		}
+
+		request.complete(new Message(params, data));
+	}
+
+	int getIdleIdentifierCount() {
+		synchronized(idleIdentifiers) {
+			return idleIdentifiers.size();
+		}
+	}
+
+	/**
+	 * Sends messages to WoT on the connection with the given identifier.
+	 */
+	interface MessageSender {
+		void send(String identifier, SimpleFieldSet sfs, Bucket data) throws PluginNotFoundException;
+
+		/**
+		 * Called when the identifier won't be used again.
+		 */
+		void retire(String identifier);
+	}
+
+	private static class PluginTalkerSender implements MessageSender {
+		private final PluginRespirator pluginRespirator;
+		private final FredPluginTalker callback;
+		private final Map<String, PluginTalker> talkers = new HashMap<String, PluginTalker>();
+
+		private PluginTalkerSender(PluginRespirator pluginRespirator, FredPluginTalker callback) {
+			this.pluginRespirator = pluginRespirator;
+			this.callback = callback;
+		}
+
 		@Override
-		public void onReply(String pluginname, String indentifier, SimpleFieldSet params, Bucket data) {
-			synchronized(replyLock) {
-				assert reply == null : "Reply should be null, but was " + reply;
+		public void send(String identifier, SimpleFieldSet sfs, Bucket data) throws PluginNotFoundException {
+			PluginTalker talker;
+			synchronized(talkers) {
+				talker = talkers.get(identifier);
+				if(talker == null) {
+					talker = pluginRespirator.getPluginTalker(callback, WOT_PLUGIN_NAME, identifier);
+					talkers.put(identifier, talker);
+				}
+			}
+			talker.send(sfs, data);
+		}
 
-				reply = new Message(params, data);
-				replyLock.notify();
+		@Override
+		public void retire(String identifier) {
+			synchronized(talkers) {
+				talkers.remove(identifier);
 			}
 		}
 	}
+
+	private static class PendingRequest {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Message reply;
+
+		private void complete(Message message) {
+			reply = message;
+			done.countDown();
+		}
+
+		/**
+		 * Waits for the reply, returning {@code null} if it doesn't arrive within
+		 * {@code timeout} milliseconds.
+		 */
+		private Message await(long timeout) {
+			long deadline = System.currentTimeMillis() + timeout;
+			boolean interrupted = false;
+			try {
+				while(true) {
+					long remaining = deadline - System.currentTimeMillis();
+					if(remaining <= 0) {
+						return null;
+					}
+
+					try {
+						if(done.await(remaining, TimeUnit.MILLISECONDS)) {
+							return reply;
+						}
+					} catch(InterruptedException e) {
+						//Just check again
+						interrupted = true;
+					}
+				}
+			} finally {
+				if(interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	private class WoTConnectionTalker implements FredPluginTalker {
+		@Override
+		public void onReply(String pluginname, String identifier, SimpleFieldSet params, Bucket data) {
+			handleReply(identifier, params, data);
+		}
+	}
 }
@@ -24,6 +24,6 @@ import freenet.pluginmanager.PluginRespirator;
 
 public class WoTConnections {
 	public static WoTConnection wotConnection(PluginRespirator pr) {
-		return new ConcurrentWoTConnection(pr);
+		return new WoTConnectionImpl(pr);
 	}
 }
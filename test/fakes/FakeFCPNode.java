@@ -0,0 +1,549 @@
+/*
+ * FakeFCPNode.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package fakes;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.RandomSource;
+import freenet.keys.FreenetURI;
+import freenet.keys.InsertableClientSSK;
+
+/**
+ * A stand-in for a Freenet node that speaks enough FCP for Freemail: ClientHello, ClientGet,
+ * ClientPut, GenerateSSK and RemoveRequest, plus the global queue messages used for persistent
+ * requests. Keys are stored in memory, and latency, DataNotFound, collisions and disconnects can
+ * be injected at configurable rates.
+ *
+ * It can also be run on its own, e.g. to point one or more Freemail instances at it:
+ * <pre>java fakes.FakeFCPNode port=9481 latency=100:2000 dnf=0.05 collisions=0.01 disconnects=0.001</pre>
+ */
+public class FakeFCPNode implements Runnable {
+	private static final int DATA_NOT_FOUND = 13;
+	private static final int TOO_BIG = 21;
+	private static final int COLLISION = 9;
+
+	private final ServerSocket server;
+	private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+	private final ScheduledExecutorService replies = Executors.newScheduledThreadPool(4);
+	private final Random random = new Random();
+	private final RandomSource keyRandom = new DummyRandomSource();
+
+	private final Map<String, byte[]> store = new ConcurrentHashMap<String, byte[]>();
+
+	//Requests whose reply hasn't been sent yet, by connection and identifier
+	private final ConcurrentHashMap<String, Object> inFlight = new ConcurrentHashMap<String, Object>();
+	private final AtomicInteger connectionCount = new AtomicInteger();
+
+	private volatile long minLatency = 0;
+	private volatile long maxLatency = 0;
+	private volatile double dataNotFoundRate = 0;
+	private volatile double collisionRate = 0;
+	private volatile double disconnectRate = 0;
+
+	private final AtomicLong gets = new AtomicLong();
+	private final AtomicLong puts = new AtomicLong();
+	private final AtomicLong dataNotFound = new AtomicLong();
+	private final AtomicLong collisions = new AtomicLong();
+	private final AtomicLong disconnects = new AtomicLong();
+
+	/**
+	 * Starts a node listening on the loopback interface. A port of 0 picks a free port.
+	 */
+	public FakeFCPNode(int port) throws IOException {
+		server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		Thread t = new Thread(this, "Fake FCP node");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Delays every reply by a random time between {@code min} and {@code max}.
+	 */
+	public void setLatency(long min, long max, TimeUnit unit) {
+		this.minLatency = unit.toMillis(min);
+		this.maxLatency = unit.toMillis(Math.max(min, max));
+	}
+
+	/** Sets the fraction of fetches that fail with DataNotFound even though the key exists */
+	public void setDataNotFoundRate(double rate) {
+		this.dataNotFoundRate = rate;
+	}
+
+	/** Sets the fraction of inserts to unused keys that fail with a collision */
+	public void setCollisionRate(double rate) {
+		this.collisionRate = rate;
+	}
+
+	/** Sets the fraction of received messages that make the node drop the connection instead */
+	public void setDisconnectRate(double rate) {
+		this.disconnectRate = rate;
+	}
+
+	/**
+	 * Stores {@code data} under the request key {@code key}, as if someone had inserted it.
+	 */
+	public void insert(String key, byte[] data) {
+		store.put(key, data);
+	}
+
+	/**
+	 * Returns the data stored under the request key {@code key}, or {@code null}.
+	 */
+	public byte[] get(String key) {
+		return store.get(key);
+	}
+
+	public long getGets() {
+		return gets.get();
+	}
+
+	public long getPuts() {
+		return puts.get();
+	}
+
+	/**
+	 * Returns the number of requests the node is working on, i.e. that haven't been answered or
+	 * removed yet.
+	 */
+	public int getRequestsInFlight() {
+		return inFlight.size();
+	}
+
+	public void close() {
+		try {
+			server.close();
+		} catch(IOException e) {
+			//Ignore
+		}
+		for(Socket s : sockets) {
+			closeQuietly(s);
+		}
+		replies.shutdownNow();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while(true) {
+				final Socket s = server.accept();
+				final int connection = connectionCount.incrementAndGet();
+				sockets.add(s);
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						handle(s, connection);
+					}
+				}, "Fake FCP node connection " + connection);
+				t.setDaemon(true);
+				t.start();
+			}
+		} catch(IOException e) {
+			//Closed
+		}
+	}
+
+	private void handle(final Socket s, int connection) {
+		try {
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			final OutputStream out = s.getOutputStream();
+
+			Message hello = Message.read(in);
+			if(hello == null || !hello.type.equals("ClientHello")) {
+				return;
+			}
+			Message nodeHello = new Message("NodeHello");
+			nodeHello.fields.put("FCPVersion", "2.0");
+			nodeHello.fields.put("Node", "Fred");
+			nodeHello.fields.put("ConnectionIdentifier", Long.toHexString(random.nextLong()));
+			nodeHello.write(out);
+
+			Message msg;
+			while((msg = Message.read(in)) != null) {
+				if(chance(disconnectRate)) {
+					disconnects.incrementAndGet();
+					break;
+				}
+
+				String id = msg.fields.get("Identifier");
+				final String key = connection + ":" + id;
+				final Message reply;
+				final Object token;
+				if(msg.type.equals("RemoveRequest") && !"true".equals(msg.fields.get("Global"))) {
+					reply = removeRequest(key, id);
+					token = null;
+				} else {
+					reply = process(msg);
+					if(reply == null) {
+						continue;
+					}
+					token = (id == null) ? null : new Object();
+					if(token != null) {
+						inFlight.put(key, token);
+					}
+				}
+
+				long delay = minLatency;
+				if(maxLatency > minLatency) {
+					synchronized(random) {
+						delay += (long)(random.nextDouble() * (maxLatency - minLatency));
+					}
+				}
+				replies.schedule(new Runnable() {
+					@Override
+					public void run() {
+						if(token != null && !inFlight.remove(key, token)) {
+							//Removed before it finished
+							return;
+						}
+						try {
+							reply.write(out);
+						} catch(IOException e) {
+							closeQuietly(s);
+						}
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			}
+		} catch(IOException e) {
+			//Connection closed or broken
+		} finally {
+			closeQuietly(s);
+			sockets.remove(s);
+		}
+	}
+
+	private Message process(Message msg) {
+		String id = msg.fields.get("Identifier");
+		if(msg.type.equals("ClientGet")) {
+			return clientGet(msg, id);
+		} else if(msg.type.equals("ClientPut")) {
+			return clientPut(msg, id);
+		} else if(msg.type.equals("GenerateSSK")) {
+			return generateSSK(id);
+		} else if(msg.type.equals("ListPersistentRequests")) {
+			//Nothing survives here, so there's never anything to list
+			return new Message("EndListPersistentRequests");
+		} else if(msg.type.equals("WatchGlobal") || msg.type.equals("RemoveRequest")) {
+			return null;
+		}
+
+		Message reply = new Message("ProtocolError", id);
+		reply.fields.put("Code", "7");
+		reply.fields.put("CodeDescription", "Unknown message type " + msg.type);
+		return reply;
+	}
+
+	/**
+	 * Drops the request {@code key} unless it has been answered already. Its reply won't be sent
+	 * then, so the removal is all the client hears.
+	 */
+	private Message removeRequest(String key, String id) {
+		if(inFlight.remove(key) != null) {
+			return new Message("PersistentRequestRemoved", id);
+		}
+
+		Message reply = new Message("ProtocolError", id);
+		reply.fields.put("Code", "15");
+		reply.fields.put("CodeDescription", "No such identifier");
+		return reply;
+	}
+
+	private Message clientGet(Message msg, String id) {
+		gets.incrementAndGet();
+
+		byte[] data = store.get(msg.fields.get("URI"));
+		if(data == null || chance(dataNotFoundRate)) {
+			dataNotFound.incrementAndGet();
+			return getFailed(id, DATA_NOT_FOUND, false);
+		}
+
+		String maxSize = msg.fields.get("MaxSize");
+		if(maxSize != null && data.length > Long.parseLong(maxSize)) {
+			return getFailed(id, TOO_BIG, true);
+		}
+
+		Message reply = new Message("AllData", id);
+		reply.data = data;
+		return reply;
+	}
+
+	private Message clientPut(Message msg, String id) {
+		puts.incrementAndGet();
+
+		String key = requestKey(msg.fields.get("URI"), msg.data);
+		if(store.containsKey(key) || chance(collisionRate)) {
+			collisions.incrementAndGet();
+			Message reply = new Message("PutFailed", id);
+			reply.fields.put("Code", Integer.toString(COLLISION));
+			reply.fields.put("CodeDescription", "Insert collided with different, pre-existing data at the same key");
+			return reply;
+		}
+		store.put(key, msg.data);
+
+		Message reply = new Message("PutSuccessful", id);
+		reply.fields.put("URI", key);
+		return reply;
+	}
+
+	private Message generateSSK(String id) {
+		//Real key pairs, so that clients can derive the request key from the insert key too
+		InsertableClientSSK key;
+		synchronized(keyRandom) {
+			key = InsertableClientSSK.createRandom(keyRandom, "");
+		}
+
+		Message reply = new Message("SSKKeypair", id);
+		reply.fields.put("InsertURI", key.getInsertURI().setDocName("").toString());
+		reply.fields.put("RequestURI", key.getURI().setDocName("").toString());
+		return reply;
+	}
+
+	/**
+	 * Returns the key that data inserted to {@code insertKey} can be fetched from.
+	 */
+	private String requestKey(String insertKey, byte[] data) {
+		if(insertKey.startsWith("CHK@")) {
+			return "CHK@" + hash(data) + ",AAMC--8";
+		}
+		if(insertKey.startsWith("SSK@") && insertKey.indexOf('/') >= 0) {
+			try {
+				return InsertableClientSSK.create(new FreenetURI(insertKey)).getURI().toString();
+			} catch(MalformedURLException e) {
+				//Not an insert key, so it can only be fetched using the same key
+			}
+		}
+		//KSKs, and SSKs that can only be fetched using the key they were inserted to
+		return insertKey;
+	}
+
+	private Message getFailed(String id, int code, boolean fatal) {
+		Message reply = new Message("GetFailed", id);
+		reply.fields.put("Code", Integer.toString(code));
+		reply.fields.put("Fatal", Boolean.toString(fatal));
+		return reply;
+	}
+
+	private boolean chance(double rate) {
+		if(rate <= 0) {
+			return false;
+		}
+		synchronized(random) {
+			return random.nextDouble() < rate;
+		}
+	}
+
+	private static String hash(byte[] data) {
+		try {
+			return toHex(MessageDigest.getInstance("SHA-256").digest(data));
+		} catch(NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static String toHex(byte[] buf) {
+		StringBuilder sb = new StringBuilder(buf.length * 2);
+		for(byte b : buf) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	private static void closeQuietly(Socket s) {
+		try {
+			s.close();
+		} catch(IOException e) {
+			//Ignore
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "FakeFCPNode [port=" + getPort() + ", keys=" + store.size() + ", gets=" + gets + ", puts=" + puts
+				+ ", dataNotFound=" + dataNotFound + ", collisions=" + collisions
+				+ ", disconnects=" + disconnects + "]";
+	}
+
+	/**
+	 * Runs a node until killed. Arguments are {@code name=value} pairs: {@code port},
+	 * {@code latency} (in ms, either a fixed value or {@code min:max}), {@code dnf},
+	 * {@code collisions} and {@code disconnects}.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Map<String, String> options = new HashMap<String, String>();
+		for(String arg : args) {
+			int eq = arg.indexOf('=');
+			if(eq < 0) {
+				System.err.println("Bad argument " + arg + ", expected name=value");
+				System.exit(1);
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+
+		String port = options.get("port");
+		FakeFCPNode node = new FakeFCPNode(port == null ? 9481 : Integer.parseInt(port));
+
+		String latency = options.get("latency");
+		if(latency != null) {
+			String[] parts = latency.split(":");
+			long min = Long.parseLong(parts[0]);
+			long max = (parts.length > 1) ? Long.parseLong(parts[1]) : min;
+			node.setLatency(min, max, TimeUnit.MILLISECONDS);
+		}
+		if(options.containsKey("dnf")) {
+			node.setDataNotFoundRate(Double.parseDouble(options.get("dnf")));
+		}
+		if(options.containsKey("collisions")) {
+			node.setCollisionRate(Double.parseDouble(options.get("collisions")));
+		}
+		if(options.containsKey("disconnects")) {
+			node.setDisconnectRate(Double.parseDouble(options.get("disconnects")));
+		}
+
+		System.out.println("Listening on port " + node.getPort());
+		while(true) {
+			Thread.sleep(60 * 1000);
+			System.out.println(node);
+		}
+	}
+
+	/**
+	 * A single FCP message, read and written independently of Freemail's own implementation.
+	 */
+	private static class Message {
+		private final String type;
+		private final Map<String, String> fields = new HashMap<String, String>();
+		private byte[] data;
+
+		private Message(String type) {
+			this.type = type;
+		}
+
+		private Message(String type, String identifier) {
+			this(type);
+			if(identifier != null) {
+				fields.put("Identifier", identifier);
+			}
+		}
+
+		/**
+		 * Returns the next message from {@code in}, or {@code null} at the end of the stream.
+		 */
+		private static Message read(InputStream in) throws IOException {
+			String type = readLine(in);
+			if(type == null) {
+				return null;
+			}
+
+			Message msg = new Message(type);
+			while(true) {
+				String line = readLine(in);
+				if(line == null) {
+					throw new EOFException();
+				}
+				if(line.equals("EndMessage")) {
+					return msg;
+				}
+				if(line.equals("Data")) {
+					int len = Integer.parseInt(msg.fields.get("DataLength"));
+					msg.data = new byte[len];
+					int read = 0;
+					while(read < len) {
+						int r = in.read(msg.data, read, len - read);
+						if(r < 0) throw new EOFException();
+						read += r;
+					}
+					return msg;
+				}
+
+				int eq = line.indexOf('=');
+				if(eq > 0) {
+					msg.fields.put(line.substring(0, eq), line.substring(eq + 1));
+				}
+			}
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			int b;
+			while((b = in.read()) != '\n') {
+				if(b < 0) {
+					if(buf.size() == 0) return null;
+					throw new EOFException();
+				}
+				buf.write(b);
+			}
+			String line = buf.toString("UTF-8");
+			if(line.endsWith("\r")) {
+				line = line.substring(0, line.length() - 1);
+			}
+			return line;
+		}
+
+		private void write(OutputStream out) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			sb.append(type).append('\n');
+			for(Map.Entry<String, String> field : fields.entrySet()) {
+				sb.append(field.getKey()).append('=').append(field.getValue()).append('\n');
+			}
+			if(data != null) {
+				sb.append("DataLength=").append(data.length).append('\n');
+				sb.append("Data\n");
+			} else {
+				sb.append("EndMessage\n");
+			}
+
+			synchronized(out) {
+				out.write(sb.toString().getBytes("UTF-8"));
+				if(data != null) {
+					out.write(data);
+				}
+				out.flush();
+			}
+		}
+	}
+}
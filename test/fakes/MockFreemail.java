@@ -24,6 +24,7 @@ import java.util.concurrent.ScheduledExecutorService;
 
 import org.freenetproject.freemail.AccountManager;
 import org.freenetproject.freemail.Freemail;
+import org.freenetproject.freemail.fcp.FCPConnection;
 import org.freenetproject.freemail.utils.Logger;
 import org.freenetproject.freemail.wot.WoTConnection;
 
@@ -94,4 +95,11 @@ public class MockFreemail extends Freemail {
 	public void setExecutor(ScheduledExecutorService executor) {
 		this.executor = executor;
 	}
+
+	/**
+	 * Sets the global FCP connection that is used by code that doesn't get a client factory.
+	 */
+	public static void setFCPConnection(FCPConnection conn) {
+		Freemail.fcpconn = conn;
+	}
 }
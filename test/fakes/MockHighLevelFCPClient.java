@@ -28,19 +28,28 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.freenetproject.freemail.fcp.ConnectionTerminatedException;
 import org.freenetproject.freemail.fcp.FCPBadFileException;
+import org.freenetproject.freemail.fcp.FCPCallback;
 import org.freenetproject.freemail.fcp.FCPException;
 import org.freenetproject.freemail.fcp.FCPFetchException;
 import org.freenetproject.freemail.fcp.FCPMessage;
+import org.freenetproject.freemail.fcp.FCPPriority;
 import org.freenetproject.freemail.fcp.FCPPutFailedException;
+import org.freenetproject.freemail.fcp.FetchOptions;
 import org.freenetproject.freemail.fcp.HighLevelFCPClient;
 import org.freenetproject.freemail.fcp.SSKKeyPair;
 import org.freenetproject.freemail.utils.Logger;
 
+import freenet.support.api.Bucket;
+import freenet.support.io.FileBucket;
+
 public class MockHighLevelFCPClient extends HighLevelFCPClient {
 	private final Map<String, File> fetchResults;
 
@@ -96,7 +105,7 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 	}
 
 	@Override
-	public synchronized File fetch(String key) throws ConnectionTerminatedException, FCPFetchException, FCPException, InterruptedException {
+	public synchronized Bucket fetch(String key, FetchOptions options) throws ConnectionTerminatedException, FCPFetchException, FCPException, InterruptedException {
 		Logger.debug(this, "fetch(key=" + key + ")");
 
 		if(fetchResults == null) {
@@ -114,12 +123,21 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 		}
 
 		File result = fetchResults.get(key);
+		if(options.getMaxSize() != FetchOptions.NO_SIZE_LIMIT && result.length() > options.getMaxSize()) {
+			Logger.debug(this, "fetch(): Throwing GetFailed (too big)");
+			FCPMessage msg = new FCPMessage(0, "GetFailed");
+			msg.headers.put("Code", Integer.toString(FCPFetchException.TOO_BIG));
+			msg.headers.put("Fatal", "true");
+			FCPFetchException e = new FCPFetchException(msg);
+			fetches.add(new Fetch(key, e));
+			throw e;
+		}
 
 		fetches.add(new Fetch(key, result));
 		notifyAll();
 
 		Logger.debug(this, "fetch(): Returning " + result);
-		return result;
+		return new FileBucket(result, false, false, false, true);
 	}
 
 	@Override
@@ -133,9 +151,8 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 	}
 
 	@Override
-	public synchronized FCPPutFailedException put(InputStream data, String key) throws FCPBadFileException,
-	                                                                      ConnectionTerminatedException,
-	                                                                      FCPException, InterruptedException {
+	public synchronized FCPPutFailedException put(InputStream data, String key, FCPPriority priority)
+			throws FCPBadFileException, ConnectionTerminatedException, FCPException, InterruptedException {
 		Logger.debug(this, "put(key=" + key + ")");
 
 		inserts.add(new Insert(key, data));
@@ -145,8 +162,64 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 	}
 
 	@Override
-	public int SlotInsert(File data, String basekey, int minslot, String suffix) throws ConnectionTerminatedException,
-	                                                                                    InterruptedException {
+	public FCPPutFailedException putPersistent(InputStream data, String key, String identifier, FCPPriority priority)
+			throws FCPBadFileException, ConnectionTerminatedException, FCPException, InterruptedException {
+		return put(data, key, priority);
+	}
+
+	@Override
+	public Future<Bucket> fetchAsync(final String key, final FetchOptions options, FCPCallback<Bucket> callback) {
+		return runNow(new Callable<Bucket>() {
+			@Override
+			public Bucket call() throws Exception {
+				return fetch(key, options);
+			}
+		}, callback);
+	}
+
+	@Override
+	public Future<SSKKeyPair> makeSSKAsync(FCPCallback<SSKKeyPair> callback) {
+		return runNow(new Callable<SSKKeyPair>() {
+			@Override
+			public SSKKeyPair call() throws Exception {
+				return makeSSK();
+			}
+		}, callback);
+	}
+
+	@Override
+	public Future<String> putAsync(final InputStream data, final String key, final FCPPriority priority,
+	                               FCPCallback<String> callback) {
+		return runNow(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				FCPPutFailedException e = put(data, key, priority);
+				if(e != null) {
+					throw e;
+				}
+				return key;
+			}
+		}, callback);
+	}
+
+	@Override
+	public Future<String> putPersistentAsync(InputStream data, String key, String identifier,
+	                                         FCPPriority priority, FCPCallback<String> callback) {
+		return putAsync(data, key, priority, callback);
+	}
+
+	private <T> Future<T> runNow(Callable<T> task, FCPCallback<T> callback) {
+		FutureTask<T> future = new FutureTask<T>(task);
+		future.run();
+		if(callback != null) {
+			callback.requestCompleted(future);
+		}
+		return future;
+	}
+
+	@Override
+	public int SlotInsert(File data, String basekey, int minslot, String suffix, FCPPriority priority)
+			throws ConnectionTerminatedException, InterruptedException {
 		Logger.debug(this, "SlotInsert(data=" + data
 		                            + ", basekey=" + basekey
 		                            + ", minslot=" + minslot
@@ -156,14 +229,14 @@ public class MockHighLevelFCPClient extends HighLevelFCPClient {
 	}
 
 	@Override
-	public int slotInsert(byte[] data, String basekey, int minslot, String suffix) throws ConnectionTerminatedException,
-	                                                                                      InterruptedException {
+	public int slotInsert(byte[] data, String basekey, int minslot, String suffix, FCPPriority priority)
+			throws ConnectionTerminatedException, InterruptedException {
 		Logger.debug(this, "slotInsert(data.length=" + data.length
 		                            + ", basekey=" + basekey
 		                            + ", minslot=" + minslot
 		                            + ", suffix=" + suffix + ")");
 		try {
-			put(new ByteArrayInputStream(data), basekey + "-" + minslot);
+			put(new ByteArrayInputStream(data), basekey + "-" + minslot, priority);
 		} catch (FCPBadFileException e) {
 			throw new AssertionError();
 		} catch (FCPException e) {
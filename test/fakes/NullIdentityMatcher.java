@@ -25,6 +25,7 @@ import java.util.Map;
 import java.util.Set;
 
 import org.freenetproject.freemail.wot.Identity;
+import org.freenetproject.freemail.wot.IdentityDirectory;
 import org.freenetproject.freemail.wot.IdentityMatcher;
 import org.freenetproject.freemail.wot.WoTConnection;
 
@@ -32,7 +33,7 @@ import freenet.pluginmanager.PluginNotFoundException;
 
 public class NullIdentityMatcher extends IdentityMatcher {
 	public NullIdentityMatcher() {
-		super(null);
+		super((IdentityDirectory) null);
 	}
 
 	public NullIdentityMatcher(WoTConnection wotConnection) {
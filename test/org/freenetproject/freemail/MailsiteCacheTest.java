@@ -0,0 +1,175 @@
+/*
+ * MailsiteCacheTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.utils.PropsFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import data.TestId1Data;
+
+import fakes.MockHighLevelFCPClient;
+
+import utils.Utils;
+
+public class MailsiteCacheTest {
+	private static final String IDENTITY = TestId1Data.Identity.ID;
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private final File testDir = new File("mailsite_cache_test");
+	private final File cacheFile = new File(testDir, "mailsites");
+
+	@Before
+	public void before() {
+		Utils.createDir(testDir);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(testDir);
+
+		//Forget the cached props of the deleted files
+		PropsFile.reapOld();
+	}
+
+	@Test
+	public void keysFromMailsiteKey() {
+		assertEquals(IDENTITY, MailsiteCache.getIdentity(TestId1Data.Mailsite.REQUEST_KEY));
+		assertEquals(-TestId1Data.Mailsite.EDITION, MailsiteCache.getEdition(TestId1Data.Mailsite.REQUEST_KEY));
+		assertEquals(12, MailsiteCache.getEdition("USK@" + IDENTITY + ",a,b/mailsite/12/mailpage"));
+	}
+
+	@Test
+	public void negativeEditionIsUnknown() throws IOException {
+		MailsiteCache cache = new MailsiteCache(cacheFile);
+		MailsiteCache.Entry entry = cache.put(IDENTITY, 5, mailsite());
+		assertFalse(MailsiteCache.isStale(entry, -9));
+
+		//What was fetched is cached, under the newest edition we know it is from
+		PropsFile props = PropsFile.createPropsFile(cacheFile);
+		props.put(IDENTITY + ".fetched", 0);
+		assertEquals(5, cache.put(IDENTITY, -2, mailsite()).getEdition());
+		entry = new MailsiteCache(cacheFile).get(IDENTITY);
+		assertEquals(5, entry.getEdition());
+		assertTrue(entry.getFetched() > 0);
+
+		//Looking for the newest edition from 7 on can't have found an older one
+		assertEquals(7, cache.put(IDENTITY, -7, mailsite()).getEdition());
+	}
+
+	@Test
+	public void cachedAcrossRestarts() throws IOException {
+		MailsiteCache cache = new MailsiteCache(cacheFile);
+		assertNull(cache.get(IDENTITY));
+		PropsFile mailsite = mailsite();
+		assertNotNull(cache.put(IDENTITY, 3, mailsite));
+
+		cache = new MailsiteCache(cacheFile);
+		MailsiteCache.Entry entry = cache.get(IDENTITY);
+		assertEquals(mailsite.get("rtsksk"), entry.getRtsKsk());
+		assertEquals(mailsite.get("asymkey.modulus"), entry.getModulus());
+		assertEquals(mailsite.get("asymkey.pubexponent"), entry.getExponent());
+		assertEquals(3, entry.getEdition());
+	}
+
+	@Test
+	public void olderEditionIsIgnored() throws IOException {
+		MailsiteCache cache = new MailsiteCache(cacheFile);
+		cache.put(IDENTITY, 5, mailsite());
+		assertEquals(5, cache.put(IDENTITY, 2, mailsite()).getEdition());
+		assertEquals(5, cache.get(IDENTITY).getEdition());
+	}
+
+	@Test
+	public void incompleteMailsiteIsNotCached() throws IOException {
+		MailsiteCache cache = new MailsiteCache(cacheFile);
+		PropsFile mailsite = PropsFile.createPropsFile(new File(testDir, "incomplete"));
+		mailsite.put("rtsksk", mailsite().get("rtsksk"));
+		assertNull(cache.put(IDENTITY, 1, mailsite));
+		assertNull(cache.get(IDENTITY));
+	}
+
+	@Test
+	public void invalidate() throws IOException {
+		MailsiteCache cache = new MailsiteCache(cacheFile);
+		cache.put(IDENTITY, 1, mailsite());
+		cache.invalidate(IDENTITY);
+		assertNull(cache.get(IDENTITY));
+	}
+
+	@Test
+	public void staleWhenNewerEditionOrOld() throws IOException {
+		MailsiteCache cache = new MailsiteCache(cacheFile);
+		MailsiteCache.Entry entry = cache.put(IDENTITY, 2, mailsite());
+		assertFalse(MailsiteCache.isStale(entry, 2));
+		assertTrue(MailsiteCache.isStale(entry, 3));
+
+		PropsFile props = PropsFile.createPropsFile(cacheFile);
+		props.put(IDENTITY + ".fetched", System.currentTimeMillis() - MailsiteCache.REFRESH_AGE - 1);
+		assertTrue(MailsiteCache.isStale(new MailsiteCache(cacheFile).get(IDENTITY), 2));
+	}
+
+	@Test
+	public void fetchAndRefresh() throws Exception {
+		Map<String, File> fetchResults = new HashMap<String, File>();
+		fetchResults.put(TestId1Data.Mailsite.REQUEST_KEY, mailsiteFile("fetched"));
+		String newerKey = TestId1Data.Mailsite.REQUEST_KEY.replace("/-1/", "/4/");
+		fetchResults.put(newerKey, mailsiteFile("refreshed"));
+		MockHighLevelFCPClient fcpClient = new MockHighLevelFCPClient(fetchResults);
+
+		MailsiteCache cache = new MailsiteCache(cacheFile);
+		MailsiteCache.Entry entry = cache.fetch(IDENTITY, TestId1Data.Mailsite.REQUEST_KEY, fcpClient);
+		assertEquals(TestId1Data.Mailsite.EDITION, entry.getEdition());
+		assertEquals(mailsite().get("rtsksk"), entry.getRtsKsk());
+
+		cache.refresh(IDENTITY, newerKey, fcpClient, DIRECT);
+		fcpClient.awaitFetch(newerKey, 1, TimeUnit.SECONDS);
+		assertEquals(4, cache.get(IDENTITY).getEdition());
+	}
+
+	private PropsFile mailsite() throws IOException {
+		return PropsFile.createPropsFile(mailsiteFile("mailsite"));
+	}
+
+	private File mailsiteFile(String name) throws IOException {
+		File file = new File(testDir, name);
+		PrintWriter pw = new PrintWriter(file);
+		pw.write(TestId1Data.Mailsite.CONTENT);
+		pw.close();
+		return file;
+	}
+}
@@ -29,6 +29,7 @@ import org.junit.Test;
 
 import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.MessageBank;
+import org.freenetproject.freemail.imap.IMAPMessageFlags;
 
 import data.TestId1Data;
 
@@ -81,4 +82,44 @@ public class MessageBankTest {
 		//This would fail because .subsubfolder couldn't be deleted
 		assertTrue(subFolder.delete());
 	}
+
+	@Test
+	public void snapshotIsOrderedByUid() {
+		for(int i = 0; i < 12; i++) {
+			MailMessage msg = rootMessageBank.createMessage();
+			if(i % 2 == 0) {
+				msg.flags.setSeen();
+				msg.storeFlags();
+			}
+		}
+
+		//A folder with a numeric name must not be taken for a message
+		assertNotNull(rootMessageBank.makeSubFolder("100"));
+
+		MailboxSnapshot snapshot = rootMessageBank.snapshot();
+		assertEquals(12, snapshot.size());
+		assertEquals(12, snapshot.getLastUid());
+		for(int i = 0; i < snapshot.size(); i++) {
+			assertEquals(i + 1, snapshot.getUid(i));
+			assertEquals(i + 1, snapshot.getSeqNum(i));
+			assertEquals(i % 2 == 0, snapshot.hasFlag(i, IMAPMessageFlags.FLAG_SEEN));
+			assertTrue(snapshot.hasFlag(i, IMAPMessageFlags.FLAG_RECENT));
+			assertEquals(i + 1, snapshot.getMessage(i).getUID());
+		}
+	}
+
+	@Test
+	public void snapshotFindsMessagesByUid() {
+		for(int i = 0; i < 3; i++) {
+			assertNotNull(rootMessageBank.createMessage());
+		}
+		rootMessageBank.listMessages().get(2).delete();
+
+		MailboxSnapshot snapshot = rootMessageBank.snapshot();
+		assertEquals(2, snapshot.size());
+		assertEquals(0, snapshot.indexOfUid(1));
+		assertEquals(-1, snapshot.indexOfUid(2));
+		assertEquals(1, snapshot.indexOfUid(3));
+		assertEquals(-1, snapshot.indexOfUid(4));
+	}
 }
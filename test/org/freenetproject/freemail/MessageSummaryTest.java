@@ -0,0 +1,80 @@
+/*
+ * MessageSummaryTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class MessageSummaryTest {
+	@Test
+	public void baseSubjectWithoutPrefix() {
+		checkBaseSubject("Hello", "Hello", false);
+	}
+
+	@Test
+	public void baseSubjectRemovesReplyPrefixes() {
+		checkBaseSubject("Re: RE: fwd: Hello", "Hello", true);
+	}
+
+	@Test
+	public void baseSubjectRemovesBlobs() {
+		checkBaseSubject("[list] Re: [list] Hello", "Hello", true);
+	}
+
+	@Test
+	public void baseSubjectKeepsOnlyBlob() {
+		checkBaseSubject("[list]", "[list]", false);
+	}
+
+	@Test
+	public void baseSubjectRemovesForwardTrailer() {
+		checkBaseSubject("Hello (fwd)  ", "Hello", true);
+	}
+
+	@Test
+	public void baseSubjectRemovesForwardWrapper() {
+		checkBaseSubject("[Fwd: Re: Hello]", "Hello", true);
+	}
+
+	@Test
+	public void baseSubjectCollapsesWhitespace() {
+		checkBaseSubject("  Hello \t  world ", "Hello world", false);
+	}
+
+	@Test
+	public void mailboxIsLowerCase() {
+		assertEquals("alice", MessageSummary.getMailbox("Alice <ALICE@example.freemail>"));
+		assertEquals("bob", MessageSummary.getMailbox("Bob@example.freemail, carol@example.freemail"));
+	}
+
+	@Test
+	public void mailboxWithoutAddress() {
+		assertEquals("", MessageSummary.getMailbox(null));
+		assertEquals("", MessageSummary.getMailbox("undisclosed-recipients:;"));
+	}
+
+	private static void checkBaseSubject(String subject, String expected, boolean expectedReply) {
+		String[] result = new String[1];
+		boolean reply = MessageSummary.extractBaseSubject(subject, result);
+		assertEquals(expected, result[0]);
+		assertEquals(expectedReply, reply);
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * PollSchedulerTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.freenetproject.freemail.PollScheduler.Activity;
+
+public class PollSchedulerTest {
+	private static final long HOUR = 60 * 60 * 1000;
+
+	private ScheduledThreadPoolExecutor executor;
+
+	@Before
+	public void before() {
+		executor = new ScheduledThreadPoolExecutor(1);
+	}
+
+	@After
+	public void after() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void recentTrafficIsHot() {
+		long now = System.currentTimeMillis();
+		assertEquals(Activity.HOT, Activity.classify(now - 1000, 0, now));
+		assertEquals(Activity.WARM, Activity.classify(now - 2 * HOUR, 0, now));
+		assertEquals(Activity.COLD, Activity.classify(now - 48 * HOUR, 0, now));
+		assertEquals(Activity.COLD, Activity.classify(0, 0, now));
+	}
+
+	@Test
+	public void expectedReplyIsWarm() {
+		long now = System.currentTimeMillis();
+		assertEquals(Activity.WARM, Activity.classify(0, now + HOUR, now));
+		assertEquals(Activity.COLD, Activity.classify(0, now - HOUR, now));
+		assertEquals(Activity.HOT, Activity.classify(now, now + HOUR, now));
+	}
+
+	@Test
+	public void jitterStaysInRange() {
+		PollScheduler scheduler = new PollScheduler(executor, 1, new Random(42));
+		long delay = Activity.WARM.getInterval();
+		long min = (long) (delay * (1 - PollScheduler.JITTER));
+		long max = (long) (delay * (1 + PollScheduler.JITTER));
+
+		boolean shorter = false;
+		boolean longer = false;
+		for(int i = 0; i < 1000; i++) {
+			long jittered = scheduler.jitter(delay);
+			assertTrue(jittered >= min);
+			assertTrue(jittered <= max);
+			shorter |= jittered < delay;
+			longer |= jittered > delay;
+		}
+		assertTrue(shorter);
+		assertTrue(longer);
+	}
+
+	@Test
+	public void startIsSpread() {
+		PollScheduler scheduler = new PollScheduler(executor, 1, new Random(42));
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				//Nothing to do
+			}
+		};
+
+		for(int i = 0; i < 100; i++) {
+			long delay = scheduler.start(task).getDelay(TimeUnit.MILLISECONDS);
+			assertTrue(delay <= PollScheduler.STARTUP_SPREAD);
+		}
+	}
+
+	@Test
+	public void fetchBudget() throws InterruptedException {
+		PollScheduler scheduler = new PollScheduler(executor, 2);
+
+		assertTrue(scheduler.tryAcquireFetch());
+		scheduler.acquireFetch();
+		assertEquals(2, scheduler.getFetchesInFlight());
+		assertFalse(scheduler.tryAcquireFetch());
+
+		scheduler.releaseFetch();
+		assertEquals(1, scheduler.getFetchesInFlight());
+		assertTrue(scheduler.tryAcquireFetch());
+	}
+}
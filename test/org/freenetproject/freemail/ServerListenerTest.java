@@ -0,0 +1,116 @@
+/*
+ * ServerListenerTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import fakes.FakeSocket;
+
+public class ServerListenerTest {
+	@Test(timeout = 10 * 1000)
+	public void rejectsWhenSaturated() throws Exception {
+		TestListener listener = new TestListener();
+		listener.setMaxConnections(1);
+
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+		List<BlockingHandler> handlers = new ArrayList<BlockingHandler>();
+
+		//One connection runs, and the rest wait in the queue until it is full
+		BlockingHandler first = new BlockingHandler(new FakeSocket(), started, release);
+		listener.dispatch(first, "first");
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		int queued = 0;
+		while(listener.getRejectedConnections() == 0) {
+			BlockingHandler handler = new BlockingHandler(new FakeSocket(), null, release);
+			handlers.add(handler);
+			listener.dispatch(handler, "queued");
+			queued++;
+		}
+		assertEquals(1, listener.getActiveConnections());
+		assertEquals(queued - 1, listener.getQueuedConnections());
+
+		//The rejected client gets the reject message, and the connection is closed
+		BlockingHandler rejected = handlers.get(handlers.size() - 1);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(rejected.socket.getInputStreamOtherSide()));
+		assertEquals("BUSY", reader.readLine());
+		assertTrue(rejected.socket.isClosed());
+		assertFalse(rejected.ran);
+
+		//Once the running handlers are done the queued ones are run
+		release.countDown();
+		listener.kill();
+		listener.joinClientThreads();
+		for(BlockingHandler handler : handlers.subList(0, handlers.size() - 1)) {
+			assertTrue(handler.ran);
+		}
+		assertEquals(0, listener.getActiveConnections());
+		assertEquals(1, listener.getRejectedConnections());
+	}
+
+	private static class TestListener extends ServerListener {
+		private TestListener() {
+			super("Test");
+		}
+	}
+
+	private static class BlockingHandler extends ServerHandler {
+		private final FakeSocket socket;
+		private final CountDownLatch started;
+		private final CountDownLatch release;
+		private volatile boolean ran = false;
+
+		private BlockingHandler(FakeSocket socket, CountDownLatch started, CountDownLatch release) {
+			super(socket);
+			this.socket = socket;
+			this.started = started;
+			this.release = release;
+		}
+
+		@Override
+		public void run() {
+			ran = true;
+			if(started != null) {
+				started.countDown();
+			}
+			try {
+				release.await();
+			} catch(InterruptedException e) {
+				//Just exit
+			}
+		}
+
+		@Override
+		protected String getRejectMessage() {
+			return "BUSY\r\n";
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * SlotManagerTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SlotManagerTest {
+	private static final SlotSaveCallback NO_SAVE = new SlotSaveCallback() {
+		@Override
+		public void saveSlots(String slots, Object userdata) {
+			//Nothing to do
+		}
+	};
+
+	@Test
+	public void peekMatchesNextSlots() {
+		SlotManager manager = new NaturalSlotManager(NO_SAVE, null, "3,5,8");
+		manager.setPollAhead(4);
+
+		List<String> peeked = manager.peekSlots(10);
+		assertEquals(Arrays.asList("3", "5", "8", "9", "10", "11", "12"), peeked);
+		assertEquals(peeked, takeAll(manager));
+	}
+
+	@Test
+	public void peekDoesNotMoveOn() {
+		SlotManager manager = new NaturalSlotManager(NO_SAVE, null, "1");
+		manager.setPollAhead(2);
+
+		assertEquals(Arrays.asList("1", "2"), manager.peekSlots(2));
+		assertEquals("1", manager.getNextSlot());
+		assertEquals(Arrays.asList("2", "3"), manager.peekSlots(5));
+		assertEquals("2", manager.getNextSlot());
+	}
+
+	@Test
+	public void peekUnchangedBySlotUsed() {
+		SlotManager manager = new NaturalSlotManager(NO_SAVE, null, "3,5,8");
+		manager.setPollAhead(4);
+
+		assertEquals("3", manager.getNextSlot());
+		List<String> peeked = manager.peekSlots(3);
+		manager.slotUsed();
+		assertEquals(peeked, manager.peekSlots(3));
+
+		//Past the end of the list
+		takeSlots(manager, 3);
+		peeked = manager.peekSlots(2);
+		manager.slotUsed();
+		assertEquals(peeked, manager.peekSlots(2));
+		assertEquals(peeked, takeSlots(manager, 2));
+	}
+
+	@Test
+	public void peekSkipsExpiredSlots() {
+		long expired = System.currentTimeMillis() - 8L * 24 * 60 * 60 * 1000;
+		SlotManager manager = new NaturalSlotManager(NO_SAVE, null, "3=" + expired + ",5,8=" + expired);
+		manager.setPollAhead(2);
+
+		//The last slot in the list is never expired
+		List<String> peeked = manager.peekSlots(10);
+		assertEquals(Arrays.asList("5", "8", "9", "10"), peeked);
+		assertEquals(peeked, takeAll(manager));
+	}
+
+	private static List<String> takeSlots(SlotManager manager, int count) {
+		List<String> slots = new ArrayList<String>();
+		for(int i = 0; i < count; i++) {
+			slots.add(manager.getNextSlot());
+		}
+		return slots;
+	}
+
+	private static List<String> takeAll(SlotManager manager) {
+		List<String> slots = new ArrayList<String>();
+		String slot;
+		while((slot = manager.getNextSlot()) != null) {
+			slots.add(slot);
+		}
+		return slots;
+	}
+}
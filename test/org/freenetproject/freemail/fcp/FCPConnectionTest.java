@@ -0,0 +1,435 @@
+/*
+ * FCPConnectionTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.freenetproject.freemail.config.Configurator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FCPConnectionTest {
+	private FakeNode node;
+	private FCPConnection conn;
+	private RecordingClient client;
+
+	@Before
+	public void before() throws IOException {
+		node = new FakeNode();
+		client = new RecordingClient();
+	}
+
+	@After
+	public void after() throws IOException {
+		if(conn != null) {
+			conn.kill();
+		}
+		node.close();
+	}
+
+	@Test(timeout = 10000)
+	public void controlMessagesOvertakeUploads() throws Exception {
+		start(1);
+
+		BlockingInputStream blocked = new BlockingInputStream(1000);
+		conn.doRequest(client, put("KSK@first", blocked));
+		blocked.readStarted.await();
+
+		conn.doRequest(client, put("KSK@second", new ByteArrayInputStream(new byte[1000])));
+		FCPMessage generate = conn.getMessage("GenerateSSK");
+		conn.doRequest(client, generate);
+		blocked.release.countDown();
+
+		assertEquals("KSK@first", node.take().msg.headers.get("URI"));
+		assertEquals(generate.getId(), node.take().msg.getId());
+		assertEquals("KSK@second", node.take().msg.headers.get("URI"));
+	}
+
+	@Test(timeout = 10000)
+	public void higherPriorityGoesFirst() throws Exception {
+		start(1);
+
+		BlockingInputStream blocked = new BlockingInputStream(1000);
+		conn.doRequest(client, put("KSK@first", blocked));
+		blocked.readStarted.await();
+
+		conn.doRequest(client, get("KSK@poll", FCPPriority.LOW));
+		conn.doRequest(client, get("KSK@rts", FCPPriority.MEDIUM));
+		conn.doRequest(client, get("KSK@ack", FCPPriority.HIGH));
+		blocked.release.countDown();
+
+		assertEquals("KSK@first", node.take().msg.headers.get("URI"));
+		assertEquals("KSK@ack", node.take().msg.headers.get("URI"));
+		assertEquals("KSK@rts", node.take().msg.headers.get("URI"));
+		assertEquals("KSK@poll", node.take().msg.headers.get("URI"));
+	}
+
+	@Test(timeout = 10000)
+	public void requestsAvoidBusyLink() throws Exception {
+		start(2);
+
+		BlockingInputStream blocked = new BlockingInputStream(1000);
+		conn.doRequest(client, put("KSK@first", blocked));
+		blocked.readStarted.await();
+
+		//Arrives on the other socket while the first is still busy
+		FCPMessage generate = conn.getMessage("GenerateSSK");
+		conn.doRequest(client, generate);
+		Received received = node.take();
+		assertEquals(generate.getId(), received.msg.getId());
+
+		blocked.release.countDown();
+		Received upload = node.take();
+		assertEquals("KSK@first", upload.msg.headers.get("URI"));
+		assertEquals(1 - received.socket, upload.socket);
+	}
+
+	@Test(timeout = 10000)
+	public void connectionLossFailsRequests() throws Exception {
+		start(1);
+
+		FCPMessage generate = conn.getMessage("GenerateSSK");
+		conn.doRequest(client, generate);
+		node.take();
+		node.close();
+
+		FCPMessage reply = client.finished.take();
+		assertEquals("ConnectionClosed", reply.getType());
+		assertEquals(generate.getId(), reply.getId());
+	}
+
+	@Test(timeout = 10000)
+	public void cancelledRequestRemovedFromNode() throws Exception {
+		start(1);
+
+		FCPMessage generate = conn.getMessage("GenerateSSK");
+		conn.doRequest(client, generate);
+		node.take();
+		assertTrue(conn.cancelRequest(generate));
+
+		Received remove = node.take();
+		assertEquals("RemoveRequest", remove.msg.getType());
+		assertEquals(generate.getId(), remove.msg.getId());
+		node.send(0, "PersistentRequestRemoved\nIdentifier=" + generate.getId() + "\nEndMessage\n");
+		assertEquals("PersistentRequestRemoved", client.finished.take().getType());
+
+		//Nothing after that reaches the client
+		node.send(0, "SSKKeypair\nIdentifier=" + generate.getId() + "\nEndMessage\n");
+		FCPMessage marker = conn.getMessage("GenerateSSK");
+		conn.doRequest(client, marker);
+		node.take();
+		node.send(0, "SSKKeypair\nIdentifier=" + marker.getId() + "\nEndMessage\n");
+
+		assertEquals(marker.getId(), client.finished.take().getId());
+		assertNull(client.finished.poll());
+	}
+
+	@Test(timeout = 10000)
+	public void persistentRequestSurvivesReconnect() throws Exception {
+		startPersistent();
+
+		conn.doPersistentRequest(client, persistentPut("a"));
+		assertEquals("ClientPut", node.take().msg.getType());
+		node.listing = "PersistentPut\nIdentifier=Freemail-a\nEndMessage\n";
+		node.drop(0);
+
+		//The node still has it after we reconnect, so it isn't failed or sent again
+		assertEquals("WatchGlobal", node.take().msg.getType());
+		assertEquals("ListPersistentRequests", node.take().msg.getType());
+		node.send(1, "PutSuccessful\nIdentifier=Freemail-a\nURI=KSK@a\nEndMessage\n");
+
+		FCPMessage reply = client.finished.take();
+		assertEquals("PutSuccessful", reply.getType());
+		assertEquals("Freemail-a", reply.getId());
+
+		Received remove = node.take();
+		assertEquals("RemoveRequest", remove.msg.getType());
+		assertEquals("Freemail-a", remove.msg.getId());
+	}
+
+	@Test(timeout = 10000)
+	public void lostPersistentRequestFails() throws Exception {
+		startPersistent();
+
+		conn.doPersistentRequest(client, persistentPut("a"));
+		assertEquals("ClientPut", node.take().msg.getType());
+		node.drop(0);
+
+		FCPMessage reply = client.finished.take();
+		assertEquals("ConnectionClosed", reply.getType());
+		assertEquals("Freemail-a", reply.getId());
+	}
+
+	@Test(timeout = 10000)
+	public void attachesToExistingPersistentRequest() throws Exception {
+		node.listing = "PersistentPut\nIdentifier=Freemail-b\nEndMessage\n";
+		startPersistent();
+
+		conn.doPersistentRequest(client, persistentPut("b"));
+		node.send(0, "PutSuccessful\nIdentifier=Freemail-b\nURI=KSK@b\nEndMessage\n");
+		assertEquals("PutSuccessful", client.finished.take().getType());
+
+		//The data was never uploaded again
+		assertEquals("RemoveRequest", node.take().msg.getType());
+	}
+
+	@Test(timeout = 10000)
+	public void persistentRequestFinishedWhileAway() throws Exception {
+		node.listing = "PersistentPut\nIdentifier=Freemail-c\nEndMessage\n"
+		             + "PutSuccessful\nIdentifier=Freemail-c\nURI=KSK@c\nEndMessage\n";
+		startPersistent();
+
+		conn.doPersistentRequest(client, persistentPut("c"));
+		FCPMessage reply = client.finished.take();
+		assertEquals("PutSuccessful", reply.getType());
+		assertEquals("KSK@c", reply.headers.get("URI"));
+		assertEquals("RemoveRequest", node.take().msg.getType());
+	}
+
+	@Test(timeout = 10000)
+	public void unclaimedPersistentRequestRemoved() throws Exception {
+		node.listing = "PersistentPut\nIdentifier=Freemail-d\nEndMessage\n"
+		             + "PutSuccessful\nIdentifier=Freemail-d\nURI=KSK@d\nEndMessage\n";
+		startPersistent();
+
+		//Replies are dispatched in order, so the listing has been processed after this one
+		FCPMessage generate = conn.getMessage("GenerateSSK");
+		conn.doRequest(client, generate);
+		node.take();
+		node.send(0, "SSKKeypair\nIdentifier=" + generate.getId() + "\nEndMessage\n");
+		client.finished.take();
+
+		conn.removeUnclaimedRequests();
+		Received remove = node.take();
+		assertEquals("RemoveRequest", remove.msg.getType());
+		assertEquals("Freemail-d", remove.msg.getId());
+
+		//The result is gone, so asking for it again starts a new insert
+		conn.doPersistentRequest(client, persistentPut("d"));
+		assertEquals("ClientPut", node.take().msg.getType());
+		assertNull(client.finished.poll());
+	}
+
+	private void startPersistent() throws IOException, InterruptedException {
+		FCPContext ctx = context();
+		ctx.setConfigProp(Configurator.FCP_PERSISTENT_INSERTS, "true");
+		start(ctx);
+		conn.setReconnectDelay(100);
+		//The first connection's setup messages
+		assertEquals("WatchGlobal", node.take().msg.getType());
+		assertEquals("ListPersistentRequests", node.take().msg.getType());
+	}
+
+	private void start(int connections) throws IOException {
+		FCPContext ctx = context();
+		ctx.setConfigProp(Configurator.FCP_CONNECTIONS, Integer.toString(connections));
+		start(ctx);
+	}
+
+	private void start(FCPContext ctx) {
+		conn = new FCPConnection(ctx);
+		Thread t = new Thread(conn, "FCPConnectionTest");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private FCPMessage persistentPut(String identifier) {
+		FCPMessage msg = new FCPMessage(FCPConnection.PERSISTENT_ID_PREFIX + identifier, "ClientPut");
+		msg.headers.put("URI", "KSK@" + identifier);
+		msg.headers.put("Persistence", "forever");
+		msg.headers.put("Global", "true");
+		msg.setData(new ByteArrayInputStream(new byte[100]));
+		return msg;
+	}
+
+	private FCPContext context() {
+		return new FCPContext() {
+			@Override
+			public Socket getConn() throws IOException {
+				return new Socket("127.0.0.1", node.getPort());
+			}
+		};
+	}
+
+	private FCPMessage get(String key, FCPPriority priority) {
+		FCPMessage msg = conn.getMessage("ClientGet");
+		msg.headers.put("URI", key);
+		msg.setPriority(priority);
+		return msg;
+	}
+
+	private FCPMessage put(String key, InputStream data) {
+		FCPMessage msg = conn.getMessage("ClientPut");
+		msg.headers.put("URI", key);
+		msg.setData(data);
+		return msg;
+	}
+
+	private static class Received {
+		private final int socket;
+		private final FCPMessage msg;
+
+		private Received(int socket, FCPMessage msg) {
+			this.socket = socket;
+			this.msg = msg;
+		}
+	}
+
+	/**
+	 * Accepts connections, answers ClientHello and records every other message it gets.
+	 */
+	private static class FakeNode implements Runnable {
+		private final ServerSocket server;
+		private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+		private final BlockingQueue<Received> received = new LinkedBlockingQueue<Received>();
+
+		/** The persistent requests the node has, sent in reply to ListPersistentRequests */
+		private volatile String listing = "";
+
+		private FakeNode() throws IOException {
+			server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+			Thread t = new Thread(this, "Fake FCP node");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		private int getPort() {
+			return server.getLocalPort();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(true) {
+					final Socket s = server.accept();
+					final int index = sockets.size();
+					sockets.add(s);
+					Thread t = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							handle(index, s);
+						}
+					}, "Fake FCP node " + index);
+					t.setDaemon(true);
+					t.start();
+				}
+			} catch(IOException e) {
+				//Closed
+			}
+		}
+
+		private void handle(int index, Socket s) {
+			try {
+				FCPMessageReader r = new FCPMessageReader(s.getInputStream());
+				FCPMessage hello = new FCPMessage(r);
+				assertEquals("ClientHello", hello.getType());
+				send(index, "NodeHello\nEndMessage\n");
+
+				FCPMessage msg;
+				while((msg = new FCPMessage(r)).getType() != null) {
+					msg.release();
+					if(msg.getType().equals("ListPersistentRequests")) {
+						send(index, listing + "EndListPersistentRequests\nEndMessage\n");
+					}
+					received.add(new Received(index, msg));
+				}
+			} catch(IOException e) {
+				//Closed
+			}
+		}
+
+		private void send(int index, String msg) throws IOException {
+			OutputStream out = sockets.get(index).getOutputStream();
+			out.write(msg.getBytes("UTF-8"));
+			out.flush();
+		}
+
+		/**
+		 * Closes one connection, as if there was a network problem.
+		 */
+		private void drop(int index) throws IOException {
+			sockets.get(index).close();
+		}
+
+		private Received take() throws InterruptedException {
+			return received.poll(5, TimeUnit.SECONDS);
+		}
+
+		private void close() throws IOException {
+			server.close();
+			for(Socket s : sockets) {
+				s.close();
+			}
+		}
+	}
+
+	private static class RecordingClient implements FCPClient {
+		private final BlockingQueue<FCPMessage> finished = new LinkedBlockingQueue<FCPMessage>();
+
+		@Override
+		public void requestFinished(FCPMessage msg) {
+			finished.add(msg);
+		}
+
+		@Override
+		public void requestStatus(FCPMessage msg) {
+		}
+	}
+
+	/**
+	 * Data that can't be read until {@code release} is counted down.
+	 */
+	private static class BlockingInputStream extends ByteArrayInputStream {
+		private final CountDownLatch readStarted = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		private BlockingInputStream(int size) {
+			super(new byte[size]);
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			readStarted.countDown();
+			try {
+				release.await();
+			} catch(InterruptedException e) {
+				throw new AssertionError(e);
+			}
+			return super.read(b, off, len);
+		}
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * FCPMessageTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.freenetproject.freemail.support.io.LineReadingInputStream;
+import org.freenetproject.freemail.support.io.TooLongException;
+import org.junit.Assume;
+import org.junit.Test;
+
+import utils.UnitTestParameters;
+
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileBucket;
+
+public class FCPMessageTest {
+	private static final String PROGRESS =
+			  "SimpleProgress\n"
+			+ "Identifier=42\n"
+			+ "Total=1024\n"
+			+ "Required=512\n"
+			+ "Failed=0\n"
+			+ "FatallyFailed=0\n"
+			+ "Succeeded=128\n"
+			+ "FinalizedTotal=true\n"
+			+ "EndMessage\n";
+
+	@Test
+	public void readHeaders() throws IOException {
+		FCPMessageReader r = reader(PROGRESS + "NodeHello\r\nVersion=Fred,0.7\r\nEndMessage\r\n");
+
+		FCPMessage msg = new FCPMessage(r);
+		assertEquals("SimpleProgress", msg.getType());
+		assertEquals("42", msg.getId());
+		assertEquals("1024", msg.headers.get("Total"));
+		assertEquals("true", msg.headers.get("FinalizedTotal"));
+
+		msg = new FCPMessage(r);
+		assertEquals("NodeHello", msg.getType());
+		assertEquals("Fred,0.7", msg.headers.get("Version"));
+
+		assertNull(new FCPMessage(r).getType());
+	}
+
+	@Test
+	public void valueContainingEquals() throws IOException {
+		FCPMessage msg = new FCPMessage(reader("GetFailed\nRedirectURI=KSK@a=b\nEndMessage\n"));
+		assertEquals("KSK@a=b", msg.headers.get("RedirectURI"));
+	}
+
+	@Test
+	public void readDataPayload() throws IOException {
+		byte[] payload = new byte[100000];
+		for(int i = 0; i < payload.length; i++) {
+			payload[i] = (byte)i;
+		}
+		byte[] header = "AllData\nIdentifier=1\nDataLength=100000\nData\n".getBytes("UTF-8");
+		byte[] next = PROGRESS.getBytes("UTF-8");
+		byte[] stream = new byte[header.length + payload.length + next.length];
+		System.arraycopy(header, 0, stream, 0, header.length);
+		System.arraycopy(payload, 0, stream, header.length, payload.length);
+		System.arraycopy(next, 0, stream, header.length + payload.length, next.length);
+
+		//Small buffer and short reads so payload and lines straddle buffer boundaries
+		FCPMessageReader r = new FCPMessageReader(new TrickleInputStream(stream, 777), 256);
+		FCPMessage msg = new FCPMessage(r, payload.length);
+		assertEquals("AllData", msg.getType());
+		try {
+			assertTrue(msg.getData() instanceof ArrayBucket);
+			assertArrayEquals(payload, BucketTools.toByteArray(msg.getData()));
+		} finally {
+			msg.release();
+		}
+
+		assertEquals("SimpleProgress", new FCPMessage(r).getType());
+	}
+
+	@Test
+	public void largePayloadSpillsToDisk() throws IOException {
+		byte[] payload = new byte[1000];
+		for(int i = 0; i < payload.length; i++) {
+			payload[i] = (byte)(i * 7);
+		}
+		byte[] header = "AllData\nIdentifier=1\nDataLength=1000\nData\n".getBytes("UTF-8");
+		byte[] stream = new byte[header.length + payload.length];
+		System.arraycopy(header, 0, stream, 0, header.length);
+		System.arraycopy(payload, 0, stream, header.length, payload.length);
+
+		FCPMessage msg = new FCPMessage(new FCPMessageReader(new ByteArrayInputStream(stream)), 999);
+		assertTrue(msg.getData() instanceof FileBucket);
+		File file = ((FileBucket)msg.getData()).getFile();
+		assertArrayEquals(payload, readFile(file));
+
+		msg.release();
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void linesSplitAcrossReads() throws IOException {
+		FCPMessageReader r = new FCPMessageReader(new TrickleInputStream(PROGRESS.getBytes("UTF-8"), 1), 32);
+		FCPMessage msg = new FCPMessage(r);
+		assertEquals("SimpleProgress", msg.getType());
+		assertEquals("128", msg.headers.get("Succeeded"));
+	}
+
+	@Test(expected = EOFException.class)
+	public void streamEndsInMessage() throws IOException {
+		new FCPMessage(reader("SimpleProgress\nIdentifier=42\n"));
+	}
+
+	@Test(expected = EOFException.class)
+	public void streamEndsInData() throws IOException {
+		new FCPMessage(reader("AllData\nIdentifier=1\nDataLength=100\nData\nshort"));
+	}
+
+	@Test(expected = TooLongException.class)
+	public void lineTooLong() throws IOException {
+		FCPMessageReader r = new FCPMessageReader(new ByteArrayInputStream(PROGRESS.getBytes("UTF-8")), 8);
+		new FCPMessage(r);
+	}
+
+	@Test
+	public void badDataLength() throws IOException {
+		try {
+			new FCPMessage(reader("AllData\nIdentifier=1\nDataLength=lots\nData\n"));
+			fail("Expected IOException");
+		} catch(IOException e) {
+			//Expected
+		}
+	}
+
+	/**
+	 * Measures how many typical progress messages per second can be read from a local socket,
+	 * using both FCPMessageReader and a byte-at-a-time LineReadingInputStream on the raw socket
+	 * stream (which is how messages used to be read).
+	 */
+	@Test
+	public void readThroughput() throws Exception {
+		Assume.assumeTrue(UnitTestParameters.EXTENSIVE);
+
+		final int count = 200000;
+
+		//Warm up both paths first
+		readFromSocket(count / 10, false);
+		readFromSocket(count / 10, true);
+
+		long legacy = readFromSocket(count, true);
+		long buffered = readFromSocket(count, false);
+		System.out.println("FCP message read throughput (" + count + " messages):");
+		System.out.println("  LineReadingInputStream: " + (count * 1000000000L / legacy) + " msg/s");
+		System.out.println("  FCPMessageReader:       " + (count * 1000000000L / buffered) + " msg/s");
+	}
+
+	/**
+	 * Sends {@code count} messages over a local socket and returns how long it took to read
+	 * them all, in nanoseconds.
+	 */
+	private long readFromSocket(final int count, boolean legacy) throws Exception {
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		try {
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Socket s = new Socket("127.0.0.1", server.getLocalPort());
+						try {
+							OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+							byte[] msg = PROGRESS.getBytes("UTF-8");
+							for(int i = 0; i < count; i++) {
+								out.write(msg);
+							}
+							out.flush();
+						} finally {
+							s.close();
+						}
+					} catch(IOException e) {
+						throw new AssertionError(e);
+					}
+				}
+			});
+
+			writer.start();
+			Socket s = server.accept();
+			try {
+				long start = System.nanoTime();
+				int read;
+				if(legacy) {
+					read = readLegacy(s.getInputStream());
+				} else {
+					FCPMessageReader r = new FCPMessageReader(s.getInputStream());
+					read = 0;
+					while(new FCPMessage(r).getType() != null) {
+						read++;
+					}
+				}
+				long time = System.nanoTime() - start;
+				assertEquals(count, read);
+				writer.join();
+				return time;
+			} finally {
+				s.close();
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	private static int readLegacy(InputStream is) throws IOException {
+		@SuppressWarnings("resource")
+		LineReadingInputStream r = new LineReadingInputStream(is);
+		int messages = 0;
+		String line;
+		while((line = r.readLine(200, 200, false)) != null) {
+			if(line.startsWith("End")) {
+				messages++;
+			}
+		}
+		return messages;
+	}
+
+	private static FCPMessageReader reader(String data) throws IOException {
+		return new FCPMessageReader(new ByteArrayInputStream(data.getBytes("UTF-8")));
+	}
+
+	private static byte[] readFile(File f) throws IOException {
+		byte[] data = new byte[(int)f.length()];
+		InputStream is = new FileInputStream(f);
+		try {
+			int offset = 0;
+			while(offset < data.length) {
+				offset += is.read(data, offset, data.length - offset);
+			}
+		} finally {
+			is.close();
+		}
+		return data;
+	}
+
+	/**
+	 * Returns at most {@code chunk} bytes from each read.
+	 */
+	private static class TrickleInputStream extends ByteArrayInputStream {
+		private final int chunk;
+
+		TrickleInputStream(byte[] data, int chunk) {
+			super(data);
+			this.chunk = chunk;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			return super.read(b, off, Math.min(len, chunk));
+		}
+	}
+}
@@ -0,0 +1,404 @@
+/*
+ * FakeFCPNodeTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.freenetproject.freemail.Freemail;
+import org.freenetproject.freemail.MessageBank;
+import org.freenetproject.freemail.RTSPoller;
+import org.freenetproject.freemail.transport.MessageHandler;
+import org.freenetproject.freemail.utils.PropsFile;
+import org.freenetproject.freemail.wot.Identity;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.UnitTestParameters;
+import utils.Utils;
+
+import data.TestId1Data;
+import data.TestId2Data;
+import fakes.FakeFCPNode;
+import fakes.MockFreemail;
+import fakes.MockFreemailAccount;
+import fakes.MockWoTConnection;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+
+/**
+ * Runs two clients, each with its own connection like two Freemail instances, against a
+ * {@link FakeFCPNode} so that the whole wire path is used.
+ */
+public class FakeFCPNodeTest {
+	private static final FetchOptions OPTIONS = new FetchOptions(FCPPriority.LOW);
+
+	private final File testDir = new File("fake_fcp_node_test");
+
+	private FakeFCPNode node;
+	private final List<FCPConnection> connections = new ArrayList<FCPConnection>();
+	private final List<ScheduledExecutorService> executors = new ArrayList<ScheduledExecutorService>();
+
+	@Before
+	public void before() throws IOException {
+		node = new FakeFCPNode(0);
+	}
+
+	@After
+	public void after() {
+		for(ScheduledExecutorService executor : executors) {
+			executor.shutdownNow();
+		}
+		MockFreemail.setFCPConnection(null);
+		for(FCPConnection conn : connections) {
+			conn.kill();
+		}
+		node.close();
+
+		Utils.delete(testDir);
+
+		//Forget the cached props of the deleted files
+		PropsFile.reapOld();
+	}
+
+	@Test(timeout = 10000)
+	public void insertedDataCanBeFetched() throws Exception {
+		HighLevelFCPClient alice = connect();
+		HighLevelFCPClient bob = connect();
+
+		byte[] data = "Hello Bob".getBytes("UTF-8");
+		assertNull(alice.put(new ByteArrayInputStream(data), "KSK@hello", FCPPriority.HIGH));
+		assertArrayEquals(data, read(bob.fetch("KSK@hello", OPTIONS)));
+	}
+
+	@Test(timeout = 10000)
+	public void sskSlotsFetchedWithRequestKey() throws Exception {
+		HighLevelFCPClient alice = connect();
+		HighLevelFCPClient bob = connect();
+
+		SSKKeyPair keys = alice.makeSSK();
+		byte[] data = "Slot data".getBytes("UTF-8");
+		assertEquals(1, alice.slotInsert(data, keys.privkey + "code", 1, "", FCPPriority.HIGH));
+		assertEquals(2, alice.slotInsert(data, keys.privkey + "code", 1, "", FCPPriority.HIGH));
+
+		assertArrayEquals(data, read(bob.fetch(keys.pubkey + "code-2", OPTIONS)));
+	}
+
+	@Test(timeout = 10000)
+	public void missingKeyIsDataNotFound() throws Exception {
+		try {
+			connect().fetch("KSK@missing", OPTIONS);
+			fail("Fetch didn't fail");
+		} catch(FCPFetchException e) {
+			assertEquals(FCPFetchException.DATA_NOT_FOUND, e.getCode());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void injectedCollision() throws Exception {
+		node.setCollisionRate(1);
+
+		FCPPutFailedException e = connect().put(new ByteArrayInputStream(new byte[10]), "KSK@a", FCPPriority.HIGH);
+		assertEquals(FCPPutFailedException.COLLISION, e.errorcode);
+	}
+
+	@Test(timeout = 10000)
+	public void oversizedDataRefused() throws Exception {
+		node.insert("KSK@big", new byte[2048]);
+
+		try {
+			connect().fetch("KSK@big", OPTIONS.withMaxSize(1024));
+			fail("Fetch didn't fail");
+		} catch(FCPFetchException e) {
+			assertEquals(FCPFetchException.TOO_BIG, e.getCode());
+			assertTrue(e.isFatal());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void recoversFromInjectedDisconnect() throws Exception {
+		node.insert("KSK@a", new byte[10]);
+		HighLevelFCPClient client = connect();
+
+		node.setDisconnectRate(1);
+		try {
+			client.fetchAsync("KSK@a", OPTIONS, null).get();
+			fail("Fetch didn't fail");
+		} catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof FCPException);
+		}
+
+		node.setDisconnectRate(0);
+		while(true) {
+			try {
+				assertEquals(10, read(client.fetchAsync("KSK@a", OPTIONS, null).get()).length);
+				break;
+			} catch(ExecutionException e) {
+				//Not reconnected yet
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void cancelledFetchesRemovedFromNode() throws Exception {
+		HighLevelFCPClient client = connect();
+		node.setLatency(1, 1, TimeUnit.SECONDS);
+
+		final AtomicInteger completed = new AtomicInteger();
+		FCPCallback<Bucket> callback = new FCPCallback<Bucket>() {
+			@Override
+			public void requestCompleted(Future<Bucket> result) {
+				completed.incrementAndGet();
+			}
+		};
+		List<Future<Bucket>> probes = new ArrayList<Future<Bucket>>();
+		for(int i = 0; i < 10; i++) {
+			probes.add(client.fetchAsync("KSK@probe-" + i, OPTIONS, callback));
+		}
+		while(node.getRequestsInFlight() < probes.size()) {
+			Thread.sleep(10);
+		}
+
+		for(Future<Bucket> probe : probes) {
+			assertTrue(probe.cancel(false));
+		}
+
+		//The node is still working on them until it has handled the RemoveRequests
+		assertEquals(0, completed.get());
+		while(completed.get() < probes.size()) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, node.getRequestsInFlight());
+		for(Future<Bucket> probe : probes) {
+			assertTrue(probe.isCancelled());
+		}
+	}
+
+	/**
+	 * Runs two accounts, each with its own MessageHandler and connection like two Freemail
+	 * instances, that mail each other through the node, and prints the throughput. This covers
+	 * the RTS, the channel setup and the message slots, up to delivery to the inbox.
+	 */
+	@Test
+	public void exchangeBenchmark() throws Exception {
+		Assume.assumeTrue(UnitTestParameters.EXTENSIVE);
+
+		final int count = 100;
+		node.setLatency(1, 20, TimeUnit.MILLISECONDS);
+		node.setDataNotFoundRate(0.05);
+
+		//Both mailsites have been inserted already
+		node.insert(TestId1Data.Mailsite.REQUEST_KEY, TestId1Data.Mailsite.CONTENT.getBytes("UTF-8"));
+		node.insert(TestId2Data.Mailsite.REQUEST_KEY, TestId2Data.Mailsite.CONTENT.getBytes("UTF-8"));
+
+		//Both identities know each other and themselves
+		final MockWoTConnection wotConnection;
+		{
+			Map<String, Identity> ids = new HashMap<String, Identity>();
+			ids.put(TestId1Data.Identity.ID, TestId1Data.Identity.newInstance());
+			ids.put(TestId2Data.Identity.ID, TestId2Data.Identity.newInstance());
+			Map<String, Map<String, Identity>> identities = new HashMap<String, Map<String, Identity>>();
+			identities.put(TestId1Data.Identity.ID, ids);
+			identities.put(TestId2Data.Identity.ID, ids);
+
+			Map<String, String> props = new HashMap<String, String>();
+			props.put("Freemail.mailsite", TestId1Data.Mailsite.EDITION + "");
+			Map<String, Map<String, String>> properties = new HashMap<String, Map<String, String>>();
+			properties.put(TestId1Data.Identity.ID, props);
+			properties.put(TestId2Data.Identity.ID, props);
+
+			wotConnection = new MockWoTConnection(identities, properties);
+		}
+
+		Freemail.setRNG(new SecureRandom());
+
+		Peer alice = new Peer("alice", TestId1Data.FreemailAccount.IDENTITY,
+				TestId1Data.FreemailAccount.ACCPROPS_CONTENT, wotConnection);
+		Peer bob = new Peer("bob", TestId2Data.FreemailAccount.IDENTITY,
+				TestId2Data.FreemailAccount.ACCPROPS_CONTENT, wotConnection);
+
+		//The RTS fetcher uses the global connection, which each Freemail replaces when created
+		MockFreemail.setFCPConnection(connectNode());
+
+		long start = System.nanoTime();
+		for(int i = 0; i < count; i++) {
+			alice.send(TestId2Data.Identity.newInstance(), i);
+			bob.send(TestId1Data.Identity.newInstance(), i);
+		}
+
+		long deadline = start + TimeUnit.MINUTES.toNanos(10);
+		while(alice.received() < count || bob.received() < count) {
+			assertTrue("Only " + alice.received() + " and " + bob.received() + " of " + count
+					+ " messages were received", System.nanoTime() < deadline);
+			alice.rtsPoller.poll();
+			bob.rtsPoller.poll();
+			Thread.sleep(1000);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("Exchanged " + count + " messages each way through " + node);
+		System.out.println("  " + String.format(Locale.ROOT, "%.2f", 2 * count * 1e9 / elapsed) + " msg/s, "
+				+ TimeUnit.NANOSECONDS.toSeconds(elapsed) + "s total, "
+				+ node.getGets() + " gets, " + node.getPuts() + " puts");
+		for(Peer peer : new Peer[] {alice, bob}) {
+			RequestLatency latency = peer.conn.getLatency();
+			System.out.println("  " + peer.name + ": "
+					+ latency.getAverage(FCPPriority.HIGH, TimeUnit.MILLISECONDS) + "ms average insert, "
+					+ latency.getAverage(FCPPriority.LOW, TimeUnit.MILLISECONDS) + "ms average fetch");
+		}
+	}
+
+	private HighLevelFCPClient connect() {
+		HighLevelFCPClient client = new HighLevelFCPClient(connectNode());
+		client.setReplyTimeout(5000);
+		return client;
+	}
+
+	private FCPConnection connectNode() {
+		FCPContext ctx = new FCPContext() {
+			@Override
+			public Socket getConn() throws IOException {
+				return new Socket("127.0.0.1", node.getPort());
+			}
+		};
+		FCPConnection conn = new FCPConnection(ctx);
+		conn.setReconnectDelay(100);
+		Thread t = new Thread(conn, "FakeFCPNodeTest " + connections.size());
+		t.setDaemon(true);
+		t.start();
+		connections.add(conn);
+		return conn;
+	}
+
+	private static byte[] read(Bucket bucket) throws IOException {
+		try {
+			return BucketTools.toByteArray(bucket);
+		} finally {
+			bucket.free();
+		}
+	}
+
+	/**
+	 * One Freemail account with its own MessageHandler, threads and connection to the node.
+	 */
+	private class Peer {
+		private final String name;
+		private final FCPConnection conn;
+		private final PeerAccount account;
+		private final MessageHandler messageHandler;
+		private final RTSPoller rtsPoller;
+
+		private Peer(String name, String identity, String accprops, MockWoTConnection wotConnection)
+				throws IOException {
+			this.name = name;
+			this.conn = connectNode();
+
+			File dir = new File(testDir, name);
+			File accountDir = new File(dir, "account");
+			assertTrue(accountDir.mkdirs());
+
+			MockFreemail freemail = new MockFreemail(new File(dir, "config").getPath(), wotConnection);
+			ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
+			executors.add(executor);
+			freemail.setExecutor(executor);
+
+			File accProps = new File(accountDir, "accprops");
+			PrintWriter pw = new PrintWriter(accProps);
+			pw.write(accprops);
+			pw.close();
+			account = new PeerAccount(identity, accountDir, PropsFile.createPropsFile(accProps), freemail);
+
+			HighLevelFCPClientFactory factory = new HighLevelFCPClientFactory() {
+				@Override
+				public HighLevelFCPClient newInstance() {
+					return new HighLevelFCPClient(conn);
+				}
+			};
+			messageHandler = new MessageHandler(new File(dir, "outbox"), freemail, new File(dir, "channels"),
+					account, factory);
+			account.messageHandler = messageHandler;
+			messageHandler.start();
+
+			rtsPoller = new RTSPoller(account);
+		}
+
+		private void send(Identity recipient, int i) throws IOException {
+			String msg = "Subject: Message " + i + "\r\n"
+					+ "\r\n"
+					+ "Message " + i + " from " + name + "\r\n";
+			List<Identity> recipients = new ArrayList<Identity>(1);
+			recipients.add(recipient);
+			assertTrue(messageHandler.sendMessage(recipients, new ArrayBucket(msg.getBytes("UTF-8"))));
+		}
+
+		private int received() {
+			return account.messageBank.listMessages().size();
+		}
+	}
+
+	/**
+	 * An account with a real inbox that delivers to the MessageHandler of its peer.
+	 */
+	private static class PeerAccount extends MockFreemailAccount {
+		private final MessageBank messageBank;
+		private volatile MessageHandler messageHandler;
+
+		private PeerAccount(String identity, File accountDir, PropsFile propsFile, Freemail freemail) {
+			super(identity, accountDir, propsFile, freemail);
+			messageBank = new MessageBank(this);
+		}
+
+		@Override
+		public MessageBank getMessageBank() {
+			return messageBank;
+		}
+
+		@Override
+		public MessageHandler getMessageHandler() {
+			return messageHandler;
+		}
+	}
+}
@@ -0,0 +1,314 @@
+/*
+ * HighLevelFCPClientTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.fcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.api.Bucket;
+
+public class HighLevelFCPClientTest {
+	private RecordingConnection conn;
+	private HighLevelFCPClient client;
+	private ExecutorService executor;
+
+	@Before
+	public void before() {
+		conn = new RecordingConnection();
+		client = new HighLevelFCPClient(conn);
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void after() {
+		executor.shutdownNow();
+	}
+
+	@Test(timeout = 10000)
+	public void repliesRoutedByIdentifier() throws Exception {
+		Future<SSKKeyPair> first = executor.submit(new MakeSSK());
+		FCPMessage a = conn.sent.take();
+		Future<SSKKeyPair> second = executor.submit(new MakeSSK());
+		FCPMessage b = conn.sent.take();
+
+		//Reply in the opposite order to the requests
+		client.requestFinished(keypair(b, "b"));
+		client.requestFinished(keypair(a, "a"));
+
+		assertEquals("pub-a", first.get().pubkey);
+		assertEquals("pub-b", second.get().pubkey);
+	}
+
+	@Test(timeout = 10000)
+	public void timeoutCancelsRequest() throws Exception {
+		client.setReplyTimeout(100);
+
+		try {
+			client.fetch("KSK@test", new FetchOptions(FCPPriority.LOW));
+			fail("Fetch didn't time out");
+		} catch(FCPTimeoutException e) {
+			//Expected
+		}
+
+		FCPMessage sent = conn.sent.take();
+		assertEquals(1, conn.cancelled.size());
+		assertEquals(sent.getId(), conn.cancelled.get(0));
+	}
+
+	@Test(timeout = 10000)
+	public void lateReplyIsDropped() throws Exception {
+		client.setReplyTimeout(100);
+		assertNull(client.makeSSK());
+
+		//Must not be delivered anywhere or throw
+		client.requestFinished(keypair(conn.sent.take(), "late"));
+	}
+
+	@Test(timeout = 10000)
+	public void connectionClosedFailsRequest() throws Exception {
+		Future<Object> fetch = executor.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return client.fetch("KSK@test", new FetchOptions(FCPPriority.LOW));
+			}
+		});
+
+		FCPMessage sent = conn.sent.take();
+		client.requestFinished(new FCPMessage(sent.getId(), "ConnectionClosed"));
+
+		try {
+			fetch.get();
+			fail("Fetch didn't fail");
+		} catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof FCPException);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void asyncCallbackGetsResult() throws Exception {
+		final BlockingQueue<Future<SSKKeyPair>> completed = new LinkedBlockingQueue<Future<SSKKeyPair>>();
+		Future<SSKKeyPair> result = client.makeSSKAsync(new FCPCallback<SSKKeyPair>() {
+			@Override
+			public void requestCompleted(Future<SSKKeyPair> r) {
+				completed.add(r);
+			}
+		});
+		assertFalse(result.isDone());
+
+		client.requestFinished(keypair(conn.sent.take(), "a"));
+
+		assertTrue(result.isDone());
+		assertSame(result, completed.take());
+		assertEquals("pub-a", result.get().pubkey);
+	}
+
+	@Test(timeout = 10000)
+	public void asyncPutFailure() throws Exception {
+		Future<String> result = client.putAsync(new ByteArrayInputStream(new byte[0]), "KSK@test", FCPPriority.HIGH, null);
+
+		FCPMessage reply = new FCPMessage(conn.sent.take().getId(), "PutFailed");
+		reply.headers.put("Code", Integer.toString(FCPPutFailedException.COLLISION));
+		client.requestFinished(reply);
+
+		try {
+			result.get();
+			fail("Put didn't fail");
+		} catch(ExecutionException e) {
+			assertEquals(FCPPutFailedException.COLLISION, ((FCPPutFailedException) e.getCause()).errorcode);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void asyncFetchFollowsRedirect() throws Exception {
+		Future<Bucket> result = client.fetchAsync("KSK@old", new FetchOptions(FCPPriority.LOW), null);
+
+		FCPMessage redirect = new FCPMessage(conn.sent.take().getId(), "GetFailed");
+		redirect.headers.put("Code", "27");
+		redirect.headers.put("RedirectURI", "KSK@new");
+		client.requestFinished(redirect);
+
+		FCPMessage second = conn.sent.take();
+		assertEquals("KSK@new", second.headers.get("URI"));
+		assertFalse(result.isDone());
+
+		client.requestFinished(new FCPMessage(second.getId(), "AllData"));
+		assertTrue(result.isDone());
+		assertNull(result.get());
+	}
+
+	@Test(timeout = 10000)
+	public void cancelStopsRedirectedFetch() throws Exception {
+		final BlockingQueue<Future<Bucket>> completed = new LinkedBlockingQueue<Future<Bucket>>();
+		Future<Bucket> result = client.fetchAsync("KSK@old", new FetchOptions(FCPPriority.LOW), new FCPCallback<Bucket>() {
+			@Override
+			public void requestCompleted(Future<Bucket> r) {
+				completed.add(r);
+			}
+		});
+
+		FCPMessage redirect = new FCPMessage(conn.sent.take().getId(), "GetFailed");
+		redirect.headers.put("Code", "27");
+		redirect.headers.put("RedirectURI", "KSK@new");
+		client.requestFinished(redirect);
+		FCPMessage second = conn.sent.take();
+
+		assertTrue(result.cancel(false));
+		assertTrue(conn.cancelled.contains(second.getId()));
+
+		//The redirected fetch is gone, so its reply is dropped and the callback only ran once
+		client.requestFinished(new FCPMessage(second.getId(), "AllData"));
+		assertSame(result, completed.take());
+		assertTrue(completed.isEmpty());
+		assertTrue(result.isCancelled());
+	}
+
+	@Test(timeout = 10000)
+	public void cancelRemovesRequest() throws Exception {
+		Future<Bucket> result = client.fetchAsync("KSK@test", new FetchOptions(FCPPriority.LOW), null);
+		FCPMessage sent = conn.sent.take();
+
+		assertTrue(result.cancel(false));
+		assertTrue(result.isCancelled());
+		assertEquals(sent.getId(), conn.cancelled.get(0));
+
+		//A reply after cancelling is dropped
+		client.requestFinished(new FCPMessage(sent.getId(), "AllData"));
+		assertFalse(result.cancel(false));
+	}
+
+	@Test(timeout = 10000)
+	public void asyncFailsWithoutNodeConnection() throws Exception {
+		conn.connected = false;
+		Future<Bucket> result = client.fetchAsync("KSK@test", new FetchOptions(FCPPriority.LOW), null);
+
+		assertTrue(result.isDone());
+		try {
+			result.get();
+			fail("Fetch didn't fail");
+		} catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof NoNodeConnectionException);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void latencyRecordedByPriority() throws Exception {
+		Future<String> put = client.putAsync(new ByteArrayInputStream(new byte[0]), "KSK@test", FCPPriority.HIGH, null);
+		FCPMessage sent = conn.sent.take();
+		assertEquals("1", sent.headers.get("PriorityClass"));
+
+		client.requestFinished(new FCPMessage(sent.getId(), "PutSuccessful"));
+		put.get();
+
+		assertEquals(1, conn.getLatency().getCount(FCPPriority.HIGH));
+		assertEquals(0, conn.getLatency().getCount(FCPPriority.LOW));
+	}
+
+	@Test(timeout = 10000)
+	public void fetchOptionsSetClientGetFields() throws Exception {
+		FetchOptions options = new FetchOptions(FCPPriority.MEDIUM)
+				.withMaxSize(1024)
+				.withMaxRetries(3)
+				.withIgnoreDS(true);
+		client.fetchAsync("KSK@test", options, null);
+
+		FCPMessage sent = conn.sent.take();
+		assertEquals("2", sent.headers.get("PriorityClass"));
+		assertEquals("1024", sent.headers.get("MaxSize"));
+		assertEquals("3", sent.headers.get("MaxRetries"));
+		assertEquals("true", sent.headers.get("IgnoreDS"));
+	}
+
+	@Test(timeout = 10000)
+	public void fetchOptionsTimeoutOverridesDefault() throws Exception {
+		try {
+			client.fetch("KSK@test", new FetchOptions(FCPPriority.LOW).withTimeout(100, TimeUnit.MILLISECONDS));
+			fail("Fetch didn't time out");
+		} catch(FCPTimeoutException e) {
+			//Expected
+		}
+		assertEquals(1, conn.cancelled.size());
+	}
+
+	private static FCPMessage keypair(FCPMessage request, String name) {
+		FCPMessage reply = new FCPMessage(request.getId(), "SSKKeypair");
+		reply.headers.put("InsertURI", "priv-" + name);
+		reply.headers.put("RequestURI", "pub-" + name);
+		return reply;
+	}
+
+	private class MakeSSK implements Callable<SSKKeyPair> {
+		@Override
+		public SSKKeyPair call() throws Exception {
+			return client.makeSSK();
+		}
+	}
+
+	private static class RecordingConnection extends FCPConnection {
+		private final BlockingQueue<FCPMessage> sent = new LinkedBlockingQueue<FCPMessage>();
+		private final List<String> cancelled = new CopyOnWriteArrayList<String>();
+
+		RecordingConnection() {
+			super(new FCPContext() {
+				@Override
+				public Socket getConn() throws IOException {
+					throw new IOException("No node in tests");
+				}
+			});
+		}
+
+		private volatile boolean connected = true;
+
+		@Override
+		public void doRequest(FCPClient cli, FCPMessage msg) throws NoNodeConnectionException {
+			if(!connected) {
+				throw new NoNodeConnectionException();
+			}
+			sent.add(msg);
+		}
+
+		@Override
+		public boolean cancelRequest(FCPMessage msg) {
+			cancelled.add(msg.getId());
+			return false;
+		}
+	}
+}
@@ -37,7 +37,7 @@ public class IMAPAppendTest extends IMAPTestWithMessages {
 		commands.add(new Command("0003 APPEND INBOX {23}",
 		                         "+ OK"));
 		commands.add(new Command("Subject: Test message",
-		                         "0003 OK APPEND completed"));
+		                         "0003 OK [APPENDUID 1 11] APPEND completed"));
 		commands.add(new Command("0004 UID FETCH 10:* FLAGS",
 		                         "* 9 FETCH (FLAGS () UID 10)",
 		                         "* 10 FETCH (FLAGS (\\Recent) UID 11)",
@@ -55,7 +55,7 @@ public class IMAPAppendTest extends IMAPTestWithMessages {
 		commands.add(new Command("0003 APPEND INBOX (\\Seen) {23}",
 		                         "+ OK"));
 		commands.add(new Command("Subject: Test message",
-		                         "0003 OK APPEND completed"));
+		                         "0003 OK [APPENDUID 1 11] APPEND completed"));
 		commands.add(new Command("0004 UID FETCH 10:* FLAGS",
 		                         "* 9 FETCH (FLAGS () UID 10)",
 		                         "* 10 FETCH (FLAGS (\\Seen \\Recent) UID 11)",
@@ -77,7 +77,7 @@ public class IMAPAppendTest extends IMAPTestWithMessages {
 		commands.add(new Command("0003 APPEND INBOX (\\Seen custom) {23}",
 		                         "+ OK"));
 		commands.add(new Command("Subject: Test message",
-		                         "0003 OK APPEND completed"));
+		                         "0003 OK [APPENDUID 1 11] APPEND completed"));
 		commands.add(new Command("0004 UID FETCH 10:* FLAGS",
 		                         "* 9 FETCH (FLAGS () UID 10)",
 		                         "* 10 FETCH (FLAGS (\\Seen \\Recent) UID 11)",
@@ -95,7 +95,7 @@ public class IMAPAppendTest extends IMAPTestWithMessages {
 		commands.add(new Command("0003 APPEND INBOX (\\Seen \\Flagged) {23}",
 		                         "+ OK"));
 		commands.add(new Command("Subject: Test message",
-		                         "0003 OK APPEND completed"));
+		                         "0003 OK [APPENDUID 1 11] APPEND completed"));
 		commands.add(new Command("0004 UID FETCH 10:* FLAGS",
 		                         "* 9 FETCH (FLAGS () UID 10)",
 		                         "* 10 FETCH (FLAGS (\\Seen \\Flagged \\Recent) UID 11)",
@@ -115,7 +115,7 @@ public class IMAPAppendTest extends IMAPTestWithMessages {
 		commands.add(new Command("Subject: Test message"));
 		commands.add(new Command(""));
 		commands.add(new Command("Test message",
-		                         "0003 OK APPEND completed"));
+		                         "0003 OK [APPENDUID 1 11] APPEND completed"));
 		commands.add(new Command("0004 UID FETCH 10:* FLAGS",
 		                         "* 9 FETCH (FLAGS () UID 10)",
 		                         "* 10 FETCH (FLAGS (\\Seen \\Recent) UID 11)",
@@ -147,7 +147,7 @@ public class IMAPAppendTest extends IMAPTestWithMessages {
 		commands.add(new Command("To: zidel@zidel.freemail"));
 		commands.add(new Command(""));
 		commands.add(new Command("Test message",
-		                         "7 OK APPEND completed"));
+		                         "7 OK [APPENDUID 1 11] APPEND completed"));
 
 		runSimpleTest(commands);
 	}
@@ -163,7 +163,7 @@ public class IMAPAppendTest extends IMAPTestWithMessages {
 		commands.add(new Command("To: zidel@zidel.freemail"));
 		commands.add(new Command(""));
 		commands.add(new Command("Test message",
-		                         "7 OK APPEND completed"));
+		                         "7 OK [APPENDUID 1 11] APPEND completed"));
 
 		runSimpleTest(commands);
 	}
@@ -218,7 +218,7 @@ public class IMAPAppendTest extends IMAPTestWithMessages {
 		commands.add(new Command("To: zidel@zidel.freemail"));
 		commands.add(new Command(""));
 		commands.add(new Command("Test message",
-		                         "0003 OK APPEND completed"));
+		                         "0003 OK [APPENDUID 1 11] APPEND completed"));
 		commands.add(new Command("0004 FETCH * (UID FLAGS)",
 		                         "* 10 FETCH (UID 11 FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent))",
 		                         "0004 OK Fetch completed"));
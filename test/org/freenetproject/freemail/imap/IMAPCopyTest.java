@@ -39,7 +39,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		expectedResponse.addAll(INITIAL_RESPONSES);
 		expectedResponse.add("* SEARCH 1 2 3 4 5 6 7 8 9");
 		expectedResponse.add("0003 OK Search completed");
-		expectedResponse.add("0004 OK COPY completed");
+		expectedResponse.add("0004 OK [COPYUID 1 1 11] COPY completed");
 		expectedResponse.add("* SEARCH 1 2 3 4 5 6 7 8 9 10");
 		expectedResponse.add("0005 OK Search completed");
 
@@ -140,7 +140,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 
 		List<String> expectedResponse = new LinkedList<String>();
 		expectedResponse.addAll(INITIAL_RESPONSES);
-		expectedResponse.add("0003 OK COPY completed");
+		expectedResponse.add("0003 OK [COPYUID 1 1 11] COPY completed");
 		expectedResponse.add("* 10 FETCH (FLAGS (\\Recent))");
 		expectedResponse.add("0004 OK Fetch completed");
 
@@ -177,7 +177,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		expectedResponse.addAll(INITIAL_RESPONSES);
 		expectedResponse.add("* SEARCH 1 2 3 4 6 7 8 9 10");
 		expectedResponse.add("0003 OK Search completed");
-		expectedResponse.add("0004 OK COPY completed");
+		expectedResponse.add("0004 OK [COPYUID 1 1 11] COPY completed");
 		expectedResponse.add("* SEARCH 1 2 3 4 6 7 8 9 10 11");
 		expectedResponse.add("0005 OK Search completed");
 		expectedResponse.add("* 10 FETCH (UID 11)");
@@ -205,7 +205,7 @@ public class IMAPCopyTest extends IMAPTestWithMessages {
 		expectedResponse.add("0004 OK Store completed");
 		expectedResponse.add("* 3 FETCH FLAGS (\\Recent)");
 		expectedResponse.add("0005 OK Store completed");
-		expectedResponse.add("0006 OK COPY completed");
+		expectedResponse.add("0006 OK [COPYUID 1 1:3 11:13] COPY completed");
 		expectedResponse.add("* 10 FETCH (UID 11 FLAGS (\\Seen \\Recent))");
 		expectedResponse.add("* 11 FETCH (UID 12 FLAGS (\\Deleted \\Recent))");
 		expectedResponse.add("* 12 FETCH (UID 13 FLAGS (\\Recent))");
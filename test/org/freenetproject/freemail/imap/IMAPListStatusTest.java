@@ -0,0 +1,156 @@
+/*
+ * IMAPListStatusTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class IMAPListStatusTest extends IMAPTestWithMessages {
+	@Test
+	public void listWithStatus() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 CREATE INBOX.Trash");
+		commands.add("0004 LIST \"\" \"*\" RETURN (STATUS (MESSAGES UNSEEN))");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("0003 OK Mailbox created");
+		expectedResponse.add("* LIST (\\HasNoChildren) \".\" \"INBOX.Trash\"");
+		expectedResponse.add("* STATUS \"INBOX.Trash\" (MESSAGES 0 UNSEEN 0)");
+		expectedResponse.add("* LIST (\\HasChildren) \".\" \"INBOX\"");
+		expectedResponse.add("* STATUS \"INBOX\" (MESSAGES 9 UNSEEN 9)");
+		expectedResponse.add("0004 OK LIST completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void listWithStatusSkipsNoselectFolders() throws IOException {
+		//A directory Freemail didn't create can't be selected, and neither can
+		//the folders below it
+		File parent = new File(new File(accountDirs.get(BASE64_USERNAME), "inbox"), "Old-Mail");
+		assertTrue(new File(parent, "Trash").mkdirs());
+
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 LIST \"\" \"*\" RETURN (STATUS (MESSAGES))");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* LIST (\\Noselect \\HasNoChildren) \".\" \"INBOX.Old-Mail.Trash\"");
+		expectedResponse.add("* LIST (\\Noselect \\HasChildren) \".\" \"INBOX.Old-Mail\"");
+		expectedResponse.add("* LIST (\\HasChildren) \".\" \"INBOX\"");
+		expectedResponse.add("* STATUS \"INBOX\" (MESSAGES 9)");
+		expectedResponse.add("0003 OK LIST completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void listWithoutStatusReturnOption() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 LIST \"\" \"INBOX\" RETURN (CHILDREN)");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* LIST (\\HasNoChildren) \".\" \"INBOX\"");
+		expectedResponse.add("0003 OK LIST completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void listStatusIsUpdatedAfterStore() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 LIST \"\" \"INBOX\" RETURN (STATUS (UNSEEN))");
+		commands.add("0004 STORE 1:2 +FLAGS (\\Seen)");
+		commands.add("0005 LIST \"\" \"INBOX\" RETURN (STATUS (UNSEEN))");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* LIST (\\HasNoChildren) \".\" \"INBOX\"");
+		expectedResponse.add("* STATUS \"INBOX\" (UNSEEN 9)");
+		expectedResponse.add("0003 OK LIST completed");
+		expectedResponse.add("* 1 FETCH FLAGS (\\Seen)");
+		expectedResponse.add("* 2 FETCH FLAGS (\\Seen)");
+		expectedResponse.add("0004 OK Store completed");
+		expectedResponse.add("* LIST (\\HasNoChildren) \".\" \"INBOX\"");
+		expectedResponse.add("* STATUS \"INBOX\" (UNSEEN 7)");
+		expectedResponse.add("0005 OK LIST completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void listWithUnknownStatusItem() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 LIST \"\" \"*\" RETURN (STATUS (MESSAGES SIZE))");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("0003 BAD Unknown status item SIZE");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void listWithUnknownArgument() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 LIST \"\" \"*\" STATUS");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("0003 BAD Unknown argument STATUS");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void status() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 STATUS INBOX (MESSAGES UIDNEXT UIDVALIDITY UNSEEN)");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* STATUS INBOX (MESSAGES 9 UIDNEXT 11 UIDVALIDITY 1 UNSEEN 9)");
+		expectedResponse.add("0003 OK STATUS completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+}
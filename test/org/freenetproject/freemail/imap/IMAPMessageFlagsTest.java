@@ -0,0 +1,67 @@
+/*
+ * IMAPMessageFlagsTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class IMAPMessageFlagsTest {
+	@Test
+	public void shortFlagStringRoundTrip() {
+		IMAPMessageFlags flags = new IMAPMessageFlags("SXR");
+		assertTrue(flags.isSeen());
+		assertTrue(flags.isDeleted());
+		assertTrue(flags.isRecent());
+		assertFalse(flags.get(IMAPMessageFlags.FLAG_FLAGGED));
+		assertEquals("SXR", flags.getShortFlagString());
+		assertEquals("\\Seen \\Deleted \\Recent", flags.getFlags());
+	}
+
+	@Test
+	public void bitsRoundTrip() {
+		IMAPMessageFlags flags = new IMAPMessageFlags();
+		flags.set("\\answered", true);
+		flags.set("\\Draft", true);
+
+		IMAPMessageFlags copy = new IMAPMessageFlags(flags.getBits());
+		assertEquals("AD", copy.getShortFlagString());
+		assertEquals(IMAPMessageFlags.parseShortFlags("AD"), flags.getBits());
+	}
+
+	@Test
+	public void setTwiceThenClear() {
+		IMAPMessageFlags flags = new IMAPMessageFlags();
+		flags.setSeen();
+		flags.setSeen();
+		flags.set(IMAPMessageFlags.FLAG_SEEN, false);
+		assertFalse(flags.isSeen());
+		assertEquals("", flags.getFlags());
+	}
+
+	@Test
+	public void unknownFlagIsIgnored() {
+		IMAPMessageFlags flags = new IMAPMessageFlags();
+		flags.set("custom", true);
+		assertFalse(flags.get("custom"));
+		assertEquals(0, flags.getBits());
+		assertEquals(0, IMAPMessageFlags.getBit("custom"));
+	}
+}
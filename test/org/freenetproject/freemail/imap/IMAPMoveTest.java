@@ -0,0 +1,169 @@
+/*
+ * IMAPMoveTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class IMAPMoveTest extends IMAPTestWithMessages {
+	@Test
+	public void moveMessagesToOtherFolder() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 CREATE INBOX.Trash");
+		commands.add("0004 MOVE 1:3 INBOX.Trash");
+		commands.add("0005 UID SEARCH ALL");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("0003 OK Mailbox created");
+		expectedResponse.add("* OK [COPYUID 2 1:3 1:3] Moved");
+		expectedResponse.add("* 1 EXPUNGE");
+		expectedResponse.add("* 1 EXPUNGE");
+		expectedResponse.add("* 1 EXPUNGE");
+		expectedResponse.add("0004 OK Move completed");
+		expectedResponse.add("* SEARCH 4 6 7 8 9 10");
+		expectedResponse.add("0005 OK Search completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void uidMoveMessagesToOtherFolder() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 CREATE INBOX.Trash");
+		commands.add("0004 UID MOVE 4,6,9 INBOX.Trash");
+		commands.add("0005 UID SEARCH ALL");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("0003 OK Mailbox created");
+		expectedResponse.add("* OK [COPYUID 2 4,6,9 1:3] Moved");
+		expectedResponse.add("* 4 EXPUNGE");
+		expectedResponse.add("* 4 EXPUNGE");
+		expectedResponse.add("* 6 EXPUNGE");
+		expectedResponse.add("0004 OK Move completed");
+		expectedResponse.add("* SEARCH 1 2 3 7 8 10");
+		expectedResponse.add("0005 OK Search completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void uidMoveWithNoMatchingMessages() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 CREATE INBOX.Trash");
+		commands.add("0004 UID MOVE 5 INBOX.Trash");
+		commands.add("0005 UID SEARCH ALL");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("0003 OK Mailbox created");
+		expectedResponse.add("0004 OK Move completed");
+		expectedResponse.add("* SEARCH 1 2 3 4 6 7 8 9 10");
+		expectedResponse.add("0005 OK Search completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void movePreservesFlags() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 CREATE INBOX.Trash");
+		commands.add("0004 STORE 1 FLAGS (\\Seen)");
+		commands.add("0005 MOVE 1 INBOX.Trash");
+		commands.add("0006 SELECT INBOX.Trash");
+		commands.add("0007 FETCH 1 (UID FLAGS)");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("0003 OK Mailbox created");
+		expectedResponse.add("* 1 FETCH FLAGS (\\Seen)");
+		expectedResponse.add("0004 OK Store completed");
+		expectedResponse.add("* OK [COPYUID 2 1 1] Moved");
+		expectedResponse.add("* 1 EXPUNGE");
+		expectedResponse.add("0005 OK Move completed");
+		expectedResponse.add("* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)");
+		expectedResponse.add("* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited");
+		expectedResponse.add("* 1 EXISTS");
+		expectedResponse.add("* 1 RECENT");
+		expectedResponse.add("* OK [UIDVALIDITY 2] Ok");
+		expectedResponse.add("0006 OK [READ-WRITE] Done");
+		expectedResponse.add("* 1 FETCH (UID 1 FLAGS (\\Seen))");
+		expectedResponse.add("0007 OK Fetch completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void moveToNonexistentMailbox() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 MOVE 1 INBOX.abc");
+		commands.add("0004 SEARCH ALL");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("0003 NO [TRYCREATE] No such mailbox.");
+		expectedResponse.add("* SEARCH 1 2 3 4 5 6 7 8 9");
+		expectedResponse.add("0004 OK Search completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void moveWithMessageId0() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 MOVE 0 INBOX");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("0003 NO Invalid message ID");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void moveWithTooHighMessageId() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 MOVE 10 INBOX");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("0003 NO Invalid message ID");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * IMAPResponseWriterTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class IMAPResponseWriterTest {
+	@Test
+	public void smallWritesAreBufferedUntilFlush() throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		IMAPResponseWriter writer = new IMAPResponseWriter(out);
+
+		writer.write("* 1 FETCH (".getBytes("UTF-8"));
+		writer.write("FLAGS ()".getBytes("UTF-8"));
+		writer.write(')');
+		assertEquals(0, out.writes);
+
+		writer.flush();
+		assertEquals(1, out.writes);
+		assertEquals("* 1 FETCH (FLAGS ())", out.toString("UTF-8"));
+		assertEquals(20, writer.getBytes());
+		assertEquals(1, writer.getWrites());
+
+		writer.close();
+	}
+
+	@Test
+	public void fullBufferIsWritten() throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		IMAPResponseWriter writer = new IMAPResponseWriter(out);
+
+		byte[] data = new byte[IMAPResponseWriter.BUFFER_SIZE / 2 + 1];
+		writer.write(data);
+		assertEquals(0, out.writes);
+		writer.write(data);
+		assertEquals(1, out.writes);
+
+		writer.close();
+		assertEquals(2, out.writes);
+		assertEquals(data.length * 2, out.size());
+	}
+
+	@Test
+	public void largeWritesBypassBuffer() throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		IMAPResponseWriter writer = new IMAPResponseWriter(out);
+
+		byte[] literal = new byte[IMAPResponseWriter.BUFFER_SIZE * 2];
+		Arrays.fill(literal, (byte)'a');
+		writer.write("{16384}\r\n".getBytes("UTF-8"));
+		writer.write(literal);
+
+		//The prefix is sent first so the order is kept
+		assertEquals(2, out.writes);
+		assertEquals(9 + literal.length, out.size());
+		assertEquals('{', out.toByteArray()[0]);
+
+		writer.close();
+	}
+
+	@Test
+	public void resetMetrics() throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		IMAPResponseWriter writer = new IMAPResponseWriter(out);
+
+		writer.write('a');
+		writer.flush();
+		writer.resetMetrics();
+		assertEquals(0, writer.getBytes());
+		assertEquals(0, writer.getWrites());
+
+		writer.close();
+	}
+
+	@Test(expected = IOException.class)
+	public void writeAfterClose() throws IOException {
+		IMAPResponseWriter writer = new IMAPResponseWriter(new CountingOutputStream());
+		writer.close();
+		writer.write('a');
+	}
+
+	private static class CountingOutputStream extends ByteArrayOutputStream {
+		private int writes = 0;
+
+		@Override
+		public synchronized void write(int b) {
+			writes++;
+			super.write(b);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			writes++;
+			super.write(b, off, len);
+		}
+	}
+}
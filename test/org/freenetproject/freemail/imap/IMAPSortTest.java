@@ -0,0 +1,158 @@
+/*
+ * IMAPSortTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+import utils.TextProtocolTester.Command;
+
+public class IMAPSortTest extends IMAPTestWithMessages {
+	@Test
+	public void sortBySubject() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+
+		commands.add(new Command("0003 SORT (SUBJECT) UTF-8 ALL",
+				"* SORT 1 2 3 4 5 6 7 8 9",
+				"0003 OK Sort completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void sortByReverseSubject() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+
+		commands.add(new Command("0003 SORT (REVERSE SUBJECT) UTF-8 ALL",
+				"* SORT 9 8 7 6 5 4 3 2 1",
+				"0003 OK Sort completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void uidSortByReverseSubject() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+
+		commands.add(new Command("0003 UID SORT (REVERSE SUBJECT) UTF-8 ALL",
+				"* SORT 10 9 8 7 6 4 3 2 1",
+				"0003 OK Sort completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void sortWithSearchCriteria() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+
+		commands.add(new Command("0003 SORT (ARRIVAL SUBJECT) US-ASCII SUBJECT 3",
+				"* SORT 4",
+				"0003 OK Sort completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void sortWithNoMatches() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+
+		commands.add(new Command("0003 SORT (SIZE) UTF-8 DELETED",
+				"* SORT",
+				"0003 OK Sort completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void sortIsUpdatedAfterCopy() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+
+		commands.add(new Command("0003 SORT (SUBJECT) UTF-8 ALL",
+				"* SORT 1 2 3 4 5 6 7 8 9",
+				"0003 OK Sort completed"));
+		commands.add(new Command("0004 COPY 1 INBOX",
+				"0004 OK [COPYUID 1 1 11] COPY completed"));
+		commands.add(new Command("0005 SORT (SUBJECT) UTF-8 ALL",
+				"* SORT 1 10 2 3 4 5 6 7 8 9",
+				"0005 OK Sort completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void sortWithUnsupportedCharset() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+
+		commands.add(new Command("0003 SORT (SUBJECT) ISO-8859-1 ALL",
+				"0003 NO [BADCHARSET] Unsupported charset"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void sortWithUnknownCriterion() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+
+		commands.add(new Command("0003 SORT (REVERSE COLOR) UTF-8 ALL",
+				"0003 BAD Unknown sort criterion COLOR"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void sortWithoutParentheses() throws IOException {
+		List<Command> commands = new LinkedList<Command>();
+		commands.addAll(connectSequence());
+		commands.addAll(loginSequence("0001"));
+		commands.addAll(selectInboxSequence("0002"));
+
+		commands.add(new Command("0003 SORT SUBJECT UTF-8 ALL",
+				"0003 BAD Sort criteria must be a parenthesized list"));
+
+		runSimpleTest(commands);
+	}
+}
@@ -82,7 +82,7 @@ public class IMAPStateCheckAuthenticatedTest extends IMAPTestWithMessages {
 		commands.add("0001 " + command);
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES MOVE UIDPLUS LIST-STATUS] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 NO Must be authenticated");
 
 		runSimpleTest(commands, expectedResponse);
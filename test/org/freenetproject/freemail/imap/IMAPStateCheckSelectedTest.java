@@ -75,7 +75,7 @@ public class IMAPStateCheckSelectedTest extends IMAPTestWithMessages {
 		commands.add("0002 " + command);
 
 		List<String> expectedResponse = new LinkedList<String>();
-		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE] Freemail ready - hit me with your rhythm stick.");
+		expectedResponse.add("* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES MOVE UIDPLUS LIST-STATUS] Freemail ready - hit me with your rhythm stick.");
 		expectedResponse.add("0001 OK Logged in");
 		expectedResponse.add("0002 NO No mailbox selected");
 
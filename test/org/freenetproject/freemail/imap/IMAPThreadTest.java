@@ -0,0 +1,140 @@
+/*
+ * IMAPThreadTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import static org.junit.Assert.*;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+import org.freenetproject.freemail.AccountManager;
+import org.freenetproject.freemail.FreemailAccount;
+import org.freenetproject.freemail.MailMessage;
+
+import utils.TextProtocolTester.Command;
+
+import fakes.ConfigurableAccountManager;
+
+public class IMAPThreadTest extends IMAPTestBase {
+	@Override
+	public void before() {
+		super.before();
+
+		AccountManager temp = new ConfigurableAccountManager(accountManagerDir, false, accountDirs);
+		FreemailAccount account = temp.authenticate(BASE64_USERNAME, "");
+
+		addMessage(account, "Hello", "<1@test>", null, null, "10:00");
+		addMessage(account, "Re: Hello", "<2@test>", "<1@test>", null, "11:00");
+		addMessage(account, "Other", "<3@test>", null, null, "10:30");
+		addMessage(account, "Re: Hello", "<4@test>", null, "<1@test>", "12:00");
+		addMessage(account, "Re: Re: Hello", "<5@test>", "<1@test> <2@test>", null, "13:00");
+		addMessage(account, "Re: Missing", "<6@test>", "<404@test>", null, "09:00");
+		addMessage(account, "Re: Missing", "<7@test>", "<404@test>", null, "09:30");
+	}
+
+	private static void addMessage(FreemailAccount account, String subject, String messageId, String references,
+	                               String inReplyTo, String time) {
+		MailMessage m = account.getMessageBank().createMessage();
+		m.addHeader("Subject", subject);
+		m.addHeader("Message-ID", messageId);
+		m.addHeader("Date", "Mon, 1 Jan 2024 " + time + ":00 +0000");
+		if(references != null) {
+			m.addHeader("References", references);
+		}
+		if(inReplyTo != null) {
+			m.addHeader("In-Reply-To", inReplyTo);
+		}
+
+		try {
+			m.writeHeadersAndGetStream();
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+			fail(e.toString());
+		}
+		m.commit();
+	}
+
+	private static List<Command> setupSequence() {
+		List<Command> commands = new LinkedList<Command>();
+		commands.add(new Command(null, "* OK [CAPABILITY IMAP4rev1 CHILDREN NAMESPACE SORT THREAD=ORDEREDSUBJECT THREAD=REFERENCES MOVE UIDPLUS LIST-STATUS] Freemail ready - hit me with your rhythm stick."));
+		commands.add(new Command("0001 LOGIN " + IMAP_USERNAME + " test", "0001 OK Logged in"));
+		commands.add(new Command("0002 SELECT INBOX",
+		                         "* FLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)",
+		                         "* OK [PERMANENTFLAGS (\\Seen \\Answered \\Flagged \\Deleted \\Draft \\Recent)] Limited",
+		                         "* 7 EXISTS",
+		                         "* 7 RECENT",
+		                         "* OK [UIDVALIDITY 1] Ok",
+		                         "0002 OK [READ-WRITE] Done"));
+		return commands;
+	}
+
+	@Test
+	public void threadByReferences() throws IOException {
+		List<Command> commands = setupSequence();
+		commands.add(new Command("0003 THREAD REFERENCES UTF-8 ALL",
+				"* THREAD ((6)(7))(1 (2 5)(4))(3)",
+				"0003 OK Thread completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void threadByOrderedSubject() throws IOException {
+		List<Command> commands = setupSequence();
+		commands.add(new Command("0003 THREAD ORDEREDSUBJECT UTF-8 ALL",
+				"* THREAD (6 7)(1 (2)(4)(5))(3)",
+				"0003 OK Thread completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void threadWithSearchCriteria() throws IOException {
+		List<Command> commands = setupSequence();
+		commands.add(new Command("0003 UID THREAD REFERENCES UTF-8 SUBJECT hello",
+				"* THREAD (1 (2 5)(4))",
+				"0003 OK Thread completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void sortByDate() throws IOException {
+		List<Command> commands = setupSequence();
+		commands.add(new Command("0003 SORT (DATE) UTF-8 ALL",
+				"* SORT 6 7 1 3 2 4 5",
+				"0003 OK Sort completed"));
+
+		runSimpleTest(commands);
+	}
+
+	@Test
+	public void threadWithUnknownAlgorithm() throws IOException {
+		List<Command> commands = setupSequence();
+		commands.add(new Command("0003 THREAD RANDOM UTF-8 ALL",
+				"0003 BAD Unknown threading algorithm"));
+
+		runSimpleTest(commands);
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * IMAPUidExpungeTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package org.freenetproject.freemail.imap;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class IMAPUidExpungeTest extends IMAPTestWithMessages {
+	@Test
+	public void uidExpungeOnlyRemovesGivenMessages() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 STORE 1:2 +FLAGS (\\Deleted)");
+		commands.add("0004 STORE 4 +FLAGS (\\Deleted)");
+		commands.add("0005 UID EXPUNGE 2:4");
+		commands.add("0006 UID SEARCH ALL");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* 1 FETCH FLAGS (\\Deleted)");
+		expectedResponse.add("* 2 FETCH FLAGS (\\Deleted)");
+		expectedResponse.add("0003 OK Store completed");
+		expectedResponse.add("* 4 FETCH FLAGS (\\Deleted)");
+		expectedResponse.add("0004 OK Store completed");
+		expectedResponse.add("* 2 EXPUNGE");
+		expectedResponse.add("* 3 EXPUNGE");
+		expectedResponse.add("0005 OK Expunge complete");
+		expectedResponse.add("* SEARCH 1 3 6 7 8 9 10");
+		expectedResponse.add("0006 OK Search completed");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void uidExpungeWithoutDeletedMessages() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 STORE 1 +FLAGS (\\Deleted)");
+		commands.add("0004 UID EXPUNGE 2:*");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("* 1 FETCH FLAGS (\\Deleted)");
+		expectedResponse.add("0003 OK Store completed");
+		expectedResponse.add("0004 OK Expunge complete");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void uidExpungeWithoutSequenceSet() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 UID EXPUNGE");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("0003 BAD Not enough arguments");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void uidExpungeWithIllegalSequenceSet() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		commands.add("0001 LOGIN " + IMAP_USERNAME + " test");
+		commands.add("0002 SELECT INBOX");
+		commands.add("0003 UID EXPUNGE 1:2:3");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.addAll(INITIAL_RESPONSES);
+		expectedResponse.add("0003 BAD Illegal sequence number set");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+}
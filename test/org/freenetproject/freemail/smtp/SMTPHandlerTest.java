@@ -47,7 +47,11 @@ public class SMTPHandlerTest extends SMTPTestBase {
 		List<String> expectedResponse = new LinkedList<String>();
 		expectedResponse.add("220 localhost ready");
 		expectedResponse.add("250-localhost");
-		expectedResponse.add("250 AUTH LOGIN PLAIN");
+		expectedResponse.add("250-AUTH LOGIN PLAIN");
+		expectedResponse.add("250-PIPELINING");
+		expectedResponse.add("250-8BITMIME");
+		expectedResponse.add("250-CHUNKING");
+		expectedResponse.add("250 SIZE " + SMTPHandler.MAX_MESSAGE_SIZE);
 
 		runSimpleTest(commands, expectedResponse);
 	}
@@ -78,4 +82,70 @@ public class SMTPHandlerTest extends SMTPTestBase {
 
 		runSimpleTest(commands, expectedResponse);
 	}
+
+	@Test
+	public void mailWithParameters() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		final String authData = new String(Base64.encode(("\0" + BASE64_USERNAME + "\0password").getBytes("ASCII")), "ASCII");
+		commands.add("AUTH PLAIN " + authData);
+		commands.add("MAIL FROM:<zidel@zidel.freemail> SIZE=1000 BODY=8BITMIME");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.add("220 localhost ready");
+		expectedResponse.add("235 Authenticated");
+		expectedResponse.add("250 OK");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void mailAcceptsAuthParameter() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		final String authData = new String(Base64.encode(("\0" + BASE64_USERNAME + "\0password").getBytes("ASCII")), "ASCII");
+		commands.add("AUTH PLAIN " + authData);
+		commands.add("MAIL FROM:<zidel@zidel.freemail> AUTH=<>");
+		commands.add("MAIL FROM:<zidel@zidel.freemail> SIZE=1000 AUTH=zidel@zidel.freemail");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.add("220 localhost ready");
+		expectedResponse.add("235 Authenticated");
+		expectedResponse.add("250 OK");
+		expectedResponse.add("250 OK");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void mailRejectsTooLargeSize() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		final String authData = new String(Base64.encode(("\0" + BASE64_USERNAME + "\0password").getBytes("ASCII")), "ASCII");
+		commands.add("AUTH PLAIN " + authData);
+		commands.add("MAIL FROM:<zidel@zidel.freemail> SIZE=" + (SMTPHandler.MAX_MESSAGE_SIZE + 1));
+		commands.add("MAIL FROM: <zidel@zidel.freemail> SIZE=abc");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.add("220 localhost ready");
+		expectedResponse.add("235 Authenticated");
+		expectedResponse.add("552 Message size exceeds fixed maximum message size");
+		expectedResponse.add("501 Syntax error in SIZE parameter");
+
+		runSimpleTest(commands, expectedResponse);
+	}
+
+	@Test
+	public void mailRejectsUnknownParameters() throws IOException {
+		List<String> commands = new LinkedList<String>();
+		final String authData = new String(Base64.encode(("\0" + BASE64_USERNAME + "\0password").getBytes("ASCII")), "ASCII");
+		commands.add("AUTH PLAIN " + authData);
+		commands.add("MAIL FROM:<zidel@zidel.freemail> BODY=BINARYMIME");
+		commands.add("MAIL FROM:<zidel@zidel.freemail> SMTPUTF8");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.add("220 localhost ready");
+		expectedResponse.add("235 Authenticated");
+		expectedResponse.add("555 Unsupported body type");
+		expectedResponse.add("555 Unsupported parameter SMTPUTF8");
+
+		runSimpleTest(commands, expectedResponse);
+	}
 }
@@ -41,6 +41,7 @@ import org.freenetproject.freemail.FreemailAccount;
 import org.freenetproject.freemail.NullFreemailAccount;
 import org.freenetproject.freemail.transport.MessageHandler;
 import org.freenetproject.freemail.wot.Identity;
+import org.freenetproject.freemail.wot.IdentityDirectory;
 import org.freenetproject.freemail.wot.IdentityMatcher;
 import org.junit.After;
 import org.junit.Assume;
@@ -109,7 +110,11 @@ public class SMTPSessionTest {
 		List<Command> commands = new LinkedList<Command>();
 		commands.add(new Command(null, "220 localhost ready"));
 		commands.add(new Command("EHLO", "250-localhost",
-		                                 "250 AUTH LOGIN PLAIN"));
+		                                 "250-AUTH LOGIN PLAIN",
+		                                 "250-PIPELINING",
+		                                 "250-8BITMIME",
+		                                 "250-CHUNKING",
+		                                 "250 SIZE " + SMTPHandler.MAX_MESSAGE_SIZE));
 		commands.add(new Command("AUTH PLAIN " + authData, "235 Authenticated"));
 		commands.add(new Command("MAIL FROM:<" + TestId1Data.FreemailAccount.ADDRESS + ">", "250 OK"));
 		commands.add(new Command("RCPT TO:<" + TestId1Data.FreemailAccount.ADDRESS + ">", "250 OK"));
@@ -142,7 +147,11 @@ public class SMTPSessionTest {
 		List<Command> commands = new LinkedList<Command>();
 		commands.add(new Command(null, "220 localhost ready"));
 		commands.add(new Command("EHLO", "250-localhost",
-		                                 "250 AUTH LOGIN PLAIN"));
+		                                 "250-AUTH LOGIN PLAIN",
+		                                 "250-PIPELINING",
+		                                 "250-8BITMIME",
+		                                 "250-CHUNKING",
+		                                 "250 SIZE " + SMTPHandler.MAX_MESSAGE_SIZE));
 		commands.add(new Command("AUTH PLAIN " + authData, "235 Authenticated"));
 		commands.add(new Command("MAIL FROM:<" + TestId1Data.FreemailAccount.ADDRESS + ">", "250 OK"));
 		commands.add(new Command("RCPT TO:<" + TestId1Data.FreemailAccount.ADDRESS + ">", "250 OK"));
@@ -184,7 +193,11 @@ public class SMTPSessionTest {
 		List<Command> commands = new LinkedList<Command>();
 		commands.add(new Command(null, "220 localhost ready"));
 		commands.add(new Command("EHLO", "250-localhost",
-		                                 "250 AUTH LOGIN PLAIN"));
+		                                 "250-AUTH LOGIN PLAIN",
+		                                 "250-PIPELINING",
+		                                 "250-8BITMIME",
+		                                 "250-CHUNKING",
+		                                 "250 SIZE " + SMTPHandler.MAX_MESSAGE_SIZE));
 		commands.add(new Command("AUTH PLAIN " + authData, "235 Authenticated"));
 		commands.add(new Command("MAIL FROM:<" + TestId1Data.FreemailAccount.ADDRESS + ">", "250 OK"));
 		commands.add(new Command("RCPT TO:<" + TestId1Data.FreemailAccount.ADDRESS + ">", "250 OK"));
@@ -226,7 +239,11 @@ public class SMTPSessionTest {
 		List<Command> commands = new LinkedList<Command>();
 		commands.add(new Command(null, "220 localhost ready"));
 		commands.add(new Command("EHLO", "250-localhost",
-		                                 "250 AUTH LOGIN PLAIN"));
+		                                 "250-AUTH LOGIN PLAIN",
+		                                 "250-PIPELINING",
+		                                 "250-8BITMIME",
+		                                 "250-CHUNKING",
+		                                 "250 SIZE " + SMTPHandler.MAX_MESSAGE_SIZE));
 		commands.add(new Command("AUTH PLAIN " + authData, "235 Authenticated"));
 
 		//Message 1
@@ -252,6 +269,74 @@ public class SMTPSessionTest {
 		runSimpleSessionTest(commands, true, messages, recipients);
 	}
 
+	/**
+	 * Sends a message using BDAT (see <a href="https://tools.ietf.org/html/rfc3030">RFC3030</a>),
+	 * split into two chunks. The chunks should be passed on unmodified.
+	 *
+	 * @throws IOException on IO errors with SMTP thread, should never happen
+	 */
+	@Test
+	public void chunkedMessage() throws IOException {
+		Assume.assumeTrue(UnitTestParameters.EXTENSIVE);
+
+		final String chunk1 =
+				  "Date: Thu, 21 May 1998 05:33:29 -0700\r\n"
+				+ "From: " + TestId1Data.FreemailAccount.ADDRESS_WITH_ANGLE + "\r\n"
+				+ "Subject: Freemail SMTP test\r\n";
+		final String chunk2 =
+				  "To: " + TestId1Data.FreemailAccount.ADDRESS_WITH_ANGLE + "\r\n"
+				+ "\r\n"
+				+ ".This line isn't dot stuffed\r\n";
+
+		//The protocol tester adds the final CRLF of each chunk
+		String authData = new String(Base64.encode(("\0" + TestId1Data.Identity.ID + "\0" + PASSWORD).getBytes("ASCII")), "ASCII");
+		List<Command> commands = new LinkedList<Command>();
+		commands.add(new Command(null, "220 localhost ready"));
+		commands.add(new Command("AUTH PLAIN " + authData, "235 Authenticated"));
+		commands.add(new Command("MAIL FROM:<" + TestId1Data.FreemailAccount.ADDRESS + "> BODY=8BITMIME", "250 OK"));
+		commands.add(new Command("RCPT TO:<" + TestId1Data.FreemailAccount.ADDRESS + ">", "250 OK"));
+		commands.add(new Command("BDAT " + chunk1.length() + "\r\n" + chunk1.substring(0, chunk1.length() - 2),
+		                         "250 " + chunk1.length() + " octets received"));
+		commands.add(new Command("BDAT " + chunk2.length() + " LAST\r\n" + chunk2.substring(0, chunk2.length() - 2),
+		                         "250 So be it"));
+
+		runSimpleSessionTest(commands, true, Collections.singletonList(chunk1 + chunk2),
+		                Collections.singletonList(TestId1Data.FreemailAccount.ADDRESS));
+	}
+
+	/**
+	 * Sends the whole mail transaction in one go (see
+	 * <a href="https://tools.ietf.org/html/rfc2920">RFC2920</a>) and checks that all the
+	 * responses arrive in order.
+	 *
+	 * @throws IOException on IO errors with SMTP thread, should never happen
+	 */
+	@Test
+	public void pipelinedSession() throws IOException {
+		Assume.assumeTrue(UnitTestParameters.EXTENSIVE);
+
+		final String message =
+				  "Date: Thu, 21 May 1998 05:33:29 -0700\r\n"
+				+ "From: " + TestId1Data.FreemailAccount.ADDRESS_WITH_ANGLE + "\r\n"
+				+ "Subject: Freemail SMTP test\r\n"
+				+ "To: " + TestId1Data.FreemailAccount.ADDRESS_WITH_ANGLE + "\r\n"
+				+ "\r\n"
+				+ "This is a pipelined SMTP test for Freemail\r\n";
+
+		String authData = new String(Base64.encode(("\0" + TestId1Data.Identity.ID + "\0" + PASSWORD).getBytes("ASCII")), "ASCII");
+		List<Command> commands = new LinkedList<Command>();
+		commands.add(new Command(null, "220 localhost ready"));
+		commands.add(new Command("AUTH PLAIN " + authData, "235 Authenticated"));
+		commands.add(new Command("MAIL FROM:<" + TestId1Data.FreemailAccount.ADDRESS + ">\r\n"
+		                         + "RCPT TO:<" + TestId1Data.FreemailAccount.ADDRESS + ">\r\n"
+		                         + "BDAT " + message.length() + " LAST\r\n"
+		                         + message.substring(0, message.length() - 2),
+		                         "250 OK", "250 OK", "250 So be it"));
+
+		runSimpleSessionTest(commands, true, Collections.singletonList(message),
+		                Collections.singletonList(TestId1Data.FreemailAccount.ADDRESS));
+	}
+
 	/**
 	 * Sets up the SMTP server and supporting mocks and runs through the commands and the expected
 	 * responses, then quit. The list of recipients can only contain one recipient per message.
@@ -319,7 +404,7 @@ public class SMTPSessionTest {
 			}
 		};
 
-		IdentityMatcher matcher = new IdentityMatcher(null) {
+		IdentityMatcher matcher = new IdentityMatcher((IdentityDirectory) null) {
 			private int offset = 0;
 
 			@Override
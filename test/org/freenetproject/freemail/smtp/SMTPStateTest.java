@@ -81,4 +81,24 @@ public class SMTPStateTest extends SMTPTestBase {
 
 		runSimpleTest(commands, expectedResponse);
 	}
+
+	@Test
+	public void bdatWithoutRcpt() throws IOException {
+		final String encoded = new String(Base64.encode(("\0" + BASE64_USERNAME + "\0password").getBytes("ASCII")), "ASCII");
+
+		//The chunk must be skipped, so the command after it is still handled
+		List<String> commands = new LinkedList<String>();
+		commands.add("AUTH PLAIN " + encoded);
+		commands.add("BDAT 6 LAST");
+		commands.add("DATA");
+		commands.add("NOOP");
+
+		List<String> expectedResponse = new LinkedList<String>();
+		expectedResponse.add("220 localhost ready");
+		expectedResponse.add("235 Authenticated");
+		expectedResponse.add("503 RCPT first");
+		expectedResponse.add("502 Unimplemented");
+
+		runSimpleTest(commands, expectedResponse);
+	}
 }
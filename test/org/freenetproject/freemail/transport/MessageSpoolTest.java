@@ -0,0 +1,121 @@
+/*
+ * MessageSpoolTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail.transport;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.freenetproject.freemail.utils.PropsFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.Utils;
+
+public class MessageSpoolTest {
+	private static final byte[] DIGEST_1 = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+	private static final byte[] DIGEST_2 = {10, 9, 8, 7, 6, 5, 4, 3, 2, 1};
+
+	private final File spoolDir = new File("spool_test");
+	private MessageSpool spool;
+
+	@Before
+	public void before() {
+		Utils.delete(spoolDir);
+
+		//Drop the cached index from the previous test
+		PropsFile.reapOld();
+		spool = new MessageSpool(spoolDir);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(spoolDir);
+	}
+
+	@Test
+	public void fileDeletedWithLastReference() throws IOException {
+		String name = spool.add(createFile("message"), DIGEST_1, 2);
+		File file = spool.getFile(name);
+		assertTrue(file.exists());
+		assertEquals(2, spool.getReferences(name));
+
+		spool.release(name);
+		assertTrue(file.exists());
+		assertEquals(1, spool.getReferences(name));
+
+		spool.release(name);
+		assertFalse(file.exists());
+		assertEquals(0, spool.getReferences(name));
+	}
+
+	@Test
+	public void identicalMessagesShareFile() throws IOException {
+		File first = createFile("message");
+		File second = createFile("message");
+
+		String name1 = spool.add(first, DIGEST_1, 1);
+		String name2 = spool.add(second, DIGEST_1, 1);
+		assertEquals(name1, name2);
+		assertFalse(second.exists());
+		assertEquals(2, spool.getReferences(name1));
+	}
+
+	@Test
+	public void reconcileDeletesUnreferencedFiles() throws IOException {
+		String referenced = spool.add(createFile("message 1"), DIGEST_1, 3);
+		String unreferenced = spool.add(createFile("message 2"), DIGEST_2, 1);
+		File temp = createFile("partial message");
+
+		Map<String, Integer> references = new HashMap<String, Integer>();
+		references.put(referenced, 1);
+		spool.reconcile(references);
+
+		assertTrue(spool.getFile(referenced).exists());
+		assertEquals(1, spool.getReferences(referenced));
+		assertFalse(spool.getFile(unreferenced).exists());
+		assertEquals(0, spool.getReferences(unreferenced));
+		assertFalse(temp.exists());
+	}
+
+	@Test
+	public void reconcileEmptySpool() {
+		spool.reconcile(Collections.<String, Integer>emptyMap());
+	}
+
+	private File createFile(String content) throws IOException {
+		File f = spool.createTempFile();
+		OutputStream os = new FileOutputStream(f);
+		try {
+			os.write(content.getBytes("UTF-8"));
+		} finally {
+			os.close();
+		}
+		return f;
+	}
+}
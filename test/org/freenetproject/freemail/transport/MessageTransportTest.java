@@ -32,6 +32,7 @@ import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import org.archive.util.Base32;
 import org.freenetproject.freemail.Freemail;
 import org.freenetproject.freemail.utils.PropsFile;
 import org.freenetproject.freemail.wot.Identity;
@@ -40,6 +41,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import data.TestId1Data;
+import data.TestId2Data;
 
 import fakes.MockExecutor;
 import fakes.MockFreemail;
@@ -89,6 +91,9 @@ public class MessageTransportTest {
 	@After
 	public void after() {
 		Utils.delete(testDir);
+
+		//Forget the cached props of the deleted files
+		PropsFile.reapOld();
 	}
 
 	@Test(timeout=10 * 1000)
@@ -178,5 +183,196 @@ public class MessageTransportTest {
 				+ "id=0\r\n"
 				+ "\r\n"
 				+ msg);
+
+		//The traffic is remembered so the channel is polled often after a restart too
+		PropsFile channelProps = PropsFile.createPropsFile(new File(new File(channelDir, "0"), "props"));
+		assertNotNull(channelProps.get("last-traffic"));
+	}
+
+	@Test
+	public void messageSpooledOnceForAllRecipients() throws IOException {
+		final MockFreemail freemail = new MockFreemail(testDir.getAbsolutePath() + "/config", null);
+		freemail.setExecutor(new MockExecutor());
+
+		final MockFreemailAccount account;
+		{
+			File accProps = new File(accountDir, "accprops");
+			PrintWriter pw = new PrintWriter(accProps);
+			pw.write(TestId1Data.FreemailAccount.ACCPROPS_CONTENT);
+			pw.close();
+			account = new MockFreemailAccount(TestId1Data.FreemailAccount.IDENTITY, accountDir, PropsFile.createPropsFile(accProps), freemail);
+		}
+
+		MockHighLevelFCPClient fcpClient = new MockHighLevelFCPClient(new HashMap<String, File>());
+		MessageHandler handler = new MessageHandler(outboxDir, freemail, channelDir, account, new MockHighLevelFCPClientFactory(fcpClient));
+
+		List<Identity> recipients = new ArrayList<Identity>(2);
+		recipients.add(new MockIdentity(TestId1Data.Identity.ID, TestId1Data.Identity.REQUEST_URI, TestId1Data.Identity.NICKNAME));
+		recipients.add(new MockIdentity(TestId2Data.Identity.ID, TestId2Data.Identity.REQUEST_URI, TestId2Data.Identity.NICKNAME));
+		final String msg =
+				  "Subject: Test message\r\n"
+				+ "\r\n"
+				+ "Test message\r\n";
+		assertTrue(handler.sendMessage(recipients, new ArrayBucket(msg.getBytes("UTF-8"))));
+
+		//The recipient outboxes should only hold the index, and the spool a single copy
+		for(Identity recipient : recipients) {
+			File rcptOutbox = new File(outboxDir, recipient.getBase32IdentityID());
+			assertEquals(1, rcptOutbox.listFiles().length);
+		}
+		File spoolDir = new File(outboxDir, "spool");
+		assertEquals(2, spoolDir.listFiles().length);
+
+		assertEquals(2, handler.listOutboxMessages().size());
+		for(MessageHandler.OutboxMessage message : handler.listOutboxMessages()) {
+			assertEquals("Test message", message.subject);
+		}
+	}
+
+	@Test
+	public void channelFoundAfterRestart() throws IOException {
+		final MockFreemail freemail = new MockFreemail(testDir.getAbsolutePath() + "/config", null);
+		freemail.setExecutor(new MockExecutor());
+
+		final MockFreemailAccount account;
+		{
+			File accProps = new File(accountDir, "accprops");
+			PrintWriter pw = new PrintWriter(accProps);
+			pw.write(TestId1Data.FreemailAccount.ACCPROPS_CONTENT);
+			pw.close();
+			account = new MockFreemailAccount(TestId1Data.FreemailAccount.IDENTITY, accountDir, PropsFile.createPropsFile(accProps), freemail);
+		}
+
+		MockHighLevelFCPClient fcpClient = new MockHighLevelFCPClient(new HashMap<String, File>());
+		List<Identity> recipients = new ArrayList<Identity>(1);
+		recipients.add(new MockIdentity(TestId1Data.Identity.ID, TestId1Data.Identity.REQUEST_URI, TestId1Data.Identity.NICKNAME));
+		final String msg =
+				  "Subject: Test message\r\n"
+				+ "\r\n"
+				+ "Test message\r\n";
+
+		//Sending creates the channel
+		MockExecutor executor = new MockExecutor();
+		freemail.setExecutor(executor);
+		MessageHandler handler = new MessageHandler(outboxDir, freemail, channelDir, account, new MockHighLevelFCPClientFactory(fcpClient));
+		handler.sendMessage(recipients, new ArrayBucket(msg.getBytes("UTF-8")));
+		executor.runNext(); // SenderTask that creates the channel
+		assertTrue(new File(channelDir, "0").isDirectory());
+
+		//After a restart the same channel is used instead of creating a new one
+		executor = new MockExecutor();
+		freemail.setExecutor(executor);
+		handler = new MessageHandler(outboxDir, freemail, channelDir, account, new MockHighLevelFCPClientFactory(fcpClient));
+		handler.sendMessage(recipients, new ArrayBucket(msg.getBytes("UTF-8")));
+		executor.runNext(); // SenderTask that looks up the channel
+		assertFalse(new File(channelDir, "1").exists());
+	}
+
+	@Test
+	public void expiredChannelDeletedWithoutLoading() throws IOException {
+		//The props would be valid, so only the index can show that the channel has expired
+		File channel = createIndexedChannel("0", "timeout=" + System.currentTimeMillis() + "\n"
+				+ "remoteID=" + TestId1Data.Identity.ID + "\n", 1);
+
+		createMessageHandler(new MockExecutor());
+		assertFalse(channel.exists());
+	}
+
+	@Test
+	public void indexedChannelLoadedWhenPollIsDue() throws IOException {
+		//The props are missing the remote id, so the channel is deleted when it is loaded
+		File channel = createIndexedChannel("0", "", 0);
+
+		MockExecutor executor = new MockExecutor();
+		MessageHandler handler = createMessageHandler(executor);
+		handler.start();
+		assertTrue(channel.exists());
+
+		executor.runNext(); // Channel loader
+		assertFalse(channel.exists());
+	}
+
+	@Test
+	public void idleChannelUnloadedBetweenPolls() throws IOException {
+		long timeout = System.currentTimeMillis() + 60 * 60 * 1000;
+		File channel = createIndexedChannel("0",
+				  "remoteID=" + TestId1Data.Identity.ID + "\n"
+				+ "timeout=" + timeout + "\n"
+				+ "sender-state=cts-received\n"
+				+ "fetchSlot=" + Base32.encode(new byte[32]) + "\n"
+				+ "fetchCode=r\n"
+				+ "publicKey=SSK@key/\n", timeout);
+
+		MockExecutor executor = new MockExecutor();
+		MessageHandler handler = createMessageHandler(executor);
+		handler.start();
+
+		executor.runNext(); // Channel loader
+		//The CTS has been received, so the timeout doesn't make the channel poll more often
+		PropsFile index = PropsFile.createPropsFile(new File(channelDir, "index"));
+		assertNull(index.get("0.replyDue"));
+		executor.runNext(); // Fetcher, which finds nothing and unloads the channel
+
+		//Break the channel so that we can see when it is loaded again
+		PropsFile props = PropsFile.createPropsFile(new File(channel, "props"));
+		synchronized(props) {
+			props.remove("remoteID");
+		}
+		assertTrue(channel.exists());
+
+		executor.runNext(); // Channel loader for the next poll
+		assertFalse(channel.exists());
+	}
+
+	@Test
+	public void replyDueIndexedWhileWaitingForCTS() throws IOException {
+		long timeout = System.currentTimeMillis() + 60 * 60 * 1000;
+		createIndexedChannel("0",
+				  "remoteID=" + TestId1Data.Identity.ID + "\n"
+				+ "timeout=" + timeout + "\n"
+				+ "sender-state=rts-sent\n"
+				+ "fetchSlot=" + Base32.encode(new byte[32]) + "\n"
+				+ "fetchCode=r\n"
+				+ "publicKey=SSK@key/\n", timeout);
+
+		MockExecutor executor = new MockExecutor();
+		MessageHandler handler = createMessageHandler(executor);
+		handler.start();
+		executor.runNext(); // Channel loader
+
+		PropsFile index = PropsFile.createPropsFile(new File(channelDir, "index"));
+		assertEquals(Long.toString(timeout), index.get("0.replyDue"));
+	}
+
+	private File createIndexedChannel(String name, String props, long indexedTimeout) throws IOException {
+		File channel = new File(channelDir, name);
+		Utils.createDir(channel);
+
+		PrintWriter pw = new PrintWriter(new File(channel, "props"));
+		pw.write(props);
+		pw.close();
+
+		pw = new PrintWriter(new File(channelDir, "index"));
+		pw.write(name + ".remoteId=" + TestId1Data.Identity.ID + "\n");
+		if(indexedTimeout != 0) {
+			pw.write(name + ".timeout=" + indexedTimeout + "\n");
+		}
+		pw.close();
+
+		return channel;
+	}
+
+	private MessageHandler createMessageHandler(MockExecutor executor) throws IOException {
+		MockFreemail freemail = new MockFreemail(testDir.getAbsolutePath() + "/config", null);
+		freemail.setExecutor(executor);
+
+		File accProps = new File(accountDir, "accprops");
+		PrintWriter pw = new PrintWriter(accProps);
+		pw.write(TestId1Data.FreemailAccount.ACCPROPS_CONTENT);
+		pw.close();
+		MockFreemailAccount account = new MockFreemailAccount(TestId1Data.FreemailAccount.IDENTITY, accountDir, PropsFile.createPropsFile(accProps), freemail);
+
+		MockHighLevelFCPClient fcpClient = new MockHighLevelFCPClient(new HashMap<String, File>());
+		return new MessageHandler(outboxDir, freemail, channelDir, account, new MockHighLevelFCPClientFactory(fcpClient));
 	}
 }
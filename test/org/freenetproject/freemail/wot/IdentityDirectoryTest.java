@@ -0,0 +1,172 @@
+/*
+ * IdentityDirectoryTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail.wot;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import data.TestId1Data;
+import data.TestId2Data;
+import fakes.MockWoTConnection;
+import freenet.pluginmanager.PluginNotFoundException;
+import utils.Utils;
+
+public class IdentityDirectoryTest {
+	private static final long HOUR = 60 * 60 * 1000;
+
+	private final File testDir = new File("identity_directory_test");
+	private final File snapshotFile = new File(testDir, "identities");
+
+	@Before
+	public void before() {
+		Utils.createDir(testDir);
+	}
+
+	@After
+	public void after() {
+		Utils.delete(testDir);
+	}
+
+	@Test
+	public void identitiesAreCached() throws PluginNotFoundException {
+		CountingWoTConnection wotConnection = new CountingWoTConnection();
+		IdentityDirectory directory = new IdentityDirectory(wotConnection, null, null, HOUR);
+
+		assertEquals(2, directory.getAllIdentities().size());
+		assertEquals(2, directory.getAllIdentities().size());
+		assertEquals(1, directory.getAllOwnIdentities().size());
+		assertEquals(1, wotConnection.fetches);
+	}
+
+	@Test
+	public void uncachedDirectoryAlwaysFetches() throws PluginNotFoundException {
+		CountingWoTConnection wotConnection = new CountingWoTConnection();
+		IdentityDirectory directory = new IdentityDirectory(wotConnection);
+
+		directory.getAllIdentities();
+		directory.getAllIdentities();
+		assertEquals(2, wotConnection.fetches);
+	}
+
+	@Test
+	public void snapshotUsedAfterRestart() throws PluginNotFoundException {
+		CountingWoTConnection wotConnection = new CountingWoTConnection();
+		IdentityDirectory directory = new IdentityDirectory(wotConnection, snapshotFile, null, HOUR);
+		assertTrue(directory.refresh());
+		assertTrue(snapshotFile.exists());
+
+		//WoT isn't needed when the identities can be read from the snapshot
+		CountingWoTConnection restartedConnection = new CountingWoTConnection();
+		IdentityDirectory restarted = new IdentityDirectory(restartedConnection, snapshotFile, null, HOUR);
+		Set<Identity> identities = restarted.getAllIdentities();
+		assertEquals(2, identities.size());
+		assertTrue(identities.contains(TestId1Data.Identity.newInstance()));
+		assertTrue(identities.contains(TestId2Data.Identity.newInstance()));
+		assertEquals(0, restartedConnection.fetches);
+
+		//The OwnIdentities aren't in the snapshot, so they are fetched from WoT
+		OwnIdentity ownIdentity = restarted.getAllOwnIdentities().get(0);
+		assertEquals(TestId1Data.Identity.ID, ownIdentity.getIdentityID());
+		assertEquals("insertURI", ownIdentity.getInsertURI());
+		assertEquals(1, restartedConnection.fetches);
+	}
+
+	@Test
+	public void snapshotDoesNotContainInsertUri() throws IOException, PluginNotFoundException {
+		IdentityDirectory directory = new IdentityDirectory(new CountingWoTConnection(), snapshotFile, null, HOUR);
+		assertTrue(directory.refresh());
+
+		StringBuilder snapshot = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new FileReader(snapshotFile));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				snapshot.append(line).append('\n');
+			}
+		} finally {
+			reader.close();
+		}
+		assertTrue(snapshot.indexOf(TestId1Data.Identity.ID) >= 0);
+		assertTrue(snapshot.indexOf("insertURI") < 0);
+	}
+
+	@Test
+	public void nicknameWithSeparatorsSurvivesSnapshot() throws PluginNotFoundException {
+		Identity identity = TestId2Data.Identity.newInstance();
+		String nickname = "tab\tnewline\nreturn\rbackslash\\t";
+		Identity odd = new Identity(identity.getIdentityID(), identity.getRequestURI(), nickname);
+
+		CountingWoTConnection wotConnection = new CountingWoTConnection();
+		wotConnection.setTrustedIdentities(Collections.singleton(odd));
+		IdentityDirectory directory = new IdentityDirectory(wotConnection, snapshotFile, null, HOUR);
+		assertTrue(directory.refresh());
+
+		IdentityDirectory restarted = new IdentityDirectory(null, snapshotFile, null, HOUR);
+		Set<Identity> identities = restarted.getAllIdentities();
+		assertEquals(2, identities.size());
+		for(Identity i : identities) {
+			if(i.getIdentityID().equals(identity.getIdentityID())) {
+				assertEquals(nickname, i.getNickname());
+			}
+		}
+	}
+
+	@Test
+	public void failedRefreshKeepsIdentities() throws PluginNotFoundException {
+		CountingWoTConnection wotConnection = new CountingWoTConnection();
+		IdentityDirectory directory = new IdentityDirectory(wotConnection, null, null, HOUR);
+		directory.refresh();
+
+		wotConnection.setOwnIdentities(null);
+		assertFalse(directory.refresh());
+		assertEquals(2, directory.getAllIdentities().size());
+	}
+
+	private static class CountingWoTConnection extends MockWoTConnection {
+		private int fetches = 0;
+
+		private CountingWoTConnection() {
+			super(null, null);
+			setTrustedIdentities(Collections.singleton(TestId2Data.Identity.newInstance()));
+			setUntrustedIdentities(Collections.<Identity>emptySet());
+
+			Identity id = TestId1Data.Identity.newInstance();
+			setOwnIdentities(Collections.singletonList(
+					new OwnIdentity(id.getIdentityID(), id.getRequestURI(), "insertURI", id.getNickname())));
+		}
+
+		@Override
+		public Set<Identity> getAllIdentities() throws PluginNotFoundException {
+			fetches++;
+			return super.getAllIdentities();
+		}
+	}
+}
@@ -22,9 +22,12 @@ package org.freenetproject.freemail.wot;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
@@ -35,6 +38,7 @@ import org.freenetproject.freemail.wot.IdentityMatcher;
 import org.freenetproject.freemail.wot.IdentityMatcher.MatchMethod;
 
 import data.TestId1Data;
+import data.TestId2Data;
 
 import fakes.MockWoTConnection;
 import freenet.pluginmanager.PluginNotFoundException;
@@ -158,4 +162,68 @@ public class IdentityMatcherTest {
 		assertEquals(1, matches.size());
 		assertEquals(0, matches.get(TestId1Data.FreemailAccount.ADDRESS).size());
 	}
+
+	@Test
+	public void partialBase32Match() throws PluginNotFoundException {
+		//The domain is case insensitive, but the nickname isn't
+		String base32Id = identity.getBase32IdentityID();
+		String prefix = identity.getNickname() + "@" + base32Id.substring(0, 10).toUpperCase(Locale.ROOT);
+		String wrongCase = identity.getNickname().toUpperCase(Locale.ROOT) + "@" + base32Id;
+
+		Map<String, List<Identity>> matches = match(Collections.singleton(identity),
+				EnumSet.of(MatchMethod.PARTIAL_BASE32), prefix, wrongCase);
+		assertEquals(Collections.singletonList(identity), matches.get(prefix));
+		assertEquals(0, matches.get(wrongCase).size());
+	}
+
+	@Test
+	public void partialBase64Match() throws PluginNotFoundException {
+		String prefix = identity.getNickname() + "@" + identity.getIdentityID().substring(0, 10);
+		String fullBase32 = identity.getNickname() + "@" + identity.getBase32IdentityID() + ".freemail";
+
+		Map<String, List<Identity>> matches = match(Collections.singleton(identity),
+				EnumSet.of(MatchMethod.PARTIAL_BASE64), prefix, fullBase32);
+		assertEquals(Collections.singletonList(identity), matches.get(prefix));
+		assertEquals(0, matches.get(fullBase32).size());
+	}
+
+	@Test
+	public void ambiguousNicknamePrefix() throws PluginNotFoundException {
+		Identity other = new Identity(TestId2Data.Identity.ID, TestId2Data.Identity.REQUEST_URI, identity.getNickname());
+		Set<Identity> identities = new HashSet<Identity>();
+		identities.add(identity);
+		identities.add(other);
+
+		String nickname = identity.getNickname();
+		String unique = nickname + "@" + identity.getBase32IdentityID().substring(0, 5);
+		Map<String, List<Identity>> matches = match(identities, EnumSet.allOf(MatchMethod.class),
+				nickname, nickname + "@", unique, "");
+
+		assertEquals(2, matches.get(nickname).size());
+		assertEquals(2, matches.get(nickname + "@").size());
+		assertEquals(Collections.singletonList(identity), matches.get(unique));
+		assertEquals(2, matches.get("").size());
+	}
+
+	@Test
+	public void identityOnlyAddedOnce() throws PluginNotFoundException {
+		//This address matches using all the methods
+		String recipient = identity.getNickname() + "@" + identity.getIdentityID() + ".freemail";
+
+		Map<String, List<Identity>> matches = match(Collections.singleton(identity),
+				EnumSet.allOf(MatchMethod.class), recipient);
+		assertEquals(Collections.singletonList(identity), matches.get(recipient));
+	}
+
+	private Map<String, List<Identity>> match(Set<Identity> identities, EnumSet<MatchMethod> methods,
+	                                          String... recipients) throws PluginNotFoundException {
+		MockWoTConnection wotConnection = new MockWoTConnection(null, null);
+		wotConnection.setTrustedIdentities(identities);
+		wotConnection.setUntrustedIdentities(Collections.<Identity>emptySet());
+		wotConnection.setOwnIdentities(Collections.<OwnIdentity>emptyList());
+
+		IdentityMatcher identityMatcher = new IdentityMatcher(wotConnection);
+		Set<String> recipientSet = new HashSet<String>(Arrays.asList(recipients));
+		return identityMatcher.matchIdentities(recipientSet, identity.getIdentityID(), methods);
+	}
 }
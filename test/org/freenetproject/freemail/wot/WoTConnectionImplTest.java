@@ -0,0 +1,145 @@
+/*
+ * WoTConnectionImplTest.java
+ * This file is part of Freemail
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package org.freenetproject.freemail.wot;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import freenet.pluginmanager.PluginNotFoundException;
+import freenet.support.SimpleFieldSet;
+import freenet.support.api.Bucket;
+
+public class WoTConnectionImplTest {
+	@Test(timeout = 10 * 1000)
+	public void concurrentRequestsGetTheirOwnReplies() throws Exception {
+		QueueingSender sender = new QueueingSender();
+		final WoTConnectionImpl wot = new WoTConnectionImpl(sender, 60 * 1000);
+
+		final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+		Thread first = startGetProperty(wot, "id1", results);
+		Thread second = startGetProperty(wot, "id2", results);
+
+		//Both requests must be outstanding at the same time
+		SentMessage msg1 = sender.sent.poll(5, TimeUnit.SECONDS);
+		SentMessage msg2 = sender.sent.poll(5, TimeUnit.SECONDS);
+		assertNotNull(msg1);
+		assertNotNull(msg2);
+		assertFalse(msg1.identifier.equals(msg2.identifier));
+
+		//Reply in the opposite order
+		wot.handleReply(msg2.identifier, propertyValue("value-" + msg2.sfs.get("Identity")), null);
+		wot.handleReply(msg1.identifier, propertyValue("value-" + msg1.sfs.get("Identity")), null);
+
+		first.join();
+		second.join();
+		assertTrue(results.contains("id1=value-id1"));
+		assertTrue(results.contains("id2=value-id2"));
+		assertEquals(2, wot.getIdleIdentifierCount());
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void timedOutRequestRetiresIdentifier() throws Exception {
+		QueueingSender sender = new QueueingSender();
+		WoTConnectionImpl wot = new WoTConnectionImpl(sender, 100);
+
+		assertNull(wot.getProperty("id1", "key"));
+		SentMessage msg = sender.sent.poll();
+		assertEquals(Collections.singletonList(msg.identifier), sender.retired);
+		assertEquals(0, wot.getIdleIdentifierCount());
+
+		//A late reply is dropped
+		wot.handleReply(msg.identifier, propertyValue("late"), null);
+	}
+
+	@Test(timeout = 10 * 1000)
+	public void identifierReused() throws Exception {
+		final QueueingSender sender = new QueueingSender();
+		final WoTConnectionImpl wot = new WoTConnectionImpl(sender, 60 * 1000);
+
+		List<String> identifiers = new ArrayList<String>();
+		for(int i = 0; i < 3; i++) {
+			Thread t = startGetProperty(wot, "id", Collections.synchronizedList(new ArrayList<String>()));
+			SentMessage msg = sender.sent.poll(5, TimeUnit.SECONDS);
+			identifiers.add(msg.identifier);
+			wot.handleReply(msg.identifier, propertyValue("value"), null);
+			t.join();
+		}
+
+		assertEquals(identifiers.get(0), identifiers.get(1));
+		assertEquals(identifiers.get(0), identifiers.get(2));
+	}
+
+	private static Thread startGetProperty(final WoTConnectionImpl wot, final String identity,
+	                                       final List<String> results) {
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					results.add(identity + "=" + wot.getProperty(identity, "key"));
+				} catch(PluginNotFoundException e) {
+					results.add(identity + " failed");
+				}
+			}
+		};
+		t.start();
+		return t;
+	}
+
+	private static SimpleFieldSet propertyValue(String value) {
+		SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Message", "PropertyValue");
+		sfs.putOverwrite("Property", value);
+		return sfs;
+	}
+
+	private static class SentMessage {
+		private final String identifier;
+		private final SimpleFieldSet sfs;
+
+		private SentMessage(String identifier, SimpleFieldSet sfs) {
+			this.identifier = identifier;
+			this.sfs = sfs;
+		}
+	}
+
+	private static class QueueingSender implements WoTConnectionImpl.MessageSender {
+		private final BlockingQueue<SentMessage> sent = new LinkedBlockingQueue<SentMessage>();
+		private final List<String> retired = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public void send(String identifier, SimpleFieldSet sfs, Bucket data) {
+			sent.add(new SentMessage(identifier, sfs));
+		}
+
+		@Override
+		public void retire(String identifier) {
+			retired.add(identifier);
+		}
+	}
+}